@@ -0,0 +1,351 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import nzilbb.ag.Annotation;
+import nzilbb.ag.GraphNotFoundException;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.StoreException;
+
+/**
+ * Gets all the annotations returned by
+ * {@link LabbcatView#getMatchingAnnotations(String,Integer,Integer)} or
+ * {@link LabbcatView#getAnnotations(String,String,Integer,Integer,Integer)}, one page at
+ * a time, with several pages requested at once.
+ * <p> The number of annotations is first determined with
+ * {@link LabbcatView#countMatchingAnnotations(String)} or
+ * {@link LabbcatView#countAnnotations(String,String,Integer)}, from which the number of
+ * pages of {@link #getPageLength()} annotations is worked out. Up to
+ * {@link #getConcurrency()} pages are then requested at once.
+ * <p> Annotations can be streamed either in order, or <em>unordered</em>, in which case
+ * each page is delivered as soon as it arrives, so one slow page doesn't hold up the
+ * others.
+ * <p> Requests that fail because of a network error or a server error (HTTP status 5xx
+ * or 429) are retried up to {@link #getRetries()} times, after a delay that starts at
+ * {@link #getRetryDelay()} and doubles each time. Other errors are not retried.
+ * <p> The stream should be closed after use, which stops any outstanding requests. Errors
+ * are rethrown as unchecked exceptions by the stream.
+ * <p> e.g.
+ * <pre> try (Stream&lt;Annotation&gt; words = new AnnotationPager(labbcat)
+ *        .setPageLength(5000).setConcurrency(4)
+ *        .matchingAnnotations("layer.id == 'orthography'", false)) {
+ *   Map&lt;String,Long&gt; frequencies = words.collect(
+ *     Collectors.groupingBy(Annotation::getLabel, Collectors.counting()));
+ * }</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class AnnotationPager {
+
+  // Attributes:
+
+  /**
+   * The client to get annotations from.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to get annotations from.
+   * @return The client to get annotations from.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /**
+   * The maximum number of annotations to get per request. Default is 1000.
+   * @see #getPageLength()
+   * @see #setPageLength(int)
+   */
+  protected int pageLength = 1000;
+  /**
+   * Getter for {@link #pageLength}: The maximum number of annotations to get per request.
+   * @return The maximum number of annotations to get per request.
+   */
+  public int getPageLength() { return pageLength; }
+  /**
+   * Setter for {@link #pageLength}: The maximum number of annotations to get per request.
+   * @param newPageLength The maximum number of annotations to get per request.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public AnnotationPager setPageLength(int newPageLength) { pageLength = Math.max(1, newPageLength); return this; }
+
+  /**
+   * The maximum number of pages to request at once. Default is 4.
+   * @see #getConcurrency()
+   * @see #setConcurrency(int)
+   */
+  protected int concurrency = 4;
+  /**
+   * Getter for {@link #concurrency}: The maximum number of pages to request at once.
+   * @return The maximum number of pages to request at once.
+   */
+  public int getConcurrency() { return concurrency; }
+  /**
+   * Setter for {@link #concurrency}: The maximum number of pages to request at once.
+   * @param newConcurrency The maximum number of pages to request at once.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public AnnotationPager setConcurrency(int newConcurrency) { concurrency = Math.max(1, newConcurrency); return this; }
+
+  /**
+   * The number of times to retry a failed page request. Default is 2.
+   * @see #getRetries()
+   * @see #setRetries(int)
+   */
+  protected int retries = 2;
+  /**
+   * Getter for {@link #retries}: The number of times to retry a failed page request.
+   * @return The number of times to retry a failed page request.
+   */
+  public int getRetries() { return retries; }
+  /**
+   * Setter for {@link #retries}: The number of times to retry a failed page request.
+   * @param newRetries The number of times to retry a failed page request.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public AnnotationPager setRetries(int newRetries) { retries = Math.max(0, newRetries); return this; }
+
+  /**
+   * Milliseconds to wait before the first retry of a failed page request. Default is 500.
+   * @see #getRetryDelay()
+   * @see #setRetryDelay(long)
+   */
+  protected long retryDelay = 500;
+  /**
+   * Getter for {@link #retryDelay}: Milliseconds to wait before the first retry of a
+   * failed page request.
+   * @return Milliseconds to wait before the first retry.
+   */
+  public long getRetryDelay() { return retryDelay; }
+  /**
+   * Setter for {@link #retryDelay}: Milliseconds to wait before the first retry of a
+   * failed page request. Subsequent retries wait twice as long as the previous one.
+   * @param newRetryDelay Milliseconds to wait before the first retry.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public AnnotationPager setRetryDelay(long newRetryDelay) { retryDelay = Math.max(0, newRetryDelay); return this; }
+
+  /**
+   * The number of page requests that have been retried.
+   * @see #getRetried()
+   */
+  protected volatile int retried = 0;
+  /**
+   * Getter for {@link #retried}: The number of page requests that have been retried.
+   * @return The number of page requests that have been retried.
+   */
+  public int getRetried() { return retried; }
+
+  // Methods:
+
+  /**
+   * Constructor.
+   * @param labbcat The client to get annotations from.
+   */
+  public AnnotationPager(LabbcatView labbcat) {
+    this.labbcat = labbcat;
+  } // end of constructor
+
+  /**
+   * Streams all the annotations that match a particular pattern.
+   * @param expression An expression that determines which annotations match, as for
+   * {@link LabbcatView#getMatchingAnnotations(String,Integer,Integer)}.
+   * @param ordered true to deliver annotations in the order the server lists them,
+   * false to deliver each page as soon as it arrives.
+   * @return A stream of annotations.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public Stream<Annotation> matchingAnnotations(String expression, boolean ordered)
+    throws StoreException, PermissionException {
+    int count = labbcat.countMatchingAnnotations(expression);
+    return stream(count, pageNumber -> labbcat.getMatchingAnnotations(
+                    expression, pageLength, pageNumber), ordered);
+  } // end of matchingAnnotations()
+
+  /**
+   * Streams all the annotations on the given layer of the given transcript.
+   * @param id The ID of the transcript.
+   * @param layerId The ID of the layer.
+   * @param maxOrdinal The maximum ordinal for the returned annotations, or null for all
+   * annotations.
+   * @param ordered true to deliver annotations in the order the server lists them,
+   * false to deliver each page as soon as it arrives.
+   * @return A stream of annotations.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @throws GraphNotFoundException If the transcript was not found in the store.
+   */
+  public Stream<Annotation> annotations(
+    String id, String layerId, Integer maxOrdinal, boolean ordered)
+    throws StoreException, PermissionException, GraphNotFoundException {
+    long count = labbcat.countAnnotations(id, layerId, maxOrdinal);
+    return stream(count, pageNumber -> labbcat.getAnnotations(
+                    id, layerId, maxOrdinal, pageLength, pageNumber), ordered);
+  } // end of annotations()
+
+  /** Gets one page of annotations. */
+  protected interface PageRequest {
+    Annotation[] get(int pageNumber)
+      throws StoreException, PermissionException, GraphNotFoundException;
+  }
+
+  /**
+   * Streams the annotations from the given number of pages.
+   * @param count The total number of annotations.
+   * @param request Gets one page of annotations.
+   * @param ordered Whether to deliver pages in order.
+   * @return A stream of annotations.
+   */
+  protected Stream<Annotation> stream(long count, PageRequest request, boolean ordered) {
+    int pageCount = (int)((count + pageLength - 1) / pageLength);
+    Pages pages = new Pages(count, pageCount, request, ordered);
+    return StreamSupport.stream(pages, false).onClose(() -> pages.close());
+  } // end of stream()
+
+  /**
+   * Gets a page of annotations, retrying if the request fails with a transient error.
+   * @param request Gets one page of annotations.
+   * @param pageNumber The page number.
+   * @return The annotations.
+   * @throws Exception If all attempts fail.
+   */
+  protected Annotation[] getPage(PageRequest request, int pageNumber) throws Exception {
+    long delay = retryDelay;
+    for (int attempt = 0; ; attempt++) {
+      try {
+        Annotation[] page = request.get(pageNumber);
+        return page == null? new Annotation[0] : page;
+      } catch(StoreException x) {
+        if (attempt >= retries || !isTransient(x)) throw x;
+        retried++;
+        Thread.sleep(delay);
+        delay *= 2;
+      }
+    } // next attempt
+  } // end of getPage()
+
+  /**
+   * Determines whether the given error might not happen if the request were retried.
+   * @param x The error.
+   * @return true if the error is a network error, or a server error with HTTP status
+   * 5xx or 429, false otherwise.
+   */
+  protected boolean isTransient(StoreException x) {
+    if (x instanceof ResponseException) {
+      int status = ((ResponseException)x).getResponse().getHttpStatus();
+      return status >= 500 || status == 429;
+    }
+    return x.getCause() instanceof IOException;
+  } // end of isTransient()
+
+  /**
+   * Spliterator that keeps up to {@link #concurrency} page requests in flight, and
+   * delivers the annotations of each page as it's received.
+   */
+  protected class Pages extends Spliterators.AbstractSpliterator<Annotation> {
+    final int pageCount;
+    final PageRequest request;
+    final boolean ordered;
+    final ExecutorService pool;
+    /** Pages requested, in page order; used when ordered. */
+    final ArrayDeque<Future<Annotation[]>> inFlight = new ArrayDeque<Future<Annotation[]>>();
+    /** Pages requested, in completion order; used when unordered. */
+    final CompletionService<Annotation[]> completed;
+    int nextPage = 0;
+    int outstanding = 0;
+    Annotation[] current = null;
+    int index = 0;
+    
+    Pages(long count, int pageCount, PageRequest request, boolean ordered) {
+      super(count, ordered? ORDERED | NONNULL : NONNULL);
+      this.pageCount = pageCount;
+      this.request = request;
+      this.ordered = ordered;
+      this.pool = Executors.newFixedThreadPool(concurrency, runnable -> {
+          Thread thread = new Thread(runnable, "AnnotationPager");
+          thread.setDaemon(true); // an abandoned stream mustn't keep the JVM alive
+          return thread;
+        });
+      this.completed = new ExecutorCompletionService<Annotation[]>(pool);
+    }
+    
+    @Override public boolean tryAdvance(Consumer<? super Annotation> action) {
+      while (current == null || index >= current.length) {
+        if (!nextPage()) {
+          close();
+          return false;
+        }
+      }
+      action.accept(current[index++]);
+      return true;
+    }
+
+    /**
+     * Requests more pages if possible, and waits for the next one.
+     * @return false if there are no more pages.
+     */
+    boolean nextPage() {
+      while (nextPage < pageCount && outstanding < concurrency) {
+        final int pageNumber = nextPage++;
+        if (ordered) {
+          inFlight.add(pool.submit(() -> getPage(request, pageNumber)));
+        } else {
+          completed.submit(() -> getPage(request, pageNumber));
+        }
+        outstanding++;
+      } // next request
+      if (outstanding == 0) return false;
+      try {
+        Future<Annotation[]> page = ordered? inFlight.poll() : completed.take();
+        outstanding--;
+        current = page.get();
+        index = 0;
+        return true;
+      } catch(InterruptedException x) {
+        close();
+        throw new RuntimeException(x);
+      } catch(ExecutionException x) {
+        close();
+        throw new RuntimeException(
+          "Could not get annotations: " + x.getCause().getMessage(), x.getCause());
+      }
+    }
+    
+    /** Stops any outstanding requests. */
+    void close() {
+      pool.shutdownNow();
+    }
+  } // end of class Pages
+  
+} // end of class AnnotationPager
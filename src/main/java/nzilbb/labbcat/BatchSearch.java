@@ -0,0 +1,470 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import javax.json.JsonObject;
+import nzilbb.ag.StoreException;
+import nzilbb.labbcat.model.Match;
+import nzilbb.labbcat.model.TaskStatus;
+import nzilbb.util.MonitorableTask;
+
+/**
+ * Runs many search patterns, keeping several search tasks running on the server at once,
+ * and delivers each pattern's matches as soon as its task finishes.
+ * <p> Running patterns one at a time with search, waitForTask, getMatches, and
+ * releaseTask leaves the server idle while results are transferred, and the client idle
+ * while the server searches. This class starts up to {@link #getMaxTasks()} search tasks,
+ * polls all of them in one loop, and as each finishes, gets its matches, releases the task,
+ * passes the matches to a consumer with the pattern's key, and starts the next pattern.
+ * <p> All patterns share the same search parameters (participants, transcript types,
+ * thresholds, etc.), which are set with the setters of this class.
+ * <pre> BatchSearch batch = new BatchSearch(labbcat).setMaxTasks(6).setMainParticipantOnly(true);
+ * for (String word : words) {
+ *   batch.add(word, new PatternBuilder().addMatchLayer("orthography", word));
+ * }
+ * Map&lt;String,Exception&gt; failures = batch.run((word, matches) -&gt; {
+ *   System.out.println(word + ": " + matches.length);
+ * });</pre>
+ * <p> Progress can be monitored from another thread using {@link #getPercentComplete()}
+ * and {@link #getStatus()}, and the batch can be stopped with {@link #cancel()}, which
+ * cancels and releases the tasks that are running.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class BatchSearch implements MonitorableTask {
+
+  // Attributes:
+
+  /**
+   * The client to search with.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to search with.
+   * @return The client to search with.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /**
+   * The patterns to search for, keyed by the key their matches are delivered with.
+   * @see #getPatterns()
+   */
+  protected LinkedHashMap<String,JsonObject> patterns = new LinkedHashMap<String,JsonObject>();
+  /**
+   * Getter for {@link #patterns}: The patterns to search for, keyed by the key their
+   * matches are delivered with.
+   * @return The patterns to search for.
+   */
+  public Map<String,JsonObject> getPatterns() { return patterns; }
+
+  /**
+   * The maximum number of search tasks to have running on the server at once. Default is 4.
+   * @see #getMaxTasks()
+   * @see #setMaxTasks(int)
+   */
+  protected int maxTasks = 4;
+  /**
+   * Getter for {@link #maxTasks}: The maximum number of search tasks to have running on
+   * the server at once.
+   * @return The maximum number of search tasks to have running on the server at once.
+   */
+  public int getMaxTasks() { return maxTasks; }
+  /**
+   * Setter for {@link #maxTasks}: The maximum number of search tasks to have running on
+   * the server at once.
+   * @param newMaxTasks The maximum number of search tasks to have running on the server
+   * at once.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public BatchSearch setMaxTasks(int newMaxTasks) { maxTasks = Math.max(1, newMaxTasks); return this; }
+
+  /**
+   * Milliseconds to wait between polls of running tasks, when none has finished. Default
+   * is 1000.
+   * @see #getPollInterval()
+   * @see #setPollInterval(long)
+   */
+  protected long pollInterval = 1000;
+  /**
+   * Getter for {@link #pollInterval}: Milliseconds to wait between polls of running
+   * tasks, when none has finished.
+   * @return Milliseconds to wait between polls of running tasks.
+   */
+  public long getPollInterval() { return pollInterval; }
+  /**
+   * Setter for {@link #pollInterval}: Milliseconds to wait between polls of running
+   * tasks, when none has finished.
+   * @param newPollInterval Milliseconds to wait between polls of running tasks.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public BatchSearch setPollInterval(long newPollInterval) { pollInterval = Math.max(0, newPollInterval); return this; }
+
+  /**
+   * An optional list of participant IDs to search the utterances of, or null for all
+   * participants.
+   * @see #getParticipantIds()
+   * @see #setParticipantIds(String[])
+   */
+  protected String[] participantIds;
+  /**
+   * Getter for {@link #participantIds}: An optional list of participant IDs to search the
+   * utterances of, or null for all participants.
+   * @return The participant IDs to search the utterances of.
+   */
+  public String[] getParticipantIds() { return participantIds; }
+  /**
+   * Setter for {@link #participantIds}: An optional list of participant IDs to search the
+   * utterances of, or null for all participants.
+   * @param newParticipantIds The participant IDs to search the utterances of.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public BatchSearch setParticipantIds(String[] newParticipantIds) { participantIds = newParticipantIds; return this; }
+
+  /**
+   * An optional list of transcript types to limit the results to, or null for all
+   * transcript types.
+   * @see #getTranscriptTypes()
+   * @see #setTranscriptTypes(String[])
+   */
+  protected String[] transcriptTypes;
+  /**
+   * Getter for {@link #transcriptTypes}: An optional list of transcript types to limit
+   * the results to, or null for all transcript types.
+   * @return The transcript types to limit the results to.
+   */
+  public String[] getTranscriptTypes() { return transcriptTypes; }
+  /**
+   * Setter for {@link #transcriptTypes}: An optional list of transcript types to limit
+   * the results to, or null for all transcript types.
+   * @param newTranscriptTypes The transcript types to limit the results to.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public BatchSearch setTranscriptTypes(String[] newTranscriptTypes) { transcriptTypes = newTranscriptTypes; return this; }
+
+  /**
+   * Whether to search only main-participant utterances. Default is false.
+   * @see #getMainParticipantOnly()
+   * @see #setMainParticipantOnly(boolean)
+   */
+  protected boolean mainParticipantOnly = false;
+  /**
+   * Getter for {@link #mainParticipantOnly}: Whether to search only main-participant
+   * utterances.
+   * @return Whether to search only main-participant utterances.
+   */
+  public boolean getMainParticipantOnly() { return mainParticipantOnly; }
+  /**
+   * Setter for {@link #mainParticipantOnly}: Whether to search only main-participant
+   * utterances.
+   * @param newMainParticipantOnly Whether to search only main-participant utterances.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public BatchSearch setMainParticipantOnly(boolean newMainParticipantOnly) { mainParticipantOnly = newMainParticipantOnly; return this; }
+
+  /**
+   * Optional minimum alignment confidence for matching word or segment annotations.
+   * @see #getOffsetThreshold()
+   * @see #setOffsetThreshold(Integer)
+   */
+  protected Integer offsetThreshold;
+  /**
+   * Getter for {@link #offsetThreshold}: Optional minimum alignment confidence for
+   * matching word or segment annotations.
+   * @return Minimum alignment confidence, or null.
+   */
+  public Integer getOffsetThreshold() { return offsetThreshold; }
+  /**
+   * Setter for {@link #offsetThreshold}: Optional minimum alignment confidence for
+   * matching word or segment annotations.
+   * @param newOffsetThreshold Minimum alignment confidence, or null.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public BatchSearch setOffsetThreshold(Integer newOffsetThreshold) { offsetThreshold = newOffsetThreshold; return this; }
+
+  /**
+   * Optional maximum number of matches per transcript, or null for all matches.
+   * @see #getMatchesPerTranscript()
+   * @see #setMatchesPerTranscript(Integer)
+   */
+  protected Integer matchesPerTranscript;
+  /**
+   * Getter for {@link #matchesPerTranscript}: Optional maximum number of matches per
+   * transcript, or null for all matches.
+   * @return Maximum number of matches per transcript, or null.
+   */
+  public Integer getMatchesPerTranscript() { return matchesPerTranscript; }
+  /**
+   * Setter for {@link #matchesPerTranscript}: Optional maximum number of matches per
+   * transcript, or null for all matches.
+   * @param newMatchesPerTranscript Maximum number of matches per transcript, or null.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public BatchSearch setMatchesPerTranscript(Integer newMatchesPerTranscript) { matchesPerTranscript = newMatchesPerTranscript; return this; }
+
+  /**
+   * Optional percentage overlap with other utterances before simultaneous speech is
+   * excluded, or null to include all overlapping utterances.
+   * @see #getOverlapThreshold()
+   * @see #setOverlapThreshold(Integer)
+   */
+  protected Integer overlapThreshold;
+  /**
+   * Getter for {@link #overlapThreshold}: Optional percentage overlap with other
+   * utterances before simultaneous speech is excluded.
+   * @return Percentage overlap threshold, or null.
+   */
+  public Integer getOverlapThreshold() { return overlapThreshold; }
+  /**
+   * Setter for {@link #overlapThreshold}: Optional percentage overlap with other
+   * utterances before simultaneous speech is excluded.
+   * @param newOverlapThreshold Percentage overlap threshold, or null.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public BatchSearch setOverlapThreshold(Integer newOverlapThreshold) { overlapThreshold = newOverlapThreshold; return this; }
+
+  /**
+   * Number of words context to include in the <q>Before Match</q> and <q>After
+   * Match</q> columns of matches. Default is 0.
+   * @see #getWordsContext()
+   * @see #setWordsContext(int)
+   */
+  protected int wordsContext = 0;
+  /**
+   * Getter for {@link #wordsContext}: Number of words context to include in matches.
+   * @return Number of words context to include in matches.
+   */
+  public int getWordsContext() { return wordsContext; }
+  /**
+   * Setter for {@link #wordsContext}: Number of words context to include in matches.
+   * @param newWordsContext Number of words context to include in matches.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public BatchSearch setWordsContext(int newWordsContext) { wordsContext = newWordsContext; return this; }
+
+  /**
+   * Print verbose output.
+   * @see #getVerbose()
+   * @see #setVerbose(boolean)
+   */
+  protected boolean verbose = false;
+  /**
+   * Getter for {@link #verbose}: Print verbose output.
+   * @return Print verbose output.
+   */
+  public boolean getVerbose() { return verbose; }
+  /**
+   * Setter for {@link #verbose}: Print verbose output.
+   * @param newVerbose Print verbose output.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public BatchSearch setVerbose(boolean newVerbose) { verbose = newVerbose; return this; }
+
+  /**
+   * The number of patterns finished (delivered or failed) so far.
+   * @see #getFinished()
+   */
+  protected volatile int finished = 0;
+  /**
+   * Getter for {@link #finished}: The number of patterns finished (delivered or failed)
+   * so far.
+   * @return The number of patterns finished so far.
+   */
+  public int getFinished() { return finished; }
+
+  /**
+   * Whether the batch is running.
+   * @see #getRunning()
+   */
+  protected volatile boolean running = false;
+  /**
+   * Getter for {@link #running}: Whether the batch is running.
+   * @return Whether the batch is running.
+   */
+  public boolean getRunning() { return running; }
+
+  /** Whether the batch has been cancelled. */
+  protected volatile boolean cancelling = false;
+
+  /** The current status. */
+  protected volatile String status = "";
+
+  // Methods:
+
+  /**
+   * Constructor.
+   * @param labbcat The client to search with.
+   */
+  public BatchSearch(LabbcatView labbcat) {
+    this.labbcat = labbcat;
+  } // end of constructor
+
+  /**
+   * Adds a pattern to the batch.
+   * @param key The key the pattern's matches will be delivered with.
+   * @param pattern The pattern, as for
+   * {@link LabbcatView#search(JsonObject,String[],String[],boolean,Integer,Integer,Integer)}.
+   * @return A reference to this object, so that calls can be chained.
+   */
+  public BatchSearch add(String key, JsonObject pattern) {
+    patterns.put(key, pattern);
+    return this;
+  } // end of add()
+
+  /**
+   * Adds a pattern to the batch.
+   * @param key The key the pattern's matches will be delivered with.
+   * @param pattern The pattern.
+   * @return A reference to this object, so that calls can be chained.
+   */
+  public BatchSearch add(String key, PatternBuilder pattern) {
+    return add(key, pattern.build());
+  } // end of add()
+
+  /**
+   * Adds several patterns to the batch.
+   * @param keyedPatterns Patterns, keyed by the key their matches will be delivered with.
+   * @return A reference to this object, so that calls can be chained.
+   */
+  public BatchSearch addAll(Map<String,JsonObject> keyedPatterns) {
+    patterns.putAll(keyedPatterns);
+    return this;
+  } // end of addAll()
+
+  /**
+   * Runs all the patterns, and passes each pattern's matches to the consumer as soon as
+   * they're available.
+   * <p> The consumer is called on the calling thread, in the order in which tasks
+   * finish, not necessarily the order in which patterns were added. Patterns whose search
+   * fails are not passed to the consumer, but are returned with their errors. If the
+   * consumer throws an exception, the batch stops, and running tasks are released.
+   * @param consumer Receives the key and matches of each pattern.
+   * @return Errors, keyed by the key of the pattern whose search failed, which is empty
+   * if all searches succeeded.
+   * @throws StoreException If the batch is interrupted.
+   */
+  public Map<String,Exception> run(BiConsumer<String,Match[]> consumer)
+    throws StoreException {
+    running = true;
+    cancelling = false;
+    finished = 0;
+    LinkedHashMap<String,Exception> failures = new LinkedHashMap<String,Exception>();
+    LinkedList<String> pending = new LinkedList<String>(patterns.keySet());
+    LinkedHashMap<String,String> inFlight = new LinkedHashMap<String,String>(); // key->threadId
+    try {
+      while ((pending.size() > 0 || inFlight.size() > 0) && !cancelling) {
+        
+        // start tasks until there are maxTasks running
+        while (inFlight.size() < maxTasks && pending.size() > 0) {
+          String key = pending.removeFirst();
+          try {
+            inFlight.put(key, labbcat.search(
+                           patterns.get(key), participantIds, transcriptTypes,
+                           mainParticipantOnly, offsetThreshold, matchesPerTranscript,
+                           overlapThreshold));
+          } catch(Exception x) {
+            failures.put(key, x);
+            finished++;
+          }
+        } // next task to start
+        status = "Searching: " + finished + " of " + patterns.size() + " finished, "
+          + inFlight.size() + " running";
+        if (verbose) System.out.println(status);
+        
+        // poll all running tasks
+        boolean anyFinished = false;
+        Iterator<Map.Entry<String,String>> tasks = inFlight.entrySet().iterator();
+        while (tasks.hasNext() && !cancelling) {
+          Map.Entry<String,String> task = tasks.next();
+          String key = task.getKey();
+          String threadId = task.getValue();
+          Match[] matches = null;
+          try {
+            TaskStatus taskStatus = labbcat.taskStatus(threadId);
+            if (taskStatus == null) {
+              throw new StoreException("Search task " + threadId + " not found.");
+            }
+            if (taskStatus.getRunning()) continue;
+            matches = labbcat.getMatches(threadId, wordsContext);
+            if (matches == null) throw new StoreException("Search cancelled.");
+          } catch(Exception x) {
+            failures.put(key, x);
+          } finally {
+            if (matches != null || failures.containsKey(key)) {
+              tasks.remove();
+              finished++;
+              anyFinished = true;
+              try { labbcat.releaseTask(threadId); } catch(Exception exception) {}
+            }
+          }
+          if (matches != null) consumer.accept(key, matches);
+        } // next task
+        
+        if (!anyFinished && inFlight.size() > 0 && !cancelling) {
+          Thread.sleep(pollInterval);
+        }
+      } // loop
+      status = cancelling? "Cancelled"
+        : "Finished " + patterns.size() + " patterns, " + failures.size() + " failed";
+      if (verbose) System.out.println(status);
+      return failures;
+    } catch(InterruptedException x) {
+      throw new StoreException("Interrupted", x);
+    } finally {
+      // tidy up any tasks that were left running
+      for (String threadId : inFlight.values()) {
+        try { labbcat.cancelTask(threadId); } catch(Exception exception) {}
+        try { labbcat.releaseTask(threadId); } catch(Exception exception) {}
+      }
+      running = false;
+    }
+  } // end of run()
+
+  /**
+   * Determines how far through the batch is.
+   * @return An integer between 0 and 100 (inclusive), or null if there are no patterns.
+   */
+  @Override public Integer getPercentComplete() {
+    if (patterns.size() == 0) return running? null : 100;
+    return finished * 100 / patterns.size();
+  } // end of getPercentComplete()
+
+  /**
+   * Cancels the batch; running search tasks are cancelled and released.
+   */
+  @Override public void cancel() {
+    cancelling = true;
+  } // end of cancel()
+
+  /**
+   * The current status of the batch.
+   * @return The current status.
+   */
+  @Override public String getStatus() {
+    return status;
+  } // end of getStatus()
+
+} // end of class BatchSearch
@@ -0,0 +1,113 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The results of a bulk request like
+ * {@link LabbcatView#getParticipants(java.util.Collection,String[])}, which may have
+ * succeeded for some IDs and failed for others.
+ * <p> Each requested ID is a key in either {@link #getResults()} or
+ * {@link #getFailures()}. A result value is null if the server reported that the entity
+ * doesn't exist, just as the corresponding single-entity method would return null.
+ * @param <T> The type of entity.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class BulkResult<T> {
+
+  // Attributes:
+
+  /**
+   * Results, keyed by ID, in the order the IDs were requested.
+   * @see #getResults()
+   */
+  protected LinkedHashMap<String,T> results = new LinkedHashMap<String,T>();
+  /**
+   * Getter for {@link #results}: Results, keyed by ID, in the order the IDs were requested.
+   * @return Results, keyed by ID.
+   */
+  public Map<String,T> getResults() { return Collections.unmodifiableMap(results); }
+
+  /**
+   * Errors, keyed by the ID whose request failed.
+   * @see #getFailures()
+   */
+  protected LinkedHashMap<String,Exception> failures = new LinkedHashMap<String,Exception>();
+  /**
+   * Getter for {@link #failures}: Errors, keyed by the ID whose request failed.
+   * @return Errors, keyed by ID.
+   */
+  public Map<String,Exception> getFailures() { return Collections.unmodifiableMap(failures); }
+
+  // Methods:
+
+  /**
+   * Gets the result for the given ID.
+   * @param id The ID.
+   * @return The result, or null if the entity doesn't exist, or its request failed.
+   */
+  public T get(String id) {
+    return results.get(id);
+  } // end of get()
+
+  /**
+   * Determines whether any requests failed.
+   * @return true if there are any failures, false otherwise.
+   */
+  public boolean hasFailures() {
+    return failures.size() > 0;
+  } // end of hasFailures()
+
+  /**
+   * Records a result.
+   * @param id The ID.
+   * @param result The result, which may be null.
+   * @return A reference to this object.
+   */
+  protected BulkResult<T> succeeded(String id, T result) {
+    results.put(id, result);
+    return this;
+  } // end of succeeded()
+
+  /**
+   * Records a failure.
+   * @param id The ID.
+   * @param error The reason for the failure.
+   * @return A reference to this object.
+   */
+  protected BulkResult<T> failed(String id, Exception error) {
+    failures.put(id, error);
+    return this;
+  } // end of failed()
+
+  /**
+   * A summary of the results.
+   * @return A summary of the results.
+   */
+  @Override public String toString() {
+    return results.size() + " results, " + failures.size() + " failures";
+  } // end of toString()
+  
+} // end of class BulkResult
@@ -0,0 +1,606 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import nzilbb.ag.Annotation;
+import nzilbb.ag.Graph;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.Schema;
+import nzilbb.ag.StoreException;
+
+/**
+ * A local copy of the relationships between corpora, transcripts, and participants.
+ * <p> {@link LabbcatView#getTranscriptIds()}, {@link LabbcatView#getParticipantIds()},
+ * {@link LabbcatView#getTranscriptIdsInCorpus(String)}, and
+ * {@link LabbcatView#getTranscriptIdsWithParticipant(String)} each require a request to
+ * the server. If a CorpusIndex is {@link LabbcatView#setCorpusIndex(CorpusIndex) set}
+ * they are instead answered from this index.
+ * <p> The index is built by {@link #refresh()}, using {@link #getThreads()} concurrent
+ * requests. Later calls to {@link #refresh()} are incremental: transcripts and
+ * participants that have been added are indexed, those that have been removed are
+ * dropped, and nothing else is requested again, except transcripts that have been
+ * changed via {@link LabbcatEdit}, whose participants are re-indexed. Participants added
+ * to an existing transcript on the server by other means are only picked up if they're
+ * new participants; {@link #clear()} followed by {@link #refresh()} rebuilds the index
+ * from scratch.
+ * <p> IDs are stored once each, and relationships between them as arrays of integer
+ * codes. If a {@link #setFile(File) file} is set, the index is loaded from it when
+ * first used, and saved to it after each refresh, so it persists between runs.
+ * <p> e.g.
+ * <pre> CorpusIndex index = new CorpusIndex(labbcat)
+ *   .setFile(new File("corpus.index"));
+ * index.refresh();
+ * labbcat.setCorpusIndex(index);
+ * String[] transcriptIds = labbcat.getTranscriptIdsWithParticipant("UC427_ViktoriaPapp");</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class CorpusIndex {
+
+  /** Identifies index files. */
+  protected static final int MAGIC = 0x4C434958; // "LCIX"
+  /** File format version. */
+  protected static final int VERSION = 1;
+  
+  // Attributes:
+
+  /**
+   * The client to get IDs from.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to get IDs from.
+   * @return The client to get IDs from.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /**
+   * File the index is saved to, or null if it's not saved.
+   * @see #getFile()
+   * @see #setFile(File)
+   */
+  protected File file;
+  /**
+   * Getter for {@link #file}: File the index is saved to, or null if it's not saved.
+   * @return File the index is saved to.
+   */
+  public File getFile() { return file; }
+  /**
+   * Setter for {@link #file}: File the index is saved to, or null if it's not saved. If
+   * the file exists, the index is loaded from it (unless the index has already been
+   * built).
+   * @param newFile File the index is saved to.
+   * @return A reference to this object, so that setters can be chained.
+   * @throws IOException If the file exists but can't be read.
+   */
+  public synchronized CorpusIndex setFile(File newFile) throws IOException {
+    file = newFile;
+    if (!built && file != null && file.exists()) load(file);
+    return this;
+  }
+
+  /**
+   * The number of requests to make at once while refreshing. Default is 4.
+   * @see #getThreads()
+   * @see #setThreads(int)
+   */
+  protected int threads = 4;
+  /**
+   * Getter for {@link #threads}: The number of requests to make at once while refreshing.
+   * @return The number of requests to make at once.
+   */
+  public int getThreads() { return threads; }
+  /**
+   * Setter for {@link #threads}: The number of requests to make at once while refreshing.
+   * @param newThreads The number of requests to make at once.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public CorpusIndex setThreads(int newThreads) { threads = Math.max(1, newThreads); return this; }
+
+  /**
+   * Whether the index has been built, by {@link #refresh()} or by loading it from a file.
+   * @see #isBuilt()
+   */
+  protected boolean built = false;
+  /**
+   * Getter for {@link #built}: Whether the index has been built, by {@link #refresh()}
+   * or by loading it from a file.
+   * @return true if the index can answer queries, false otherwise.
+   */
+  public synchronized boolean isBuilt() { return built; }
+
+  /**
+   * The number of requests made by the last refresh.
+   * @see #getRequests()
+   */
+  protected int requests = 0;
+  /**
+   * Getter for {@link #requests}: The number of requests made by the last refresh.
+   * @return The number of requests made by the last refresh.
+   */
+  public int getRequests() { return requests; }
+
+  /** Corpus IDs, indexed by code. */
+  protected Vector<String> corpora = new Vector<String>();
+  /** Corpus codes, keyed by ID. */
+  protected HashMap<String,Integer> corpusCodes = new HashMap<String,Integer>();
+  
+  /** Participant IDs, indexed by code. */
+  protected Vector<String> participants = new Vector<String>();
+  /** Participant codes, keyed by ID. */
+  protected HashMap<String,Integer> participantCodes = new HashMap<String,Integer>();
+  
+  /** Transcript IDs, in server order. */
+  protected Vector<String> transcripts = new Vector<String>();
+  /** Transcript codes, keyed by ID. */
+  protected HashMap<String,Integer> transcriptCodes = new HashMap<String,Integer>();
+  /** The corpus code of each transcript, indexed by transcript code; -1 if none. */
+  protected int[] transcriptCorpus = new int[0];
+  /** The participant codes of each transcript, indexed by transcript code. */
+  protected int[][] transcriptParticipants = new int[0][];
+  
+  /** Transcripts changed since the last refresh. */
+  protected Set<String> changed = new HashSet<String>();
+  
+  /** Transcript codes in each corpus, derived by {@link #reindex()}. */
+  protected int[][] corpusTranscripts = new int[0][];
+  /** Transcript codes of each participant, derived by {@link #reindex()}. */
+  protected int[][] participantTranscripts = new int[0][];
+
+  // Methods:
+
+  /**
+   * Constructor.
+   * @param labbcat The client to get IDs from.
+   */
+  public CorpusIndex(LabbcatView labbcat) {
+    this.labbcat = labbcat;
+  } // end of constructor
+
+  /**
+   * Brings the index up to date with the server, and saves it to {@link #file} if set.
+   * <p> The first refresh builds the whole index; subsequent refreshes only request the
+   * details of transcripts and participants that have been added (or changed).
+   * @return A reference to this object.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public CorpusIndex refresh() throws StoreException, PermissionException {
+    int requestCount = 0;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      // the lists of IDs, and corpus membership, are always requested
+      Future<String[]> transcriptIdsRequest = pool.submit(
+        () -> labbcat.requestIds("getTranscriptIds", null));
+      Future<String[]> participantIdsRequest = pool.submit(
+        () -> labbcat.requestIds("getParticipantIds", null));
+      String[] corpusIds = labbcat.requestIds("getCorpusIds", null);
+      requestCount += 3;
+      if (corpusIds == null) corpusIds = new String[0];
+      LinkedHashMap<String,Future<String[]>> inCorpus
+        = new LinkedHashMap<String,Future<String[]>>();
+      for (String corpusId : corpusIds) {
+        inCorpus.put(corpusId, pool.submit(
+                       () -> labbcat.requestIds("getTranscriptIdsInCorpus", corpusId)));
+        requestCount++;
+      }
+      String[] transcriptIds = get(transcriptIdsRequest);
+      if (transcriptIds == null) transcriptIds = new String[0];
+      String[] participantIds = get(participantIdsRequest);
+      if (participantIds == null) participantIds = new String[0];
+      HashMap<String,String> corpusOf = new HashMap<String,String>();
+      for (String corpusId : inCorpus.keySet()) {
+        String[] ids = get(inCorpus.get(corpusId));
+        if (ids != null) for (String id : ids) corpusOf.put(id, corpusId);
+      }
+
+      // work out what has changed
+      Set<String> addedTranscripts;
+      Set<String> addedParticipants;
+      synchronized (this) {
+        addedTranscripts = new LinkedHashSet<String>();
+        for (String id : transcriptIds) {
+          if (!transcriptCodes.containsKey(id) || changed.contains(id)) addedTranscripts.add(id);
+        }
+        addedParticipants = new LinkedHashSet<String>();
+        for (String id : participantIds) {
+          if (!participantCodes.containsKey(id)) addedParticipants.add(id);
+        }
+      }
+      
+      // new participants may be in existing transcripts
+      Map<String,Future<String[]>> participantRequests
+        = new LinkedHashMap<String,Future<String[]>>();
+      for (String participantId : addedParticipants) {
+        participantRequests.put(participantId, pool.submit(
+                                  () -> labbcat.requestIds(
+                                    "getTranscriptIdsWithParticipant", participantId)));
+        requestCount++;
+      }
+      // new transcripts may have existing participants, unless there are no existing
+      // participants (e.g. the first build) in which case the requests above cover them all
+      Map<String,Future<String[]>> transcriptRequests = new HashMap<String,Future<String[]>>();
+      if (addedTranscripts.size() > 0 && addedParticipants.size() < participantIds.length) {
+        Schema schema = labbcat.getSchema();
+        requestCount++;
+        String[] layerIds = { schema.getParticipantLayerId() };
+        for (String transcriptId : addedTranscripts) {
+          transcriptRequests.put(transcriptId, pool.submit(() -> {
+                Graph transcript = labbcat.loadTranscript(transcriptId, layerIds, schema);
+                if (transcript == null) return new String[0];
+                Vector<String> ids = new Vector<String>();
+                for (Annotation participant : transcript.all(schema.getParticipantLayerId())) {
+                  ids.add(participant.getLabel());
+                }
+                return ids.toArray(new String[0]);
+              }));
+          requestCount++;
+        }
+      }
+      HashMap<String,Set<String>> participantsOf = new HashMap<String,Set<String>>();
+      for (String transcriptId : transcriptRequests.keySet()) {
+        participantsOf.put(transcriptId, new LinkedHashSet<String>(
+                             Arrays.asList(get(transcriptRequests.get(transcriptId)))));
+      }
+      HashMap<String,String[]> transcriptsOf = new HashMap<String,String[]>();
+      for (String participantId : participantRequests.keySet()) {
+        String[] ids = get(participantRequests.get(participantId));
+        transcriptsOf.put(participantId, ids == null? new String[0] : ids);
+      }
+
+      // apply the changes
+      synchronized (this) {
+        // participants of existing transcripts, as codes
+        HashSet<String> liveParticipants = new HashSet<String>(Arrays.asList(participantIds));
+        LinkedHashMap<String,Set<String>> membership = new LinkedHashMap<String,Set<String>>();
+        for (String transcriptId : transcriptIds) {
+          Set<String> members = participantsOf.get(transcriptId);
+          if (members == null) {
+            members = new LinkedHashSet<String>();
+            Integer code = transcriptCodes.get(transcriptId);
+            if (code != null && code < transcriptParticipants.length) {
+              for (int p : transcriptParticipants[code]) members.add(participants.get(p));
+            }
+          }
+          membership.put(transcriptId, members);
+        }
+        for (String participantId : transcriptsOf.keySet()) {
+          for (String transcriptId : transcriptsOf.get(participantId)) {
+            Set<String> members = membership.get(transcriptId);
+            if (members != null) members.add(participantId);
+          }
+        }
+        
+        // rebuild the coded tables, which drops removed IDs
+        corpora = new Vector<String>(Arrays.asList(corpusIds));
+        corpusCodes = codes(corpora);
+        participants = new Vector<String>(Arrays.asList(participantIds));
+        participantCodes = codes(participants);
+        transcripts = new Vector<String>(Arrays.asList(transcriptIds));
+        transcriptCodes = codes(transcripts);
+        transcriptCorpus = new int[transcripts.size()];
+        transcriptParticipants = new int[transcripts.size()][];
+        for (int t = 0; t < transcripts.size(); t++) {
+          String corpusId = corpusOf.get(transcripts.get(t));
+          Integer corpusCode = corpusId == null? null : corpusCodes.get(corpusId);
+          transcriptCorpus[t] = corpusCode == null? -1 : corpusCode;
+          transcriptParticipants[t] = membership.get(transcripts.get(t)).stream()
+            .filter(id -> liveParticipants.contains(id))
+            .mapToInt(id -> participantCodes.get(id))
+            .toArray();
+        } // next transcript
+        changed.removeAll(addedTranscripts);
+        changed.retainAll(transcriptCodes.keySet()); // forget deleted transcripts
+        reindex();
+        built = true;
+        requests = requestCount;
+      } // synchronized
+    } finally {
+      pool.shutdownNow();
+    }
+    if (file != null) {
+      try {
+        save(file);
+      } catch(IOException x) {
+        throw new StoreException("Could not save " + file.getPath(), x);
+      }
+    }
+    return this;
+  } // end of refresh()
+
+  /**
+   * Gets the result of a request, unwrapping any exception it threw.
+   * @param future The request.
+   * @return The result.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  protected String[] get(Future<String[]> future) throws StoreException, PermissionException {
+    try {
+      return future.get();
+    } catch(InterruptedException x) {
+      throw new StoreException("Interrupted", x);
+    } catch(ExecutionException x) {
+      Throwable cause = x.getCause();
+      if (cause instanceof StoreException) throw (StoreException)cause;
+      if (cause instanceof PermissionException) throw (PermissionException)cause;
+      throw new StoreException("Could not index IDs.", cause);
+    }
+  } // end of get()
+
+  /**
+   * Creates a lookup table from IDs to codes.
+   * @param ids IDs, indexed by code.
+   * @return Codes, keyed by ID.
+   */
+  protected static HashMap<String,Integer> codes(Vector<String> ids) {
+    HashMap<String,Integer> codes = new HashMap<String,Integer>();
+    for (int i = 0; i < ids.size(); i++) codes.put(ids.get(i), i);
+    return codes;
+  } // end of codes()
+
+  /**
+   * Derives {@link #corpusTranscripts} and {@link #participantTranscripts} from
+   * {@link #transcriptCorpus} and {@link #transcriptParticipants}.
+   */
+  protected void reindex() {
+    int[] corpusCounts = new int[corpora.size()];
+    int[] participantCounts = new int[participants.size()];
+    for (int t = 0; t < transcripts.size(); t++) {
+      if (transcriptCorpus[t] >= 0) corpusCounts[transcriptCorpus[t]]++;
+      for (int p : transcriptParticipants[t]) participantCounts[p]++;
+    }
+    corpusTranscripts = new int[corpora.size()][];
+    for (int c = 0; c < corpusCounts.length; c++) corpusTranscripts[c] = new int[corpusCounts[c]];
+    participantTranscripts = new int[participants.size()][];
+    for (int p = 0; p < participantCounts.length; p++) {
+      participantTranscripts[p] = new int[participantCounts[p]];
+    }
+    Arrays.fill(corpusCounts, 0);
+    Arrays.fill(participantCounts, 0);
+    for (int t = 0; t < transcripts.size(); t++) {
+      int c = transcriptCorpus[t];
+      if (c >= 0) corpusTranscripts[c][corpusCounts[c]++] = t;
+      for (int p : transcriptParticipants[t]) participantTranscripts[p][participantCounts[p]++] = t;
+    }
+  } // end of reindex()
+
+  /**
+   * Records that a transcript has been changed, so its participants are re-indexed by the
+   * next {@link #refresh()}.
+   * @param transcriptId The ID of the changed transcript.
+   */
+  public synchronized void transcriptChanged(String transcriptId) {
+    changed.add(transcriptId);
+  } // end of transcriptChanged()
+
+  /**
+   * Empties the index, so that the next {@link #refresh()} rebuilds it from scratch.
+   */
+  public synchronized void clear() {
+    corpora = new Vector<String>();
+    corpusCodes = new HashMap<String,Integer>();
+    participants = new Vector<String>();
+    participantCodes = new HashMap<String,Integer>();
+    transcripts = new Vector<String>();
+    transcriptCodes = new HashMap<String,Integer>();
+    transcriptCorpus = new int[0];
+    transcriptParticipants = new int[0][];
+    changed.clear();
+    reindex();
+    built = false;
+  } // end of clear()
+
+  /**
+   * Lists the IDs with the given codes.
+   * @param ids IDs, indexed by code.
+   * @param codes The codes.
+   * @return The IDs.
+   */
+  protected static String[] ids(Vector<String> ids, int[] codes) {
+    String[] list = new String[codes.length];
+    for (int i = 0; i < codes.length; i++) list[i] = ids.get(codes[i]);
+    return list;
+  } // end of ids()
+
+  /**
+   * Gets a list of corpus IDs.
+   * @return A list of corpus IDs.
+   */
+  public synchronized String[] getCorpusIds() {
+    return corpora.toArray(new String[0]);
+  } // end of getCorpusIds()
+
+  /**
+   * Gets a list of participant IDs.
+   * @return A list of participant IDs.
+   */
+  public synchronized String[] getParticipantIds() {
+    return participants.toArray(new String[0]);
+  } // end of getParticipantIds()
+
+  /**
+   * Gets a list of transcript IDs.
+   * @return A list of transcript IDs.
+   */
+  public synchronized String[] getTranscriptIds() {
+    return transcripts.toArray(new String[0]);
+  } // end of getTranscriptIds()
+
+  /**
+   * Gets a list of transcript IDs in the given corpus.
+   * @param id A corpus ID.
+   * @return A list of transcript IDs, which is empty if the corpus isn't known.
+   */
+  public synchronized String[] getTranscriptIdsInCorpus(String id) {
+    Integer code = corpusCodes.get(id);
+    if (code == null) return new String[0];
+    return ids(transcripts, corpusTranscripts[code]);
+  } // end of getTranscriptIdsInCorpus()
+
+  /**
+   * Gets a list of IDs of transcripts that include the given participant.
+   * @param id A participant ID.
+   * @return A list of transcript IDs, which is empty if the participant isn't known.
+   */
+  public synchronized String[] getTranscriptIdsWithParticipant(String id) {
+    Integer code = participantCodes.get(id);
+    if (code == null) return new String[0];
+    return ids(transcripts, participantTranscripts[code]);
+  } // end of getTranscriptIdsWithParticipant()
+
+  /**
+   * Gets a list of IDs of the participants in the given transcript.
+   * @param id A transcript ID.
+   * @return A list of participant IDs, which is empty if the transcript isn't known.
+   */
+  public synchronized String[] getParticipantIdsInTranscript(String id) {
+    Integer code = transcriptCodes.get(id);
+    if (code == null) return new String[0];
+    return ids(participants, transcriptParticipants[code]);
+  } // end of getParticipantIdsInTranscript()
+
+  /**
+   * Gets the ID of the corpus the given transcript belongs to.
+   * @param id A transcript ID.
+   * @return The corpus ID, or null if the transcript isn't known or isn't in a corpus.
+   */
+  public synchronized String getCorpusOfTranscript(String id) {
+    Integer code = transcriptCodes.get(id);
+    if (code == null || transcriptCorpus[code] < 0) return null;
+    return corpora.get(transcriptCorpus[code]);
+  } // end of getCorpusOfTranscript()
+
+  /**
+   * Saves the index to the given file. The file is replaced atomically.
+   * @param file The file to save to.
+   * @throws IOException If the file can't be written.
+   */
+  public synchronized void save(File file) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+           new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeIds(out, corpora);
+      writeIds(out, participants);
+      writeIds(out, transcripts);
+      for (int t = 0; t < transcripts.size(); t++) {
+        out.writeInt(transcriptCorpus[t]);
+        out.writeInt(transcriptParticipants[t].length);
+        for (int p : transcriptParticipants[t]) out.writeInt(p);
+      }
+      // changed transcripts are saved so that the next run re-indexes them
+      writeIds(out, new Vector<String>(changed));
+    } catch(IOException x) {
+      temp.delete();
+      throw x;
+    }
+    Files.move(temp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  } // end of save()
+
+  /**
+   * Loads the index from the given file, replacing its current contents.
+   * @param file The file to load from.
+   * @throws IOException If the file can't be read, or is not an index file.
+   */
+  public synchronized void load(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+           new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+      if (in.readInt() != MAGIC) throw new IOException("Not an index file: " + file.getPath());
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported index version " + version + ": " + file.getPath());
+      }
+      Vector<String> newCorpora = readIds(in);
+      Vector<String> newParticipants = readIds(in);
+      Vector<String> newTranscripts = readIds(in);
+      int[] newTranscriptCorpus = new int[newTranscripts.size()];
+      int[][] newTranscriptParticipants = new int[newTranscripts.size()][];
+      for (int t = 0; t < newTranscripts.size(); t++) {
+        newTranscriptCorpus[t] = in.readInt();
+        newTranscriptParticipants[t] = new int[in.readInt()];
+        for (int p = 0; p < newTranscriptParticipants[t].length; p++) {
+          newTranscriptParticipants[t][p] = in.readInt();
+        }
+      }
+      Vector<String> newChanged = readIds(in);
+      corpora = newCorpora;
+      corpusCodes = codes(corpora);
+      participants = newParticipants;
+      participantCodes = codes(participants);
+      transcripts = newTranscripts;
+      transcriptCodes = codes(transcripts);
+      transcriptCorpus = newTranscriptCorpus;
+      transcriptParticipants = newTranscriptParticipants;
+      changed = new HashSet<String>(newChanged);
+      reindex();
+      built = true;
+    }
+  } // end of load()
+
+  /**
+   * Writes a list of IDs.
+   * @param out The stream to write to.
+   * @param ids The IDs.
+   * @throws IOException If an IO error occurs.
+   */
+  protected static void writeIds(DataOutputStream out, Vector<String> ids) throws IOException {
+    out.writeInt(ids.size());
+    for (String id : ids) out.writeUTF(id);
+  } // end of writeIds()
+
+  /**
+   * Reads a list of IDs.
+   * @param in The stream to read from.
+   * @return The IDs.
+   * @throws IOException If an IO error occurs.
+   */
+  protected static Vector<String> readIds(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    Vector<String> ids = new Vector<String>(count);
+    for (int i = 0; i < count; i++) ids.add(in.readUTF());
+    return ids;
+  } // end of readIds()
+  
+} // end of class CorpusIndex
@@ -0,0 +1,349 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import nzilbb.labbcat.http.HttpDownload;
+import nzilbb.util.IO;
+
+/**
+ * A persistent, size-limited, least-recently-used cache of fragment files.
+ * <p> If set with {@link LabbcatView#setFragmentCache(FragmentCache)}, files returned by
+ * {@link LabbcatView#getSoundFragments(String[],Double[],Double[],Integer,File)} and
+ * {@link LabbcatView#getFragments(String[],Double[],Double[],String[],String,File)} are
+ * kept in the cache directory, keyed by transcript ID, start/end offsets, format
+ * (including sample rate), and layer IDs, so that scripts that are re-run don't have to
+ * download the same fragments again.
+ * <p> Once the total size of cached files exceeds {@link #getMaxBytes()}, the least
+ * recently used entries are deleted. Entries for a transcript are deleted when the
+ * transcript (or its media) is changed through a {@link LabbcatEdit} object that uses the
+ * cache.
+ * <p> The cache is safe to share between threads of one JVM; cached files are copied in
+ * and out while the cache is locked, so eviction never affects files that have been
+ * returned.
+ * <p> e.g.
+ * <pre> FragmentCache cache = new FragmentCache(new File("fragment-cache"))
+ *   .setMaxBytes(10L * 1024 * 1024 * 1024);
+ * labbcat.setFragmentCache(cache);
+ * File[] wavs = labbcat.getSoundFragments(matches, 16000, dir);
+ * System.out.println(cache);</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class FragmentCache {
+
+  // Attributes:
+
+  /** Name of the file in each entry directory that records the transcript ID. */
+  protected static final String ID_FILE = ".id";
+
+  /** Cached entries, in order of access (least recently used first). */
+  private final LinkedHashMap<String,Entry> entries
+  = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+  /** Total size of cached files. */
+  private long size = 0;
+
+  /** Number of cache hits. */
+  private long hits = 0;
+
+  /** Number of cache misses. */
+  private long misses = 0;
+
+  /** Number of entries evicted to stay within the budget. */
+  private long evictions = 0;
+
+  /**
+   * Directory in which cached files are stored.
+   * @see #getDir()
+   */
+  protected File dir;
+  /**
+   * Getter for {@link #dir}: Directory in which cached files are stored.
+   * @return Directory in which cached files are stored.
+   */
+  public File getDir() { return dir; }
+
+  /**
+   * Maximum total size of cached files in bytes. Default is 1GiB.
+   * @see #getMaxBytes()
+   * @see #setMaxBytes(long)
+   */
+  protected long maxBytes = 1024L * 1024 * 1024;
+  /**
+   * Getter for {@link #maxBytes}: Maximum total size of cached files in bytes.
+   * @return Maximum total size of cached files in bytes.
+   */
+  public long getMaxBytes() { return maxBytes; }
+  /**
+   * Setter for {@link #maxBytes}: Maximum total size of cached files in bytes. If the
+   * cache is already bigger than this, least recently used entries are evicted.
+   * @param newMaxBytes Maximum total size of cached files in bytes.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public synchronized FragmentCache setMaxBytes(long newMaxBytes) {
+    maxBytes = newMaxBytes;
+    evict();
+    return this;
+  }
+
+  // Methods:
+
+  /**
+   * Constructor. Entries already in the given directory (e.g. from a previous run) are
+   * loaded, with those most recently used ranked highest.
+   * @param dir Directory in which cached files are stored. It will be created if it
+   * doesn't exist.
+   * @throws IOException If the directory can't be created or read.
+   */
+  public FragmentCache(File dir) throws IOException {
+    this.dir = dir;
+    if (!dir.exists()) Files.createDirectories(dir.toPath());
+    File[] entryDirs = dir.listFiles(File::isDirectory);
+    if (entryDirs == null) throw new IOException("Cannot read " + dir.getPath());
+    Arrays.sort(entryDirs, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+    for (File entryDir : entryDirs) {
+      Entry entry = entryDir.getName().endsWith(".tmp")? null : Load(entryDir);
+      if (entry == null) { // incomplete entry
+        IO.RecursivelyDelete(entryDir);
+      } else {
+        entries.put(entryDir.getName(), entry);
+        size += entry.file.length();
+      }
+    } // next entry
+    evict();
+  } // end of constructor
+
+  /**
+   * Computes the cache key for a fragment.
+   * @param transcriptId The transcript ID.
+   * @param start The start offset.
+   * @param end The end offset.
+   * @param format The format, including any parameters, e.g. "audio/wav;sampleRate=16000"
+   * or "text/praat-textgrid".
+   * @param layerIds The IDs of layers included in the fragment, or null.
+   * @return The key.
+   */
+  public static String Key(
+    String transcriptId, double start, double end, String format, String[] layerIds) {
+    StringBuilder s = new StringBuilder()
+      .append(transcriptId).append("\n").append(start).append("\n").append(end)
+      .append("\n").append(format);
+    if (layerIds != null) for (String layerId : layerIds) s.append("\n").append(layerId);
+    try {
+      return HttpDownload.Hex(
+        MessageDigest.getInstance("SHA-256").digest(
+          s.toString().getBytes(StandardCharsets.UTF_8)));
+    } catch(NoSuchAlgorithmException x) { // SHA-256 is always supported
+      throw new RuntimeException(x);
+    }
+  } // end of Key()
+
+  /**
+   * Copies a cached fragment into the given directory.
+   * @param key The key, as returned by {@link #Key(String,double,double,String,String[])}.
+   * @param dir The directory to copy the file to.
+   * @return The copy, which has the same name as the original fragment file, or null if
+   * the fragment isn't cached.
+   * @throws IOException If the file can't be copied.
+   */
+  public synchronized File get(String key, File dir) throws IOException {
+    Entry entry = entries.get(key);
+    if (entry != null && !entry.file.exists()) { // deleted behind our back
+      remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    File copy = new File(dir, entry.file.getName());
+    Files.copy(entry.file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    entry.file.getParentFile().setLastModified(System.currentTimeMillis());
+    return copy;
+  } // end of get()
+
+  /**
+   * Adds a fragment to the cache. The file is copied, so the original may be moved or
+   * deleted afterwards.
+   * @param key The key, as returned by {@link #Key(String,double,double,String,String[])}.
+   * @param transcriptId The ID of the transcript the fragment is from, so that it can be
+   * {@link #invalidate(String) invalidated} when the transcript changes.
+   * @param file The fragment file.
+   * @throws IOException If the file can't be copied.
+   */
+  public synchronized void put(String key, String transcriptId, File file) throws IOException {
+    remove(key);
+    File entryDir = new File(dir, key);
+    File tempDir = new File(dir, key + ".tmp");
+    if (tempDir.exists()) IO.RecursivelyDelete(tempDir);
+    Files.createDirectory(tempDir.toPath());
+    try {
+      Files.copy(file.toPath(), new File(tempDir, file.getName()).toPath());
+      Files.write(new File(tempDir, ID_FILE).toPath(),
+                  transcriptId.getBytes(StandardCharsets.UTF_8));
+      Files.move(tempDir.toPath(), entryDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      if (tempDir.exists()) IO.RecursivelyDelete(tempDir);
+    }
+    Entry entry = new Entry(transcriptId, new File(entryDir, file.getName()));
+    entries.put(key, entry);
+    size += entry.file.length();
+    evict();
+  } // end of put()
+
+  /**
+   * Removes all cached fragments of the given transcript.
+   * @param transcriptId The transcript ID.
+   * @return The number of entries removed.
+   */
+  public synchronized int invalidate(String transcriptId) {
+    Vector<String> keys = new Vector<String>();
+    for (Map.Entry<String,Entry> entry : entries.entrySet()) {
+      if (entry.getValue().transcriptId.equals(transcriptId)) keys.add(entry.getKey());
+    }
+    for (String key : keys) remove(key);
+    return keys.size();
+  } // end of invalidate()
+
+  /**
+   * Removes all cached fragments.
+   */
+  public synchronized void clear() {
+    for (String key : new Vector<String>(entries.keySet())) remove(key);
+  } // end of clear()
+
+  /**
+   * Gets the number of cached fragments.
+   * @return The number of cached fragments.
+   */
+  public synchronized int getCount() {
+    return entries.size();
+  } // end of getCount()
+
+  /**
+   * Gets the total size of cached fragments.
+   * @return The total size of cached fragments in bytes.
+   */
+  public synchronized long getSize() {
+    return size;
+  } // end of getSize()
+
+  /**
+   * Gets the number of times a requested fragment was in the cache.
+   * @return The number of cache hits.
+   */
+  public synchronized long getHits() {
+    return hits;
+  } // end of getHits()
+
+  /**
+   * Gets the number of times a requested fragment was not in the cache.
+   * @return The number of cache misses.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  } // end of getMisses()
+
+  /**
+   * Gets the number of entries evicted to stay within {@link #getMaxBytes()}.
+   * @return The number of evictions.
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  } // end of getEvictions()
+
+  /**
+   * Deletes least recently used entries until the cache is within its budget.
+   */
+  private void evict() {
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (size > maxBytes && eldest.hasNext()) {
+      Entry entry = eldest.next();
+      eldest.remove();
+      size -= entry.file.length();
+      IO.RecursivelyDelete(entry.file.getParentFile());
+      evictions++;
+    }
+  } // end of evict()
+
+  /**
+   * Removes an entry.
+   * @param key The key of the entry.
+   */
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      size -= entry.file.length();
+      IO.RecursivelyDelete(entry.file.getParentFile());
+    }
+  } // end of remove()
+
+  /**
+   * Loads an entry from its directory.
+   * @param entryDir The entry directory.
+   * @return The entry, or null if the directory isn't a complete entry.
+   * @throws IOException If the directory can't be read.
+   */
+  private static Entry Load(File entryDir) throws IOException {
+    File idFile = new File(entryDir, ID_FILE);
+    File[] files = entryDir.listFiles(f -> !f.getName().equals(ID_FILE));
+    if (!idFile.exists() || files == null || files.length != 1) return null;
+    return new Entry(
+      new String(Files.readAllBytes(idFile.toPath()), StandardCharsets.UTF_8), files[0]);
+  } // end of Load()
+
+  /**
+   * Summary of cache usage, for logging.
+   * @return A string representation of the object.
+   */
+  @Override public synchronized String toString() {
+    return "FragmentCache: " + entries.size() + " entries, " + size + " of " + maxBytes
+      + " bytes, " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+  } // end of toString()
+
+  /**
+   * A cached fragment.
+   */
+  private static class Entry {
+    /** The ID of the transcript the fragment is from. */
+    final String transcriptId;
+    /** The cached file. */
+    final File file;
+    Entry(String transcriptId, File file) {
+      this.transcriptId = transcriptId;
+      this.file = file;
+    }
+  } // end of class Entry
+
+} // end of class FragmentCache
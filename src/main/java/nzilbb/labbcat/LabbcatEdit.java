@@ -40,6 +40,7 @@ import java.util.Vector;
 import java.util.stream.Collectors;
 import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonValue;
 import nzilbb.ag.Annotation;
@@ -50,15 +51,11 @@ import nzilbb.ag.MediaFile;
 import nzilbb.ag.PermissionException;
 import nzilbb.ag.StoreException;
 import nzilbb.ag.serialize.SerializationDescriptor;
-import nzilbb.ag.serialize.SerializationException;
 import nzilbb.ag.serialize.SerializerNotConfiguredException;
-import nzilbb.ag.serialize.json.JSONSerialization;
-import nzilbb.ag.serialize.util.NamedStream;
-import nzilbb.ag.serialize.util.Utility;
 import nzilbb.configure.Parameter;
-import nzilbb.configure.ParameterSet;
 import nzilbb.labbcat.http.*;
 import nzilbb.labbcat.model.Upload;
+import nzilbb.labbcat.util.JSONSerializationPool;
 import nzilbb.util.IO;
 
 /**
@@ -190,17 +187,10 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
         .setHeader("Accept", "application/json");
       if (verbose) System.out.println("saveTranscript -> " + request);
       
-      JSONSerialization s = new JSONSerialization();
-      s.configure(s.configure(new ParameterSet(), transcript.getSchema()), transcript.getSchema());
-      final Vector<SerializationException> exceptions = new Vector<SerializationException>();
-      final Vector<NamedStream> streams = new Vector<NamedStream>();
-      s.serialize(Utility.OneGraphSpliterator(transcript), null,
-                  (stream) -> streams.add(stream),
-                  (warning) -> System.out.println(warning),
-                  (exception) -> exceptions.add(exception));
-      String json = IO.InputStreamToString​(streams.elementAt(0).getStream());
+      String json = JSONSerializationPool.Shared().serialize(transcript);
       response = new Response(request.post(json).getInputStream(), verbose);
       response.checkForErrors(); // throws a StoreException on error
+      transcriptChanged(transcript.getId());
       JsonValue bool = (JsonValue)response.getModel();
       return bool.equals(JsonValue.TRUE);
       
@@ -246,6 +236,7 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
       if (verbose) System.out.println("createAnnotation -> " + request);
       response = new Response(request.post().getInputStream(), verbose);
       response.checkForErrors(); // throws a StoreException on error
+      transcriptChanged(id);
       if (response.isModelNull()) return null;
       return (String)response.getModel();
     } catch(IOException x) {
@@ -290,8 +281,9 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
       if (verbose) System.out.println("tagMatchingAnnotations -> " + request);
       response = new Response(request.post().getInputStream(), verbose);
       response.checkForErrors(); // throws a StoreException on error
+      annotationsChanged(); // we don't know which transcripts were tagged
       if (response.isModelNull()) return 0;
-      return (Integer)response.getModel();
+      return ((JsonNumber)response.getModel()).intValue();
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
@@ -315,6 +307,7 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
       if (verbose) System.out.println("destroyAnnotation -> " + request);
       response = new Response(request.post().getInputStream(), verbose);
       response.checkForErrors(); // throws a StoreException on error
+      transcriptChanged(id);
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
@@ -351,6 +344,7 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
       if (verbose) System.out.println("saveParticipant -> " + request);
       response = new Response(request.post().getInputStream(), verbose);
       response.checkForErrors(); // throws a StoreException on error
+      annotationsChanged(); // participant attributes may be searched or loaded as layers
       JsonValue bool = (JsonValue)response.getModel();
       return bool.equals(JsonValue.TRUE);
     } catch(IOException x) {
@@ -389,11 +383,10 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
         }
       } else { // not file URL, but we need one, so download content to a temporary file
         URL downloadUrl = new URL(mediaUrl);
-        media = File.createTempFile("saveMedia-", "."+IO.Extension(downloadUrl.getPath()));
+        media = tempFiles.createTempFile(
+          "saveMedia-", "."+IO.Extension(downloadUrl.getPath()));
         IO.SaveUrlToFile​(downloadUrl, media);
-        media.delete();
-        media.deleteOnExit();
-        deleteMediaAfterUpload = false;
+        deleteMediaAfterUpload = true;
       }
       try {
         postRequest.setParameter("media", media);
@@ -401,10 +394,11 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
         if (verbose) System.out.println("saveMedia -> " + postRequest);
         response = new Response(postRequest.post(), verbose);
         response.checkForErrors(); // throws a ResponseException on error
+        transcriptChanged(id);
 
         return new MediaFile((JsonObject)response.getModel());
       } finally {
-        if (deleteMediaAfterUpload) media.delete();
+        if (deleteMediaAfterUpload) tempFiles.release(media);
       }
     } catch (IOException x) {
       throw new StoreException(x);
@@ -453,12 +447,10 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
         }
       } else { // not file URL, but we need one, so download content to a temporary file
         URL downloadUrl = new URL(url);
-        media = File.createTempFile(
+        media = tempFiles.createTempFile(
           "saveEpisodeDocument-", "."+IO.Extension(downloadUrl.getPath()));
         IO.SaveUrlToFile​(downloadUrl, media);
-        media.delete();
-        media.deleteOnExit();
-        deleteMediaAfterUpload = false;
+        deleteMediaAfterUpload = true;
       }
       try {
         postRequest.setParameter("document", media);
@@ -469,7 +461,7 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
         
         return new MediaFile((JsonObject)response.getModel());
       } finally {
-        if (deleteMediaAfterUpload) media.delete();
+        if (deleteMediaAfterUpload) tempFiles.release(media);
       }
     } catch (IOException x) {
       throw new StoreException(x);
@@ -497,6 +489,7 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
       if (verbose) System.out.println("deleteTranscript -> " + request);
       response = new Response(request.post(), verbose);
       response.checkForErrors(); // throws a StoreException on error
+      transcriptChanged(id);
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
@@ -521,6 +514,7 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
       if (verbose) System.out.println("deleteTranscript -> " + request);
       response = new Response(request.post(), verbose);
       response.checkForErrors(); // throws a StoreException on error
+      transcriptChanged(id);
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
@@ -695,7 +689,13 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
       response = new Response(request.get(), verbose);
       response.checkForErrors(); // throws a ResponseException on error
       
-      return new Upload((JsonObject)response.getModel());
+      Upload result = new Upload((JsonObject)response.getModel());
+      if (result.getTranscripts() != null) {
+        for (String transcriptId : result.getTranscripts().keySet()) {
+          transcriptChanged(transcriptId);
+        }
+      }
+      return result;
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
@@ -874,6 +874,7 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
         if (verbose) System.out.println("updateTranscript -> " + postRequest);
         response = new Response(postRequest.post(), verbose);
         response.checkForErrors(); // throws a ResponseException on error
+        transcriptChanged(transcript.getName());
         
         // extract the threadId from model.result.id
         JsonObject model = (JsonObject)response.getModel();
@@ -912,8 +913,9 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
       if (verbose) System.out.println("deleteMatchingAnnotations -> " + request);
       response = new Response(request.post(), verbose);
       response.checkForErrors(); // throws a StoreException on error
+      annotationsChanged(); // we don't know which transcripts were affected
       if (response.isModelNull()) return 0;
-      return (Integer)response.getModel();
+      return ((JsonNumber)response.getModel()).intValue();
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
@@ -939,6 +941,7 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
       if (verbose) System.out.println("addLayerDictionaryEntry -> " + request);
       response = new Response(request.post(), verbose);
       response.checkForErrors(); // throws a StoreException on error
+      annotationsChanged(); // affected tokens are updated throughout the corpus
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
@@ -965,6 +968,7 @@ public class LabbcatEdit extends LabbcatView implements GraphStore {
       if (verbose) System.out.println("addLayerDictionaryEntry -> " + request);
       response = new Response(request.post(), verbose);
       response.checkForErrors(); // throws a StoreException on error
+      annotationsChanged(); // affected tokens are updated throughout the corpus
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
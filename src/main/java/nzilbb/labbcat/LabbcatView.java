@@ -21,9 +21,13 @@
 //
 package nzilbb.labbcat;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
@@ -34,17 +38,30 @@ import java.nio.file.Files;
 import java.text.MessageFormat;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.Vector;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonNumber;
@@ -71,10 +88,6 @@ import nzilbb.ag.serialize.SerializationDescriptor;
 import nzilbb.ag.serialize.SerializationException;
 import nzilbb.ag.serialize.SerializationParametersMissingException;
 import nzilbb.ag.serialize.SerializerNotConfiguredException;
-import nzilbb.ag.serialize.json.JSONSerialization;
-import nzilbb.ag.serialize.util.NamedStream;
-import nzilbb.ag.serialize.util.Utility;
-import nzilbb.configure.ParameterSet;
 import nzilbb.labbcat.http.*;
 import nzilbb.labbcat.model.AnnotatorDescriptorWrapper;
 import nzilbb.labbcat.model.Category;
@@ -83,6 +96,11 @@ import nzilbb.labbcat.model.Match;
 import nzilbb.labbcat.model.MatchId;
 import nzilbb.labbcat.model.TaskStatus;
 import nzilbb.labbcat.model.User;
+import nzilbb.labbcat.util.IntervalCoalescer;
+import nzilbb.labbcat.util.JSONSerializationPool;
+import nzilbb.labbcat.util.StringInterner;
+import nzilbb.labbcat.util.TempFiles;
+import nzilbb.labbcat.util.TranscriptStreamParser;
 import nzilbb.util.IO;
 import nzilbb.util.MonitorableSeries;
 
@@ -228,6 +246,9 @@ public class LabbcatView implements GraphStoreQuery {
 
   /**
    * The last response received from the server.
+   * <p> Methods that may be called from several threads at once (e.g.
+   * {@link #getAnnotations(String,String,Integer,Integer,Integer)}) use their own
+   * response, and only set this field for {@link #getResponse()}.
    * @see #getResponse()
    * @see #setResponse(Response)
    */
@@ -267,6 +288,240 @@ public class LabbcatView implements GraphStoreQuery {
    * @return A reference to this object, so that setters can be chained.
    */
   public LabbcatView setLanguage(String newLanguage) { language = newLanguage; return this; }
+
+  /**
+   * Optional string pool for de-duplicating repeated values (layer IDs, transcript IDs,
+   * participant names, labels, etc.) when decoding matches and annotations. Default is
+   * null, meaning decoded strings are not pooled.
+   * @see #getInterner()
+   * @see #setInterner(StringInterner)
+   */
+  protected StringInterner interner;
+  /**
+   * Getter for {@link #interner}: Optional string pool for de-duplicating repeated
+   * values when decoding matches and annotations.
+   * @return Optional string pool for de-duplicating repeated values when decoding
+   * matches and annotations, or null if decoded strings are not pooled.
+   */
+  public StringInterner getInterner() { return interner; }
+  /**
+   * Setter for {@link #interner}: Optional string pool for de-duplicating repeated
+   * values when decoding matches and annotations.
+   * @param newInterner Optional string pool for de-duplicating repeated values when
+   * decoding matches and annotations, or null to disable pooling.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LabbcatView setInterner(StringInterner newInterner) { interner = newInterner; return this; }
+
+  /**
+   * Manager of temporary files created by methods that return files, e.g.
+   * {@link #getSoundFragments(String[],Double[],Double[],Integer,File)} when no
+   * directory is specified. Default is {@link TempFiles#Shared()}, whose outstanding
+   * files are deleted when the JVM exits. Long-running processes can set their own
+   * instance, and {@link TempFiles#release(File) release} or {@link TempFiles#close()
+   * close} it when the files are no longer required.
+   * @see #getTempFiles()
+   * @see #setTempFiles(TempFiles)
+   */
+  protected TempFiles tempFiles = TempFiles.Shared();
+  /**
+   * Getter for {@link #tempFiles}: Manager of temporary files created by methods that
+   * return files.
+   * @return Manager of temporary files created by methods that return files.
+   */
+  public TempFiles getTempFiles() { return tempFiles; }
+  /**
+   * Setter for {@link #tempFiles}: Manager of temporary files created by methods that
+   * return files.
+   * @param newTempFiles Manager of temporary files created by methods that return files.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LabbcatView setTempFiles(TempFiles newTempFiles) { tempFiles = newTempFiles; return this; }
+
+  /**
+   * Configuration for downloading media and fragment files - i.e. buffer size, checksum
+   * algorithm, whether to fsync, etc.
+   * @see #getDownload()
+   * @see #setDownload(HttpDownload)
+   */
+  protected HttpDownload download = new HttpDownload();
+  /**
+   * Getter for {@link #download}: Configuration for downloading media and fragment files.
+   * @return Configuration for downloading media and fragment files.
+   */
+  public HttpDownload getDownload() { return download; }
+  /**
+   * Setter for {@link #download}: Configuration for downloading media and fragment files.
+   * @param newDownload Configuration for downloading media and fragment files.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LabbcatView setDownload(HttpDownload newDownload) { download = newDownload; return this; }
+
+  /**
+   * Optional planner for fragment requests. If set,
+   * {@link #getSoundFragments(String[],Double[],Double[],Integer,File)} and
+   * {@link #getFragments(String[],Double[],Double[],String[],String,File)} fetch
+   * identical intervals only once, so that every fragment returned is exactly what the
+   * server would have returned for it. The coalescer also keeps totals of how many
+   * requests were saved. Default is null, meaning every fragment is requested from the
+   * server.
+   * @see #getCoalescer()
+   * @see #setCoalescer(IntervalCoalescer)
+   */
+  protected IntervalCoalescer coalescer;
+  /**
+   * Getter for {@link #coalescer}: Optional planner for fragment requests.
+   * @return Optional planner for fragment requests, or null if every fragment is
+   * requested from the server.
+   */
+  public IntervalCoalescer getCoalescer() { return coalescer; }
+  /**
+   * Setter for {@link #coalescer}: Optional planner for fragment requests.
+   * @param newCoalescer Optional planner for fragment requests, or null to request every
+   * fragment from the server.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LabbcatView setCoalescer(IntervalCoalescer newCoalescer) { coalescer = newCoalescer; return this; }
+
+  /**
+   * Optional persistent cache of fragment files. If set,
+   * {@link #getSoundFragments(String[],Double[],Double[],Integer,File)} and
+   * {@link #getFragments(String[],Double[],Double[],String[],String,File)} only request
+   * fragments that aren't already cached. Default is null, meaning fragments are not
+   * cached.
+   * <p> Cached fragments of a transcript are discarded when it's changed through a
+   * {@link LabbcatEdit} object that uses the same cache.
+   * @see #getFragmentCache()
+   * @see #setFragmentCache(FragmentCache)
+   */
+  protected FragmentCache fragmentCache;
+  /**
+   * Getter for {@link #fragmentCache}: Optional persistent cache of fragment files.
+   * @return Optional persistent cache of fragment files, or null if fragments are not cached.
+   */
+  public FragmentCache getFragmentCache() { return fragmentCache; }
+  /**
+   * Setter for {@link #fragmentCache}: Optional persistent cache of fragment files.
+   * @param newFragmentCache Optional persistent cache of fragment files, or null to
+   * disable caching.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LabbcatView setFragmentCache(FragmentCache newFragmentCache) { fragmentCache = newFragmentCache; return this; }
+
+  /**
+   * Optional local cache of transcripts. If set, {@link #getTranscript(String,String[])}
+   * only requests transcripts (or layers) that aren't already cached. Default is null,
+   * meaning transcripts are not cached.
+   * <p> Cached transcripts are discarded when changed through a {@link LabbcatEdit}
+   * object that uses the same cache.
+   * @see #getTranscriptCache()
+   * @see #setTranscriptCache(TranscriptCache)
+   */
+  protected TranscriptCache transcriptCache;
+  /**
+   * Getter for {@link #transcriptCache}: Optional local cache of transcripts.
+   * @return Optional local cache of transcripts, or null if transcripts are not cached.
+   */
+  public TranscriptCache getTranscriptCache() { return transcriptCache; }
+  /**
+   * Setter for {@link #transcriptCache}: Optional local cache of transcripts.
+   * @param newTranscriptCache Optional local cache of transcripts, or null to disable caching.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LabbcatView setTranscriptCache(TranscriptCache newTranscriptCache) { transcriptCache = newTranscriptCache; return this; }
+
+  /**
+   * Optional local cache of search results. If set,
+   * {@link #getMatches(JsonObject,String[],String[],boolean,Integer,Integer,Integer,int)}
+   * returns cached results for equivalent searches, and identical searches made
+   * concurrently share one server task. Default is null.
+   * @see #getSearchCache()
+   * @see #setSearchCache(SearchCache)
+   */
+  protected SearchCache searchCache;
+  /**
+   * Getter for {@link #searchCache}: Optional local cache of search results.
+   * @return Optional local cache of search results, or null if results are not cached.
+   */
+  public SearchCache getSearchCache() { return searchCache; }
+  /**
+   * Setter for {@link #searchCache}: Optional local cache of search results.
+   * @param newSearchCache Optional local cache of search results, or null to disable caching.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LabbcatView setSearchCache(SearchCache newSearchCache) { searchCache = newSearchCache; return this; }
+
+  /**
+   * Optional local index of corpus, transcript, and participant IDs. If set (and built),
+   * {@link #getCorpusIds()}, {@link #getParticipantIds()}, {@link #getTranscriptIds()},
+   * {@link #getTranscriptIdsInCorpus(String)}, and
+   * {@link #getTranscriptIdsWithParticipant(String)} are answered locally instead of
+   * by the server. Default is null.
+   * @see #getCorpusIndex()
+   * @see #setCorpusIndex(CorpusIndex)
+   */
+  protected CorpusIndex corpusIndex;
+  /**
+   * Getter for {@link #corpusIndex}: Optional local index of corpus, transcript, and
+   * participant IDs.
+   * @return Optional local index of IDs, or null if IDs are always requested from the server.
+   */
+  public CorpusIndex getCorpusIndex() { return corpusIndex; }
+  /**
+   * Setter for {@link #corpusIndex}: Optional local index of corpus, transcript, and
+   * participant IDs.
+   * @param newCorpusIndex Optional local index of IDs, or null to always request IDs
+   * from the server.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LabbcatView setCorpusIndex(CorpusIndex newCorpusIndex) { corpusIndex = newCorpusIndex; return this; }
+
+  /**
+   * The number of requests bulk methods like {@link #getParticipants(Collection,String[])}
+   * make at once. Default is 4.
+   * @see #getBulkThreads()
+   * @see #setBulkThreads(int)
+   */
+  protected int bulkThreads = 4;
+  /**
+   * Getter for {@link #bulkThreads}: The number of requests bulk methods make at once.
+   * @return The number of requests bulk methods make at once.
+   */
+  public int getBulkThreads() { return bulkThreads; }
+  /**
+   * Setter for {@link #bulkThreads}: The number of requests bulk methods make at once.
+   * @param newBulkThreads The number of requests bulk methods make at once.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LabbcatView setBulkThreads(int newBulkThreads) { bulkThreads = Math.max(1, newBulkThreads); return this; }
+
+  /**
+   * Whether {@link #getTranscript(String,String[])} returns a {@link LazyGraph}, which
+   * loads layers that weren't initially requested the first time they're accessed.
+   * Default is false.
+   * <p> Only accesses through the graph (e.g. <tt>transcript.all("segment")</tt>) trigger
+   * loading; navigation from an annotation (e.g. <tt>word.all("segment")</tt>) finds
+   * nothing on layers that haven't been loaded, so use {@link LazyGraph#load(String...)}
+   * first.
+   * @see #getLazyTranscripts()
+   * @see #setLazyTranscripts(boolean)
+   */
+  protected boolean lazyTranscripts = false;
+  /**
+   * Getter for {@link #lazyTranscripts}: Whether {@link #getTranscript(String,String[])}
+   * returns a {@link LazyGraph}.
+   * @return Whether {@link #getTranscript(String,String[])} returns a {@link LazyGraph}.
+   */
+  public boolean getLazyTranscripts() { return lazyTranscripts; }
+  /**
+   * Setter for {@link #lazyTranscripts}: Whether {@link #getTranscript(String,String[])}
+   * returns a {@link LazyGraph}.
+   * @param newLazyTranscripts Whether {@link #getTranscript(String,String[])} returns a
+   * {@link LazyGraph}.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LabbcatView setLazyTranscripts(boolean newLazyTranscripts) { lazyTranscripts = newLazyTranscripts; return this; }
+
   // Methods:
    
   /**
@@ -880,7 +1135,8 @@ public class LabbcatView implements GraphStoreQuery {
         .setUserAgent().setLanguage(language).setHeader("Accept", "application/json")
         .setParameter("id", id);
       if (verbose) System.out.println("getLayer -> " + request);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       if (response.isModelNull()) return null;
       return new Layer((JsonObject)response.getModel());
@@ -889,6 +1145,16 @@ public class LabbcatView implements GraphStoreQuery {
     }
   }   
 
+  /**
+   * Gets several layer definitions, making up to {@link #getBulkThreads()} requests at once.
+   * @param ids IDs of the layers to get the definitions for.
+   * @return The definitions, keyed by layer ID, and the errors for any requests that failed.
+   * @throws StoreException If the requests couldn't be made at all.
+   */
+  public BulkResult<Layer> getLayers(Collection<String> ids) throws StoreException {
+    return fanOut(ids, id -> getLayer(id));
+  }   
+
   /**
    * Gets a list of corpus IDs.
    * @return A list of corpus IDs.
@@ -897,28 +1163,8 @@ public class LabbcatView implements GraphStoreQuery {
    */
   public String[] getCorpusIds()
     throws StoreException, PermissionException {
-      
-    try {
-      URL url = url("getCorpusIds");
-      HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization())
-        .setUserAgent().setLanguage(language).setHeader("Accept", "application/json");
-      if (verbose) System.out.println("getCorpusIds -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a StoreException on error
-      if (response.isModelNull()) return null;
-      JsonArray array = (JsonArray)response.getModel();
-      Vector<String> ids = new Vector<String>();
-      if (array != null)
-      {
-        for (int i = 0; i < array.size(); i++)
-        {
-          ids.add(array.getString(i));
-        }
-      }
-      return ids.toArray(new String[0]);
-    } catch(IOException x) {
-      throw new StoreException("Could not get response.", x);
-    }
+    if (corpusIndex != null && corpusIndex.isBuilt()) return corpusIndex.getCorpusIds();
+    return requestIds("getCorpusIds", null);
   } 
    
   /**
@@ -929,26 +1175,8 @@ public class LabbcatView implements GraphStoreQuery {
    */
   public String[] getParticipantIds()
     throws StoreException, PermissionException {
-      
-    try {
-      URL url = url("getParticipantIds");
-      HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization())
-        .setUserAgent().setLanguage(language).setHeader("Accept", "application/json");
-      if (verbose) System.out.println("getParticipantIds -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a StoreException on error
-      if (response.isModelNull()) return null;
-      JsonArray array = (JsonArray)response.getModel();
-      Vector<String> ids = new Vector<String>();
-      if (array != null) {
-        for (int i = 0; i < array.size(); i++) {
-          ids.add(array.getString(i));
-        }
-      }
-      return ids.toArray(new String[0]);
-    } catch(IOException x) {
-      throw new StoreException("Could not get response.", x);
-    }
+    if (corpusIndex != null && corpusIndex.isBuilt()) return corpusIndex.getParticipantIds();
+    return requestIds("getParticipantIds", null);
   } 
 
   /**
@@ -972,7 +1200,8 @@ public class LabbcatView implements GraphStoreQuery {
         .setParameter("id", id);
       if (layerIds != null) request.setParameter("layerIds", layerIds);
       if (verbose) System.out.println("getParticipant -> " + request);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       if (response.isModelNull()) return null;
       return (Annotation)new Annotation().fromJson((JsonObject)response.getModel());
@@ -981,6 +1210,24 @@ public class LabbcatView implements GraphStoreQuery {
     }
   }
 
+  /**
+   * Gets several participant records, making up to {@link #getBulkThreads()} requests at
+   * once.
+   * <p> {@link #getParticipantAttributes(String[],String[])} gets attributes for many
+   * participants in one request, but returns only labels, not the annotations (and
+   * their IDs) that this method returns.
+   * @param ids The IDs of the participants.
+   * @param layerIds The IDs of the participant attribute layers to load, or null if only
+   * participant data is required. 
+   * @return Participant annotations, keyed by participant ID (with null values for
+   * participants that weren't found), and the errors for any requests that failed.
+   * @throws StoreException If the requests couldn't be made at all.
+   */
+  public BulkResult<Annotation> getParticipants(Collection<String> ids, String[] layerIds)
+    throws StoreException {
+    return fanOut(ids, id -> getParticipant(id, layerIds));
+  }
+
   /**
    * Counts the number of participants that match a particular pattern.
    * @param expression An expression that determines which participants match.
@@ -1078,28 +1325,8 @@ public class LabbcatView implements GraphStoreQuery {
    */
   public String[] getTranscriptIds()
     throws StoreException, PermissionException {
-      
-    try {
-      URL url = url("getTranscriptIds");
-      HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization())
-        .setUserAgent().setLanguage(language).setHeader("Accept", "application/json");
-      if (verbose) System.out.println("getTranscriptIds -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a StoreException on error
-      if (response.isModelNull()) return null;
-      JsonArray array = (JsonArray)response.getModel();
-      Vector<String> ids = new Vector<String>();
-      if (array != null)
-      {
-        for (int i = 0; i < array.size(); i++)
-        {
-          ids.add(array.getString(i));
-        }
-      }
-      return ids.toArray(new String[0]);
-    } catch(IOException x) {
-      throw new StoreException("Could not get response.", x);
-    }
+    if (corpusIndex != null && corpusIndex.isBuilt()) return corpusIndex.getTranscriptIds();
+    return requestIds("getTranscriptIds", null);
   } 
    
   /**
@@ -1111,27 +1338,10 @@ public class LabbcatView implements GraphStoreQuery {
    */
   public String[] getTranscriptIdsInCorpus(String id)
     throws StoreException, PermissionException {
-      
-    try {
-      URL url = url("getTranscriptIdsInCorpus");
-      HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization())
-        .setUserAgent().setLanguage(language).setHeader("Accept", "application/json")
-        .setParameter("id", id);
-      if (verbose) System.out.println("getTranscriptIdsInCorpus -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a StoreException on error
-      if (response.isModelNull()) return null;
-      JsonArray array = (JsonArray)response.getModel();
-      Vector<String> ids = new Vector<String>();
-      if (array != null) {
-        for (int i = 0; i < array.size(); i++) {
-          ids.add(array.getString(i));
-        }
-      }
-      return ids.toArray(new String[0]);
-    } catch(IOException x) {
-      throw new StoreException("Could not get response.", x);
+    if (corpusIndex != null && corpusIndex.isBuilt()) {
+      return corpusIndex.getTranscriptIdsInCorpus(id);
     }
+    return requestIds("getTranscriptIdsInCorpus", id);
   } 
 
   /**
@@ -1143,14 +1353,32 @@ public class LabbcatView implements GraphStoreQuery {
    */
   public String[] getTranscriptIdsWithParticipant(String id)
     throws StoreException, PermissionException {
-      
+    if (corpusIndex != null && corpusIndex.isBuilt()) {
+      return corpusIndex.getTranscriptIdsWithParticipant(id);
+    }
+    return requestIds("getTranscriptIdsWithParticipant", id);
+  } 
+
+  /**
+   * Requests a list of IDs from the server, regardless of {@link #corpusIndex}.
+   * <p> Unlike {@link #getTranscriptIds()} etc. this doesn't use {@link #response}, so
+   * it can be called from several threads at once.
+   * @param endpoint The name of the API endpoint, e.g. "getTranscriptIdsInCorpus".
+   * @param id The value of the <q>id</q> parameter, or null if there is none.
+   * @return A list of IDs.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  protected String[] requestIds(String endpoint, String id)
+    throws StoreException, PermissionException {
     try {
-      URL url = url("getTranscriptIdsWithParticipant");
+      URL url = url(endpoint);
       HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization())
-        .setUserAgent().setLanguage(language).setHeader("Accept", "application/json")
-        .setParameter("id", id);
-      if (verbose) System.out.println("getTranscriptIdsWithParticipant -> " + request);
-      response = new Response(request.get(), verbose);
+        .setUserAgent().setLanguage(language).setHeader("Accept", "application/json");
+      if (id != null) request.setParameter("id", id);
+      if (verbose) System.out.println(endpoint + " -> " + request);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       if (response.isModelNull()) return null;
       JsonArray array = (JsonArray)response.getModel();
@@ -1164,7 +1392,7 @@ public class LabbcatView implements GraphStoreQuery {
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
-  } 
+  } // end of requestIds()
 
   /**
    * Counts the number of transcripts that match a particular pattern.
@@ -1202,7 +1430,8 @@ public class LabbcatView implements GraphStoreQuery {
       HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization())
         .setUserAgent().setLanguage(language).setHeader("Accept", "application/json")
         .setParameter("expression", expression);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       return ((JsonNumber)response.getModel()).intValue();
     } catch(IOException x) {
@@ -1257,7 +1486,8 @@ public class LabbcatView implements GraphStoreQuery {
       if (pageLength != null) request.setParameter("pageLength", pageLength);
       if (pageNumber != null) request.setParameter("pageNumber", pageNumber);
       if (verbose) System.out.println("getMatchingTranscriptIds -> " + request);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       if (response.isModelNull()) return null;
       JsonArray array = (JsonArray)response.getModel();
@@ -1301,7 +1531,8 @@ public class LabbcatView implements GraphStoreQuery {
       HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization())
         .setUserAgent().setLanguage(language).setHeader("Accept", "application/json")
         .setParameter("expression", expression);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       return ((JsonNumber)response.getModel()).intValue();
     } catch(IOException x) {
@@ -1343,14 +1574,15 @@ public class LabbcatView implements GraphStoreQuery {
       if (pageLength != null) request.setParameter("pageLength", pageLength);
       if (pageNumber != null) request.setParameter("pageNumber", pageNumber);
       if (verbose) System.out.println("getMatchingTranscriptIds -> " + request);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       if (response.isModelNull()) return null;
       JsonArray array = (JsonArray)response.getModel();
       Vector<Annotation> annotations = new Vector<Annotation>();
       if (array != null) {
         for (int i = 0; i < array.size(); i++) {
-          annotations.add((Annotation)new Annotation().fromJson(array.getJsonObject(i)));
+          annotations.add(annotationFromJson(array.getJsonObject(i)));
         }
       }
       return annotations.toArray(new Annotation[0]);
@@ -1359,6 +1591,22 @@ public class LabbcatView implements GraphStoreQuery {
     }
   } 
 
+  /**
+   * Streams all the annotations that match a particular pattern, requesting several
+   * pages at once.
+   * <p> The stream should be closed after use.
+   * @param expression An expression that determines which annotations match, as for
+   * {@link #getMatchingAnnotations(String,Integer,Integer)}.
+   * @return A stream of annotations, in the order the server lists them.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @see AnnotationPager
+   */
+  public Stream<Annotation> streamMatchingAnnotations(String expression)
+    throws StoreException, PermissionException {
+    return new AnnotationPager(this).matchingAnnotations(expression, true);
+  }
+
   /**
    * Identifies a list of annotations that match a particular pattern, and aggregates
    * their labels. 
@@ -1403,7 +1651,8 @@ public class LabbcatView implements GraphStoreQuery {
         .setParameter("operation", operation)
         .setParameter("expression", expression);
       if (verbose) System.out.println("aggregateMatchingAnnotations -> " + request);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       if (response.isModelNull()) return null;
       JsonArray array = (JsonArray)response.getModel();
@@ -1444,7 +1693,8 @@ public class LabbcatView implements GraphStoreQuery {
         .setParameter("id", id)
         .setParameter("layerId", layerId);
       if (maxOrdinal != null) request.setParameter("maxOrdinal", maxOrdinal);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       return ((JsonNumber)response.getModel()).longValue();
     } catch(IOException x) {
@@ -1482,14 +1732,15 @@ public class LabbcatView implements GraphStoreQuery {
       if (pageLength != null) request.setParameter("pageLength", pageLength);
       if (pageNumber != null) request.setParameter("pageNumber", pageNumber);
       if (verbose) System.out.println("getAnnotations -> " + request);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       if (response.isModelNull()) return null;
       JsonArray array = (JsonArray)response.getModel();
       Vector<Annotation> annotations = new Vector<Annotation>();
       if (array != null) {
         for (int i = 0; i < array.size(); i++) {
-          annotations.add((Annotation)new Annotation().fromJson(array.getJsonObject(i)));
+          annotations.add(annotationFromJson(array.getJsonObject(i)));
         }
       }
       return annotations.toArray(new Annotation[0]);
@@ -1499,7 +1750,28 @@ public class LabbcatView implements GraphStoreQuery {
   }
    
   /**
-   * <em>NOT YET IMPLEMENTED</em> - Gets the annotations on given layers for a set of match IDs.
+   * Streams all the annotations on the given layer of the given transcript, requesting
+   * several pages at once.
+   * <p> The stream should be closed after use.
+   * @param id The ID of the transcript.
+   * @param layerId The ID of the layer.
+   * @param maxOrdinal The maximum ordinal for the returned annotations, or null for all
+   * annotations.
+   * @return A stream of annotations, in the order the server lists them.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @throws GraphNotFoundException If the transcript was not found in the store.
+   * @see AnnotationPager
+   */
+  public Stream<Annotation> streamAnnotations(String id, String layerId, Integer maxOrdinal)
+    throws StoreException, PermissionException, GraphNotFoundException {
+    return new AnnotationPager(this).annotations(id, layerId, maxOrdinal, true);
+  }
+   
+  /**
+   * Gets the annotations on given layers for a set of match IDs.
+   * <p> The match IDs are streamed directly into the request as they're supplied by the
+   * iterator. This requires a server that supports the <tt>api/results</tt> endpoints.
    * @param matchIds An iterator that supplies match IDs - these may be the contents of
    * the MatchId column in exported search results, token URLs, or annotation IDs. 
    * @param layerIds The layer IDs of the layers to get.
@@ -1521,7 +1793,15 @@ public class LabbcatView implements GraphStoreQuery {
     Consumer<Annotation[]> consumer)
     throws StoreException, PermissionException {
       
-    throw new StoreException("Not implemented");
+    cancelling = false;
+    try {
+      if (!matchAnnotations(matchIds, layerIds, targetOffset, annotationsPerLayer, consumer)) {
+        throw new StoreException(
+          "Server does not support streamed match IDs; use getMatchAnnotations(String[],...)");
+      }
+    } catch(IOException x) {
+      throw new StoreException("Could not get response.", x);
+    }
   }
    
   /**
@@ -1543,7 +1823,8 @@ public class LabbcatView implements GraphStoreQuery {
         .setParameter("id", id)
         .setParameter("anchorIds", anchorIds);
       if (verbose) System.out.println("getAnchors -> " + request);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       if (response.isModelNull()) return null;
       JsonArray array = (JsonArray)response.getModel();
@@ -1559,6 +1840,82 @@ public class LabbcatView implements GraphStoreQuery {
     }
   }
 
+  /**
+   * Gets anchors from several transcripts, making up to {@link #getBulkThreads()}
+   * requests at once. Long lists of anchor IDs are split into several requests.
+   * @param anchorIds Lists of anchor IDs, keyed by transcript ID.
+   * @return Anchors, keyed by anchor ID (with null values for anchors that weren't
+   * found), and errors keyed by the IDs of anchors whose request failed.
+   * @throws StoreException If the requests couldn't be made at all.
+   */
+  public BulkResult<Anchor> getAnchors(Map<String,? extends Collection<String>> anchorIds)
+    throws StoreException {
+    BulkResult<Anchor[]> transcripts = fanOut(anchorIds.keySet(), id -> {
+        Vector<String> ids = new Vector<String>(anchorIds.get(id));
+        Vector<Anchor> anchors = new Vector<Anchor>();
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_REQUEST) {
+          Anchor[] chunk = getAnchors(
+            id, ids.subList(i, Math.min(ids.size(), i + MAX_IDS_PER_REQUEST))
+            .toArray(new String[0]));
+          if (chunk != null) anchors.addAll(Arrays.asList(chunk));
+        }
+        return anchors.toArray(new Anchor[0]);
+      });
+    BulkResult<Anchor> result = new BulkResult<Anchor>();
+    for (String transcriptId : anchorIds.keySet()) {
+      Exception error = transcripts.getFailures().get(transcriptId);
+      if (error != null) {
+        for (String id : anchorIds.get(transcriptId)) result.failed(id, error);
+      } else {
+        HashMap<String,Anchor> found = new HashMap<String,Anchor>();
+        for (Anchor anchor : transcripts.get(transcriptId)) found.put(anchor.getId(), anchor);
+        for (String id : anchorIds.get(transcriptId)) result.succeeded(id, found.get(id));
+      }
+    } // next transcript
+    return result;
+  }
+
+  /** The maximum number of IDs to include in one GET request. */
+  protected static final int MAX_IDS_PER_REQUEST = 200;
+
+  /** A request for one entity, for {@link #fanOut(Collection,BulkRequest)}. */
+  protected interface BulkRequest<T> {
+    T get(String id) throws Exception;
+  }
+  
+  /**
+   * Makes a request for each of the given IDs, up to {@link #getBulkThreads()} at once.
+   * @param <T> The type of entity.
+   * @param ids The IDs.
+   * @param request Makes the request for one ID.
+   * @return Results and failures, keyed by ID.
+   * @throws StoreException If interrupted.
+   */
+  protected <T> BulkResult<T> fanOut(Collection<String> ids, BulkRequest<T> request)
+    throws StoreException {
+    BulkResult<T> result = new BulkResult<T>();
+    ExecutorService pool = Executors.newFixedThreadPool(bulkThreads);
+    try {
+      LinkedHashMap<String,Future<T>> requests = new LinkedHashMap<String,Future<T>>();
+      for (String id : ids) {
+        if (!requests.containsKey(id)) requests.put(id, pool.submit(() -> request.get(id)));
+      }
+      for (String id : requests.keySet()) {
+        try {
+          result.succeeded(id, requests.get(id).get());
+        } catch(ExecutionException x) {
+          result.failed(id, x.getCause() instanceof Exception?
+                        (Exception)x.getCause() : new StoreException(x.getCause()));
+        }
+      } // next ID
+      return result;
+    } catch(InterruptedException x) {
+      throw new StoreException("Interrupted", x);
+    } finally {
+      pool.shutdownNow();
+    }
+  } // end of fanOut()
+
   /**
    * Gets a transcript given its ID.
    * @param id The given transcript ID.
@@ -1574,44 +1931,258 @@ public class LabbcatView implements GraphStoreQuery {
 
   /**
    * Gets a transcript given its ID, containing only the given layers.
+   * <p> If {@link #getLazyTranscripts()} is true, the result is a {@link LazyGraph}, which
+   * loads other layers from the server when they're first accessed through the graph.
+   * Navigation from an annotation (e.g. <tt>word.all("segment")</tt>) doesn't trigger
+   * loading, so layers reached that way should first be loaded with
+   * {@link LazyGraph#load(String...)}.
+   * @param id The given transcript ID.
+   * @param layerIds The IDs of the layers to load, or null if only transcript data is required.
+   * @return The identified transcript.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @throws GraphNotFoundException If the transcript was not found in the store.
+   */
+  public Graph getTranscript(String id, String[] layerIds) 
+    throws StoreException, PermissionException, GraphNotFoundException {
+    Graph transcript = loadTranscript(id, layerIds);
+    if (lazyTranscripts && transcript != null) {
+      return new LazyGraph(this, transcript, layerIds);
+    }
+    return transcript;
+  }
+
+  /**
+   * Gets a transcript given its ID, passing its anchors and annotations to consumers as
+   * they're parsed from the response, rather than building the whole transcript in memory.
+   * <p> This is intended for very large transcripts (e.g. hours-long recordings with
+   * phone-level layers) which would take a lot of memory to deserialize, and which
+   * can be processed piecemeal. Annotations are delivered in document order, so each
+   * annotation is delivered before its children. They're not linked to a graph, so
+   * relationships must be followed using their anchor and parent IDs. 
+   * <p> The transcript is always requested from the server; {@link #getTranscriptCache()}
+   * is not used.
+   * @param id The given transcript ID.
+   * @param layerIds The IDs of the layers to load, or null if only transcript data is required.
+   * @param anchorConsumer Receives each anchor, or null if anchors aren't required.
+   * @param annotationConsumer Receives each annotation.
+   * @return A graph containing the transcript's attributes (ID, offset units, etc.) but
+   * no anchors or annotations.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @throws GraphNotFoundException If the transcript was not found in the store.
+   * @see TranscriptStreamParser
+   */
+  public Graph getTranscript(
+    String id, String[] layerIds, Consumer<Anchor> anchorConsumer,
+    Consumer<Annotation> annotationConsumer) 
+    throws StoreException, PermissionException, GraphNotFoundException {
+    try {
+      HttpURLConnection connection = requestTranscript(id, layerIds);
+      if (connection == null) throw new GraphNotFoundException(id);
+      try (InputStream stream = connection.getInputStream()) {
+        return new TranscriptStreamParser().parse(stream, anchorConsumer, annotationConsumer);
+      }
+    } catch(SerializationException x) {
+      throw new StoreException("Could not parse response.", x);
+    } catch(IOException x) {
+      throw new StoreException("Could not get response.", x);
+    }
+  }
+
+  /**
+   * Streams the given transcripts, fetching and deserializing them ahead of the consumer
+   * on a pool of worker threads.
+   * <p> The stream should be closed after use.
+   * @param ids The IDs of the transcripts.
+   * @param layerIds The IDs of the layers to load, or null if only transcript data is required.
+   * @return A stream of transcripts, in the order of <var>ids</var>. Transcripts that
+   * don't exist are skipped.
+   * @see TranscriptSpliterator
+   */
+  public Stream<Graph> streamTranscripts(String[] ids, String[] layerIds) {
+    return new TranscriptSpliterator(this, ids, layerIds).stream();
+  }
+
+  /**
+   * Streams the transcripts that match a particular pattern, fetching and deserializing
+   * them ahead of the consumer on a pool of worker threads.
+   * <p> The stream should be closed after use.
+   * @param expression An expression that determines which transcripts match, as for
+   * {@link #getMatchingTranscriptIds(String,Integer,Integer,String)}.
+   * @param layerIds The IDs of the layers to load, or null if only transcript data is required.
+   * @return A stream of transcripts.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @see TranscriptSpliterator
+   */
+  public Stream<Graph> streamMatchingTranscripts(String expression, String[] layerIds)
+    throws StoreException, PermissionException {
+    String[] ids = getMatchingTranscriptIds(expression, null, null, null);
+    if (ids == null) ids = new String[0];
+    return streamTranscripts(ids, layerIds);
+  }
+
+  /**
+   * Loads a transcript containing only the given layers, from {@link #transcriptCache} if
+   * set, or otherwise from the server.
+   * @param id The given transcript ID.
+   * @param layerIds The IDs of the layers to load, or null if only transcript data is required.
+   * @return The identified transcript.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @throws GraphNotFoundException If the transcript was not found in the store.
+   */
+  protected Graph loadTranscript(String id, String[] layerIds) 
+    throws StoreException, PermissionException, GraphNotFoundException {
+    return loadTranscript(id, layerIds, getSchema());
+  }
+
+  /**
+   * Loads a transcript containing only the given layers, from {@link #transcriptCache} if
+   * set, or otherwise from the server, using the given schema.
+   * <p> Unlike {@link #getSchema()} this doesn't use {@link #response}, so it can be
+   * called from several threads at once.
+   * @param id The given transcript ID.
+   * @param layerIds The IDs of the layers to load, or null if only transcript data is required.
+   * @param schema The layer schema.
+   * @return The identified transcript.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @throws GraphNotFoundException If the transcript was not found in the store.
+   */
+  protected Graph loadTranscript(String id, String[] layerIds, Schema schema) 
+    throws StoreException, PermissionException, GraphNotFoundException {
+    if (transcriptCache != null) return getCachedTranscript(id, layerIds, schema);
+    try {
+      HttpURLConnection connection = requestTranscript(id, layerIds);
+      if (connection == null) return null;
+      // JSONSerialization can parse directly from the result stream
+      return deserializeTranscript(connection.getInputStream(), id, schema);
+    } catch(IOException x) {
+      throw new StoreException("Could not get response.", x);
+    }
+  }
+
+  /**
+   * Gets a transcript from {@link #transcriptCache}, requesting it from the server if
+   * it's not already cached.
+   * @param id The given transcript ID.
+   * @param layerIds The IDs of the layers to load, or null if only transcript data is required.
+   * @param schema The layer schema.
+   * @return The identified transcript.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @throws GraphNotFoundException If the transcript was not found in the store.
+   */
+  protected Graph getCachedTranscript(String id, String[] layerIds, Schema schema) 
+    throws StoreException, PermissionException, GraphNotFoundException {
+    try {
+      String versionLayerId = transcriptCache.getVersionLayerId();
+      TranscriptCache.Hit hit = transcriptCache.get(id, layerIds);
+      if (hit != null && versionLayerId != null) { // check it's still current
+        HttpURLConnection connection = requestTranscript(id, new String[] { versionLayerId });
+        if (connection == null) { // transcript has been deleted
+          transcriptCache.invalidate(id);
+          return null;
+        }
+        String version = TranscriptVersion(
+          deserializeTranscript(connection.getInputStream(), id, schema), versionLayerId);
+        if (!Objects.equals(version, hit.getVersion())) {
+          if (verbose) System.out.println("getTranscript: " + id + " has changed");
+          transcriptCache.invalidate(id);
+          hit = null;
+        }
+      }
+      byte[] json = null;
+      Set<String> loaded = null;
+      if (hit != null) {
+        json = hit.getJson();
+        loaded = hit.getLayerIds();
+      } else { // not cached
+        String[] request = layerIds;
+        if (versionLayerId != null) { // also get the version
+          loaded = new LinkedHashSet<String>();
+          if (layerIds != null) loaded.addAll(Arrays.asList(layerIds));
+          loaded.add(versionLayerId);
+          request = loaded.toArray(new String[0]);
+        } else {
+          loaded = layerIds == null? new LinkedHashSet<String>()
+            : new LinkedHashSet<String>(Arrays.asList(layerIds));
+        }
+        HttpURLConnection connection = requestTranscript(id, request);
+        if (connection == null) return null;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        IO.Pump(connection.getInputStream(), bytes);
+        json = bytes.toByteArray();
+        String version = versionLayerId == null? null : TranscriptVersion(
+          deserializeTranscript(new ByteArrayInputStream(json), id, schema), versionLayerId);
+        transcriptCache.put(id, request, version, json);
+      }
+      // remove any layers that weren't asked for
+      json = TranscriptCache.Without(
+        json, TranscriptCache.Extraneous(
+          schema, loaded, layerIds == null? new HashSet<String>() : Arrays.asList(layerIds)));
+      return deserializeTranscript(new ByteArrayInputStream(json), id, schema);
+    } catch(IOException x) {
+      throw new StoreException("Could not get response.", x);
+    }
+  } // end of getCachedTranscript()
+
+  /**
+   * Gets the value of a transcript attribute that identifies the transcript's version.
+   * @param transcript The transcript.
+   * @param versionLayerId The ID of the attribute layer.
+   * @return The label of the first annotation on the layer, or null if there is none.
+   */
+  private static String TranscriptVersion(Graph transcript, String versionLayerId) {
+    if (transcript == null) return null;
+    Annotation[] versions = transcript.all(versionLayerId);
+    return versions.length == 0? null : versions[0].getLabel();
+  } // end of TranscriptVersion()
+
+  /**
+   * Requests a JSON-serialized transcript from the server.
    * @param id The given transcript ID.
    * @param layerIds The IDs of the layers to load, or null if only transcript data is required.
-   * @return The identified transcript.
-   * @throws StoreException If an error occurs.
-   * @throws PermissionException If the operation is not permitted.
-   * @throws GraphNotFoundException If the transcript was not found in the store.
+   * @return The connection, from which the response can be read, or null if the
+   * transcript wasn't found.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error.
    */
-  public Graph getTranscript(String id, String[] layerIds) 
-    throws StoreException, PermissionException, GraphNotFoundException {
-    try {
-      Schema schema = getSchema();
-      URL url = url("getTranscript");
-      HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization()) 
-        .setUserAgent().setLanguage(language).setHeader("Accept", "application/json")
-        .setParameter("id", id)
-        .setParameter("layerIds", layerIds);
-      if (verbose) System.out.println("getTranscript -> " + request);
+  protected HttpURLConnection requestTranscript(String id, String[] layerIds)
+    throws IOException, StoreException {
+    URL url = url("getTranscript");
+    HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization()) 
+      .setUserAgent().setLanguage(language).setHeader("Accept", "application/json")
+      .setParameter("id", id);
+    if (layerIds != null) request.setParameter("layerIds", layerIds);
+    if (verbose) System.out.println("getTranscript -> " + request);
+    
+    HttpURLConnection connection = request.get();
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+        throw new StoreException(
+          "Error " + connection.getResponseCode()
+          + " " + connection.getResponseMessage() + " - " + request);
+      } 
+      return null;
+    }
+    return connection;
+  } // end of requestTranscript()
 
-      HttpURLConnection connection = request.get();
-      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-        if (connection.getResponseCode() != HttpURLConnection.HTTP_NOT_FOUND) {
-          throw new StoreException(
-            "Error " + connection.getResponseCode()
-            + " " + connection.getResponseMessage() + " - " + request);
-        } 
-        return null;
-      } else { // deserialize the model      
-        // JSONSerialization can parse directly from the result stream
-        JSONSerialization deserializer = new JSONSerialization();
-        deserializer.configure(deserializer.configure(new ParameterSet(), schema), schema);
-        ParameterSet parameters = deserializer.load(
-          Utility.OneNamedStreamArray(
-            new NamedStream(connection.getInputStream(), id, "application/json")), schema);
-        deserializer.setParameters(parameters); // run with default values
-        Graph[] graphs = deserializer.deserialize();
-        if (graphs.length == 0) return null;
-        return graphs[0];
-      }
+  /**
+   * Deserializes a JSON-serialized transcript.
+   * @param json The JSON serialization.
+   * @param id The transcript ID.
+   * @param schema The layer schema.
+   * @return The transcript, or null if the stream contained no transcript.
+   * @throws StoreException If the transcript can't be deserialized.
+   */
+  protected Graph deserializeTranscript(InputStream json, String id, Schema schema)
+    throws StoreException {
+    try {
+      return JSONSerializationPool.Shared().deserialize(json, id, schema);
     } catch(SerializationParametersMissingException x) {
       throw new StoreException("Could not parse response.", x);
     } catch(SerializerNotConfiguredException x) {
@@ -1621,7 +2192,7 @@ public class LabbcatView implements GraphStoreQuery {
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
-  }
+  } // end of deserializeTranscript()
 
   /**
    * Gets a fragment of a transcript, given its ID and the ID of an annotation in it that
@@ -1654,23 +2225,8 @@ public class LabbcatView implements GraphStoreQuery {
         return null;
       } else { // deserialize the model      
         // JSONSerialization can parse directly from the result stream
-        JSONSerialization deserializer = new JSONSerialization();
-        deserializer.configure(deserializer.configure(new ParameterSet(), schema), schema);
-        ParameterSet parameters = deserializer.load(
-          Utility.OneNamedStreamArray(
-            new NamedStream(connection.getInputStream(), transcriptId, "application/json")),
-          schema);
-        deserializer.setParameters(parameters); // run with default values
-        Graph[] graphs = deserializer.deserialize();
-        if (graphs.length == 0) return null;
-        return graphs[0];
+        return deserializeTranscript(connection.getInputStream(), transcriptId, schema);
       }
-    } catch(SerializationParametersMissingException x) {
-      throw new StoreException("Could not parse response.", x);
-    } catch(SerializerNotConfiguredException x) {
-      throw new StoreException("Could not parse response.", x);
-    } catch(SerializationException x) {
-      throw new StoreException("Could not parse response.", x);
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
@@ -1710,23 +2266,8 @@ public class LabbcatView implements GraphStoreQuery {
         return null;
       } else { // deserialize the model      
         // JSONSerialization can parse directly from the result stream
-        JSONSerialization deserializer = new JSONSerialization();
-        deserializer.configure(deserializer.configure(new ParameterSet(), schema), schema);
-        ParameterSet parameters = deserializer.load(
-          Utility.OneNamedStreamArray(
-            new NamedStream(connection.getInputStream(), transcriptId, "application/json")),
-          schema);
-        deserializer.setParameters(parameters); // run with default values
-        Graph[] graphs = deserializer.deserialize();
-        if (graphs.length == 0) return null;
-        return graphs[0];
+        return deserializeTranscript(connection.getInputStream(), transcriptId, schema);
       }
-    } catch(SerializationParametersMissingException x) {
-      throw new StoreException("Could not parse response.", x);
-    } catch(SerializerNotConfiguredException x) {
-      throw new StoreException("Could not parse response.", x);
-    } catch(SerializationException x) {
-      throw new StoreException("Could not parse response.", x);
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
@@ -1768,24 +2309,9 @@ public class LabbcatView implements GraphStoreQuery {
         return null;
       } else { // deserialize the model      
         // JSONSerialization can parse directly from the result stream
-        JSONSerialization deserializer = new JSONSerialization();
-        deserializer.configure(deserializer.configure(new ParameterSet(), schema), schema);
-        ParameterSet parameters = deserializer.load(
-          Utility.OneNamedStreamArray(
-            new NamedStream(connection.getInputStream(),
-                            Graph.FragmentId(transcriptId, start, end),
-                            "application/json")), schema);
-        deserializer.setParameters(parameters); // run with default values
-        Graph[] graphs = deserializer.deserialize();
-        if (graphs.length == 0) return null;
-        return graphs[0];
+        return deserializeTranscript(
+          connection.getInputStream(), Graph.FragmentId(transcriptId, start, end), schema);
       }
-    } catch(SerializationParametersMissingException x) {
-      throw new StoreException("Could not parse response.", x);
-    } catch(SerializerNotConfiguredException x) {
-      throw new StoreException("Could not parse response.", x);
-    } catch(SerializationException x) {
-      throw new StoreException("Could not parse response.", x);
     } catch(IOException x) {
       throw new StoreException("Could not get response.", x);
     }
@@ -1890,7 +2416,8 @@ public class LabbcatView implements GraphStoreQuery {
         .setParameter("trackSuffix", trackSuffix)
         .setParameter("mimeType", mimeType);
       if (verbose) System.out.println("getMedia -> " + request);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       if (response.isModelNull()) return null;
       return ((JsonString)response.getModel()).getString();
@@ -1902,7 +2429,8 @@ public class LabbcatView implements GraphStoreQuery {
   /**
    * Gets a given media track for a given transcript.
    * <p> This method calls {@link #getMedia(String,String,String)} and then downloads
-   * the media of the given URL to a file.
+   * the media of the given URL to a file. To avoid downloading the same media
+   * repeatedly, or to resume interrupted downloads, use {@link MediaDownloader}.
    * @param id The transcript ID.
    * @param trackSuffix The track suffix of the media - see {@link MediaTrackDefinition#suffix}.
    * @param mimeType The MIME type of the media, which may include parameters for type
@@ -1910,7 +2438,9 @@ public class LabbcatView implements GraphStoreQuery {
    * @param dir A directory in which the files should be stored, or null for a temporary
    * folder.  If specified, and the directory doesn't exist, it will be created. 
    * @return A file containing the given media, or null if the given media doesn't
-   * exist. The caller is responsible for deleting this file once processing is complete.
+   * exist. The caller is responsible for deleting this file once processing is complete
+   * (or, if <var>dir</var> is null, releasing it via {@link #getTempFiles()}, which
+   * also deletes the temporary folder).
    * @throws StoreException If an error occurs.
    * @throws PermissionException If the operation is not permitted.
    * @throws GraphNotFoundException If the transcript was not found in the store.
@@ -1919,20 +2449,17 @@ public class LabbcatView implements GraphStoreQuery {
     throws StoreException, PermissionException, GraphNotFoundException {
 
     try {
-      boolean tempDir = false;
       if (dir == null) {
-        dir = File.createTempFile("getSoundFragments_", "_wav");
-        dir.delete();
-        dir.mkdir();
-        dir.deleteOnExit();
-        tempDir = true;
+        dir = tempFiles.createTempDirectory("getMediaFile_");
+      } else {
+        if (!dir.exists()) Files.createDirectories(dir.toPath());
       }
       
       // get the URL of the media
       String url = getMedia(id, trackSuffix, mimeType);
       if (url == null) return null;
       // get the media itself
-      HttpRequestGet request = get(getMedia(id, trackSuffix, mimeType))
+      HttpRequestGet request = get(url)
         .setHeader("Accept", mimeType);
       if (verbose) System.out.println("getMediaFile -> " + request);
       
@@ -1956,8 +2483,10 @@ public class LabbcatView implements GraphStoreQuery {
             dir, IO.WithoutExtension(id)
             + "." + mimeType.replaceAll(".*/","")); // audio/wav -> wav
         }
-        if (tempDir) file.deleteOnExit();
-        IO.SaveUrlConnectionToFile(connection, file);
+        tempFiles.reserve(file, connection.getContentLengthLong());
+        HttpDownload.Result result = download.save(connection, file);
+        tempFiles.charge(file);
+        if (verbose) System.out.println("getMediaFile <- " + result);
         return file;
       } // response ok
 
@@ -1996,7 +2525,8 @@ public class LabbcatView implements GraphStoreQuery {
         .setParameter("startOffset", startOffset)
         .setParameter("endOffset", endOffset);
       if (verbose) System.out.println("getMedia -> " + request);
-      response = new Response(request.get(), verbose);
+      Response response = new Response(request.get(), verbose);
+      this.response = response;
       response.checkForErrors(); // throws a StoreException on error
       if (response.isModelNull()) return null;
       return ((JsonString)response.getModel()).getString();
@@ -2072,7 +2602,7 @@ public class LabbcatView implements GraphStoreQuery {
       .setParameter("keepalive", keepalive);
     if (log) request.setParameter("log", log);
     if (verbose) System.out.println("taskStatus -> " + request);
-    response = new Response(request.get(), verbose);
+    Response response = new Response(request.get(), verbose);
     if (response.getHttpStatus() == 404) { // endpoint not found, use  deprecated API
       makeUrl("thread");
       request = new HttpRequestGet(url, getRequiredHttpAuthorization())
@@ -2082,6 +2612,7 @@ public class LabbcatView implements GraphStoreQuery {
       if (verbose) System.out.println("taskStatus -> " + request);
       response = new Response(request.get(), verbose);
     }
+    this.response = response;
     response.checkForErrors(); // throws a ResponseException on error
     if (response.isModelNull()) return null;
     return new TaskStatus((JsonObject)response.getModel());
@@ -2133,7 +2664,7 @@ public class LabbcatView implements GraphStoreQuery {
       .setHeader("Accept", "application/json")
       .setParameter("cancel", true);
     if (verbose) System.out.println("cancelTask -> " + request);
-    response = new Response(request.post(), verbose);
+    Response response = new Response(request.post(), verbose);
     if (response.getHttpStatus() == 404) { // endpoint not found, use  deprecated API
       URL url = makeUrl("threads");
       HttpRequestGet get = new HttpRequestGet(url, getRequiredHttpAuthorization())
@@ -2144,6 +2675,7 @@ public class LabbcatView implements GraphStoreQuery {
       if (verbose) System.out.println("taskStatus -> " + get);
       response = new Response(get.get(), verbose);
     }
+    this.response = response;
     response.checkForErrors(); // throws a ResponseException on error
   } // end of cancelTask()
 
@@ -2160,7 +2692,7 @@ public class LabbcatView implements GraphStoreQuery {
       .setHeader("Accept", "application/json")
       .setParameter("release", true);
     if (verbose) System.out.println("cacelTask -> " + request);
-    response = new Response(request.post(), verbose);
+    Response response = new Response(request.post(), verbose);
     if (response.getHttpStatus() == 404) { // endpoint not found, use  deprecated API
       URL url = makeUrl("threads");
       HttpRequestGet get = new HttpRequestGet(url, getRequiredHttpAuthorization())
@@ -2171,6 +2703,7 @@ public class LabbcatView implements GraphStoreQuery {
       if (verbose) System.out.println("taskStatus -> " + get);
       response = new Response(get.get(), verbose);
     }
+    this.response = response;
     response.checkForErrors(); // throws a ResponseException on error
   } // end of releaseTask()
 
@@ -2370,7 +2903,8 @@ public class LabbcatView implements GraphStoreQuery {
     }
       
     if (verbose) System.out.println("search -> " + request + "\n" + pattern.toString());
-    response = new Response(request.get(), verbose);
+    Response response = new Response(request.get(), verbose);
+    this.response = response;
     response.checkForErrors(); // throws a ResponseException on error
       
     // extract the threadId from model.threadId
@@ -2443,7 +2977,8 @@ public class LabbcatView implements GraphStoreQuery {
     if (pageLength != null) request.setParameter("pageLength", pageLength);
     if (pageNumber != null) request.setParameter("pageNumber", pageNumber);
     if (verbose) System.out.println("getMatches -> " + request);
-    response = new Response(request.get(), verbose);
+    Response response = new Response(request.get(), verbose);
+    this.response = response;
     response.checkForErrors(); // throws a ResponseException on error
       
     // extract the MatchIds from model
@@ -2454,13 +2989,48 @@ public class LabbcatView implements GraphStoreQuery {
     {
       for (int i = 0; i < array.size(); i++)
       {
-        matches.add(new Match(array.getJsonObject(i)));
+        matches.add(matchFromJson(array.getJsonObject(i)));
       }
     }
       
     return matches.toArray(new Match[0]);
   } // end of getMatches()
 
+  /**
+   * Decodes a match from its JSON representation, passing string values through
+   * {@link #interner} if one is set.
+   * @param json The JSON representation of the match.
+   * @return The decoded match.
+   */
+  protected Match matchFromJson(JsonObject json) {
+    Match match = new Match(json);
+    if (interner != null) {
+      match.setTranscript(interner.intern(match.getTranscript()))
+        .setParticipant(interner.intern(match.getParticipant()))
+        .setCorpus(interner.intern(match.getCorpus()));
+    }
+    return match;
+  } // end of matchFromJson()
+
+  /**
+   * Decodes an annotation from its JSON representation, passing repeated string values
+   * (layer ID, label, parent ID, annotator) through {@link #interner} if one is set.
+   * @param json The JSON representation of the annotation.
+   * @return The decoded annotation.
+   */
+  protected Annotation annotationFromJson(JsonObject json) {
+    Annotation annotation = (Annotation)new Annotation().fromJson(json);
+    if (interner != null) {
+      annotation.setLayerId(interner.intern(annotation.getLayerId()));
+      annotation.setLabel(interner.intern(annotation.getLabel()));
+      annotation.setParentId(interner.intern(annotation.getParentId()));
+      if (annotation.getAnnotator() != null) {
+        annotation.setAnnotator(interner.intern(annotation.getAnnotator()));
+      }
+    }
+    return annotation;
+  } // end of annotationFromJson()
+
   /**
    * Searches for tokens that match the givem pattern and returns a list of matches.
    * <p>This is similar to invoking:
@@ -2518,14 +3088,18 @@ public class LabbcatView implements GraphStoreQuery {
     Integer overlapThreshold, int wordsContext)
     throws IOException, StoreException {
       
-    String threadId = search(
-      pattern, participantIds, transcriptTypes, mainParticipant, offsetThreshold,
-      matchesPerTranscript, overlapThreshold);
-    try {
-      return  getMatches(threadId, wordsContext);
-    } finally { // release the task to save server resources
-      try { releaseTask(threadId); } catch(Exception exception) {}
+    if (searchCache != null) {
+      return searchCache.get(
+        SearchCache.Key(
+          labbcatUrl, username, pattern, participantIds, transcriptTypes, mainParticipant, offsetThreshold,
+          matchesPerTranscript, overlapThreshold, wordsContext, null),
+        () -> getMatches(
+          pattern, participantIds, transcriptTypes, mainParticipant, offsetThreshold,
+          matchesPerTranscript, overlapThreshold, wordsContext, null, null));
     }
+    return getMatches(
+      pattern, participantIds, transcriptTypes, mainParticipant, offsetThreshold,
+      matchesPerTranscript, overlapThreshold, wordsContext, null, null);
   }
 
   /**
@@ -2587,15 +3161,53 @@ public class LabbcatView implements GraphStoreQuery {
     Integer overlapThreshold, int wordsContext, Integer maxMatches)
     throws IOException, StoreException {
       
+    if (searchCache != null) {
+      return searchCache.get(
+        SearchCache.Key(
+          labbcatUrl, username, pattern, participantIds, transcriptTypes, mainParticipant, offsetThreshold,
+          matchesPerTranscript, overlapThreshold, wordsContext, maxMatches),
+        () -> getMatches(
+          pattern, participantIds, transcriptTypes, mainParticipant, offsetThreshold,
+          matchesPerTranscript, overlapThreshold, wordsContext, maxMatches, 0));
+    }
+    return getMatches(
+      pattern, participantIds, transcriptTypes, mainParticipant, offsetThreshold,
+      matchesPerTranscript, overlapThreshold, wordsContext, maxMatches, 0);
+  }
+
+  /**
+   * Searches for tokens that match the given pattern and returns a page of matches,
+   * without using {@link #searchCache}.
+   * @param pattern An object representing the pattern to search for.
+   * @param participantIds An optional list of participant IDs to search the utterances of.
+   * @param transcriptTypes An optional list of transcript types to limit the results to.
+   * @param mainParticipant true to search only main-participant utterances.
+   * @param offsetThreshold The minimum confidence for alignments.
+   * @param matchesPerTranscript Optional maximum number of matches per transcript.
+   * @param overlapThreshold Optional percentage overlap with other utterances before
+   * simultaneous speech is excluded.
+   * @param wordsContext Number of words context to include.
+   * @param pageLength The maximum number of matches to return, or null to return all.
+   * @param pageNumber The zero-based page number to return, or null for the first page.
+   * @return The matches, or null if the task was cancelled.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  protected Match[] getMatches(
+    JsonObject pattern, String[] participantIds, String[] transcriptTypes,
+    boolean mainParticipant, Integer offsetThreshold, Integer matchesPerTranscript,
+    Integer overlapThreshold, int wordsContext, Integer pageLength, Integer pageNumber)
+    throws IOException, StoreException {
+      
     String threadId = search(
       pattern, participantIds, transcriptTypes, mainParticipant, offsetThreshold,
       matchesPerTranscript, overlapThreshold);
     try {
-      return  getMatches(threadId, wordsContext, maxMatches, 0);
+      return  getMatches(threadId, wordsContext, pageLength, pageNumber);
     } finally { // release the task to save server resources
       try { releaseTask(threadId); } catch(Exception exception) {}
     }
-  }
+  } // end of getMatches()
 
   /**
    * Gets annotations on selected layers related to search results returned by a previous
@@ -2658,108 +3270,172 @@ public class LabbcatView implements GraphStoreQuery {
       
     cancelling = false;
 
-    // write the IDs to a temporary file for upload
-    File csvUpload = File.createTempFile("getMatchAnnotations_",".csv");
-    try {
-      csvUpload.deleteOnExit();
-      PrintWriter csvOut = new PrintWriter(csvUpload, "UTF-8");
-      csvOut.println("MatchId");
-      for (String matchId : matchIds) csvOut.println(matchId);
-      csvOut.close();
-      if (verbose) System.out.println("matchIds written to: " + csvUpload.getPath());
-
-      // reload the results
-      URL url = makeUrl("api/results/upload");
+    // the IDs are streamed directly into the upload
+    Vector<Annotation[]> matchAnnotations = new Vector<Annotation[]>();
+    if (matchAnnotations(
+          Arrays.asList(matchIds).iterator(), layerIds, targetOffset, annotationsPerLayer,
+          a -> matchAnnotations.add(a))) {
+      return matchAnnotations.toArray(new Annotation[0][]);
+    } else { // endpoint not found, use deprecated endpoint
+      URL url = makeUrl("api/getMatchAnnotations");
       postRequest = new HttpRequestPostMultipart(url, getRequiredHttpAuthorization())
         .setUserAgent()
         .setHeader("Accept", "application/json")
+        .setParameter("layer", layerIds)
+        .setParameter("targetOffset", targetOffset)
+        .setParameter("annotationsPerLayer", annotationsPerLayer)
         .setParameter("csvFieldDelimiter", ",")
-        .setParameter("targetColumn", "MatchId")
-        .setParameter("results", csvUpload);
+        .setParameter("targetColumn", 0)
+        .setParameter("copyColumns", false)
+        .setParameter(
+          "uploadfile", "getMatchAnnotations.csv",
+          csvPart(new String[]{"MatchId"}, Arrays.asList(matchIds).iterator(),
+                  matchId -> new Object[]{ matchId }));
       if (verbose) System.out.println("getMatchAnnotations -> " + postRequest);
       response = new Response(postRequest.post(), verbose);
-      if (response.getHttpStatus() != 404) { // endpoint found
-        response.checkForErrors(); // throws a ResponseException on error
-        JsonObject uploadModel = (JsonObject)response.getModel();
-        String threadId = uploadModel.getString("threadId");
-        try {
-          waitForTask(threadId, 0);
-          
-          // get the desired annotations
-          url = makeUrl("api/results");
-          HttpRequestPost postRequest = new HttpRequestPost(url, getRequiredHttpAuthorization())
-            .setUserAgent()
-            .setHeader("Accept", "application/json")
-            .setParameter("threadId", threadId)
-            .setParameter("csv_layer", layerIds)
-            .setParameter("targetOffset", targetOffset)
-            .setParameter("annotationsPerLayer", annotationsPerLayer);
-          if (verbose) System.out.println("getMatchAnnotations -> " + postRequest);
-          response = new Response(postRequest.post(), verbose);
-          response.checkForErrors(); // throws a ResponseException on error
-          
-          // extract the MatchIds from model
-          JsonObject model = (JsonObject)response.getModel();
-          JsonArray matches = (JsonArray)model.getJsonArray("matches");
-          int annotationsPerMatch = layerIds.length*annotationsPerLayer;
-          Annotation[][] result = new Annotation[matchIds.length][annotationsPerMatch];
-          for (int m = 0; m < matchIds.length; m++) {
-            JsonObject annotations = matches.getJsonObject(m);
-            int a = 0;
-            for (String layerId : layerIds) {
-              JsonArray layer = annotations.getJsonArray(layerId);
-              for (int v = 0; v < annotationsPerLayer; v++) {
-                Annotation annotation = null;
-                if (!layer.isNull(v)) {
-                  annotation = (Annotation)new Annotation().fromJson(layer.getJsonObject(v));
-                }
-                result[m][a++] = annotation;
-              } // next variant in the layer
-            } // next layer
-          } // next match
-          return result;
-        } finally {
-          releaseTask(threadId);
-        }
-      } else { // endpoint not found, use deprecated endpoint
-        url = makeUrl("api/getMatchAnnotations");
-        postRequest = new HttpRequestPostMultipart(url, getRequiredHttpAuthorization())
-          .setUserAgent()
-          .setHeader("Accept", "application/json")
-          .setParameter("layer", layerIds)
-          .setParameter("targetOffset", targetOffset)
-          .setParameter("annotationsPerLayer", annotationsPerLayer)
-          .setParameter("csvFieldDelimiter", ",")
-          .setParameter("targetColumn", 0)
-          .setParameter("copyColumns", false)
-          .setParameter("uploadfile", csvUpload);
-        if (verbose) System.out.println("getMatchAnnotations -> " + postRequest);
-        response = new Response(postRequest.post(), verbose);
-        response.checkForErrors(); // throws a ResponseException on error
-        
-        // extract the MatchIds from model
-        JsonArray model = (JsonArray)response.getModel();
-        int annotationsPerMatch = layerIds.length*annotationsPerLayer;
-        Annotation[][] result = new Annotation[matchIds.length][annotationsPerMatch];
-        for (int m = 0; m < matchIds.length; m++) {
-          JsonArray annotations = model.getJsonArray(m);
-          for (int a = 0; a < annotationsPerMatch; a++)
+      response.checkForErrors(); // throws a ResponseException on error
+      
+      // extract the MatchIds from model
+      JsonArray model = (JsonArray)response.getModel();
+      int annotationsPerMatch = layerIds.length*annotationsPerLayer;
+      Annotation[][] result = new Annotation[matchIds.length][annotationsPerMatch];
+      for (int m = 0; m < matchIds.length; m++) {
+        JsonArray annotations = model.getJsonArray(m);
+        for (int a = 0; a < annotationsPerMatch; a++)
+        {
+          Annotation annotation = null;
+          if (!annotations.isNull(a))
           {
+            annotation = annotationFromJson(annotations.getJsonObject(a));
+          }
+          result[m][a] = annotation;
+        } // next annotation
+      } // next match
+      return result;
+    } // deprecated endpoint
+  } // end of getMatchAnnotations()
+
+  /**
+   * Uploads the given match IDs as a results set and gets annotations for them, using
+   * the <tt>api/results</tt> endpoints.
+   * @param matchIds The match IDs, which are streamed directly into the upload request.
+   * @param layerIds A vector of layer IDs.
+   * @param targetOffset The distance from the original target of the match.
+   * @param annotationsPerLayer The number of annotations on the given layer to retrieve.
+   * @param consumer Receiver of annotations for each match, in the order of
+   * <var>matchIds</var>. 
+   * @return true if the annotations were retrieved, false if the server doesn't support
+   * the <tt>api/results</tt> endpoints.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  protected boolean matchAnnotations(
+    Iterator<String> matchIds, String[] layerIds, int targetOffset, int annotationsPerLayer,
+    Consumer<Annotation[]> consumer)
+    throws IOException, StoreException {
+    
+    // reload the results
+    URL url = makeUrl("api/results/upload");
+    postRequest = new HttpRequestPostMultipart(url, getRequiredHttpAuthorization())
+      .setUserAgent()
+      .setHeader("Accept", "application/json")
+      .setParameter("csvFieldDelimiter", ",")
+      .setParameter("targetColumn", "MatchId")
+      .setParameter(
+        "results", "getMatchAnnotations.csv",
+        csvPart(new String[]{"MatchId"}, matchIds, matchId -> new Object[]{ matchId }));
+    if (verbose) System.out.println("getMatchAnnotations -> " + postRequest);
+    response = new Response(postRequest.post(), verbose);
+    if (response.getHttpStatus() == 404) return false; // endpoint not found
+    response.checkForErrors(); // throws a ResponseException on error
+    JsonObject uploadModel = (JsonObject)response.getModel();
+    String threadId = uploadModel.getString("threadId");
+    try {
+      waitForTask(threadId, 0);
+      
+      // get the desired annotations
+      url = makeUrl("api/results");
+      HttpRequestPost postRequest = new HttpRequestPost(url, getRequiredHttpAuthorization())
+        .setUserAgent()
+        .setHeader("Accept", "application/json")
+        .setParameter("threadId", threadId)
+        .setParameter("csv_layer", layerIds)
+        .setParameter("targetOffset", targetOffset)
+        .setParameter("annotationsPerLayer", annotationsPerLayer);
+      if (verbose) System.out.println("getMatchAnnotations -> " + postRequest);
+      response = new Response(postRequest.post(), verbose);
+      response.checkForErrors(); // throws a ResponseException on error
+      
+      // extract the annotations from model
+      JsonObject model = (JsonObject)response.getModel();
+      JsonArray matches = (JsonArray)model.getJsonArray("matches");
+      int annotationsPerMatch = layerIds.length*annotationsPerLayer;
+      for (int m = 0; m < matches.size(); m++) {
+        JsonObject annotations = matches.getJsonObject(m);
+        Annotation[] result = new Annotation[annotationsPerMatch];
+        int a = 0;
+        for (String layerId : layerIds) {
+          JsonArray layer = annotations.getJsonArray(layerId);
+          for (int v = 0; v < annotationsPerLayer; v++) {
             Annotation annotation = null;
-            if (!annotations.isNull(a))
-            {
-              annotation = (Annotation)new Annotation().fromJson(annotations.getJsonObject(a));
+            if (!layer.isNull(v)) {
+              annotation = annotationFromJson(layer.getJsonObject(v));
             }
-            result[m][a] = annotation;
-          } // next annotation
-        } // next match
-        return result;
-      } // deprecated endpoint
+            result[a++] = annotation;
+          } // next variant in the layer
+        } // next layer
+        consumer.accept(result);
+      } // next match
+      return true;
     } finally {
-      // delete temporary file
-      csvUpload.delete();
+      releaseTask(threadId);
     }
-  } // end of getMatchIds()
+  } // end of matchAnnotations()
+
+  /**
+   * Creates a CSV file part for a multipart request, which is written directly to the
+   * request body from the given rows, without an intermediate file.
+   * @param headers Column headers.
+   * @param rows Row source.
+   * @param columns Function for converting a row into column values.
+   * @return A writer of the CSV content.
+   */
+  protected static <T> HttpRequestPostMultipart.PartWriter csvPart(
+    String[] headers, Iterator<T> rows, Function<T,Object[]> columns) {
+    return out -> {
+      PrintWriter csvOut = new PrintWriter(
+        new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+      csvOut.print(String.join(",", headers));
+      while (rows.hasNext()) {
+        csvOut.println();
+        Object[] values = columns.apply(rows.next());
+        for (int c = 0; c < values.length; c++) {
+          if (c > 0) csvOut.print(",");
+          csvOut.print(values[c]);
+        } // next column
+      } // next row
+      csvOut.println();
+      csvOut.flush(); // not close, which would close the request
+    };
+  } // end of csvPart()
+
+  /**
+   * Creates a CSV file part with transcript, participant, and interval columns, for
+   * {@link #processWithPraat(String[],String[],Double[],Double[],String,Double,String[])}
+   * and {@link #intervalAnnotations(String[],String[],Double[],Double[],String[],String,boolean)}.
+   * @param transcriptIds Transcript IDs.
+   * @param participantIds Participant IDs.
+   * @param startOffsets Start times.
+   * @param endOffsets End times.
+   * @return A writer of the CSV content.
+   */
+  private static HttpRequestPostMultipart.PartWriter intervalsCsvPart(
+    String[] transcriptIds, String[] participantIds, Double[] startOffsets, Double[] endOffsets) {
+    Iterator<Integer> rows = IntStream.range(0, transcriptIds.length).iterator();
+    return csvPart(
+      new String[]{ "Transcript", "Participant", "StartOffset", "EndOffset" }, rows,
+      i -> new Object[]{ transcriptIds[i], participantIds[i], startOffsets[i], endOffsets[i] });
+  } // end of intervalsCsvPart()
 
   /**
    * Downloads WAV sound fragments.
@@ -2773,7 +3449,9 @@ public class LabbcatView implements GraphStoreQuery {
    * folder.  If specified, and the directory doesn't exist, it will be created. 
    * @return A list of WAV files. If <var>dir</var> is null, these files will be stored
    * under the system's temporary directory, so once processing is finished, they should
-   * be deleted by the caller, or moved to a more permanent location. 
+   * be deleted by the caller, or moved to a more permanent location. If <var>dir</var> is null, the
+   * files are also tracked by {@link #getTempFiles()}, and the temporary folder is deleted
+   * once all of them have been released.
    * @throws IOException If a communications error occurs.
    * @throws StoreException If the server returns an error.
    */
@@ -2806,9 +3484,12 @@ public class LabbcatView implements GraphStoreQuery {
    * folder.  If specified, and the directory doesn't exist, it will be created. 
    * @return A list of WAV files. If <var>dir</var> is null, these files will be stored
    * under the system's temporary directory, so once processing is finished, they should
-   * be deleted by the caller, or moved to a more permanent location. 
+   * be deleted by the caller, or moved to a more permanent location. If <var>dir</var> is null, the
+   * files are also tracked by {@link #getTempFiles()}, and the temporary folder is deleted
+   * once all of them have been released.
    * @throws IOException If a communications error occurs.
    * @throws StoreException If the server returns an error.
+   * @see SoundFragmentExtractor
    */
   public File[] getSoundFragments(
     String[] transcriptIds, Double[] startOffsets, Double[] endOffsets, Integer sampleRate,
@@ -2822,70 +3503,95 @@ public class LabbcatView implements GraphStoreQuery {
     }
     File[] fragments = new File[transcriptIds.length];
       
-    boolean tempFiles = false;
     if (dir == null) {
-      dir = File.createTempFile("getSoundFragments_", "_wav");
-      dir.delete();
-      dir.mkdir();
-      dir.deleteOnExit();
-      tempFiles = true;
+      dir = tempFiles.createTempDirectory("getSoundFragments_");
     } else {
       if (!dir.exists()) Files.createDirectory(dir.toPath());
     }
 
+    if (coalescer != null) {
+      // fetch identical intervals once; overlapping intervals are not merged, as
+      // extracting (and resampling) them locally wouldn't give exactly what the server does
+      for (IntervalCoalescer.Group group
+             : coalescer.coalesce(transcriptIds, startOffsets, endOffsets, false)) {
+        if (cancelling) break;
+        IntervalCoalescer.Interval interval = group.intervals.get(0);
+        File fragment = getSoundFragment(
+          group.transcriptId, interval.start, interval.end, sampleRate, dir);
+        for (int i : interval.indices) fragments[i] = fragment;
+      } // next group
+      if (verbose) System.out.println("getSoundFragments: " + coalescer);
+      return fragments;
+    }
+    
     // loop through each triple, getting fragments individually
     for (int i = 0; i < transcriptIds.length; i++) {
       if (cancelling) break;
       if (transcriptIds[i] == null || startOffsets[i] == null || endOffsets[i] == null) continue;
-
-      URL url = makeUrl("api/media/fragments");
-      HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization())
-        .setUserAgent()
-        .setHeader("Accept", "audio/wav")
-        .setParameter("id", transcriptIds[i])
-        .setParameter("start", startOffsets[i])
-        .setParameter("end", endOffsets[i]);
-      if (sampleRate != null) request.setParameter("sampleRate", sampleRate);
-      if (verbose) System.out.println("getSoundFragments -> " + request);
-      HttpURLConnection connection = request.get();
-      // if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
-      //   // might need to use the old API endpoint
-      //   url = makeUrl("soundfragment");
-      //   request = new HttpRequestGet(url, getRequiredHttpAuthorization())
-      //     .setUserAgent()
-      //     .setHeader("Accept", "audio/wav")
-      //     .setParameter("id", transcriptIds[i])
-      //     .setParameter("start", startOffsets[i])
-      //     .setParameter("end", endOffsets[i]);
-      //   if (sampleRate != null) request.setParameter("sampleRate", sampleRate);
-      //   if (verbose) System.out.println("getSoundFragments -> " + request);
-      // }
-      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-        if (connection.getResponseCode() != HttpURLConnection.HTTP_NOT_FOUND) {
-          System.err.println(
-            "getSoundFragments: Error " + connection.getResponseCode()
-            + " " + connection.getResponseMessage() + " - " + request);
-        } 
-        continue;
-      } else {
-        // use the name given by the server, if any
-        String fileName = FileNameFromContentDisposition(
-          connection.getHeaderField("content-disposition"));        
-        if (fileName != null) {
-          fragments[i] = new File(dir, fileName);
-        } else { // no name was suggested
-          // invent a name
-          fragments[i] = new File(
-            dir, Graph.FragmentId(transcriptIds[i], startOffsets[i], endOffsets[i]) + ".wav");
-        }
-        if (tempFiles) fragments[i].deleteOnExit();
-        IO.SaveUrlConnectionToFile(connection, fragments[i]);           
-      } // response ok
+      fragments[i] = getSoundFragment(
+        transcriptIds[i], startOffsets[i], endOffsets[i], sampleRate, dir);
     } // next triple
 
     return fragments;
   } // end of getSoundFragments()
 
+  /**
+   * Downloads a single WAV sound fragment.
+   * @param transcriptId The transcript ID (transcript name).
+   * @param startOffset The start offset.
+   * @param endOffset The end offset.
+   * @param sampleRate The desired sample rate, or null for no preference.
+   * @param dir The directory in which the file should be stored.
+   * @return The WAV file, or null if the fragment could not be downloaded.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  protected File getSoundFragment(
+    String transcriptId, double startOffset, double endOffset, Integer sampleRate, File dir)
+    throws IOException, StoreException {
+    String key = null;
+    if (fragmentCache != null) {
+      key = FragmentCache.Key(
+        transcriptId, startOffset, endOffset,
+        "audio/wav" + (sampleRate == null? "" : ";sampleRate=" + sampleRate), null);
+      File cached = fragmentCache.get(key, dir);
+      if (cached != null) return cached;
+    }
+    URL url = makeUrl("api/media/fragments");
+    HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization())
+      .setUserAgent()
+      .setHeader("Accept", "audio/wav")
+      .setParameter("id", transcriptId)
+      .setParameter("start", startOffset)
+      .setParameter("end", endOffset);
+    if (sampleRate != null) request.setParameter("sampleRate", sampleRate);
+    if (verbose) System.out.println("getSoundFragments -> " + request);
+    HttpURLConnection connection = request.get();
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+        System.err.println(
+          "getSoundFragments: Error " + connection.getResponseCode()
+          + " " + connection.getResponseMessage() + " - " + request);
+      } 
+      return null;
+    }
+    // use the name given by the server, if any
+    String fileName = FileNameFromContentDisposition(
+      connection.getHeaderField("content-disposition"));
+    File fragment = null;
+    if (fileName != null) {
+      fragment = new File(dir, fileName);
+    } else { // no name was suggested
+      // invent a name
+      fragment = new File(dir, Graph.FragmentId(transcriptId, startOffset, endOffset) + ".wav");
+    }
+    tempFiles.reserve(fragment, connection.getContentLengthLong());
+    download.save(connection, fragment);
+    tempFiles.charge(fragment);
+    if (fragmentCache != null) fragmentCache.put(key, transcriptId, fragment);
+    return fragment;
+  } // end of getSoundFragment()
+
   /**
    * Get transcript fragments in a specified format.
    * <p> This utility method translates a {@link Match} array of the kind returned by 
@@ -2901,7 +3607,8 @@ public class LabbcatView implements GraphStoreQuery {
    * folder.  If specified, and the directory doesn't exist, it will be created. 
    * @return A list of files. If <var>dir</var> is null, these files will be stored under the
    * system's temporary directory, so once processing is finished, they should be deleted
-   * by the caller, or moved to a more permanent location. 
+   * by the caller, or moved to a more permanent location. If <var>dir</var> is null, the
+   * files are also tracked by {@link #getTempFiles()}.
    * @throws IOException If a communications error occurs.
    * @throws StoreException If the server returns an error.
    */
@@ -2936,9 +3643,11 @@ public class LabbcatView implements GraphStoreQuery {
    * folder.  If specified, and the directory doesn't exist, it will be created. 
    * @return A list of files. If <var>dir</var> is null, these files will be stored under the
    * system's temporary directory, so once processing is finished, they should be deleted
-   * by the caller, or moved to a more permanent location. 
+   * by the caller, or moved to a more permanent location. If <var>dir</var> is null, the
+   * files are also tracked by {@link #getTempFiles()}.
    * @throws IOException If a communications error occurs.
    * @throws StoreException If the server returns an error.
+   * @see TranscriptFragmentExtractor
    */
   public File[] getFragments(
     String[] transcriptIds, Double[] startOffsets, Double[] endOffsets, String[] layerIds,
@@ -2952,59 +3661,119 @@ public class LabbcatView implements GraphStoreQuery {
     }
     File[] fragments = new File[transcriptIds.length];
       
-    boolean tempFiles = false;
     if (dir == null) {
-      dir = File.createTempFile("getFragments_", "_frag");
-      dir.delete();
-      dir.mkdir();
-      dir.deleteOnExit();
-      tempFiles = true;
+      dir = tempFiles.createTempDirectory("getFragments_");
     } else {
       if (!dir.exists()) Files.createDirectory(dir.toPath());
     }
 
+    if (coalescer != null) {
+      // fetch identical intervals once
+      for (IntervalCoalescer.Group group
+             : coalescer.coalesce(transcriptIds, startOffsets, endOffsets, false)) {
+        if (cancelling) break;
+        IntervalCoalescer.Interval interval = group.intervals.get(0);
+        File fragment = getFragment(
+          group.transcriptId, interval.start, interval.end, layerIds, mimeType, dir);
+        for (int i : interval.indices) fragments[i] = fragment;
+      } // next group
+      if (verbose) System.out.println("getFragments: " + coalescer);
+      return fragments;
+    }
+
     // loop through each triple, getting fragments individually
     for (int i = 0; i < transcriptIds.length; i++) {
       if (cancelling) break;
       if (transcriptIds[i] == null || startOffsets[i] == null || endOffsets[i] == null) continue;
-
-      URL url = makeUrl("api/serialize/fragment");
-      HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization())
-        .setUserAgent()
-        .setHeader("Accept", mimeType)
-        .setParameter("id", transcriptIds[i])
-        .setParameter("start", startOffsets[i])
-        .setParameter("end", endOffsets[i])
-        .setParameter("mimeType", mimeType)
-        .setParameter("layerId", layerIds);
-      if (verbose) System.out.println("getFragments -> " + request);
-      HttpURLConnection connection = request.get();
-      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-        if (connection.getResponseCode() != HttpURLConnection.HTTP_NOT_FOUND) {
-          System.err.println(
-            "getFragments: Error " + connection.getResponseCode()
-            + " " + connection.getResponseMessage() + " - " + request);
-        } 
-        continue;
-      } else {
-        // use the name given by the server, if any
-        String fileName = FileNameFromContentDisposition(
-          connection.getHeaderField("content-disposition"));        
-        if (fileName != null) {
-          fragments[i] = new File(dir, fileName);
-        } else { // no name was suggested
-          // invent a name
-          fragments[i] = new File(
-            dir, Graph.FragmentId(transcriptIds[i], startOffsets[i], endOffsets[i]) + ".wav");
-        }
-        if (tempFiles) fragments[i].deleteOnExit();
-        IO.SaveUrlConnectionToFile(connection, fragments[i]);           
-      } // response ok
+      fragments[i] = getFragment(
+        transcriptIds[i], startOffsets[i], endOffsets[i], layerIds, mimeType, dir);
     } // next triple
 
     return fragments;
   } // end of getFragments()
 
+  /**
+   * Downloads a single transcript fragment in a specified format.
+   * @param transcriptId The transcript ID (transcript name).
+   * @param startOffset The start offset.
+   * @param endOffset The end offset.
+   * @param layerIds A list of IDs of annotation layers to include in the fragment.
+   * @param mimeType The desired format.
+   * @param dir The directory in which the file should be stored.
+   * @return The file, or null if the fragment could not be downloaded.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  protected File getFragment(
+    String transcriptId, double startOffset, double endOffset, String[] layerIds,
+    String mimeType, File dir)
+    throws IOException, StoreException {
+    String key = null;
+    if (fragmentCache != null) {
+      key = FragmentCache.Key(transcriptId, startOffset, endOffset, mimeType, layerIds);
+      File cached = fragmentCache.get(key, dir);
+      if (cached != null) return cached;
+    }
+    URL url = makeUrl("api/serialize/fragment");
+    HttpRequestGet request = new HttpRequestGet(url, getRequiredHttpAuthorization())
+      .setUserAgent()
+      .setHeader("Accept", mimeType)
+      .setParameter("id", transcriptId)
+      .setParameter("start", startOffset)
+      .setParameter("end", endOffset)
+      .setParameter("mimeType", mimeType)
+      .setParameter("layerId", layerIds);
+    if (verbose) System.out.println("getFragments -> " + request);
+    HttpURLConnection connection = request.get();
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+        System.err.println(
+          "getFragments: Error " + connection.getResponseCode()
+          + " " + connection.getResponseMessage() + " - " + request);
+      } 
+      return null;
+    }
+    // use the name given by the server, if any
+    String fileName = FileNameFromContentDisposition(
+      connection.getHeaderField("content-disposition"));
+    File fragment = null;
+    if (fileName != null) {
+      fragment = new File(dir, fileName);
+    } else { // no name was suggested
+      // invent a name
+      fragment = new File(dir, Graph.FragmentId(transcriptId, startOffset, endOffset) + ".wav");
+    }
+    tempFiles.reserve(fragment, connection.getContentLengthLong());
+    download.save(connection, fragment);
+    tempFiles.charge(fragment);
+    if (fragmentCache != null) fragmentCache.put(key, transcriptId, fragment);
+    return fragment;
+  } // end of getFragment()
+
+  /**
+   * Called when a transcript has been changed (e.g. by {@link LabbcatEdit}) so that any
+   * cached data about it is discarded.
+   * @param transcriptId The ID of the transcript that has changed.
+   */
+  protected void transcriptChanged(String transcriptId) {
+    if (transcriptId == null) return;
+    if (fragmentCache != null) fragmentCache.invalidate(transcriptId);
+    if (transcriptCache != null) transcriptCache.invalidate(transcriptId);
+    if (corpusIndex != null) corpusIndex.transcriptChanged(transcriptId);
+    if (searchCache != null) searchCache.clear(); // any search may have different results
+  } // end of transcriptChanged()
+
+  /**
+   * Called when annotations or participants in any number of unknown transcripts may have
+   * changed (e.g. by {@link LabbcatEdit#tagMatchingAnnotations(String,String,String,Integer)})
+   * so that all cached transcripts, fragments, and search results are discarded.
+   */
+  protected void annotationsChanged() {
+    if (fragmentCache != null) fragmentCache.clear();
+    if (transcriptCache != null) transcriptCache.clear();
+    if (searchCache != null) searchCache.clear();
+  } // end of annotationsChanged()
+
   /**
    * Executes Praat on the server in order to perform acoustic analysis on a given
    * collection of sound fragments. 
@@ -3110,51 +3879,31 @@ public class LabbcatView implements GraphStoreQuery {
         +"), and endOffsets ("+endOffsets.length+") must be arrays of equal size.");
     }
 
-    // write the IDs to a temporary file for upload
-    File csvUpload = File.createTempFile("processWithPraat_",".csv");
-    try {
-      csvUpload.deleteOnExit();
-      PrintWriter csvOut = new PrintWriter(csvUpload, "UTF-8");
-      csvOut.print("Transcript,Participant,StartOffset,EndOffset");
-      for (int i = 0; i < transcriptIds.length; i++) {
-        csvOut.println();      
-        csvOut.print(transcriptIds[i]);
-        csvOut.print(",");
-        csvOut.print(participantIds[i]);
-        csvOut.print(",");
-        csvOut.print(startOffsets[i]);
-        csvOut.print(",");
-        csvOut.print(endOffsets[i]);
-      }
-      csvOut.close();
-      if (verbose) System.out.println("matchIds written to: " + csvUpload.getPath());
-      
-      URL url = makeUrl("api/praat");
-      postRequest = new HttpRequestPostMultipart(url, getRequiredHttpAuthorization())
-        .setUserAgent()
-        .setHeader("Accept", "application/json");
-      if (attributes != null && attributes.length > 0) {
-        postRequest.setParameter("attributes", attributes);
-      }
-      postRequest.setParameter("transcriptColumn", "0")
-        .setParameter("participantColumn", "1")
-        .setParameter("startTimeColumn", "2")
-        .setParameter("endTimeColumn", "3")
-        .setParameter(
-          "windowOffset", Optional.ofNullable(windowOffset).orElse(Double.valueOf(0)).toString())
-        .setParameter("script", script)
-        .setParameter("passThroughData", "false")
-        .setParameter("csv", csvUpload);
-      if (verbose) System.out.println("processWithPraat -> " + postRequest);
-      response = new Response(postRequest.post(), verbose);
-      response.checkForErrors(); // throws a ResponseException on error
-      
-      // extract the threadId from model.threadId
-      JsonObject model = (JsonObject)response.getModel();
-      return ""+model.getInt("threadId");
-    } finally {
-      csvUpload.delete();
+    URL url = makeUrl("api/praat");
+    postRequest = new HttpRequestPostMultipart(url, getRequiredHttpAuthorization())
+      .setUserAgent()
+      .setHeader("Accept", "application/json");
+    if (attributes != null && attributes.length > 0) {
+      postRequest.setParameter("attributes", attributes);
     }
+    postRequest.setParameter("transcriptColumn", "0")
+      .setParameter("participantColumn", "1")
+      .setParameter("startTimeColumn", "2")
+      .setParameter("endTimeColumn", "3")
+      .setParameter(
+        "windowOffset", Optional.ofNullable(windowOffset).orElse(Double.valueOf(0)).toString())
+      .setParameter("script", script)
+      .setParameter("passThroughData", "false")
+      .setParameter(
+        "csv", "processWithPraat.csv",
+        intervalsCsvPart(transcriptIds, participantIds, startOffsets, endOffsets));
+    if (verbose) System.out.println("processWithPraat -> " + postRequest);
+    response = new Response(postRequest.post(), verbose);
+    response.checkForErrors(); // throws a ResponseException on error
+    
+    // extract the threadId from model.threadId
+    JsonObject model = (JsonObject)response.getModel();
+    return ""+model.getInt("threadId");
   } // end of processWithPraat()
 
   /**
@@ -3226,48 +3975,28 @@ public class LabbcatView implements GraphStoreQuery {
         +"), and endOffsets ("+endOffsets.length+") must be arrays of equal size.");
     }
 
-    // write the IDs to a temporary file for upload
-    File csvUpload = File.createTempFile("intervalAnnotations_",".csv");
-    try {
-      csvUpload.deleteOnExit();
-      PrintWriter csvOut = new PrintWriter(csvUpload, "UTF-8");
-      csvOut.print("Transcript,Participant,StartOffset,EndOffset");
-      for (int i = 0; i < transcriptIds.length; i++) {
-        csvOut.println();      
-        csvOut.print(transcriptIds[i]);
-        csvOut.print(",");
-        csvOut.print(participantIds[i]);
-        csvOut.print(",");
-        csvOut.print(startOffsets[i]);
-        csvOut.print(",");
-        csvOut.print(endOffsets[i]);
-      }
-      csvOut.close();
-      if (verbose) System.out.println("matchIds written to: " + csvUpload.getPath());
-      
-      URL url = makeUrl("api/annotation/intervals");
-      postRequest = new HttpRequestPostMultipart(url, getRequiredHttpAuthorization())
-        .setUserAgent()
-        .setHeader("Accept", "application/json");
-      postRequest.setParameter("transcriptColumn", "0")
-        .setParameter("participantColumn", "1")
-        .setParameter("startTimeColumn", "2")
-        .setParameter("endTimeColumn", "3")
-        .setParameter("layerId", layerIds)
-        .setParameter("passThroughData", "false")
-        .setParameter("labelDelimiter", labelDelimiter)
-        .setParameter("containment", partialContainment?"partial":"entire")
-        .setParameter("csv", csvUpload);
-      if (verbose) System.out.println("intervalAnnotations -> " + postRequest);
-      response = new Response(postRequest.post(), verbose);
-      response.checkForErrors(); // throws a ResponseException on error
-      
-      // extract the threadId from model.threadId
-      JsonObject model = (JsonObject)response.getModel();
-      return ""+model.getInt("threadId");
-    } finally {
-      csvUpload.delete();
-    }
+    URL url = makeUrl("api/annotation/intervals");
+    postRequest = new HttpRequestPostMultipart(url, getRequiredHttpAuthorization())
+      .setUserAgent()
+      .setHeader("Accept", "application/json");
+    postRequest.setParameter("transcriptColumn", "0")
+      .setParameter("participantColumn", "1")
+      .setParameter("startTimeColumn", "2")
+      .setParameter("endTimeColumn", "3")
+      .setParameter("layerId", layerIds)
+      .setParameter("passThroughData", "false")
+      .setParameter("labelDelimiter", labelDelimiter)
+      .setParameter("containment", partialContainment?"partial":"entire")
+      .setParameter(
+        "csv", "intervalAnnotations.csv",
+        intervalsCsvPart(transcriptIds, participantIds, startOffsets, endOffsets));
+    if (verbose) System.out.println("intervalAnnotations -> " + postRequest);
+    response = new Response(postRequest.post(), verbose);
+    response.checkForErrors(); // throws a ResponseException on error
+    
+    // extract the threadId from model.threadId
+    JsonObject model = (JsonObject)response.getModel();
+    return ""+model.getInt("threadId");
   } // end of intervalAnnotations()
 
   /**
@@ -3279,7 +4008,8 @@ public class LabbcatView implements GraphStoreQuery {
    *  layer.getParentId().equals("graph") &amp;&amp; layer.getAlignment() == 0, 
    * which includes "corpus" as well as transcript attribute layers. 
    * @return A CSV file with the attribute values, which it is the caller's
-   * responsibility to delete once processing is finished.
+   * responsibility to delete once processing is finished (e.g. using
+   * {@link TempFiles#release(File) getTempFiles().release(file)}).
    * @throws IOException If a communications error occurs.
    * @throws StoreException If the server returns an error.
    */
@@ -3301,8 +4031,7 @@ public class LabbcatView implements GraphStoreQuery {
     }
       
     // use the name given by the server, if any
-    File csv = File.createTempFile("getTranscriptAttributes_",".csv");
-    csv.deleteOnExit();
+    File csv = tempFiles.createTempFile("getTranscriptAttributes_",".csv");
     IO.SaveUrlConnectionToFile(connection, csv);
     return csv;
   }
@@ -3315,7 +4044,8 @@ public class LabbcatView implements GraphStoreQuery {
    * any layer where 
    *  layer.getParentId().equals("parent") &amp;&amp; layer.getAlignment() == 0. 
    * @return A CSV file with the attribute values, which it is the caller's
-   * responsibility to delete once processing is finished.
+   * responsibility to delete once processing is finished (e.g. using
+   * {@link TempFiles#release(File) getTempFiles().release(file)}).
    * @throws IOException If a communications error occurs.
    * @throws StoreException If the server returns an error.
    */
@@ -3350,8 +4080,7 @@ public class LabbcatView implements GraphStoreQuery {
     }
       
     // use the name given by the server, if any
-    File csv = File.createTempFile("getParticipantAttributes_",".csv");
-    csv.deleteOnExit();
+    File csv = tempFiles.createTempFile("getParticipantAttributes_",".csv");
     IO.SaveUrlConnectionToFile(connection, csv);
     return csv;
   }
@@ -3624,24 +4353,13 @@ public class LabbcatView implements GraphStoreQuery {
    * @param dictionaryId The ID of the dictionary.
    * @param keys The keys to fetch entries for.
    * @return A CSV file with the entries, which it is the caller's
-   * responsibility to delete once processing is finished.
+   * responsibility to delete once processing is finished (e.g. using
+   * {@link TempFiles#release(File) getTempFiles().release(file)}).
    * @throws StoreException If an error prevents the operation.
    */
   public File getDictionaryEntries(
     String managerId, String dictionaryId, String[] keys) throws StoreException {
     
-    // save keys to file
-    File uploadfile = null;
-    try {
-      uploadfile = File.createTempFile("getDictionaryEntries_",".csv");
-      PrintWriter csv = new PrintWriter(uploadfile);
-      csv.println("Word"); // header row
-      for (String key : keys) csv.println(key);
-      csv.close();
-    } catch(IOException x) {
-      throw new StoreException("Could not save keys to local file.", x);
-    }
-    
     URL url = makeUrl("api/dictionary");
     try {
       // test whether it's there or not, it is a newer endpoint
@@ -3657,7 +4375,10 @@ public class LabbcatView implements GraphStoreQuery {
         .setParameter("managerId", managerId)
         .setParameter("dictionaryId", dictionaryId)
         .setParameter("wordColumn", 0)
-        .setParameter("uploadfile", uploadfile);
+        .setParameter( // keys are streamed directly into the request
+          "uploadfile", "getDictionaryEntries.csv",
+          csvPart(new String[]{"Word"}, Arrays.asList(keys).iterator(),
+                  key -> new Object[]{ key }));
       if (verbose) System.out.println("getDictionaryEntries -> " + postRequest);
       connection = postRequest.post();
       if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
@@ -3666,8 +4387,7 @@ public class LabbcatView implements GraphStoreQuery {
       }
       
       // use the name given by the server, if any
-      File csv = File.createTempFile("getTranscriptAttributes_",".csv");
-      csv.deleteOnExit();
+      File csv = tempFiles.createTempFile("getDictionaryEntries_",".csv");
       IO.SaveUrlConnectionToFile(connection, csv);
       return csv;
     } catch (IOException x) {
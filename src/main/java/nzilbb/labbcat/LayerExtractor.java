@@ -0,0 +1,426 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import nzilbb.ag.Annotation;
+import nzilbb.ag.GraphNotFoundException;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.StoreException;
+import nzilbb.util.MonitorableTask;
+
+/**
+ * Extracts all the annotations on one layer, from many transcripts.
+ * <p> This first uses {@link LabbcatView#countAnnotations(String,String,Integer)} to find
+ * out how many annotations each transcript has, and so how many pages of
+ * {@link #getPageLength()} annotations are required. Pages are then fetched
+ * with {@link LabbcatView#getAnnotations(String,String,Integer,Integer,Integer)} by
+ * {@link #getThreads()} threads at once, regardless of which transcript they're from, and
+ * delivered to the consumer in transcript and page order.
+ * <p> At most {@link #getMaxBufferedPages()} pages are fetched ahead of the consumer,
+ * so memory use is bounded however large the corpus is.
+ * <p> Progress can be monitored from another thread using {@link #getPercentComplete()}
+ * and {@link #getStatus()}, and the extraction can be stopped with {@link #cancel()}.
+ * <p> e.g.
+ * <pre> try (Writer tsv = new FileWriter("orthography.tsv")) {
+ *   new LayerExtractor(labbcat, "orthography")
+ *     .setThreads(4)
+ *     .extract(labbcat.getTranscriptIds(), tsv);
+ * }</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class LayerExtractor implements MonitorableTask {
+
+  // Attributes:
+
+  /**
+   * The client to get annotations from.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to get annotations from.
+   * @return The client to get annotations from.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /**
+   * The ID of the layer to extract.
+   * @see #getLayerId()
+   */
+  protected String layerId;
+  /**
+   * Getter for {@link #layerId}: The ID of the layer to extract.
+   * @return The ID of the layer to extract.
+   */
+  public String getLayerId() { return layerId; }
+
+  /**
+   * The maximum ordinal of extracted annotations, or null for all annotations.
+   * @see #getMaxOrdinal()
+   * @see #setMaxOrdinal(Integer)
+   */
+  protected Integer maxOrdinal;
+  /**
+   * Getter for {@link #maxOrdinal}: The maximum ordinal of extracted annotations, or
+   * null for all annotations.
+   * @return The maximum ordinal of extracted annotations.
+   */
+  public Integer getMaxOrdinal() { return maxOrdinal; }
+  /**
+   * Setter for {@link #maxOrdinal}: The maximum ordinal of extracted annotations, or
+   * null for all annotations. e.g. 1 extracts only the first annotation for each parent.
+   * @param newMaxOrdinal The maximum ordinal of extracted annotations.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LayerExtractor setMaxOrdinal(Integer newMaxOrdinal) { maxOrdinal = newMaxOrdinal; return this; }
+
+  /**
+   * The maximum number of annotations to get per request. Default is 1000.
+   * @see #getPageLength()
+   * @see #setPageLength(int)
+   */
+  protected int pageLength = 1000;
+  /**
+   * Getter for {@link #pageLength}: The maximum number of annotations to get per request.
+   * @return The maximum number of annotations to get per request.
+   */
+  public int getPageLength() { return pageLength; }
+  /**
+   * Setter for {@link #pageLength}: The maximum number of annotations to get per request.
+   * @param newPageLength The maximum number of annotations to get per request.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LayerExtractor setPageLength(int newPageLength) { pageLength = Math.max(1, newPageLength); return this; }
+
+  /**
+   * The number of requests to make at once. Default is 4.
+   * @see #getThreads()
+   * @see #setThreads(int)
+   */
+  protected int threads = 4;
+  /**
+   * Getter for {@link #threads}: The number of requests to make at once.
+   * @return The number of requests to make at once.
+   */
+  public int getThreads() { return threads; }
+  /**
+   * Setter for {@link #threads}: The number of requests to make at once.
+   * @param newThreads The number of requests to make at once.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LayerExtractor setThreads(int newThreads) { threads = Math.max(1, newThreads); return this; }
+
+  /**
+   * The maximum number of pages fetched but not yet delivered. Default is 8.
+   * @see #getMaxBufferedPages()
+   * @see #setMaxBufferedPages(int)
+   */
+  protected int maxBufferedPages = 8;
+  /**
+   * Getter for {@link #maxBufferedPages}: The maximum number of pages fetched but not
+   * yet delivered.
+   * @return The maximum number of pages fetched but not yet delivered.
+   */
+  public int getMaxBufferedPages() { return maxBufferedPages; }
+  /**
+   * Setter for {@link #maxBufferedPages}: The maximum number of pages fetched but not
+   * yet delivered.
+   * @param newMaxBufferedPages The maximum number of pages fetched but not yet delivered.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LayerExtractor setMaxBufferedPages(int newMaxBufferedPages) { maxBufferedPages = Math.max(1, newMaxBufferedPages); return this; }
+
+  /**
+   * Print verbose output.
+   * @see #getVerbose()
+   * @see #setVerbose(boolean)
+   */
+  protected boolean verbose = false;
+  /**
+   * Getter for {@link #verbose}: Print verbose output.
+   * @return Print verbose output.
+   */
+  public boolean getVerbose() { return verbose; }
+  /**
+   * Setter for {@link #verbose}: Print verbose output.
+   * @param newVerbose Print verbose output.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public LayerExtractor setVerbose(boolean newVerbose) { verbose = newVerbose; return this; }
+
+  /**
+   * The total number of annotations to extract, once known.
+   * @see #getTotal()
+   */
+  protected volatile long total = 0;
+  /**
+   * Getter for {@link #total}: The total number of annotations to extract, once known.
+   * @return The total number of annotations to extract.
+   */
+  public long getTotal() { return total; }
+
+  /**
+   * The number of annotations delivered so far.
+   * @see #getDelivered()
+   */
+  protected volatile long delivered = 0;
+  /**
+   * Getter for {@link #delivered}: The number of annotations delivered so far.
+   * @return The number of annotations delivered so far.
+   */
+  public long getDelivered() { return delivered; }
+
+  /**
+   * Whether an extraction is running.
+   * @see #getRunning()
+   */
+  protected volatile boolean running = false;
+  /**
+   * Getter for {@link #running}: Whether an extraction is running.
+   * @return Whether an extraction is running.
+   */
+  public boolean getRunning() { return running; }
+
+  /** Whether the extraction has been cancelled. */
+  protected volatile boolean cancelling = false;
+
+  /** The current status. */
+  protected volatile String status = "";
+
+  // Methods:
+
+  /**
+   * Constructor.
+   * @param labbcat The client to get annotations from.
+   * @param layerId The ID of the layer to extract.
+   */
+  public LayerExtractor(LabbcatView labbcat, String layerId) {
+    this.labbcat = labbcat;
+    this.layerId = layerId;
+  } // end of constructor
+
+  /**
+   * Extracts annotations from the transcripts that match a particular pattern.
+   * @param expression An expression that determines which transcripts match, as for
+   * {@link LabbcatView#getMatchingTranscriptIds(String,Integer,Integer,String)}.
+   * @param consumer Receives the transcript ID and each annotation.
+   * @return The number of annotations delivered.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public long extractMatching(String expression, BiConsumer<String,Annotation> consumer)
+    throws StoreException, PermissionException {
+    String[] ids = labbcat.getMatchingTranscriptIds(expression, null, null, null);
+    return extract(ids == null? new String[0] : ids, consumer);
+  } // end of extractMatching()
+
+  /**
+   * Extracts annotations from the given transcripts, writing them as tab-separated
+   * values, with a header row and the columns: transcript, id, label, startId, endId,
+   * parent, ordinal. The startId and endId columns contain anchor IDs, not offsets. Tabs
+   * and line breaks in labels are escaped as <tt>\t</tt>, <tt>\n</tt>, and <tt>\r</tt>,
+   * and backslashes as <tt>\\</tt>.
+   * @param ids The IDs of the transcripts.
+   * @param writer The destination for the annotations. This is not closed.
+   * @return The number of annotations written.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public long extract(String[] ids, Writer writer)
+    throws StoreException, PermissionException {
+    try {
+      writer.write("transcript\tid\tlabel\tstartId\tendId\tparent\tordinal\n");
+      long count = extract(ids, (transcriptId, annotation) -> {
+          try {
+            writer.write(escape(transcriptId));
+            writer.write('\t');
+            writer.write(escape(annotation.getId()));
+            writer.write('\t');
+            writer.write(escape(annotation.getLabel()));
+            writer.write('\t');
+            writer.write(escape(annotation.getStartId()));
+            writer.write('\t');
+            writer.write(escape(annotation.getEndId()));
+            writer.write('\t');
+            writer.write(escape(annotation.getParentId()));
+            writer.write('\t');
+            writer.write(String.valueOf(annotation.getOrdinal()));
+            writer.write('\n');
+          } catch(IOException x) {
+            throw new UncheckedIOException(x);
+          }
+        });
+      writer.flush();
+      return count;
+    } catch(IOException x) {
+      throw new StoreException("Could not write annotations.", x);
+    } catch(UncheckedIOException x) {
+      throw new StoreException("Could not write annotations.", x.getCause());
+    }
+  } // end of extract()
+
+  /**
+   * Escapes a tab-separated value.
+   * @param value The value, which may be null.
+   * @return The escaped value, or an empty string if <var>value</var> is null.
+   */
+  protected static String escape(String value) {
+    if (value == null) return "";
+    return value.replace("\\", "\\\\").replace("\t", "\\t")
+      .replace("\n", "\\n").replace("\r", "\\r");
+  } // end of escape()
+
+  /**
+   * Extracts annotations from the given transcripts.
+   * <p> Annotations are delivered on the calling thread, in the order of <var>ids</var>.
+   * Transcripts that don't exist are skipped.
+   * @param ids The IDs of the transcripts.
+   * @param consumer Receives the transcript ID and each annotation.
+   * @return The number of annotations delivered.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public long extract(String[] ids, BiConsumer<String,Annotation> consumer)
+    throws StoreException, PermissionException {
+    running = true;
+    cancelling = false;
+    total = 0;
+    delivered = 0;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      // plan pages
+      status = "Counting annotations in " + ids.length + " transcripts";
+      if (verbose) System.out.println(status);
+      Vector<Future<Long>> counts = new Vector<Future<Long>>();
+      for (String id : ids) {
+        counts.add(pool.submit(() -> {
+              try {
+                return labbcat.countAnnotations(id, layerId, maxOrdinal);
+              } catch(GraphNotFoundException x) {
+                return 0L;
+              }
+            }));
+      } // next transcript
+      Vector<String> pageTranscripts = new Vector<String>();
+      Vector<Integer> pageNumbers = new Vector<Integer>();
+      for (int t = 0; t < ids.length; t++) {
+        long count = get(counts.get(t));
+        total += count;
+        for (int p = 0; p * (long)pageLength < count; p++) {
+          pageTranscripts.add(ids[t]);
+          pageNumbers.add(p);
+        }
+      } // next transcript
+      if (cancelling) return delivered;
+      status = "Extracting " + total + " annotations in " + pageNumbers.size() + " pages";
+      if (verbose) System.out.println(status);
+
+      // fetch pages, keeping no more than maxBufferedPages ahead of the consumer
+      ArrayDeque<Future<Annotation[]>> pages = new ArrayDeque<Future<Annotation[]>>();
+      int next = 0;
+      for (int p = 0; p < pageNumbers.size() && !cancelling; p++) {
+        while (next < pageNumbers.size() && pages.size() < maxBufferedPages) {
+          final String id = pageTranscripts.get(next);
+          final Integer pageNumber = pageNumbers.get(next);
+          pages.add(pool.submit(() -> {
+                try {
+                  return labbcat.getAnnotations(id, layerId, maxOrdinal, pageLength, pageNumber);
+                } catch(GraphNotFoundException x) { // deleted since it was counted
+                  return new Annotation[0];
+                }
+              }));
+          next++;
+        } // next page to submit
+        Annotation[] annotations = get(pages.poll());
+        if (annotations == null) continue;
+        String id = pageTranscripts.get(p);
+        for (Annotation annotation : annotations) {
+          consumer.accept(id, annotation);
+          delivered++;
+        }
+      } // next page
+      status = cancelling? "Cancelled" : "Extracted " + delivered + " annotations";
+      if (verbose) System.out.println(status);
+      return delivered;
+    } finally {
+      pool.shutdownNow();
+      running = false;
+    }
+  } // end of extract()
+
+  /**
+   * Gets the result of a request, unwrapping any exception it threw.
+   * @param <T> The type of result.
+   * @param future The request.
+   * @return The result.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  protected <T> T get(Future<T> future) throws StoreException, PermissionException {
+    try {
+      return future.get();
+    } catch(InterruptedException x) {
+      throw new StoreException("Interrupted", x);
+    } catch(ExecutionException x) {
+      Throwable cause = x.getCause();
+      if (cause instanceof StoreException) throw (StoreException)cause;
+      if (cause instanceof PermissionException) throw (PermissionException)cause;
+      throw new StoreException("Could not get annotations.", cause);
+    }
+  } // end of get()
+
+  /**
+   * The percentage of annotations delivered so far.
+   * @return The percentage of annotations delivered, or null if the total isn't yet
+   * known.
+   */
+  @Override public Integer getPercentComplete() {
+    if (total == 0) return running? null : 100;
+    return (int)(delivered * 100 / total);
+  } // end of getPercentComplete()
+
+  /**
+   * Stops the extraction. Pages already fetched are not delivered.
+   */
+  @Override public void cancel() {
+    cancelling = true;
+  } // end of cancel()
+
+  /**
+   * A description of what the extractor is currently doing.
+   * @return The current status.
+   */
+  @Override public String getStatus() {
+    return status;
+  } // end of getStatus()
+
+} // end of class LayerExtractor
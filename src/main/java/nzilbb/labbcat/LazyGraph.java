@@ -0,0 +1,433 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import nzilbb.ag.Anchor;
+import nzilbb.ag.Annotation;
+import nzilbb.ag.Graph;
+import nzilbb.ag.GraphNotFoundException;
+import nzilbb.ag.Layer;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.Schema;
+import nzilbb.ag.StoreException;
+
+/**
+ * A transcript whose layers are loaded from the server the first time they're accessed.
+ * <p> A LazyGraph starts with a skeleton transcript, containing its anchors and the
+ * layers that were originally requested (and their ancestors). When a layer that hasn't been loaded is
+ * accessed through the graph - e.g. with {@link #all(String)}, {@link #first(String)},
+ * {@link #list(String)}, etc. - its annotations (and those of any ancestor layers that
+ * haven't been loaded) are fetched and merged into the graph before the call returns.
+ * <p> A single layer is fetched with
+ * {@link LabbcatView#getAnnotations(String,String,Integer,Integer,Integer)} (and
+ * {@link LabbcatView#getAnchors(String,String[])} for any anchors the graph doesn't already
+ * have). If other threads access different unloaded layers while a fetch is in progress,
+ * their layers are batched and fetched together with a single
+ * {@link LabbcatView#getTranscript(String,String[])} call once the current fetch has
+ * finished.
+ * <p> Only accesses through the graph itself trigger loading. Navigating from one
+ * annotation to another (e.g. <tt>word.all("segment")</tt> or
+ * <tt>segment.first("word")</tt>) bypasses lazy loading, and silently finds nothing on
+ * layers that haven't been loaded yet, so the required layers should first be loaded
+ * with {@link #load(String...)}.
+ * <p> e.g.
+ * <pre> labbcat.setLazyTranscripts(true);
+ * Graph transcript = labbcat.getTranscript(id, new String[] { "word" });
+ * // segments are fetched here:
+ * Annotation[] segments = transcript.all("segment");</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class LazyGraph extends Graph {
+
+  // Attributes:
+
+  /**
+   * The client to load layers from.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to load layers from.
+   * @return The client to load layers from.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /** IDs of layers that have been loaded. */
+  private final Set<String> loadedLayerIds
+  = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+  /** IDs of layers that threads are waiting for. */
+  private final Set<String> pendingLayerIds = new LinkedHashSet<String>();
+
+  /** Held by the thread that's fetching layers from the server. */
+  private final Object fetchLock = new Object();
+
+  /** Merges hold the write lock; accessors hold the read lock. */
+  private final ReentrantReadWriteLock mergeLock = new ReentrantReadWriteLock();
+
+  /** Number of times layers have been fetched from the server. */
+  private final AtomicLong fetches = new AtomicLong();
+  /**
+   * Number of times layers have been fetched from the server.
+   * @return Number of times layers have been fetched from the server.
+   */
+  public long getFetches() { return fetches.get(); }
+
+  // Methods:
+
+  /**
+   * Constructor. The contents of <var>skeleton</var> are copied into the new graph.
+   * @param labbcat The client to load layers from.
+   * @param skeleton The transcript as initially loaded.
+   * @param layerIds The IDs of the layers that have been loaded into <var>skeleton</var>,
+   * or null if only transcript data has been loaded.
+   */
+  public LazyGraph(LabbcatView labbcat, Graph skeleton, String[] layerIds) {
+    this.labbcat = labbcat;
+    setId(skeleton.getId());
+    put("corpus", skeleton.get("corpus")); // (getCorpus/setCorpus are deprecated)
+    setOffsetUnits(skeleton.getOffsetUnits());
+    setOffsetGranularity(skeleton.getOffsetGranularity());
+    setMediaProvider(skeleton.getMediaProvider());
+    setSchema(skeleton.getSchema());
+    Schema schema = getSchema();
+    if (schema.getRoot() != null) loadedLayerIds.add(schema.getRoot().getId());
+    if (layerIds != null) {
+      for (String layerId : layerIds) {
+        // the server includes ancestor layers, so that annotations have their parents
+        Layer layer = schema.getLayer(layerId);
+        while (layer != null) {
+          loadedLayerIds.add(layer.getId());
+          layer = layer.getParent();
+        }
+      } // next layer
+    }
+    merge(skeleton, null);
+  } // end of constructor
+
+  /**
+   * Determines whether the given layer has been loaded.
+   * @param layerId The layer ID.
+   * @return true if the layer's annotations are in the graph, false otherwise.
+   */
+  public boolean isLoaded(String layerId) {
+    return loadedLayerIds.contains(layerId);
+  } // end of isLoaded()
+
+  /**
+   * Ensures the given layers are loaded, fetching them from the server if necessary.
+   * @param layerIds The IDs of the layers to load.
+   * @return A reference to this object.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @throws GraphNotFoundException If the transcript is no longer in the store.
+   */
+  public LazyGraph load(String... layerIds)
+    throws StoreException, PermissionException, GraphNotFoundException {
+    Set<String> required = new LinkedHashSet<String>();
+    for (String layerId : layerIds) {
+      // ancestors first, so that parents are present when children are added
+      Vector<String> lineage = new Vector<String>();
+      Layer layer = getSchema().getLayer(layerId);
+      while (layer != null && !loadedLayerIds.contains(layer.getId())) {
+        lineage.add(0, layer.getId());
+        layer = layer.getParent();
+      } // next ancestor
+      required.addAll(lineage);
+    } // next layer
+    if (required.size() == 0) return this;
+    synchronized (pendingLayerIds) {
+      pendingLayerIds.addAll(required);
+    }
+    synchronized (fetchLock) {
+      required.removeAll(loadedLayerIds); // another thread might have loaded them
+      if (required.size() == 0) return this;
+      // fetch our own layers, plus everything that's pending for other threads
+      // (our own layers may already have been taken from pendingLayerIds by a fetch
+      // that failed)
+      Set<String> batch = new LinkedHashSet<String>(required);
+      synchronized (pendingLayerIds) {
+        for (String layerId : pendingLayerIds) {
+          if (!loadedLayerIds.contains(layerId)) batch.add(layerId);
+        }
+        pendingLayerIds.clear();
+      }
+      try {
+        fetch(batch);
+      } catch(StoreException | PermissionException | GraphNotFoundException
+              | RuntimeException x) {
+        // put other threads' layers back, so they're not lost
+        batch.removeAll(required);
+        batch.removeAll(loadedLayerIds);
+        synchronized (pendingLayerIds) {
+          pendingLayerIds.addAll(batch);
+        }
+        throw x;
+      }
+    }
+    return this;
+  } // end of load()
+
+  /**
+   * Fetches the given layers from the server and merges them into the graph.
+   * @param layerIds The IDs of the layers to fetch, with ancestors before descendants.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @throws GraphNotFoundException If the transcript is no longer in the store.
+   */
+  protected void fetch(Set<String> layerIds)
+    throws StoreException, PermissionException, GraphNotFoundException {
+    fetches.incrementAndGet();
+    if (labbcat.getVerbose()) System.out.println("LazyGraph: " + getId() + " " + layerIds);
+    if (layerIds.size() == 1) {
+      String layerId = layerIds.iterator().next();
+      Annotation[] annotations = labbcat.getAnnotations(getId(), layerId, null, null, null);
+      if (annotations == null) annotations = new Annotation[0];
+      // get any anchors we don't already have
+      LinkedHashSet<String> missing = new LinkedHashSet<String>();
+      for (Annotation annotation : annotations) {
+        if (getAnchor(annotation.getStartId()) == null) missing.add(annotation.getStartId());
+        if (getAnchor(annotation.getEndId()) == null) missing.add(annotation.getEndId());
+      } // next annotation
+      Anchor[] anchors = missing.size() == 0? new Anchor[0]
+        : labbcat.getAnchors(getId(), missing.toArray(new String[0]));
+      mergeLock.writeLock().lock();
+      try {
+        if (anchors != null) {
+          for (Anchor anchor : anchors) {
+            if (getAnchor(anchor.getId()) == null) addAnchor(anchor);
+          }
+        }
+        for (Annotation annotation : annotations) {
+          if (getAnnotation(annotation.getId()) == null) addAnnotation(annotation);
+        }
+        loadedLayerIds.add(layerId);
+      } finally {
+        mergeLock.writeLock().unlock();
+      }
+    } else {
+      Graph graph = labbcat.loadTranscript(
+        getId(), layerIds.toArray(new String[0]), getSchema());
+      if (graph == null) throw new GraphNotFoundException(getId());
+      merge(graph, layerIds);
+    }
+  } // end of fetch()
+
+  /**
+   * Copies anchors and annotations from the given graph into this one, and marks the
+   * given layers as loaded.
+   * @param source The graph to copy from.
+   * @param layerIds The layers to mark as loaded, or null if <var>source</var> is the
+   * skeleton transcript.
+   */
+  protected void merge(Graph source, Set<String> layerIds) {
+    mergeLock.writeLock().lock();
+    try {
+      for (Anchor anchor : source.getAnchors().values()) {
+        if (getAnchor(anchor.getId()) == null) {
+          Anchor copy = new Anchor(anchor);
+          copy.setId(anchor.getId()); // the copy constructor doesn't copy the ID
+          addAnchor(copy);
+        }
+      } // next anchor
+      for (Layer layer : source.getLayersTopDown()) { // parents first
+        if (layer == source.getSchema().getRoot()) continue;
+        for (Annotation annotation : source.all(layer.getId())) {
+          if (getAnnotation(annotation.getId()) == null) {
+            Annotation copy = new Annotation(annotation);
+            copy.setId(annotation.getId()); // the copy constructor doesn't copy the ID
+            addAnnotation(copy);
+          }
+        } // next annotation
+      } // next layer
+      if (layerIds != null) loadedLayerIds.addAll(layerIds);
+    } finally {
+      mergeLock.writeLock().unlock();
+    }
+  } // end of merge()
+
+  /**
+   * Ensures the given layer is loaded, before the graph is accessed. Errors are rethrown
+   * as unchecked exceptions, as the accessors that call this don't declare them.
+   * @param layerId The layer ID.
+   */
+  protected void ensureLoaded(String layerId) {
+    if (layerId == null || loadedLayerIds.contains(layerId)) return;
+    // don't load layers from within another access or a merge, as nzilbb.ag calls
+    // accessors internally, and the required layers will already have been loaded
+    if (mergeLock.isWriteLockedByCurrentThread() || mergeLock.getReadHoldCount() > 0) return;
+    if (getSchema() == null || getSchema().getLayer(layerId) == null) return;
+    try {
+      load(layerId);
+    } catch(StoreException | PermissionException | GraphNotFoundException x) {
+      throw new RuntimeException("Could not load layer " + layerId + ": " + x.getMessage(), x);
+    }
+  } // end of ensureLoaded()
+
+  /**
+   * Gets all annotations on the given layer, loading it if necessary.
+   * @param layerId The layer ID.
+   * @return All annotations on the layer.
+   */
+  @Override public Annotation[] all(String layerId) {
+    ensureLoaded(layerId);
+    mergeLock.readLock().lock();
+    try {
+      return super.all(layerId);
+    } finally {
+      mergeLock.readLock().unlock();
+    }
+  } // end of all()
+
+  /**
+   * Gets the first annotation on the given layer, loading it if necessary.
+   * @param layerId The layer ID.
+   * @return The first annotation on the layer, or null if there are none.
+   */
+  @Override public Annotation first(String layerId) {
+    ensureLoaded(layerId);
+    mergeLock.readLock().lock();
+    try {
+      return super.first(layerId);
+    } finally {
+      mergeLock.readLock().unlock();
+    }
+  } // end of first()
+
+  /**
+   * Gets the last annotation on the given layer, loading it if necessary.
+   * @param layerId The layer ID.
+   * @return The last annotation on the layer, or null if there are none.
+   */
+  @Override public Annotation last(String layerId) {
+    ensureLoaded(layerId);
+    mergeLock.readLock().lock();
+    try {
+      return super.last(layerId);
+    } finally {
+      mergeLock.readLock().unlock();
+    }
+  } // end of last()
+
+  /**
+   * Gets the child annotations on the given layer, loading it if necessary.
+   * @param layerId The layer ID.
+   * @return The child annotations on the layer.
+   * @deprecated As for {@link Annotation#list(String)}; use {@link #all(String)} instead.
+   */
+  @Deprecated @Override public Annotation[] list(String layerId) {
+    ensureLoaded(layerId);
+    mergeLock.readLock().lock();
+    try {
+      return super.list(layerId);
+    } finally {
+      mergeLock.readLock().unlock();
+    }
+  } // end of list()
+
+  /**
+   * Gets the child annotations on the given layer, loading it if necessary.
+   * @param layerId The layer ID.
+   * @return The child annotations on the layer.
+   */
+  @Override public SortedSet<Annotation> getAnnotations(String layerId) {
+    ensureLoaded(layerId);
+    mergeLock.readLock().lock();
+    try {
+      return super.getAnnotations(layerId);
+    } finally {
+      mergeLock.readLock().unlock();
+    }
+  } // end of getAnnotations()
+
+  /**
+   * Streams annotations on the given layer, loading it if necessary.
+   * @param layerId The layer ID.
+   * @return A stream of annotations on the layer.
+   */
+  @Override public Stream<Annotation> every(String layerId) {
+    ensureLoaded(layerId);
+    return super.every(layerId);
+  } // end of every()
+
+  /**
+   * Gets the labels of annotations on the given layer, loading it if necessary.
+   * @param layerId The layer ID.
+   * @return The labels of annotations on the layer.
+   */
+  @Override public String[] labels(String layerId) {
+    ensureLoaded(layerId);
+    mergeLock.readLock().lock();
+    try {
+      return super.labels(layerId);
+    } finally {
+      mergeLock.readLock().unlock();
+    }
+  } // end of labels()
+
+  /**
+   * Gets annotations on the given layer that overlap the given offsets, loading the
+   * layer if necessary.
+   * @param start The start offset.
+   * @param end The end offset.
+   * @param layerId The layer ID.
+   * @return The overlapping annotations.
+   */
+  @Override public Annotation[] overlappingAnnotations(double start, double end, String layerId) {
+    ensureLoaded(layerId);
+    mergeLock.readLock().lock();
+    try {
+      return super.overlappingAnnotations(start, end, layerId);
+    } finally {
+      mergeLock.readLock().unlock();
+    }
+  } // end of overlappingAnnotations()
+
+  /**
+   * Gets annotations on the given layer that overlap the given anchors, loading the
+   * layer if necessary.
+   * @param start The start anchor.
+   * @param end The end anchor.
+   * @param layerId The layer ID.
+   * @return The overlapping annotations.
+   */
+  @Override public Annotation[] overlappingAnnotations(Anchor start, Anchor end, String layerId) {
+    ensureLoaded(layerId);
+    mergeLock.readLock().lock();
+    try {
+      return super.overlappingAnnotations(start, end, layerId);
+    } finally {
+      mergeLock.readLock().unlock();
+    }
+  } // end of overlappingAnnotations()
+
+  private static final long serialVersionUID = 1;
+} // end of class LazyGraph
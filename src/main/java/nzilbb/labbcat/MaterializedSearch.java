@@ -0,0 +1,534 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+import nzilbb.ag.Annotation;
+import nzilbb.ag.Graph;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.Schema;
+import nzilbb.ag.StoreException;
+import nzilbb.labbcat.model.Match;
+
+/**
+ * The results of a search, kept up to date by re-running the search only on transcripts
+ * that have been added or changed since the last refresh.
+ * <p> The first {@link #refresh()} runs the whole search. Subsequent refreshes:
+ * <ul>
+ *  <li> list the transcript IDs, to find transcripts that have been added or removed, </li>
+ *  <li> if {@link #getVersionLayerId()} is set, ask the server for transcripts whose
+ *       version is later than the latest version seen by the previous refresh, </li>
+ *  <li> discard the matches of removed and changed transcripts, and </li>
+ *  <li> re-run the search restricted to the participants of added and changed
+ *       transcripts, keeping only matches in those transcripts. </li>
+ * </ul>
+ * So apart from listing transcript IDs, the cost of a refresh depends on the number of
+ * transcripts that have changed, not the size of the corpus.
+ * <p> Searches can only be restricted by participant (or transcript type), so the
+ * restricted search includes matches in other transcripts of the same participants,
+ * which are discarded.
+ * <p> The version attribute must be one whose labels sort in the order in which they
+ * change, e.g. a last-modified date/time. Transcripts changed through a
+ * {@link LabbcatEdit} can also be flagged with {@link #transcriptChanged(String)}.
+ * <p> If {@link #getFile()} is set, the results are saved there after each refresh, and
+ * loaded from there when it's set, so that e.g. a nightly job only re-runs the search on
+ * transcripts changed since the night before.
+ * <p> e.g.
+ * <pre> MaterializedSearch search = new MaterializedSearch(
+ *   labbcat, new PatternBuilder().addMatchLayer("orthography", "the").build(),
+ *   null, null, true, null, null, null, 1)
+ *   .setFile(new File("the.json"));
+ * search.refresh();
+ * Match[] matches = search.getMatches();</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class MaterializedSearch {
+
+  // Attributes:
+
+  /** Matches, keyed by transcript ID, in the order returned by the server. */
+  protected TreeMap<String,Vector<Match>> matches = new TreeMap<String,Vector<Match>>();
+
+  /** The IDs of all transcripts at the last refresh. */
+  protected TreeSet<String> transcripts = new TreeSet<String>();
+
+  /** Transcripts flagged by {@link #transcriptChanged(String)} since the last refresh. */
+  protected HashSet<String> changed = new HashSet<String>();
+
+  /** The latest transcript version at the last refresh, or null. */
+  protected String since;
+
+  /** Key identifying the search, to check that a saved file is for the same search. */
+  protected String key;
+
+  /**
+   * The client to search with.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to search with.
+   * @return The client to search with.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /** The search pattern. */
+  protected JsonObject pattern;
+  /** Participants whose utterances are searched, or null for all. */
+  protected String[] participantIds;
+  /** Transcript types to limit the results to, or null for all. */
+  protected String[] transcriptTypes;
+  /** Whether only main-participant utterances are searched. */
+  protected boolean mainParticipantOnly;
+  /** Minimum alignment confidence, or null. */
+  protected Integer offsetThreshold;
+  /** Maximum number of matches per transcript, or null. */
+  protected Integer matchesPerTranscript;
+  /** Overlap threshold, or null. */
+  protected Integer overlapThreshold;
+  /** Number of words context. */
+  protected int wordsContext;
+
+  /**
+   * Transcript attribute whose labels identify changed transcripts, or null to detect
+   * only added and removed transcripts. Default is <q>transcript_version_date</q>.
+   * @see #getVersionLayerId()
+   * @see #setVersionLayerId(String)
+   */
+  protected String versionLayerId = "transcript_version_date";
+  /**
+   * Getter for {@link #versionLayerId}: Transcript attribute whose labels identify
+   * changed transcripts, or null to detect only added and removed transcripts.
+   * @return Transcript attribute whose labels identify changed transcripts.
+   */
+  public String getVersionLayerId() { return versionLayerId; }
+  /**
+   * Setter for {@link #versionLayerId}: Transcript attribute whose labels identify
+   * changed transcripts, or null to detect only added and removed transcripts.
+   * @param newVersionLayerId Transcript attribute whose labels identify changed
+   * transcripts.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public MaterializedSearch setVersionLayerId(String newVersionLayerId) { versionLayerId = newVersionLayerId; return this; }
+
+  /**
+   * File the results are saved to, or null if they're not saved.
+   * @see #getFile()
+   * @see #setFile(File)
+   */
+  protected File file;
+  /**
+   * Getter for {@link #file}: File the results are saved to, or null if they're not saved.
+   * @return File the results are saved to.
+   */
+  public File getFile() { return file; }
+  /**
+   * Setter for {@link #file}: File the results are saved to, or null if they're not
+   * saved. If the file exists, the results are loaded from it (unless the search has
+   * already been run).
+   * @param newFile File the results are saved to.
+   * @return A reference to this object, so that setters can be chained.
+   * @throws IOException If the file exists but can't be read, or is for a different search.
+   */
+  public synchronized MaterializedSearch setFile(File newFile) throws IOException {
+    file = newFile;
+    if (!built && file != null && file.exists()) load(file);
+    return this;
+  }
+
+  /**
+   * Print verbose output.
+   * @see #getVerbose()
+   * @see #setVerbose(boolean)
+   */
+  protected boolean verbose = false;
+  /**
+   * Getter for {@link #verbose}: Print verbose output.
+   * @return Print verbose output.
+   */
+  public boolean getVerbose() { return verbose; }
+  /**
+   * Setter for {@link #verbose}: Print verbose output.
+   * @param newVerbose Print verbose output.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public MaterializedSearch setVerbose(boolean newVerbose) { verbose = newVerbose; return this; }
+
+  /**
+   * Whether the search has been run, by {@link #refresh()} or by loading it from a file.
+   * @see #isBuilt()
+   */
+  protected boolean built = false;
+  /**
+   * Getter for {@link #built}: Whether the search has been run, by {@link #refresh()}
+   * or by loading it from a file.
+   * @return Whether the search has been run.
+   */
+  public synchronized boolean isBuilt() { return built; }
+
+  // Methods:
+
+  /**
+   * Constructor. The parameters are as for
+   * {@link LabbcatView#getMatches(JsonObject,String[],String[],boolean,Integer,Integer,Integer,int)}.
+   * @param labbcat The client to search with.
+   * @param pattern The pattern to search for.
+   * @param participantIds An optional list of participant IDs to search the utterances
+   * of, or null for all participants.
+   * @param transcriptTypes An optional list of transcript types to limit the results
+   * to, or null for all transcript types.
+   * @param mainParticipantOnly true to search only main-participant utterances.
+   * @param offsetThreshold Optional minimum alignment confidence.
+   * @param matchesPerTranscript Optional maximum number of matches per transcript.
+   * @param overlapThreshold Optional percentage overlap with other utterances before
+   * simultaneous speech is excluded.
+   * @param wordsContext Number of words context to include in the <q>Before Match</q>
+   * and <q>After Match</q> columns in the results.
+   */
+  public MaterializedSearch(
+    LabbcatView labbcat, JsonObject pattern, String[] participantIds,
+    String[] transcriptTypes, boolean mainParticipantOnly, Integer offsetThreshold,
+    Integer matchesPerTranscript, Integer overlapThreshold, int wordsContext) {
+    this.labbcat = labbcat;
+    this.pattern = pattern;
+    this.participantIds = participantIds;
+    this.transcriptTypes = transcriptTypes;
+    this.mainParticipantOnly = mainParticipantOnly;
+    this.offsetThreshold = offsetThreshold;
+    this.matchesPerTranscript = matchesPerTranscript;
+    this.overlapThreshold = overlapThreshold;
+    this.wordsContext = wordsContext;
+    this.key = SearchCache.Key(
+      labbcat.getLabbcatUrl(), labbcat.getUsername(), pattern, participantIds,
+      transcriptTypes, mainParticipantOnly, offsetThreshold, matchesPerTranscript,
+      overlapThreshold, wordsContext, null);
+  } // end of constructor
+
+  /**
+   * Brings the results up to date: the first time, by running the whole search, and
+   * subsequently, by re-running the search only for transcripts that have been added or
+   * changed since the last refresh.
+   * <p> If {@link LabbcatView#getCorpusIndex()} has been built, it's refreshed first, so
+   * that added transcripts, and the participants of added and changed transcripts, are
+   * up to date.
+   * @return The number of transcripts whose matches were re-computed.
+   * @throws IOException If a communications error occurs, or the results can't be saved.
+   * @throws StoreException If the server returns an error.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public synchronized int refresh() throws IOException, StoreException, PermissionException {
+    // get the latest version before listing changes, so no change is missed
+    String latest = latestVersion();
+    Set<String> changedOnServer = new TreeSet<String>();
+    if (built && versionLayerId != null && since != null) {
+      String[] changedIds = labbcat.getMatchingTranscriptIds(
+        "first(" + Quote(versionLayerId) + ").label > " + Quote(since), null, null, null);
+      if (changedIds != null) changedOnServer.addAll(Arrays.asList(changedIds));
+    }
+    // getTranscriptIds() and participantsOf() use the corpus index if it's built, so
+    // bring it up to date first, including the participants of changed transcripts
+    CorpusIndex index = labbcat.getCorpusIndex();
+    if (index != null && index.isBuilt()) {
+      for (String id : changedOnServer) index.transcriptChanged(id);
+      for (String id : changed) index.transcriptChanged(id);
+      index.refresh();
+    }
+    TreeSet<String> current = new TreeSet<String>(Arrays.asList(labbcat.getTranscriptIds()));
+    
+    Set<String> redo;
+    if (!built) { // first time, search everything
+      redo = current;
+      matches.clear();
+      for (Match match : search(participantIds)) add(match);
+    } else {
+      redo = new TreeSet<String>();
+      for (String id : current) if (!transcripts.contains(id)) redo.add(id); // added
+      redo.addAll(changedOnServer);
+      redo.addAll(changed);
+      redo.retainAll(current);
+      if (verbose) {
+        System.out.println(
+          "MaterializedSearch: " + redo.size() + " transcripts added/changed, "
+          + transcripts.stream().filter(id -> !current.contains(id)).count() + " removed");
+      }
+      
+      // discard matches of removed and changed transcripts
+      matches.keySet().removeIf(id -> !current.contains(id) || redo.contains(id));
+
+      // re-run the search for the participants of added/changed transcripts
+      TreeSet<String> participants = participantsOf(redo);
+      if (participantIds != null) participants.retainAll(Arrays.asList(participantIds));
+      Vector<String> chunk = new Vector<String>();
+      for (String participantId : participants) {
+        chunk.add(participantId);
+        if (chunk.size() >= LabbcatView.MAX_IDS_PER_REQUEST
+            || participantId.equals(participants.last())) {
+          for (Match match : search(chunk.toArray(new String[0]))) {
+            if (redo.contains(match.getTranscript())) add(match);
+          }
+          chunk.clear();
+        }
+      } // next participant
+    }
+    
+    transcripts = current;
+    if (latest != null) since = latest;
+    changed.clear();
+    built = true;
+    if (file != null) save(file);
+    return redo.size();
+  } // end of refresh()
+
+  /**
+   * Flags a transcript as changed, so that its matches are re-computed by the next
+   * {@link #refresh()}.
+   * @param transcriptId The ID of the transcript that has changed.
+   */
+  public synchronized void transcriptChanged(String transcriptId) {
+    changed.add(transcriptId);
+  } // end of transcriptChanged()
+
+  /**
+   * Gets all the matches, as of the last refresh.
+   * @return The matches, ordered by transcript ID, and in the order returned by the
+   * server within each transcript.
+   */
+  public synchronized Match[] getMatches() {
+    Vector<Match> all = new Vector<Match>();
+    for (Vector<Match> transcriptMatches : matches.values()) all.addAll(transcriptMatches);
+    return all.toArray(new Match[0]);
+  } // end of getMatches()
+
+  /**
+   * Gets the matches in the given transcript, as of the last refresh.
+   * @param transcriptId The transcript ID.
+   * @return The matches in the transcript, which is empty if there are none.
+   */
+  public synchronized Match[] getMatches(String transcriptId) {
+    Vector<Match> transcriptMatches = matches.get(transcriptId);
+    if (transcriptMatches == null) return new Match[0];
+    return transcriptMatches.toArray(new Match[0]);
+  } // end of getMatches()
+
+  /**
+   * Gets the IDs of transcripts that have matches, as of the last refresh.
+   * @return The transcript IDs, in order.
+   */
+  public synchronized String[] getTranscriptIds() {
+    return matches.keySet().toArray(new String[0]);
+  } // end of getTranscriptIds()
+
+  /**
+   * Runs the search, bypassing {@link LabbcatView#getSearchCache()}.
+   * @param participants The participants to search, or null for all.
+   * @return The matches.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error, or the search is cancelled.
+   */
+  protected Match[] search(String[] participants) throws IOException, StoreException {
+    Match[] result = labbcat.getMatches(
+      pattern, participants, transcriptTypes, mainParticipantOnly, offsetThreshold,
+      matchesPerTranscript, overlapThreshold, wordsContext, null, null);
+    if (result == null) throw new StoreException("Search cancelled.");
+    return result;
+  } // end of search()
+
+  /**
+   * Adds a match to {@link #matches}.
+   * @param match The match.
+   */
+  protected void add(Match match) {
+    matches.computeIfAbsent(match.getTranscript(), id -> new Vector<Match>()).add(match);
+  } // end of add()
+
+  /**
+   * Gets the latest value of {@link #versionLayerId}.
+   * @return The latest version, or null if there's no version layer, or no versions.
+   * @throws StoreException If the server returns an error.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  protected String latestVersion() throws StoreException, PermissionException {
+    if (versionLayerId == null) return null;
+    String[] max = labbcat.aggregateMatchingAnnotations(
+      "MAX", "layer.id == " + Quote(versionLayerId));
+    return max == null || max.length == 0? null : max[0];
+  } // end of latestVersion()
+
+  /**
+   * Gets the participants of the given transcripts, from
+   * {@link LabbcatView#getCorpusIndex()} if it's built (in which case it must already
+   * have been refreshed), or otherwise by loading the participant layer of each
+   * transcript.
+   * @param transcriptIds The transcript IDs.
+   * @return The participant IDs.
+   * @throws StoreException If the server returns an error.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  protected TreeSet<String> participantsOf(Set<String> transcriptIds)
+    throws StoreException, PermissionException {
+    TreeSet<String> participants = new TreeSet<String>();
+    if (transcriptIds.size() == 0) return participants;
+    CorpusIndex index = labbcat.getCorpusIndex();
+    if (index != null && index.isBuilt()) {
+      for (String id : transcriptIds) {
+        participants.addAll(Arrays.asList(index.getParticipantIdsInTranscript(id)));
+      }
+      return participants;
+    }
+    Schema schema = labbcat.getSchema();
+    String[] layerIds = { schema.getParticipantLayerId() };
+    BulkResult<String[]> result = labbcat.fanOut(transcriptIds, id -> {
+        Graph transcript = labbcat.loadTranscript(id, layerIds, schema);
+        Vector<String> ids = new Vector<String>();
+        if (transcript != null) {
+          for (Annotation participant : transcript.all(schema.getParticipantLayerId())) {
+            ids.add(participant.getLabel());
+          }
+        }
+        return ids.toArray(new String[0]);
+      });
+    if (result.hasFailures()) {
+      String id = result.getFailures().keySet().iterator().next();
+      Exception x = result.getFailures().get(id);
+      throw new StoreException(
+        "Could not get participants of " + id + ": " + x.getMessage(), x);
+    }
+    for (String[] ids : result.getResults().values()) {
+      if (ids != null) participants.addAll(Arrays.asList(ids));
+    }
+    return participants;
+  } // end of participantsOf()
+
+  /**
+   * Saves the results to the given file. The file is replaced atomically.
+   * @param file The file to save to.
+   * @throws IOException If the file can't be written.
+   */
+  public synchronized void save(File file) throws IOException {
+    JsonObjectBuilder json = Json.createObjectBuilder()
+      .add("key", key)
+      .add("transcripts", Strings(transcripts))
+      .add("changed", Strings(changed));
+    if (since != null) json.add("since", since);
+    JsonObjectBuilder jsonMatches = Json.createObjectBuilder();
+    for (String id : matches.keySet()) {
+      JsonArrayBuilder transcriptMatches = Json.createArrayBuilder();
+      for (Match match : matches.get(id)) transcriptMatches.add(match.toJson());
+      jsonMatches.add(id, transcriptMatches);
+    }
+    json.add("matches", jsonMatches);
+    File temp = new File(file.getPath() + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8);
+         JsonWriter out = Json.createWriter(writer)) {
+      out.writeObject(json.build());
+    } catch(IOException x) {
+      temp.delete();
+      throw x;
+    }
+    Files.move(temp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  } // end of save()
+
+  /**
+   * Loads the results from the given file, replacing its current contents.
+   * @param file The file to load from.
+   * @throws IOException If the file can't be read, or is for a different search.
+   */
+  public synchronized void load(File file) throws IOException {
+    JsonObject json;
+    try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+         JsonReader in = Json.createReader(reader)) {
+      json = in.readObject();
+    } catch(javax.json.JsonException x) {
+      throw new IOException("Not a search results file: " + file.getPath(), x);
+    }
+    if (!key.equals(json.getString("key", null))) {
+      throw new IOException("Results are for a different search: " + file.getPath());
+    }
+    TreeMap<String,Vector<Match>> newMatches = new TreeMap<String,Vector<Match>>();
+    JsonObject jsonMatches = json.getJsonObject("matches");
+    for (String id : jsonMatches.keySet()) {
+      Vector<Match> transcriptMatches = new Vector<Match>();
+      for (JsonValue match : jsonMatches.getJsonArray(id)) {
+        transcriptMatches.add(new Match((JsonObject)match));
+      }
+      newMatches.put(id, transcriptMatches);
+    }
+    matches = newMatches;
+    transcripts = new TreeSet<String>(Strings(json.getJsonArray("transcripts")));
+    changed = new HashSet<String>(Strings(json.getJsonArray("changed")));
+    since = json.getString("since", null);
+    built = true;
+  } // end of load()
+
+  /**
+   * Quotes a string for use in an expression.
+   * @param s The string.
+   * @return The quoted string.
+   */
+  protected static String Quote(String s) {
+    return "'" + s.replace("\\", "\\\\").replace("'", "\\'") + "'";
+  } // end of Quote()
+
+  /**
+   * Converts strings to a JSON array.
+   * @param strings The strings.
+   * @return A JSON array of the strings.
+   */
+  private static JsonArrayBuilder Strings(Iterable<String> strings) {
+    JsonArrayBuilder array = Json.createArrayBuilder();
+    for (String s : strings) array.add(s);
+    return array;
+  } // end of Strings()
+
+  /**
+   * Converts a JSON array to strings.
+   * @param array A JSON array of strings.
+   * @return The strings.
+   */
+  private static Vector<String> Strings(JsonArray array) {
+    Vector<String> strings = new Vector<String>();
+    for (int i = 0; i < array.size(); i++) strings.add(array.getString(i));
+    return strings;
+  } // end of Strings()
+  
+} // end of class MaterializedSearch
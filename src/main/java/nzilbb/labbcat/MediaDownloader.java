@@ -0,0 +1,541 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import nzilbb.ag.GraphNotFoundException;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.StoreException;
+import nzilbb.labbcat.http.HttpDownload;
+import nzilbb.labbcat.http.HttpRequestGet;
+
+/**
+ * Downloads media files into a local content-addressed cache, so that repeated requests
+ * for the same media never re-download it.
+ * <p> Media is identified by transcript ID, track suffix, and MIME type, as for
+ * {@link LabbcatView#getMediaFile(String,String,String,File)}. The first time a given
+ * media file is requested, its URL is resolved (once) with
+ * {@link LabbcatView#getMedia(String,String,String)} and the content is downloaded:
+ * <ul>
+ *  <li> If a previous download was interrupted, it's resumed with an HTTP
+ *       <tt>Range</tt> request, rather than being started again, unless the media has
+ *       changed on the server since. </li>
+ *  <li> If {@link #setSegments(int) segments} is greater than 1, and the server accepts
+ *       ranges, large files are fetched as that many segments in parallel. </li>
+ * </ul>
+ * <p> Completed files are stored under the cache directory by the SHA-256 checksum of
+ * their content, so identical content requested under different keys is stored once.
+ * <p> e.g.
+ * <pre> MediaDownloader media = new MediaDownloader(labbcat, new File("media-cache"))
+ *   .setSegments(4);
+ * File wav = media.getMediaFile("AP511_MikeThorpe.eaf", "", "audio/wav");</pre>
+ * <p> Instances can be shared between threads; concurrent requests for the same media
+ * result in only one download.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class MediaDownloader {
+
+  // Attributes:
+
+  /**
+   * The client to download from.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to download from.
+   * @return The client to download from.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /**
+   * Root directory of the cache.
+   * @see #getCacheDir()
+   */
+  protected File cacheDir;
+  /**
+   * Getter for {@link #cacheDir}: Root directory of the cache.
+   * @return Root directory of the cache.
+   */
+  public File getCacheDir() { return cacheDir; }
+
+  /**
+   * Number of parallel segments to download large files in. Default is 1.
+   * @see #getSegments()
+   * @see #setSegments(int)
+   */
+  protected int segments = 1;
+  /**
+   * Getter for {@link #segments}: Number of parallel segments to download large files in.
+   * @return Number of parallel segments to download large files in.
+   */
+  public int getSegments() { return segments; }
+  /**
+   * Setter for {@link #segments}: Number of parallel segments to download large files in.
+   * @param newSegments Number of parallel segments to download large files in.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public MediaDownloader setSegments(int newSegments) {
+    segments = Math.max(1, newSegments);
+    return this;
+  }
+
+  /**
+   * Minimum size of each segment, in bytes; files smaller than twice this are
+   * downloaded in one piece. Default is 8MiB.
+   * @see #getMinSegmentSize()
+   * @see #setMinSegmentSize(long)
+   */
+  protected long minSegmentSize = 8 * 1024 * 1024;
+  /**
+   * Getter for {@link #minSegmentSize}: Minimum size of each segment, in bytes.
+   * @return Minimum size of each segment, in bytes.
+   */
+  public long getMinSegmentSize() { return minSegmentSize; }
+  /**
+   * Setter for {@link #minSegmentSize}: Minimum size of each segment, in bytes.
+   * @param newMinSegmentSize Minimum size of each segment, in bytes.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public MediaDownloader setMinSegmentSize(long newMinSegmentSize) { minSegmentSize = newMinSegmentSize; return this; }
+
+  /**
+   * Per-key locks, so that each media file is only downloaded once. Entries are removed
+   * when their last holder is finished with them.
+   */
+  private final ConcurrentHashMap<String,KeyLock> keyLocks = new ConcurrentHashMap<String,KeyLock>();
+
+  /** A lock on one key, with the number of threads holding or waiting for it. */
+  private static class KeyLock {
+    int holders;
+  }
+
+  // Methods:
+
+  /**
+   * Constructor.
+   * @param labbcat The client to download from.
+   * @param cacheDir Root directory of the cache, which will be created if necessary.
+   */
+  public MediaDownloader(LabbcatView labbcat, File cacheDir) {
+    this.labbcat = labbcat;
+    this.cacheDir = cacheDir;
+  } // end of constructor
+
+  /**
+   * Gets a given media track for a given transcript, from the cache if possible,
+   * downloading it otherwise.
+   * @param id The transcript ID.
+   * @param trackSuffix The track suffix of the media.
+   * @param mimeType The MIME type of the media.
+   * @return The cached media file, or null if the given media doesn't exist. This file
+   * belongs to the cache, and should not be modified or deleted by the caller.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   * @throws GraphNotFoundException If the transcript was not found in the store.
+   */
+  public File getMediaFile(String id, String trackSuffix, String mimeType)
+    throws StoreException, PermissionException, GraphNotFoundException {
+    String key = Key(id, trackSuffix, mimeType);
+    // holders are counted atomically, so the lock is only removed once nobody can be
+    // waiting for it
+    KeyLock lock = keyLocks.compute(key, (k, l) -> {
+        if (l == null) l = new KeyLock();
+        l.holders++;
+        return l;
+      });
+    try {
+      synchronized (lock) {
+        File cached = lookup(key);
+        if (cached != null) return cached;
+
+        // resolve the URL only once
+        String url = labbcat.getMedia(id, trackSuffix, mimeType);
+        if (url == null) return null;
+
+        File partial = new File(dir("partial"), key + ".part");
+        if (!download(url, mimeType, partial)) return null;
+        return store(key, partial, "." + mimeType.replaceAll(".*/","").replaceAll(";.*",""));
+      }
+    } catch(IOException x) {
+      throw new StoreException("Could not download media.", x);
+    } finally {
+      keyLocks.computeIfPresent(key, (k, l) -> --l.holders == 0? null : l);
+    }
+  } // end of getMediaFile()
+
+  /**
+   * Determines whether the given media is already cached.
+   * @param id The transcript ID.
+   * @param trackSuffix The track suffix of the media.
+   * @param mimeType The MIME type of the media.
+   * @return true if the media is cached, false otherwise.
+   */
+  public boolean isCached(String id, String trackSuffix, String mimeType) {
+    try {
+      return lookup(Key(id, trackSuffix, mimeType)) != null;
+    } catch(IOException x) {
+      return false;
+    }
+  } // end of isCached()
+
+  /**
+   * Removes the given media from the cache index. The content itself is left in place,
+   * as it may be shared with other keys.
+   * @param id The transcript ID.
+   * @param trackSuffix The track suffix of the media.
+   * @param mimeType The MIME type of the media.
+   */
+  public void forget(String id, String trackSuffix, String mimeType) {
+    new File(new File(cacheDir, "keys"), Key(id, trackSuffix, mimeType)).delete();
+  } // end of forget()
+
+  /**
+   * Downloads the given URL to the given partial file, resuming and/or segmenting as
+   * appropriate.
+   * @param url The media URL.
+   * @param mimeType The MIME type of the media.
+   * @param partial The file to download to.
+   * @return true if the media was downloaded, false if it wasn't found.
+   * @throws IOException If an IO error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  protected boolean download(String url, String mimeType, File partial)
+    throws IOException, StoreException {
+    if (segments > 1 && !partial.exists()) {
+      // find out how big it is, and whether the server supports ranges
+      HttpURLConnection head = labbcat.get(url).setMethod("HEAD")
+        .setHeader("Accept", mimeType).get();
+      if (head.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) return false;
+      long length = head.getContentLengthLong();
+      boolean ranges = "bytes".equalsIgnoreCase(head.getHeaderField("Accept-Ranges"));
+      String validator = validator(head);
+      head.disconnect();
+      // discard segments left over from a download of different content
+      for (int s = 0; s < segments; s++) {
+        File part = new File(partial.getPath() + s);
+        if (!part.exists()) continue;
+        File validatorFile = validatorFile(part);
+        String partValidator = validatorFile.exists()? new String(
+          Files.readAllBytes(validatorFile.toPath()), StandardCharsets.UTF_8).trim() : null;
+        if (validator == null || !validator.equals(partValidator)) {
+          part.delete();
+          validatorFile.delete();
+        }
+      } // next segment
+      if (ranges && length >= minSegmentSize * 2) {
+        downloadSegments(url, mimeType, partial, length);
+        return true;
+      }
+    } // segments
+    return downloadRange(url, mimeType, partial, 0, -1);
+  } // end of download()
+
+  /**
+   * Downloads the given URL in parallel segments, then concatenates them.
+   * @param url The media URL.
+   * @param mimeType The MIME type of the media.
+   * @param partial The file to download to.
+   * @param length The total content length.
+   * @throws IOException If an IO error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  protected void downloadSegments(String url, String mimeType, File partial, long length)
+    throws IOException, StoreException {
+    int count = (int)Math.min(segments, length / minSegmentSize);
+    long segmentSize = (length + count - 1) / count;
+    ExecutorService pool = Executors.newFixedThreadPool(count);
+    try {
+      List<File> parts = new Vector<File>();
+      List<Future<Boolean>> results = new Vector<Future<Boolean>>();
+      for (int s = 0; s < count; s++) {
+        final File part = new File(partial.getPath() + s);
+        final long start = s * segmentSize;
+        final long end = Math.min(length, start + segmentSize) - 1;
+        parts.add(part);
+        results.add(pool.submit(() -> downloadRange(url, mimeType, part, start, end)));
+      } // next segment
+      for (Future<Boolean> result : results) {
+        try {
+          if (!result.get()) throw new StoreException("Segment not found: " + url);
+        } catch(InterruptedException x) {
+          throw new IOException(x);
+        } catch(ExecutionException x) {
+          if (x.getCause() instanceof IOException) throw (IOException)x.getCause();
+          if (x.getCause() instanceof StoreException) throw (StoreException)x.getCause();
+          throw new IOException(x.getCause());
+        }
+      } // next result
+
+      // concatenate the segments
+      try (FileChannel out = FileChannel.open(
+             partial.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+             StandardOpenOption.TRUNCATE_EXISTING)) {
+        for (File part : parts) {
+          try (FileChannel in = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) position += in.transferTo(position, size - position, out);
+          }
+          part.delete();
+          validatorFile(part).delete();
+        } // next part
+        if (labbcat.getDownload().getFsync()) out.force(true);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  } // end of downloadSegments()
+
+  /**
+   * Downloads a byte range of the given URL to the given file. If the file already has
+   * some content, the download resumes from where it left off.
+   * <p> The validator (<tt>ETag</tt> or <tt>Last-Modified</tt>) of the response is saved
+   * alongside the file (see {@link #validatorFile(File)}), and a resumed request carries
+   * it in an <tt>If-Range</tt> header, so that if the media has changed on the server
+   * in the meantime, the whole content is downloaded again, rather than new bytes being
+   * appended to old ones. Content with no saved validator is never resumed.
+   * @param url The media URL.
+   * @param mimeType The MIME type of the media.
+   * @param file The file to download to.
+   * @param start Byte offset of the start of the range.
+   * @param end Byte offset of the end of the range (inclusive), or -1 for the end of the
+   * content.
+   * @return true if the content was downloaded, false if it wasn't found.
+   * @throws IOException If an IO error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  protected boolean downloadRange(String url, String mimeType, File file, long start, long end)
+    throws IOException, StoreException {
+    File validatorFile = validatorFile(file);
+    long existing = file.exists()? file.length() : 0;
+    String validator = null;
+    if (existing > 0) {
+      if (validatorFile.exists()) {
+        validator = new String(
+          Files.readAllBytes(validatorFile.toPath()), StandardCharsets.UTF_8).trim();
+      }
+      if (validator == null || validator.length() == 0) {
+        // we can't tell whether the content has changed, so start again
+        if (labbcat.getVerbose()) System.out.println("MediaDownloader: restarting " + file);
+        validator = null;
+        existing = 0;
+      }
+    }
+    if (end >= 0 && existing >= end - start + 1) return true; // already complete
+    long from = start + existing;
+    HttpRequestGet request = labbcat.get(url).setHeader("Accept", mimeType);
+    if (from > 0 || end >= 0) {
+      request.setHeader("Range", "bytes=" + from + "-" + (end >= 0? ""+end : ""));
+    }
+    if (validator != null) request.setHeader("If-Range", validator);
+    if (labbcat.getVerbose()) System.out.println("MediaDownloader -> " + request);
+    HttpURLConnection connection = request.get();
+    int status = connection.getResponseCode();
+    if (status == HttpURLConnection.HTTP_NOT_FOUND) return false;
+    if (status == 416 && end < 0 && existing > 0) { // range not satisfiable: already complete
+      return true;
+    }
+    if (status == HttpURLConnection.HTTP_PARTIAL) { // resuming, or a segment
+      saveValidator(connection, validatorFile);
+      labbcat.getDownload().save(connection.getInputStream(), file, existing > 0);
+    } else if (status == HttpURLConnection.HTTP_OK) {
+      if (start > 0 || (end >= 0 && end < connection.getContentLengthLong() - 1)) {
+        connection.disconnect();
+        file.delete();
+        validatorFile.delete();
+        if (validator != null) {
+          throw new StoreException("Media changed during download: " + request);
+        }
+        throw new StoreException("Server does not support byte ranges: " + request);
+      }
+      // whole content, so any partial content we had is replaced
+      saveValidator(connection, validatorFile);
+      labbcat.getDownload().save(connection.getInputStream(), file, false);
+    } else {
+      throw new StoreException(
+        "Error " + status + " " + connection.getResponseMessage() + " - " + request);
+    }
+    return true;
+  } // end of downloadRange()
+
+  /**
+   * Records the validator of the given response, if any, so that a download into the
+   * corresponding file can be safely resumed.
+   * @param connection The response.
+   * @param validatorFile The file to save the validator to.
+   * @throws IOException If an IO error occurs.
+   */
+  private void saveValidator(HttpURLConnection connection, File validatorFile)
+    throws IOException {
+    String validator = validator(connection);
+    if (validator == null) {
+      validatorFile.delete();
+    } else {
+      Files.write(validatorFile.toPath(), validator.getBytes(StandardCharsets.UTF_8));
+    }
+  } // end of saveValidator()
+
+  /**
+   * Gets the validator of the given response, for use in an <tt>If-Range</tt> header.
+   * @param connection The response.
+   * @return The strong <tt>ETag</tt> if any, otherwise <tt>Last-Modified</tt>, or null if
+   * the response has neither.
+   */
+  private String validator(HttpURLConnection connection) {
+    String validator = connection.getHeaderField("ETag");
+    if (validator == null || validator.startsWith("W/")) { // weak ETags can't be used
+      validator = connection.getHeaderField("Last-Modified");
+    }
+    return validator;
+  } // end of validator()
+
+  /**
+   * Gets the file in which the validator (<tt>ETag</tt> or <tt>Last-Modified</tt>) of a
+   * partial download is kept.
+   * @param file The partial download.
+   * @return The corresponding validator file.
+   */
+  protected File validatorFile(File file) {
+    return new File(file.getPath() + ".validator");
+  } // end of validatorFile()
+
+  /**
+   * Moves a completed download into the content-addressed store, and records the key.
+   * @param key The media key.
+   * @param partial The completed download.
+   * @param extension File extension for the content.
+   * @return The stored file.
+   * @throws IOException If an IO error occurs.
+   */
+  protected File store(String key, File partial, String extension) throws IOException {
+    String hash = Hash(partial);
+    validatorFile(partial).delete();
+    File object = new File(dir("objects"), hash + extension);
+    if (object.exists()) {
+      partial.delete(); // identical content is already stored
+    } else {
+      Files.move(partial.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+    File keyFile = new File(dir("keys"), key);
+    File tempKeyFile = new File(dir("keys"), key + ".tmp");
+    Files.write(tempKeyFile.toPath(), object.getName().getBytes(StandardCharsets.UTF_8));
+    Files.move(tempKeyFile.toPath(), keyFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return object;
+  } // end of store()
+
+  /**
+   * Looks up the stored file for the given key.
+   * @param key The media key.
+   * @return The stored file, or null if it's not cached.
+   * @throws IOException If an IO error occurs.
+   */
+  protected File lookup(String key) throws IOException {
+    File keyFile = new File(new File(cacheDir, "keys"), key);
+    if (!keyFile.exists()) return null;
+    String objectName = new String(Files.readAllBytes(keyFile.toPath()), StandardCharsets.UTF_8);
+    File object = new File(new File(cacheDir, "objects"), objectName.trim());
+    return object.exists()? object : null;
+  } // end of lookup()
+
+  /**
+   * Gets a subdirectory of the cache, creating it if necessary.
+   * @param name The subdirectory name.
+   * @return The subdirectory.
+   * @throws IOException If the directory can't be created.
+   */
+  private File dir(String name) throws IOException {
+    File dir = new File(cacheDir, name);
+    if (!dir.exists()) Files.createDirectories(dir.toPath());
+    return dir;
+  } // end of dir()
+
+  /**
+   * Generates a file-system-safe key for the given media.
+   * @param id The transcript ID.
+   * @param trackSuffix The track suffix of the media.
+   * @param mimeType The MIME type of the media.
+   * @return A key that identifies the media.
+   */
+  public static String Key(String id, String trackSuffix, String mimeType) {
+    return Sha256(
+      (id + "\n" + (trackSuffix == null? "" : trackSuffix) + "\n" + mimeType)
+      .getBytes(StandardCharsets.UTF_8));
+  } // end of Key()
+
+  /**
+   * Computes the SHA-256 checksum of the given file.
+   * @param file The file.
+   * @return The hexadecimal checksum.
+   * @throws IOException If an IO error occurs.
+   */
+  public static String Hash(File file) throws IOException {
+    MessageDigest digest = Sha256();
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] buffer = new byte[65536];
+      int count;
+      while ((count = in.read(buffer)) >= 0) digest.update(buffer, 0, count);
+    }
+    return HttpDownload.Hex(digest.digest());
+  } // end of Hash()
+
+  /**
+   * Computes the SHA-256 checksum of the given bytes.
+   * @param bytes The bytes.
+   * @return The hexadecimal checksum.
+   */
+  private static String Sha256(byte[] bytes) {
+    return HttpDownload.Hex(Sha256().digest(bytes));
+  } // end of Sha256()
+
+  /**
+   * Gets a SHA-256 message digest.
+   * @return A new digest.
+   */
+  private static MessageDigest Sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch(NoSuchAlgorithmException x) { // all JVMs must support SHA-256
+      throw new RuntimeException(x);
+    }
+  } // end of Sha256()
+
+} // end of class MediaDownloader
@@ -0,0 +1,360 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.json.JsonObject;
+import nzilbb.ag.Layer;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.StoreException;
+import nzilbb.labbcat.model.Match;
+
+/**
+ * Runs a search as several server-side search tasks, each restricted to a subset (shard)
+ * of participants or transcript types, concurrently, and merges the results.
+ * <p> {@link LabbcatView#search(JsonObject,String[],String[],boolean,Integer,Integer,Integer)}
+ * runs one task over the whole database, which uses only one of the server's cores. This
+ * class splits the participant IDs (or transcript types) into shards of
+ * {@link #getShardSize()}, starts a search task for each shard, with up to
+ * {@link #getMaxTasks()} running at once, collects each task's matches, and merges them
+ * into one list ordered by transcript, then by position within the transcript.
+ * Every shard task is released with {@link LabbcatView#releaseTask(String)} once its
+ * matches have been collected, or if anything goes wrong.
+ * <pre> ParallelSearch search = new ParallelSearch(labbcat)
+ *   .setShardSize(50)
+ *   .setMaxTasks(4);
+ * Match[] matches = search.searchByParticipant(
+ *   new PatternBuilder().addMatchLayer("orthography", "the").build(),
+ *   null, null, true, null, null, null, 0);</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ParallelSearch {
+
+  // Attributes:
+
+  /**
+   * The client to search with.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to search with.
+   * @return The client to search with.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /**
+   * The maximum number of participant IDs or transcript types per shard. Default is 100.
+   * @see #getShardSize()
+   * @see #setShardSize(int)
+   */
+  protected int shardSize = 100;
+  /**
+   * Getter for {@link #shardSize}: The maximum number of participant IDs or transcript
+   * types per shard.
+   * @return The maximum number of participant IDs or transcript types per shard.
+   */
+  public int getShardSize() { return shardSize; }
+  /**
+   * Setter for {@link #shardSize}: The maximum number of participant IDs or transcript
+   * types per shard.
+   * @param newShardSize The maximum number of participant IDs or transcript types per
+   * shard.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public ParallelSearch setShardSize(int newShardSize) { shardSize = Math.max(1, newShardSize); return this; }
+
+  /**
+   * The maximum number of search tasks to have running on the server at once. Default is 4.
+   * @see #getMaxTasks()
+   * @see #setMaxTasks(int)
+   */
+  protected int maxTasks = 4;
+  /**
+   * Getter for {@link #maxTasks}: The maximum number of search tasks to have running on
+   * the server at once.
+   * @return The maximum number of search tasks to have running on the server at once.
+   */
+  public int getMaxTasks() { return maxTasks; }
+  /**
+   * Setter for {@link #maxTasks}: The maximum number of search tasks to have running on
+   * the server at once.
+   * @param newMaxTasks The maximum number of search tasks to have running on the server
+   * at once.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public ParallelSearch setMaxTasks(int newMaxTasks) { maxTasks = Math.max(1, newMaxTasks); return this; }
+
+  /**
+   * The number of matches to request per page of each shard's results, or null to get
+   * each shard's matches in one request. Default is null.
+   * @see #getPageLength()
+   * @see #setPageLength(Integer)
+   */
+  protected Integer pageLength;
+  /**
+   * Getter for {@link #pageLength}: The number of matches to request per page of each
+   * shard's results, or null to get each shard's matches in one request.
+   * @return The number of matches to request per page of each shard's results.
+   */
+  public Integer getPageLength() { return pageLength; }
+  /**
+   * Setter for {@link #pageLength}: The number of matches to request per page of each
+   * shard's results, or null to get each shard's matches in one request.
+   * @param newPageLength The number of matches to request per page of each shard's results.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public ParallelSearch setPageLength(Integer newPageLength) { pageLength = newPageLength; return this; }
+
+  /**
+   * The maximum time to wait for each shard task, in seconds, or 0 to wait forever.
+   * Default is 0.
+   * @see #getMaxSeconds()
+   * @see #setMaxSeconds(int)
+   */
+  protected int maxSeconds = 0;
+  /**
+   * Getter for {@link #maxSeconds}: The maximum time to wait for each shard task, in
+   * seconds, or 0 to wait forever.
+   * @return The maximum time to wait for each shard task.
+   */
+  public int getMaxSeconds() { return maxSeconds; }
+  /**
+   * Setter for {@link #maxSeconds}: The maximum time to wait for each shard task, in
+   * seconds, or 0 to wait forever.
+   * @param newMaxSeconds The maximum time to wait for each shard task.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public ParallelSearch setMaxSeconds(int newMaxSeconds) { maxSeconds = Math.max(0, newMaxSeconds); return this; }
+
+  // Methods:
+
+  /**
+   * Constructor.
+   * @param labbcat The client to search with.
+   */
+  public ParallelSearch(LabbcatView labbcat) {
+    this.labbcat = labbcat;
+  } // end of constructor
+
+  /**
+   * Searches the utterances of the given participants, one shard of participants per
+   * search task.
+   * <p> As each utterance belongs to exactly one participant, the merged results are the
+   * same as those of a single search over all the participants. 
+   * @param pattern The pattern to search for, as for
+   * {@link LabbcatView#search(JsonObject,String[],String[],boolean,Integer,Integer,Integer)}.
+   * @param participantIds The participants whose utterances should be searched, or null
+   * for all participants.
+   * @param transcriptTypes An optional list of transcript types to limit the results to,
+   * or null for all transcript types.
+   * @param mainParticipantOnly true to search only main-participant utterances.
+   * @param offsetThreshold Optional minimum alignment confidence.
+   * @param matchesPerTranscript Optional maximum number of matches per transcript, which
+   * is applied again to the merged results, as a transcript's participants may be in
+   * different shards.
+   * @param overlapThreshold Optional percentage overlap with other utterances before
+   * simultaneous speech is excluded.
+   * @param wordsContext Number of words context to include in the <q>Before Match</q>
+   * and <q>After Match</q> columns in the results.
+   * @return The matches of all shards, ordered by transcript, then position.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public Match[] searchByParticipant(
+    JsonObject pattern, String[] participantIds, String[] transcriptTypes,
+    boolean mainParticipantOnly, Integer offsetThreshold, Integer matchesPerTranscript,
+    Integer overlapThreshold, int wordsContext)
+    throws IOException, StoreException, PermissionException {
+    if (participantIds == null) participantIds = labbcat.getParticipantIds();
+    Vector<ShardSearch> shards = new Vector<ShardSearch>();
+    for (String[] shard : shards(participantIds)) {
+      shards.add(() -> labbcat.search(
+                   pattern, shard, transcriptTypes, mainParticipantOnly, offsetThreshold,
+                   matchesPerTranscript, overlapThreshold));
+    }
+    return merge(run(shards, wordsContext), matchesPerTranscript);
+  } // end of searchByParticipant()
+
+  /**
+   * Searches transcripts of the given types, one shard of transcript types per search task.
+   * <p> As each transcript has exactly one type, the merged results are the same as those
+   * of a single search over all the types.
+   * @param pattern The pattern to search for, as for
+   * {@link LabbcatView#search(JsonObject,String[],String[],boolean,Integer,Integer,Integer)}.
+   * @param participantIds An optional list of participants whose utterances should be
+   * searched, or null for all participants.
+   * @param transcriptTypes The transcript types to search, or null for all the valid
+   * labels of the <q>transcript_type</q> layer.
+   * @param mainParticipantOnly true to search only main-participant utterances.
+   * @param offsetThreshold Optional minimum alignment confidence.
+   * @param matchesPerTranscript Optional maximum number of matches per transcript.
+   * @param overlapThreshold Optional percentage overlap with other utterances before
+   * simultaneous speech is excluded.
+   * @param wordsContext Number of words context to include in the <q>Before Match</q>
+   * and <q>After Match</q> columns in the results.
+   * @return The matches of all shards, ordered by transcript, then position.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public Match[] searchByTranscriptType(
+    JsonObject pattern, String[] participantIds, String[] transcriptTypes,
+    boolean mainParticipantOnly, Integer offsetThreshold, Integer matchesPerTranscript,
+    Integer overlapThreshold, int wordsContext)
+    throws IOException, StoreException, PermissionException {
+    if (transcriptTypes == null) {
+      Layer typeLayer = labbcat.getLayer("transcript_type");
+      transcriptTypes = typeLayer.getValidLabels().keySet().toArray(new String[0]);
+    }
+    Vector<ShardSearch> shards = new Vector<ShardSearch>();
+    for (String[] shard : shards(transcriptTypes)) {
+      shards.add(() -> labbcat.search(
+                   pattern, participantIds, shard, mainParticipantOnly, offsetThreshold,
+                   matchesPerTranscript, overlapThreshold));
+    }
+    return merge(run(shards, wordsContext), matchesPerTranscript);
+  } // end of searchByTranscriptType()
+
+  /**
+   * Splits values into shards of at most {@link #shardSize} values.
+   * @param values The values to split.
+   * @return The shards, in the order of the values.
+   */
+  protected Vector<String[]> shards(String[] values) {
+    Vector<String[]> shards = new Vector<String[]>();
+    for (int from = 0; from < values.length; from += shardSize) {
+      shards.add(Arrays.copyOfRange(values, from, Math.min(values.length, from + shardSize)));
+    }
+    return shards;
+  } // end of shards()
+
+  /** Starts the search task of one shard. */
+  protected interface ShardSearch {
+    /**
+     * Starts the search task.
+     * @return The ID of the search task.
+     * @throws IOException If a communications error occurs.
+     * @throws StoreException If the server returns an error.
+     */
+    String start() throws IOException, StoreException;
+  }
+
+  /**
+   * Runs the search task of every shard, {@link #maxTasks} at a time, and collects their
+   * matches.
+   * @param shards The search of each shard.
+   * @param wordsContext Number of words context to include.
+   * @return The matches of all shards, in shard order.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If a shard fails.
+   */
+  protected Vector<Match> run(Vector<ShardSearch> shards, int wordsContext)
+    throws IOException, StoreException {
+    Vector<Match> matches = new Vector<Match>();
+    if (shards.size() == 0) return matches;
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(maxTasks, shards.size()));
+    try {
+      Vector<Future<Vector<Match>>> results = new Vector<Future<Vector<Match>>>();
+      for (ShardSearch shard : shards) {
+        results.add(pool.submit(() -> collect(shard, wordsContext)));
+      }
+      for (int s = 0; s < results.size(); s++) {
+        try {
+          matches.addAll(results.get(s).get());
+        } catch(ExecutionException x) {
+          Throwable cause = x.getCause();
+          if (cause instanceof IOException) throw (IOException)cause;
+          throw new StoreException("Shard " + s + " failed: " + cause.getMessage(), cause);
+        }
+      }
+      return matches;
+    } catch(InterruptedException x) {
+      throw new StoreException("Interrupted", x);
+    } finally {
+      pool.shutdownNow();
+    }
+  } // end of run()
+
+  /**
+   * Runs one shard's search task, waits for it to finish, gets all its matches, and
+   * releases it.
+   * @param shard The shard's search.
+   * @param wordsContext Number of words context to include.
+   * @return The shard's matches.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error, or the task doesn't finish in
+   * time.
+   */
+  protected Vector<Match> collect(ShardSearch shard, int wordsContext)
+    throws IOException, StoreException {
+    String threadId = shard.start();
+    try {
+      if (labbcat.waitForTask(threadId, maxSeconds).getRunning()) {
+        throw new StoreException("Search task " + threadId + " did not finish in time.");
+      }
+      Vector<Match> matches = new Vector<Match>();
+      for (int page = 0; ; page++) {
+        Match[] pageMatches = pageLength == null?
+          labbcat.getMatches(threadId, wordsContext)
+          : labbcat.getMatches(threadId, wordsContext, pageLength, page);
+        if (pageMatches == null) throw new StoreException("Search cancelled.");
+        matches.addAll(Arrays.asList(pageMatches));
+        if (pageLength == null || pageMatches.length < pageLength) break;
+      } // next page
+      return matches;
+    } finally { // release the task to save server resources
+      try { labbcat.releaseTask(threadId); } catch(Exception exception) {}
+    }
+  } // end of collect()
+
+  /**
+   * Orders the matches of all shards by transcript, then position, and applies
+   * <var>matchesPerTranscript</var>.
+   * @param matches The matches of all shards.
+   * @param matchesPerTranscript The maximum number of matches per transcript, or null.
+   * @return The merged matches.
+   */
+  protected Match[] merge(Vector<Match> matches, Integer matchesPerTranscript) {
+    Collections.sort(matches, Comparator.comparing(Match::getTranscript)
+                     .thenComparing(Match::getLine)
+                     .thenComparing(Match::getLineEnd)
+                     .thenComparing(Match::getMatchId));
+    if (matchesPerTranscript != null) {
+      HashMap<String,Integer> counts = new HashMap<String,Integer>();
+      matches.removeIf(
+        match -> counts.merge(match.getTranscript(), 1, Integer::sum) > matchesPerTranscript);
+    }
+    return matches.toArray(new Match[0]);
+  } // end of merge()
+  
+} // end of class ParallelSearch
@@ -21,13 +21,22 @@
 //
 package nzilbb.labbcat;
 
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.LinkedHashMap;
+import java.util.TreeSet;
 import java.util.Vector;
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import nzilbb.labbcat.http.HttpDownload;
 
 /**
  * Helper class for building layered search patterns for
@@ -236,6 +245,125 @@ public class PatternBuilder {
       return Json.createObjectBuilder().add("columns", jsonColumns).build();
    } // end of build()
    
+   /**
+    * Constructs the canonical form of the pattern.
+    * @return The canonical form of the pattern.
+    * @see #Canonical(JsonObject)
+    */
+   public JsonObject canonical() {
+      return Canonical(build());
+   } // end of canonical()
+   
+   /**
+    * Computes a stable hash of the pattern.
+    * @return The hash of the pattern's canonical form.
+    * @see #Hash(JsonObject)
+    */
+   public String hash() {
+      return Hash(build());
+   } // end of hash()
+   
+   /**
+    * Constructs the canonical form of a pattern, so that patterns that search for the
+    * same thing have the same serialization, however they were constructed.
+    * <p> In the canonical form:
+    * <ul>
+    *  <li> object keys are in alphabetical order, </li>
+    *  <li> <q>min</q> and <q>max</q> values are numeric strings without trailing zeros
+    *       or exponents, e.g. <q>2</q> rather than <q>2.0</q> or <q>2e0</q>, </li>
+    *  <li> other numbers are integers if they're integral, and </li>
+    *  <li> <q>"not":false</q> is omitted, as it's the default. </li>
+    * </ul>
+    * Regular expressions are left as they are.
+    * @param pattern A pattern, as for
+    * {@link LabbcatView#search(JsonObject,String[],String[],boolean,Integer,Integer,Integer)}.
+    * @return The canonical form of the pattern.
+    */
+   public static JsonObject Canonical(JsonObject pattern) {
+      return (JsonObject)Canonical(null, pattern);
+   } // end of Canonical()
+   
+   /**
+    * Computes a stable hash of a pattern, which is the same for patterns that have the
+    * same {@link #Canonical(JsonObject)} form.
+    * @param pattern A pattern.
+    * @return A hex-encoded SHA-256 hash of the canonical form of the pattern.
+    */
+   public static String Hash(JsonObject pattern) {
+      return Sha256(Canonical(pattern).toString());
+   } // end of Hash()
+   
+   /**
+    * Computes the hex-encoded SHA-256 hash of a string.
+    * @param s The string.
+    * @return The hex-encoded SHA-256 hash of the UTF-8 encoding of <var>s</var>.
+    */
+   protected static String Sha256(String s) {
+      try {
+         return HttpDownload.Hex(
+            MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8)));
+      } catch(NoSuchAlgorithmException x) { // SHA-256 is always supported
+         throw new RuntimeException(x);
+      }
+   } // end of Sha256()
+   
+   /**
+    * Constructs the canonical form of a JSON value.
+    * @param key The key of the value in its parent object, or null.
+    * @param value The value.
+    * @return The canonical form of the value.
+    */
+   private static JsonValue Canonical(String key, JsonValue value) {
+      switch (value.getValueType()) {
+         case OBJECT: {
+            JsonObject object = (JsonObject)value;
+            JsonObjectBuilder canonical = Json.createObjectBuilder();
+            for (String k : new TreeSet<String>(object.keySet())) {
+               JsonValue v = object.get(k);
+               if (k.equals("not") && v == JsonValue.FALSE) continue;
+               canonical.add(k, Canonical(k, v));
+            } // next key
+            return canonical.build();
+         }
+         case ARRAY: {
+            JsonArrayBuilder canonical = Json.createArrayBuilder();
+            for (JsonValue v : (JsonArray)value) canonical.add(Canonical(null, v));
+            return canonical.build();
+         }
+         case NUMBER: {
+            BigDecimal number = ((JsonNumber)value).bigDecimalValue();
+            if ("min".equals(key) || "max".equals(key)) {
+               return Json.createValue(Normalized(number));
+            }
+            number = number.stripTrailingZeros();
+            if (number.scale() <= 0) return Json.createValue(number.toBigIntegerExact());
+            return Json.createValue(number);
+         }
+         case STRING: {
+            if ("min".equals(key) || "max".equals(key)) {
+               String string = ((JsonString)value).getString().trim();
+               try {
+                  return Json.createValue(Normalized(new BigDecimal(string)));
+               } catch(NumberFormatException x) { // not a number, leave it as it is
+               }
+            }
+            return value;
+         }
+         default:
+            return value;
+      }
+   } // end of Canonical()
+   
+   /**
+    * Normalizes a number as a string without trailing zeros or an exponent.
+    * @param number The number.
+    * @return The normalized string.
+    */
+   private static String Normalized(BigDecimal number) {
+      if (number.signum() == 0) return "0";
+      return number.stripTrailingZeros().toPlainString();
+   } // end of Normalized()
+   
    /**
     * Returns the last column, adding one if there aren't any.
     * @return The last column.
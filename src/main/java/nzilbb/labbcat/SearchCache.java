@@ -0,0 +1,445 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonWriter;
+import nzilbb.ag.StoreException;
+import nzilbb.labbcat.model.Match;
+
+/**
+ * A local cache of search results, as returned by
+ * {@link LabbcatView#getMatches(JsonObject,String[],String[],boolean,Integer,Integer,Integer,int)}.
+ * <p> Results are keyed by the server and user, the
+ * {@link PatternBuilder#Canonical(JsonObject) canonical form} of the pattern, and all the
+ * other search parameters (see
+ * {@link #Key(URL,String,JsonObject,String[],String[],boolean,Integer,Integer,Integer,int,Integer)}),
+ * so equivalent searches share an entry even if their patterns were constructed
+ * differently, or their participant IDs listed in a different order.
+ * <p> If the same search is requested by several threads at once, only one of them
+ * runs it on the server, and the others wait for and share its results.
+ * <p> The most recently used entries are kept in memory, and if a directory is
+ * given, all entries are also saved to disk, so they can be shared across runs, and
+ * between processes that use the same directory. Entries older than
+ * {@link #getMaxAge()} are not used. The cache is cleared when a transcript, participant,
+ * or layer dictionary is changed through a {@link LabbcatEdit} object that uses it, as any
+ * search may then have different results.
+ * <p> The same {@link Match} objects are returned to every caller that gets a
+ * cached entry, so callers should not modify them.
+ * <p> e.g.
+ * <pre> labbcat.setSearchCache(
+ *   new SearchCache(new File("search-cache")).setMaxAge(24 * 60 * 60 * 1000));
+ * Match[] matches = labbcat.getMatches(
+ *   pattern, participantIds, null, true, null, null, null, 1); // searches
+ * matches = labbcat.getMatches(
+ *   pattern, participantIds, null, true, null, null, null, 1); // cached</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class SearchCache {
+
+  // Attributes:
+
+  /** Entries held in memory, in order of access (least recently used first). */
+  private final LinkedHashMap<String,Entry> entries
+  = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+  /** Searches currently running, by key. */
+  private final ConcurrentHashMap<String,CompletableFuture<Match[]>> inFlight
+  = new ConcurrentHashMap<String,CompletableFuture<Match[]>>();
+
+  /** Number of requests served from memory. */
+  private long memoryHits = 0;
+
+  /** Number of requests served from disk. */
+  private long diskHits = 0;
+
+  /** Number of requests that shared the results of a search already running. */
+  private long shared = 0;
+
+  /** Number of requests that ran a search. */
+  private long misses = 0;
+
+  /**
+   * Directory in which cached results are stored, or null to cache results in memory
+   * only.
+   * @see #getDir()
+   */
+  protected File dir;
+  /**
+   * Getter for {@link #dir}: Directory in which cached results are stored, or null to
+   * cache results in memory only.
+   * @return Directory in which cached results are stored, or null.
+   */
+  public File getDir() { return dir; }
+
+  /**
+   * Maximum number of entries held in memory. Default is 32.
+   * @see #getMaxMemoryEntries()
+   * @see #setMaxMemoryEntries(int)
+   */
+  protected int maxMemoryEntries = 32;
+  /**
+   * Getter for {@link #maxMemoryEntries}: Maximum number of entries held in memory.
+   * @return Maximum number of entries held in memory.
+   */
+  public int getMaxMemoryEntries() { return maxMemoryEntries; }
+  /**
+   * Setter for {@link #maxMemoryEntries}: Maximum number of entries held in memory.
+   * @param newMaxMemoryEntries Maximum number of entries held in memory.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public synchronized SearchCache setMaxMemoryEntries(int newMaxMemoryEntries) {
+    maxMemoryEntries = Math.max(0, newMaxMemoryEntries);
+    evict();
+    return this;
+  }
+
+  /**
+   * Maximum age of entries that can be used, in milliseconds, or 0 for no maximum.
+   * Default is 0.
+   * @see #getMaxAge()
+   * @see #setMaxAge(long)
+   */
+  protected long maxAge = 0;
+  /**
+   * Getter for {@link #maxAge}: Maximum age of entries that can be used, in
+   * milliseconds, or 0 for no maximum.
+   * @return Maximum age of entries, in milliseconds.
+   */
+  public long getMaxAge() { return maxAge; }
+  /**
+   * Setter for {@link #maxAge}: Maximum age of entries that can be used, in
+   * milliseconds, or 0 for no maximum. As changes made by others are not otherwise
+   * detected, this should be set if the database may be changed by others.
+   * @param newMaxAge Maximum age of entries, in milliseconds.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public SearchCache setMaxAge(long newMaxAge) { maxAge = Math.max(0, newMaxAge); return this; }
+
+  // Methods:
+
+  /**
+   * Constructor for a cache held in memory only.
+   */
+  public SearchCache() {
+  } // end of constructor
+
+  /**
+   * Constructor for a cache that's saved to disk.
+   * @param dir Directory in which cached results are stored. It will be created if it
+   * doesn't exist.
+   * @throws IOException If the directory can't be created.
+   */
+  public SearchCache(File dir) throws IOException {
+    this.dir = dir;
+    if (!dir.exists()) Files.createDirectories(dir.toPath());
+  } // end of constructor
+
+  /**
+   * Runs a search.
+   */
+  public interface Search {
+    /**
+     * Runs the search.
+     * @return The matches, or null if the search was cancelled.
+     * @throws IOException If a communications error occurs.
+     * @throws StoreException If the server returns an error.
+     */
+    Match[] run() throws IOException, StoreException;
+  }
+
+  /**
+   * Gets the results of a search, from the cache if possible. Otherwise, if the same
+   * search is already running, waits for its results, or else runs the search and caches
+   * its results.
+   * @param key The key of the search, from
+   * {@link #Key(URL,String,JsonObject,String[],String[],boolean,Integer,Integer,Integer,int,Integer)}.
+   * @param search Runs the search, if required.
+   * @return The matches, or null if the search was cancelled.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  public Match[] get(String key, Search search) throws IOException, StoreException {
+    Match[] matches = cached(key);
+    if (matches != null) return matches;
+    
+    CompletableFuture<Match[]> mine = new CompletableFuture<Match[]>();
+    CompletableFuture<Match[]> running = inFlight.putIfAbsent(key, mine);
+    if (running != null) { // someone else is running the same search
+      synchronized (this) { shared++; }
+      try {
+        return running.get();
+      } catch(ExecutionException x) {
+        Throwable cause = x.getCause();
+        if (cause instanceof IOException) throw (IOException)cause;
+        if (cause instanceof StoreException) throw (StoreException)cause;
+        throw new StoreException("Search failed: " + cause.getMessage(), cause);
+      } catch(InterruptedException x) {
+        throw new StoreException("Interrupted", x);
+      }
+    }
+    try {
+      // it may have finished between checking the cache and checking for running searches
+      matches = cached(key);
+      if (matches != null) {
+        mine.complete(matches);
+        return matches;
+      }
+      synchronized (this) { misses++; }
+      matches = search.run();
+      if (matches != null) put(key, matches);
+      mine.complete(matches);
+      return matches;
+    } catch(IOException | StoreException | RuntimeException x) {
+      mine.completeExceptionally(x);
+      throw x;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  } // end of get()
+
+  /**
+   * Gets a cached entry.
+   * @param key The key of the search.
+   * @return The cached matches, or null if there are none.
+   * @throws IOException If the entry can't be read from disk.
+   */
+  protected synchronized Match[] cached(String key) throws IOException {
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      if (!expired(entry.created)) {
+        memoryHits++;
+        return entry.matches;
+      }
+      entries.remove(key);
+    }
+    if (dir == null) return null;
+    File file = new File(dir, key + ".json");
+    if (!file.exists()) return null;
+    if (expired(file.lastModified())) {
+      file.delete();
+      return null;
+    }
+    JsonArray array;
+    try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+         JsonReader json = Json.createReader(reader)) {
+      array = json.readArray();
+    } catch(javax.json.JsonException x) { // corrupt entry
+      file.delete();
+      return null;
+    }
+    Match[] matches = new Match[array.size()];
+    for (int m = 0; m < matches.length; m++) matches[m] = new Match(array.getJsonObject(m));
+    entries.put(key, new Entry(matches, file.lastModified()));
+    evict();
+    diskHits++;
+    return matches;
+  } // end of cached()
+
+  /**
+   * Adds search results to the cache.
+   * @param key The key of the search.
+   * @param matches The matches.
+   * @throws IOException If the entry can't be written to disk.
+   */
+  public synchronized void put(String key, Match[] matches) throws IOException {
+    entries.put(key, new Entry(matches, System.currentTimeMillis()));
+    evict();
+    if (dir == null) return;
+    JsonArrayBuilder array = Json.createArrayBuilder();
+    for (Match match : matches) array.add(match.toJson());
+    File file = new File(dir, key + ".json");
+    File temp = new File(dir, key + ".json.tmp");
+    try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8);
+         JsonWriter json = Json.createWriter(writer)) {
+      json.writeArray(array.build());
+    }
+    Files.move(temp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  } // end of put()
+
+  /**
+   * Removes all cached entries, from memory and disk. Searches that are running are not
+   * affected.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    if (dir == null) return;
+    File[] files = dir.listFiles((d, name) -> name.endsWith(".json"));
+    if (files != null) for (File file : files) file.delete();
+  } // end of clear()
+
+  /**
+   * Gets the number of entries held in memory.
+   * @return The number of entries held in memory.
+   */
+  public synchronized int getMemoryCount() {
+    return entries.size();
+  } // end of getMemoryCount()
+
+  /**
+   * Gets the number of requests served from memory.
+   * @return The number of requests served from memory.
+   */
+  public synchronized long getMemoryHits() {
+    return memoryHits;
+  } // end of getMemoryHits()
+
+  /**
+   * Gets the number of requests served from disk.
+   * @return The number of requests served from disk.
+   */
+  public synchronized long getDiskHits() {
+    return diskHits;
+  } // end of getDiskHits()
+
+  /**
+   * Gets the number of requests that shared the results of an identical search that was
+   * already running.
+   * @return The number of requests that shared a running search.
+   */
+  public synchronized long getShared() {
+    return shared;
+  } // end of getShared()
+
+  /**
+   * Gets the number of requests that ran a search.
+   * @return The number of cache misses.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  } // end of getMisses()
+
+  /**
+   * Determines whether an entry created at the given time is too old to use.
+   * @param created When the entry was created.
+   * @return true if the entry is older than {@link #maxAge}.
+   */
+  private boolean expired(long created) {
+    return maxAge > 0 && System.currentTimeMillis() - created > maxAge;
+  } // end of expired()
+
+  /**
+   * Removes least recently used entries from memory until there are no more than
+   * {@link #maxMemoryEntries}.
+   */
+  private void evict() {
+    Iterator<String> eldest = entries.keySet().iterator();
+    while (entries.size() > maxMemoryEntries && eldest.hasNext()) {
+      eldest.next();
+      eldest.remove();
+    }
+  } // end of evict()
+
+  /**
+   * Computes the key of a search, which is the same for all searches that would have
+   * the same results.
+   * <p> The server and user are included, as the same search can have different results
+   * on different servers, or for users with different access to transcripts, and a cache
+   * directory may be shared between clients.
+   * @param labbcatUrl The URL of the server the search runs on.
+   * @param username The user the search runs as, or null.
+   * @param pattern The search pattern, which is {@link PatternBuilder#Canonical(JsonObject)
+   * canonicalized}.
+   * @param participantIds The participant IDs, or null; their order is ignored.
+   * @param transcriptTypes The transcript types, or null; their order is ignored.
+   * @param mainParticipantOnly Whether only main-participant utterances are searched.
+   * @param offsetThreshold The minimum alignment confidence, or null.
+   * @param matchesPerTranscript The maximum number of matches per transcript, or null.
+   * @param overlapThreshold The overlap threshold, or null.
+   * @param wordsContext Number of words context.
+   * @param maxMatches The maximum number of matches, or null.
+   * @return A hex-encoded SHA-256 hash of the search parameters.
+   */
+  public static String Key(
+    URL labbcatUrl, String username, JsonObject pattern, String[] participantIds,
+    String[] transcriptTypes, boolean mainParticipantOnly, Integer offsetThreshold,
+    Integer matchesPerTranscript, Integer overlapThreshold, int wordsContext,
+    Integer maxMatches) {
+    JsonObjectBuilder key = Json.createObjectBuilder()
+      .add("labbcatUrl", labbcatUrl == null? "" : labbcatUrl.toString())
+      .add("pattern", PatternBuilder.Canonical(pattern))
+      .add("mainParticipantOnly", mainParticipantOnly)
+      .add("wordsContext", wordsContext);
+    if (username != null) key.add("username", username);
+    if (participantIds != null) key.add("participantIds", Sorted(participantIds));
+    if (transcriptTypes != null) key.add("transcriptTypes", Sorted(transcriptTypes));
+    if (offsetThreshold != null) key.add("offsetThreshold", offsetThreshold);
+    if (matchesPerTranscript != null) key.add("matchesPerTranscript", matchesPerTranscript);
+    if (overlapThreshold != null) key.add("overlapThreshold", overlapThreshold);
+    if (maxMatches != null) key.add("maxMatches", maxMatches);
+    // canonicalize again so that the parameters are in key order too
+    return PatternBuilder.Hash(key.build());
+  } // end of Key()
+
+  /**
+   * Sorts and de-duplicates a list of values.
+   * @param values The values.
+   * @return A JSON array of the distinct values, in order.
+   */
+  private static JsonArrayBuilder Sorted(String[] values) {
+    JsonArrayBuilder array = Json.createArrayBuilder();
+    for (String value : new TreeSet<String>(Arrays.asList(values))) array.add(value);
+    return array;
+  } // end of Sorted()
+
+  /**
+   * Summary of cache usage, for logging.
+   * @return A string representation of the object.
+   */
+  @Override public synchronized String toString() {
+    return "SearchCache: " + entries.size() + " entries in memory, " + memoryHits
+      + " memory hits, " + diskHits + " disk hits, " + shared + " shared, " + misses
+      + " misses";
+  } // end of toString()
+
+  /** A cached entry. */
+  private static class Entry {
+    final Match[] matches;
+    final long created;
+    Entry(Match[] matches, long created) {
+      this.matches = matches;
+      this.created = created;
+    }
+  }
+  
+} // end of class SearchCache
@@ -0,0 +1,367 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.StoreException;
+
+/**
+ * Runs a counting or aggregating query as several smaller queries, one per corpus (or
+ * other shard), concurrently, and merges the results.
+ * <p> On a large database, queries like
+ * {@link LabbcatView#countMatchingAnnotations(String)} over the whole database can take
+ * minutes, and may time out. This class adds a clause to the expression restricting it to
+ * one shard - by default, one corpus - for each of {@link #getShards()}, runs the shard
+ * queries {@link #getThreads()} at a time, and merges the results:
+ * <ul>
+ *  <li> counts are summed, </li>
+ *  <li> transcript IDs are combined in ID order, </li>
+ *  <li> DISTINCT labels are combined in label order, </li>
+ *  <li> DISTINCT,COUNT label/count pairs are combined, summing the counts of labels that
+ *       appear in more than one shard, and </li>
+ *  <li> COUNT DISTINCT is computed from the combined DISTINCT labels (shard counts can't
+ *       simply be summed). </li>
+ * </ul>
+ * Other aggregate operations, including MIN and MAX, are passed through to the server
+ * unsharded, as the server's ordering of labels (e.g. numeric or collated) can't be
+ * reproduced here.
+ * <p> The shard clauses are formatted from {@link #getAnnotationShardClause()} and
+ * {@link #getTranscriptShardClause()}, with <tt>{0}</tt> replaced with the quoted shard
+ * value, so other partitionings are possible, e.g. shards of transcripts:
+ * <pre> ShardedQuery query = new ShardedQuery(labbcat)
+ *   .setShards(labbcat.getTranscriptIdsInCorpus("QB"))
+ *   .setAnnotationShardClause("graph.id == {0}")
+ *   .setThreads(8);
+ * long count = query.countMatchingAnnotations("layer.id == 'orthography'");</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ShardedQuery {
+
+  // Attributes:
+
+  /**
+   * The client to run queries with.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to run queries with.
+   * @return The client to run queries with.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /**
+   * The values that partition queries, or null to use all corpus IDs.
+   * @see #getShards()
+   * @see #setShards(String[])
+   */
+  protected String[] shards;
+  /**
+   * Getter for {@link #shards}: The values that partition queries, or null to use all
+   * corpus IDs.
+   * @return The values that partition queries.
+   */
+  public String[] getShards() { return shards; }
+  /**
+   * Setter for {@link #shards}: The values that partition queries, or null to use all
+   * corpus IDs. Each shard's clause must select a disjoint set of annotations (or
+   * transcripts), and together they must cover the whole database, for results to be
+   * correct.
+   * @param newShards The values that partition queries.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public ShardedQuery setShards(String... newShards) { shards = newShards; return this; }
+
+  /**
+   * The clause that restricts an annotation expression to one shard, with <tt>{0}</tt>
+   * standing for the quoted shard value. Default is <q>graph.corpus == {0}</q>.
+   * @see #getAnnotationShardClause()
+   * @see #setAnnotationShardClause(String)
+   */
+  protected String annotationShardClause = "graph.corpus == {0}";
+  /**
+   * Getter for {@link #annotationShardClause}: The clause that restricts an annotation
+   * expression to one shard.
+   * @return The clause that restricts an annotation expression to one shard.
+   */
+  public String getAnnotationShardClause() { return annotationShardClause; }
+  /**
+   * Setter for {@link #annotationShardClause}: The clause that restricts an annotation
+   * expression to one shard.
+   * @param newAnnotationShardClause The clause that restricts an annotation expression
+   * to one shard, with <tt>{0}</tt> standing for the quoted shard value.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public ShardedQuery setAnnotationShardClause(String newAnnotationShardClause) { annotationShardClause = newAnnotationShardClause; return this; }
+
+  /**
+   * The clause that restricts a transcript expression to one shard, with <tt>{0}</tt>
+   * standing for the quoted shard value. Default is <q>first('corpus').label == {0}</q>.
+   * @see #getTranscriptShardClause()
+   * @see #setTranscriptShardClause(String)
+   */
+  protected String transcriptShardClause = "first('corpus').label == {0}";
+  /**
+   * Getter for {@link #transcriptShardClause}: The clause that restricts a transcript
+   * expression to one shard.
+   * @return The clause that restricts a transcript expression to one shard.
+   */
+  public String getTranscriptShardClause() { return transcriptShardClause; }
+  /**
+   * Setter for {@link #transcriptShardClause}: The clause that restricts a transcript
+   * expression to one shard.
+   * @param newTranscriptShardClause The clause that restricts a transcript expression
+   * to one shard, with <tt>{0}</tt> standing for the quoted shard value.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public ShardedQuery setTranscriptShardClause(String newTranscriptShardClause) { transcriptShardClause = newTranscriptShardClause; return this; }
+
+  /**
+   * The number of shard queries to run at once. Default is 4.
+   * @see #getThreads()
+   * @see #setThreads(int)
+   */
+  protected int threads = 4;
+  /**
+   * Getter for {@link #threads}: The number of shard queries to run at once.
+   * @return The number of shard queries to run at once.
+   */
+  public int getThreads() { return threads; }
+  /**
+   * Setter for {@link #threads}: The number of shard queries to run at once.
+   * @param newThreads The number of shard queries to run at once.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public ShardedQuery setThreads(int newThreads) { threads = Math.max(1, newThreads); return this; }
+
+  // Methods:
+
+  /**
+   * Constructor.
+   * @param labbcat The client to run queries with.
+   */
+  public ShardedQuery(LabbcatView labbcat) {
+    this.labbcat = labbcat;
+  } // end of constructor
+
+  /**
+   * Counts the annotations that match a particular pattern.
+   * @param expression An expression that determines which annotations match, as for
+   * {@link LabbcatView#countMatchingAnnotations(String)}.
+   * @return The number of matching annotations.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public long countMatchingAnnotations(String expression)
+    throws StoreException, PermissionException {
+    long count = 0;
+    for (Integer shardCount : fanOut(
+           annotationShardClause, expression, e -> labbcat.countMatchingAnnotations(e))) {
+      count += shardCount;
+    }
+    return count;
+  } // end of countMatchingAnnotations()
+
+  /**
+   * Counts the transcripts that match a particular pattern.
+   * @param expression An expression that determines which transcripts match, as for
+   * {@link LabbcatView#countMatchingTranscriptIds(String)}.
+   * @return The number of matching transcripts.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public long countMatchingTranscriptIds(String expression)
+    throws StoreException, PermissionException {
+    long count = 0;
+    for (Integer shardCount : fanOut(
+           transcriptShardClause, expression, e -> labbcat.countMatchingTranscriptIds(e))) {
+      count += shardCount;
+    }
+    return count;
+  } // end of countMatchingTranscriptIds()
+
+  /**
+   * Gets the IDs of transcripts that match a particular pattern.
+   * @param expression An expression that determines which transcripts match, as for
+   * {@link LabbcatView#getMatchingTranscriptIds(String,Integer,Integer,String)}.
+   * @return The matching transcript IDs, in ID order.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public String[] getMatchingTranscriptIds(String expression)
+    throws StoreException, PermissionException {
+    TreeSet<String> ids = new TreeSet<String>();
+    for (String[] shardIds : fanOut(
+           transcriptShardClause, expression,
+           e -> labbcat.getMatchingTranscriptIds(e, null, null, null))) {
+      if (shardIds != null) ids.addAll(Arrays.asList(shardIds));
+    }
+    return ids.toArray(new String[0]);
+  } // end of getMatchingTranscriptIds()
+
+  /**
+   * Aggregates the labels of annotations that match a particular pattern.
+   * <p> The operations COUNT, DISTINCT, COUNT DISTINCT, and DISTINCT,COUNT are
+   * sharded. Other operations, including MIN and MAX, are passed to the server unsharded,
+   * because shard results can't be compared in the server's label order.
+   * @param operation The aggregation operation(s), as for
+   * {@link LabbcatView#aggregateMatchingAnnotations(String,String)}.
+   * @param expression An expression that determines which annotations match.
+   * @return A list of results, as for
+   * {@link LabbcatView#aggregateMatchingAnnotations(String,String)}. Distinct labels are
+   * listed in label order.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public String[] aggregateMatchingAnnotations(String operation, String expression)
+    throws StoreException, PermissionException {
+    String op = operation.trim().toUpperCase().replaceAll("\\s*,\\s*", ",")
+      .replaceAll("\\s+", " ");
+    switch (op) {
+      case "COUNT": {
+        long count = 0;
+        for (String[] result : aggregate("COUNT", expression)) {
+          if (result != null && result.length > 0) count += Long.parseLong(result[0]);
+        }
+        return new String[] { String.valueOf(count) };
+      }
+      case "DISTINCT": {
+        return distinct(expression).toArray(new String[0]);
+      }
+      case "COUNT DISTINCT": {
+        return new String[] { String.valueOf(distinct(expression).size()) };
+      }
+      case "DISTINCT,COUNT": {
+        TreeMap<String,Long> counts = new TreeMap<String,Long>();
+        for (String[] result : aggregate(op, expression)) {
+          if (result == null) continue;
+          for (int i = 0; i + 1 < result.length; i += 2) {
+            counts.merge(result[i], Long.parseLong(result[i + 1]), Long::sum);
+          }
+        }
+        Vector<String> pairs = new Vector<String>();
+        for (String label : counts.keySet()) {
+          pairs.add(label);
+          pairs.add(String.valueOf(counts.get(label)));
+        }
+        return pairs.toArray(new String[0]);
+      }
+      default: // can't be merged, so don't shard
+        return labbcat.aggregateMatchingAnnotations(operation, expression);
+    }
+  } // end of aggregateMatchingAnnotations()
+
+  /**
+   * Gets the distinct labels of all shards.
+   * @param expression An expression that determines which annotations match.
+   * @return The distinct labels, in label order.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  protected TreeSet<String> distinct(String expression)
+    throws StoreException, PermissionException {
+    TreeSet<String> labels = new TreeSet<String>();
+    for (String[] result : aggregate("DISTINCT", expression)) {
+      if (result != null) labels.addAll(Arrays.asList(result));
+    }
+    return labels;
+  } // end of distinct()
+
+  /**
+   * Runs an aggregate operation on every shard.
+   * @param operation The aggregation operation.
+   * @param expression An expression that determines which annotations match.
+   * @return The result of each shard.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  protected Vector<String[]> aggregate(String operation, String expression)
+    throws StoreException, PermissionException {
+    return fanOut(annotationShardClause, expression,
+                  e -> labbcat.aggregateMatchingAnnotations(operation, e));
+  } // end of aggregate()
+
+  /** A query on one shard. */
+  protected interface ShardQuery<T> {
+    T run(String expression) throws StoreException, PermissionException;
+  }
+
+  /**
+   * Restricts an expression to one shard.
+   * @param clause The shard clause, with <tt>{0}</tt> standing for the shard value.
+   * @param shard The shard value.
+   * @param expression The expression.
+   * @return The restricted expression.
+   */
+  public static String shardExpression(String clause, String shard, String expression) {
+    String quoted = "'" + shard.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    return "(" + clause.replace("{0}", quoted) + ") && (" + expression + ")";
+  } // end of shardExpression()
+
+  /**
+   * Runs a query on every shard, {@link #threads} at a time.
+   * @param <T> The type of result.
+   * @param clause The shard clause.
+   * @param expression The unsharded expression.
+   * @param query Runs the query on one shard.
+   * @return The result of each shard, in shard order.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  protected <T> Vector<T> fanOut(String clause, String expression, ShardQuery<T> query)
+    throws StoreException, PermissionException {
+    String[] shardValues = shards != null? shards : labbcat.getCorpusIds();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      LinkedHashMap<String,Future<T>> results = new LinkedHashMap<String,Future<T>>();
+      for (String shard : shardValues) {
+        String shardExpression = shardExpression(clause, shard, expression);
+        results.put(shard, pool.submit(() -> query.run(shardExpression)));
+      }
+      Vector<T> merged = new Vector<T>();
+      for (String shard : results.keySet()) {
+        try {
+          merged.add(results.get(shard).get());
+        } catch(ExecutionException x) {
+          Throwable cause = x.getCause();
+          if (cause instanceof PermissionException) throw (PermissionException)cause;
+          throw new StoreException("Shard " + shard + " failed: " + cause.getMessage(), cause);
+        }
+      }
+      return merged;
+    } catch(InterruptedException x) {
+      throw new StoreException("Interrupted", x);
+    } finally {
+      pool.shutdownNow();
+    }
+  } // end of fanOut()
+  
+} // end of class ShardedQuery
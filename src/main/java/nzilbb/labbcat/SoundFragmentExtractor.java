@@ -0,0 +1,787 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import nzilbb.ag.Graph;
+import nzilbb.ag.GraphNotFoundException;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.StoreException;
+import nzilbb.labbcat.http.HttpRequestGet;
+import nzilbb.labbcat.model.Match;
+import nzilbb.media.MediaException;
+import nzilbb.media.MediaThread;
+import nzilbb.media.wav.FragmentExtractor;
+import nzilbb.media.wav.TruncatingAudioInputStream;
+
+/**
+ * Extracts WAV sound fragments locally from full recordings, instead of asking the server
+ * to extract each fragment.
+ * <p> {@link LabbcatView#getSoundFragments(String[],Double[],Double[],Integer,File)}
+ * makes one request per fragment, and the server decodes the whole recording each
+ * time. This class downloads each distinct transcript's WAV recording once, then cuts all
+ * of that transcript's fragments from the local copy, using the same
+ * {@link FragmentExtractor} (including resampling if a sample rate is specified) that
+ * the server uses, so the resulting files are the same as those the server would return.
+ * <p> If a {@link MediaDownloader} is {@link #setMediaDownloader(MediaDownloader) set},
+ * recordings are kept in its cache for future use; otherwise they're downloaded to
+ * temporary files, which are deleted once the transcript's fragments are extracted.
+ * <p> Alternatively, if {@link #setByteRanges(boolean) byteRanges} is set, only the parts
+ * of each recording that are needed are downloaded: the WAV header is read from the
+ * start of the recording, byte ranges are computed for each fragment (coalescing those
+ * that are less than {@link #getMaxRangeGap()} bytes apart), and only those ranges are
+ * fetched. This is worthwhile when only a few fragments are needed from each long
+ * recording. If the server doesn't honour <tt>Range</tt> requests, or the recording is
+ * not PCM, the whole recording is downloaded instead. When resampling byte ranges, the
+ * recording before each fragment isn't resampled, so samples may differ very slightly
+ * from those the server would return.
+ * <p> e.g.
+ * <pre> File[] wavs = new SoundFragmentExtractor(labbcat)
+ *   .setThreads(4)
+ *   .getSoundFragments(matches, 16000, dir);</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class SoundFragmentExtractor {
+
+  // Attributes:
+
+  /**
+   * The client to get recordings from.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to get recordings from.
+   * @return The client to get recordings from.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /**
+   * Optional media cache for downloading recordings. Default is null, meaning
+   * recordings are downloaded to temporary files and deleted after use.
+   * @see #getMediaDownloader()
+   * @see #setMediaDownloader(MediaDownloader)
+   */
+  protected MediaDownloader mediaDownloader;
+  /**
+   * Getter for {@link #mediaDownloader}: Optional media cache for downloading recordings.
+   * @return Optional media cache for downloading recordings.
+   */
+  public MediaDownloader getMediaDownloader() { return mediaDownloader; }
+  /**
+   * Setter for {@link #mediaDownloader}: Optional media cache for downloading recordings.
+   * @param newMediaDownloader Optional media cache for downloading recordings.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public SoundFragmentExtractor setMediaDownloader(MediaDownloader newMediaDownloader) { mediaDownloader = newMediaDownloader; return this; }
+
+  /**
+   * The track suffix of the recording to extract fragments from. Default is "".
+   * @see #getTrackSuffix()
+   * @see #setTrackSuffix(String)
+   */
+  protected String trackSuffix = "";
+  /**
+   * Getter for {@link #trackSuffix}: The track suffix of the recording to extract
+   * fragments from.
+   * @return The track suffix of the recording to extract fragments from.
+   */
+  public String getTrackSuffix() { return trackSuffix; }
+  /**
+   * Setter for {@link #trackSuffix}: The track suffix of the recording to extract
+   * fragments from.
+   * @param newTrackSuffix The track suffix of the recording to extract fragments from.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public SoundFragmentExtractor setTrackSuffix(String newTrackSuffix) { trackSuffix = newTrackSuffix; return this; }
+
+  /**
+   * Number of transcripts to process concurrently. Default is 1.
+   * @see #getThreads()
+   * @see #setThreads(int)
+   */
+  protected int threads = 1;
+  /**
+   * Getter for {@link #threads}: Number of transcripts to process concurrently.
+   * @return Number of transcripts to process concurrently.
+   */
+  public int getThreads() { return threads; }
+  /**
+   * Setter for {@link #threads}: Number of transcripts to process concurrently.
+   * @param newThreads Number of transcripts to process concurrently.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public SoundFragmentExtractor setThreads(int newThreads) { threads = Math.max(1, newThreads); return this; }
+
+  /**
+   * Whether to fetch only the byte ranges of each recording that are required, rather
+   * than the whole recording. Default is false.
+   * @see #getByteRanges()
+   * @see #setByteRanges(boolean)
+   */
+  protected boolean byteRanges = false;
+  /**
+   * Getter for {@link #byteRanges}: Whether to fetch only the byte ranges of each
+   * recording that are required, rather than the whole recording.
+   * @return Whether to fetch only the byte ranges of each recording that are required.
+   */
+  public boolean getByteRanges() { return byteRanges; }
+  /**
+   * Setter for {@link #byteRanges}: Whether to fetch only the byte ranges of each
+   * recording that are required, rather than the whole recording.
+   * @param newByteRanges Whether to fetch only the byte ranges of each recording that
+   * are required.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public SoundFragmentExtractor setByteRanges(boolean newByteRanges) { byteRanges = newByteRanges; return this; }
+
+  /**
+   * Byte ranges that are closer together than this are fetched with a single
+   * request. Default is 64KiB.
+   * @see #getMaxRangeGap()
+   * @see #setMaxRangeGap(long)
+   */
+  protected long maxRangeGap = 64 * 1024;
+  /**
+   * Getter for {@link #maxRangeGap}: Byte ranges that are closer together than this are
+   * fetched with a single request.
+   * @return Byte ranges that are closer together than this are fetched with a single request.
+   */
+  public long getMaxRangeGap() { return maxRangeGap; }
+  /**
+   * Setter for {@link #maxRangeGap}: Byte ranges that are closer together than this are
+   * fetched with a single request.
+   * @param newMaxRangeGap Byte ranges that are closer together than this are fetched
+   * with a single request.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public SoundFragmentExtractor setMaxRangeGap(long newMaxRangeGap) { maxRangeGap = newMaxRangeGap; return this; }
+
+  /** Number of bytes initially requested when reading a WAV header. */
+  protected static final int HEADER_BYTES = 4096;
+  /** Maximum number of bytes requested when reading a WAV header. */
+  protected static final int MAX_HEADER_BYTES = 1024 * 1024;
+  /** Frames fetched either side of each fragment. */
+  protected static final int MARGIN_FRAMES = 16;
+  /**
+   * Frames fetched either side of each fragment when resampling, so that the resampler
+   * has the same input around the fragment as it would with the whole recording.
+   */
+  protected static final int RESAMPLE_MARGIN_FRAMES = 1024;
+
+  // Methods:
+
+  /**
+   * Constructor.
+   * @param labbcat The client to get recordings from.
+   */
+  public SoundFragmentExtractor(LabbcatView labbcat) {
+    this.labbcat = labbcat;
+  } // end of constructor
+
+  /**
+   * Extracts WAV sound fragments for the given matches.
+   * @param matches A list of {@link Match}es, perhaps returned by
+   * {@link LabbcatView#getMatches(String,int)}.
+   * @param sampleRate The desired sample rate, or null for no preference.
+   * @param dir A directory in which the files should be stored, or null for a temporary
+   * folder.  If specified, and the directory doesn't exist, it will be created.
+   * @return A list of WAV files, as for
+   * {@link LabbcatView#getSoundFragments(Match[],Integer,File)}.
+   * @throws IOException If a communications or file error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  public File[] getSoundFragments(Match[] matches, Integer sampleRate, File dir)
+    throws IOException, StoreException {
+    String[] transcriptIds = new String[matches.length];
+    Double[] startOffsets = new Double[matches.length];
+    Double[] endOffsets = new Double[matches.length];
+    for (int i = 0; i < matches.length; i++) {
+      transcriptIds[i] = matches[i].getTranscript();
+      startOffsets[i] = matches[i].getLine();
+      endOffsets[i] = matches[i].getLineEnd();
+    } // next match
+    return getSoundFragments(transcriptIds, startOffsets, endOffsets, sampleRate, dir);
+  } // end of getSoundFragments()
+
+  /**
+   * Extracts WAV sound fragments.
+   * @param transcriptIds A list of transcript IDs (transcript names).
+   * @param startOffsets A list of start offsets, with one element for each element in
+   * <var>transcriptIds</var>.
+   * @param endOffsets A list of end offsets, with one element for each element in
+   * <var>transcriptIds</var>.
+   * @param sampleRate The desired sample rate, or null for no preference.
+   * @param dir A directory in which the files should be stored, or null for a temporary
+   * folder.  If specified, and the directory doesn't exist, it will be created.
+   * @return A list of WAV files, as for
+   * {@link LabbcatView#getSoundFragments(String[],Double[],Double[],Integer,File)}; elements
+   * are null where the fragment could not be extracted.
+   * @throws IOException If a communications or file error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  public File[] getSoundFragments(
+    String[] transcriptIds, Double[] startOffsets, Double[] endOffsets, Integer sampleRate,
+    File dir) throws IOException, StoreException {
+
+    if (transcriptIds.length != startOffsets.length || transcriptIds.length != endOffsets.length) {
+      throw new StoreException(
+        "transcriptIds ("+transcriptIds.length +"), startOffsets ("+startOffsets.length
+        +"), and endOffsets ("+endOffsets.length+") must be arrays of equal size.");
+    }
+    if (dir == null) {
+      dir = labbcat.getTempFiles().createTempDirectory("getSoundFragments_");
+    } else {
+      if (!dir.exists()) Files.createDirectories(dir.toPath());
+    }
+    final File outputDir = dir;
+    File[] fragments = new File[transcriptIds.length];
+
+    // group fragment indices by transcript, so each recording is fetched once
+    Map<String,List<Integer>> byTranscript = new LinkedHashMap<String,List<Integer>>();
+    for (int i = 0; i < transcriptIds.length; i++) {
+      if (transcriptIds[i] == null || startOffsets[i] == null || endOffsets[i] == null) continue;
+      byTranscript.computeIfAbsent(transcriptIds[i], id -> new Vector<Integer>()).add(i);
+    } // next fragment
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> results = new Vector<Future<Void>>();
+      for (Map.Entry<String,List<Integer>> entry : byTranscript.entrySet()) {
+        results.add(pool.submit(() -> {
+              extractTranscript(
+                entry.getKey(), entry.getValue(), startOffsets, endOffsets, sampleRate,
+                outputDir, fragments);
+              return null;
+            }));
+      } // next transcript
+      for (Future<Void> result : results) {
+        try {
+          result.get();
+        } catch(InterruptedException x) {
+          throw new IOException(x);
+        } catch(ExecutionException x) {
+          if (x.getCause() instanceof IOException) throw (IOException)x.getCause();
+          if (x.getCause() instanceof StoreException) throw (StoreException)x.getCause();
+          if (x.getCause() instanceof PermissionException) {
+            throw new StoreException(x.getCause().getMessage(), x.getCause());
+          }
+          throw new StoreException(x.getCause());
+        }
+      } // next result
+    } finally {
+      pool.shutdownNow();
+    }
+    return fragments;
+  } // end of getSoundFragments()
+
+  /**
+   * Fetches one transcript's recording and extracts the given fragments from it.
+   * @param transcriptId The transcript ID.
+   * @param indices Indices of the fragments to extract from this transcript.
+   * @param startOffsets All start offsets.
+   * @param endOffsets All end offsets.
+   * @param sampleRate The desired sample rate, or null for no preference.
+   * @param dir Directory for the fragment files.
+   * @param fragments Array in which to set the resulting files.
+   * @throws IOException If a communications or file error occurs.
+   * @throws StoreException If the server returns an error.
+   * @throws PermissionException If the recording can't be accessed.
+   */
+  protected void extractTranscript(
+    String transcriptId, List<Integer> indices, Double[] startOffsets, Double[] endOffsets,
+    Integer sampleRate, File dir, File[] fragments)
+    throws IOException, StoreException, PermissionException {
+
+    if (byteRanges && (mediaDownloader == null
+                       || !mediaDownloader.isCached(transcriptId, trackSuffix, "audio/wav"))) {
+      try {
+        if (extractRanges(
+              transcriptId, indices, startOffsets, endOffsets, sampleRate, dir, fragments)) {
+          return;
+        } // otherwise, fall back to downloading the whole recording
+      } catch(GraphNotFoundException x) { // fragments are left null
+        return;
+      }
+    }
+    File recording = null;
+    try {
+      recording = mediaDownloader != null?
+        mediaDownloader.getMediaFile(transcriptId, trackSuffix, "audio/wav")
+        : labbcat.getMediaFile(transcriptId, trackSuffix, "audio/wav", null);
+    } catch(GraphNotFoundException x) { // fragments are left null
+    }
+    if (recording == null) {
+      if (labbcat.getVerbose()) {
+        System.out.println("SoundFragmentExtractor: no recording for " + transcriptId);
+      }
+      return;
+    }
+    try {
+      for (int i : indices) {
+        if (labbcat.isCancelling()) break;
+        File fragment = new File(
+          dir, Graph.FragmentId(transcriptId, startOffsets[i], endOffsets[i]) + ".wav");
+        extract(recording, startOffsets[i], endOffsets[i], sampleRate, fragment);
+        fragments[i] = fragment;
+      } // next fragment
+    } finally {
+      if (mediaDownloader == null) { // we don't need the recording any more
+        labbcat.getTempFiles().release(recording.getParentFile());
+      }
+    }
+  } // end of extractTranscript()
+
+  /**
+   * Extracts fragments from one transcript's recording by fetching only the byte ranges
+   * they need.
+   * @param transcriptId The transcript ID.
+   * @param indices Indices of the fragments to extract from this transcript.
+   * @param startOffsets All start offsets.
+   * @param endOffsets All end offsets.
+   * @param sampleRate The desired sample rate, or null for no preference.
+   * @param dir Directory for the fragment files.
+   * @param fragments Array in which to set the resulting files.
+   * @return true if the fragments were extracted, false if the server doesn't support
+   * byte ranges or the recording isn't PCM audio, in which case nothing has been extracted.
+   * @throws IOException If a communications or file error occurs.
+   * @throws StoreException If the server returns an error.
+   * @throws PermissionException If the recording can't be accessed.
+   * @throws GraphNotFoundException If the transcript doesn't exist.
+   */
+  protected boolean extractRanges(
+    String transcriptId, List<Integer> indices, Double[] startOffsets, Double[] endOffsets,
+    Integer sampleRate, File dir, File[] fragments)
+    throws IOException, StoreException, PermissionException, GraphNotFoundException {
+    
+    String url = labbcat.getMedia(transcriptId, trackSuffix, "audio/wav");
+    if (url == null) return true; // no recording, so fragments are left null
+    WavHeader header = readHeader(url);
+    if (header == null) return false;
+    AudioFormat format = header.format;
+    int frameSize = format.getFrameSize();
+    long dataLength = header.frameLength * frameSize;
+    // compute byte offsets the same way TruncatingAudioInputStream does
+    int bytesPerSecond = (int)(format.getFrameRate() * frameSize);
+    long margin = (sampleRate == null? MARGIN_FRAMES : RESAMPLE_MARGIN_FRAMES) * frameSize;
+
+    // byte range of each fragment, in data order
+    Vector<long[]> ranges = new Vector<long[]>();
+    for (int i : indices) {
+      long from = (long)(bytesPerSecond * startOffsets[i]) / frameSize * frameSize;
+      long to = ((long)(bytesPerSecond * endOffsets[i]) / frameSize + 1) * frameSize;
+      ranges.add(new long[] { Math.max(0, from - margin), Math.min(dataLength, to + margin) });
+    } // next fragment
+    ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+
+    // coalesce ranges that are close together
+    Vector<long[]> merged = new Vector<long[]>();
+    for (long[] range : ranges) {
+      long[] last = merged.isEmpty()? null : merged.lastElement();
+      if (last != null && range[0] - last[1] <= maxRangeGap) {
+        last[1] = Math.max(last[1], range[1]);
+      } else {
+        merged.add(range.clone());
+      }
+    } // next range
+    if (labbcat.getVerbose()) {
+      System.out.println(
+        "SoundFragmentExtractor: " + transcriptId + " " + indices.size() + " fragments in "
+        + merged.size() + " ranges");
+    }
+    
+    File rangeDir = labbcat.getTempFiles().createTempDirectory("ranges_");
+    try {
+      Vector<Segment> segments = new Vector<Segment>();
+      for (long[] range : merged) {
+        if (range[1] <= range[0]) continue;
+        File part = new File(rangeDir, segments.size() + ".pcm");
+        if (!fetchRange(url, header.dataOffset + range[0], header.dataOffset + range[1] - 1, part)) {
+          return false;
+        }
+        segments.add(new Segment(range[0], part));
+      } // next range
+      for (int i : indices) {
+        if (labbcat.isCancelling()) break;
+        File fragment = new File(
+          dir, Graph.FragmentId(transcriptId, startOffsets[i], endOffsets[i]) + ".wav");
+        try (AudioInputStream stream = new AudioInputStream(
+               new SparseInputStream(segments, dataLength), format, header.frameLength)) {
+          Extract(stream, startOffsets[i], endOffsets[i], sampleRate, fragment);
+        }
+        fragments[i] = fragment;
+      } // next fragment
+    } finally {
+      labbcat.getTempFiles().release(rangeDir);
+    }
+    return true;
+  } // end of extractRanges()
+
+  /**
+   * Reads the header of a WAV recording, using a byte-range request.
+   * @param url The URL of the recording.
+   * @return The header, or null if the server doesn't support byte ranges, or the
+   * recording isn't a PCM WAV file with a known length.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  protected WavHeader readHeader(String url) throws IOException, StoreException {
+    for (int size = HEADER_BYTES; size <= MAX_HEADER_BYTES; size *= 4) {
+      File part = labbcat.getTempFiles().createTempFile("header_", ".wav");
+      byte[] bytes = null;
+      try {
+        if (!fetchRange(url, 0, size - 1, part)) return null;
+        bytes = Files.readAllBytes(part.toPath());
+      } finally {
+        labbcat.getTempFiles().release(part);
+      }
+      ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+      try {
+        AudioInputStream stream = AudioSystem.getAudioInputStream(in);
+        AudioFormat.Encoding encoding = stream.getFormat().getEncoding();
+        if (stream.getFrameLength() == AudioSystem.NOT_SPECIFIED
+            || !(AudioFormat.Encoding.PCM_SIGNED.equals(encoding)
+                 || AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)
+                 || AudioFormat.Encoding.PCM_FLOAT.equals(encoding))) {
+          return null;
+        }
+        // the stream is now positioned at the start of the sample data
+        return new WavHeader(stream.getFormat(), stream.getFrameLength(), bytes.length - in.available());
+      } catch(UnsupportedAudioFileException | IOException x) {
+        if (bytes.length < size) return null; // we had the whole file, and it's not a WAV
+        // otherwise the header may be longer than we fetched, so try again
+      }
+    } // next size
+    return null;
+  } // end of readHeader()
+
+  /**
+   * Downloads a byte range of the given URL.
+   * @param url The URL.
+   * @param from The offset of the first byte.
+   * @param to The offset of the last byte (inclusive).
+   * @param file The file to save the content to.
+   * @return true if the range was downloaded, false if the server doesn't honour byte ranges.
+   * @throws IOException If a communications error occurs.
+   * @throws StoreException If the server returns an error.
+   */
+  protected boolean fetchRange(String url, long from, long to, File file)
+    throws IOException, StoreException {
+    labbcat.getTempFiles().reserve(file, to - from + 1);
+    HttpRequestGet request = labbcat.get(url)
+      .setHeader("Accept", "audio/wav")
+      .setHeader("Range", "bytes=" + from + "-" + to);
+    if (labbcat.getVerbose()) System.out.println("SoundFragmentExtractor -> " + request);
+    HttpURLConnection connection = request.get();
+    int status = connection.getResponseCode();
+    if (status == HttpURLConnection.HTTP_OK) { // whole file returned
+      if (labbcat.getVerbose()) System.out.println("Byte ranges not supported: " + url);
+      connection.disconnect();
+      return false;
+    } else if (status != HttpURLConnection.HTTP_PARTIAL) {
+      throw new StoreException(
+        "Error " + status + " " + connection.getResponseMessage() + " - " + request);
+    }
+    labbcat.getDownload().save(connection.getInputStream(), file, false);
+    labbcat.getTempFiles().charge(file);
+    return true;
+  } // end of fetchRange()
+
+  /**
+   * Extracts a single fragment from an audio stream of a whole recording, as
+   * {@link FragmentExtractor} does for a file.
+   * <p> Without a sample rate, the result is exactly the same. With one, the part of the
+   * recording before the fragment is skipped rather than resampled (see
+   * {@link #SkipBeforeResampling(AudioInputStream,double,double,AudioFormat)}); the
+   * resampler accumulates rounding error over its input, so samples may differ very
+   * slightly from resampling the whole recording.
+   * @param stream The whole recording.
+   * @param start Start time in seconds.
+   * @param end End time in seconds.
+   * @param sampleRate The desired sample rate, or null for the recording's own rate.
+   * @param fragment The file to write the fragment to.
+   * @throws IOException If the fragment could not be extracted.
+   */
+  public static void Extract(
+    AudioInputStream stream, double start, double end, Integer sampleRate, File fragment)
+    throws IOException {
+    try {
+      AudioFormat format = stream.getFormat();
+      long frames = stream.getFrameLength();
+      if (frames > 0) { // don't go past the end of the recording
+        double duration = frames / (double)format.getFrameRate();
+        if (start > duration) start = duration;
+        if (end > duration) end = duration;
+      }
+      if (sampleRate != null) {
+        AudioFormat resampled = new AudioFormat(
+          sampleRate, 16, format.getChannels(), true, true);
+        // don't resample everything before the fragment
+        double skipped = SkipBeforeResampling(stream, start, end, resampled);
+        start -= skipped;
+        end -= skipped;
+        format = resampled;
+        stream = AudioSystem.getAudioInputStream(format, stream);
+      }
+      AudioSystem.write(
+        new TruncatingAudioInputStream(stream, start, end), AudioFileFormat.Type.WAVE, fragment);
+    } catch(IOException | RuntimeException x) {
+      fragment.delete();
+      throw new IOException("Could not extract " + fragment.getName(), x);
+    }
+  } // end of Extract()
+
+  /**
+   * Skips the part of a recording that's before a fragment, so that it doesn't have to be
+   * resampled.
+   * <p> {@link #RESAMPLE_MARGIN_FRAMES} frames are left before the fragment, so that the
+   * resampler has the same input leading up to it. A whole number of output frames is
+   * skipped, so that the output frames fall at the same times as they would if the whole
+   * recording were resampled. Nothing is skipped if the fragment's start and end
+   * offsets in the output wouldn't be exactly the same number of bytes earlier.
+   * @param stream The whole recording, not yet read from.
+   * @param start Start time of the fragment in seconds.
+   * @param end End time of the fragment in seconds.
+   * @param resampled The format the recording will be resampled to.
+   * @return The number of seconds skipped, which should be subtracted from the
+   * fragment's start and end times.
+   * @throws IOException If the stream can't be skipped.
+   */
+  protected static double SkipBeforeResampling(
+    AudioInputStream stream, double start, double end, AudioFormat resampled)
+    throws IOException {
+    float inRate = stream.getFormat().getFrameRate();
+    float outRate = resampled.getFrameRate();
+    if (inRate != Math.rint(inRate) || outRate != Math.rint(outRate)) return 0.0;
+    // skip a multiple of this many input frames, which is a whole number of output frames
+    long step = (long)inRate / GCD((long)inRate, (long)outRate);
+    long skipFrames = ((long)(start * inRate) - RESAMPLE_MARGIN_FRAMES) / step * step;
+    if (skipFrames <= 0) return 0.0;
+    long outFrames = skipFrames * (long)outRate / (long)inRate;
+    double skipped = outFrames / (double)outRate;
+    // check fragment offsets are computed the same way TruncatingAudioInputStream does
+    int frameSize = resampled.getFrameSize();
+    int bytesPerSecond = (int)(outRate * frameSize);
+    long skippedBytes = outFrames * frameSize;
+    if ((long)(bytesPerSecond * (start - skipped)) != (long)(bytesPerSecond * start) - skippedBytes
+        || (long)(bytesPerSecond * (end - skipped)) != (long)(bytesPerSecond * end) - skippedBytes) {
+      return 0.0;
+    }
+    long bytes = skipFrames * stream.getFormat().getFrameSize();
+    while (bytes > 0) {
+      long count = stream.skip(bytes);
+      if (count <= 0) throw new IOException("Could not skip to " + start + "s");
+      bytes -= count;
+    }
+    return skipped;
+  } // end of SkipBeforeResampling()
+
+  /**
+   * Greatest common divisor.
+   * @param a A positive number.
+   * @param b A positive number.
+   * @return The greatest common divisor of <var>a</var> and <var>b</var>.
+   */
+  private static long GCD(long a, long b) {
+    return b == 0? a : GCD(b, a % b);
+  } // end of GCD()
+
+  /**
+   * Extracts a single fragment from a local WAV file.
+   * @param recording The full recording.
+   * @param start Start time in seconds.
+   * @param end End time in seconds.
+   * @param sampleRate The desired sample rate, or null for the recording's own rate.
+   * @param fragment The file to write the fragment to.
+   * @throws IOException If the fragment could not be extracted.
+   */
+  public static void Extract(
+    File recording, double start, double end, Integer sampleRate, File fragment)
+    throws IOException {
+    FragmentExtractor extractor = new FragmentExtractor()
+      .setStart(start).setEnd(end).setSampleRate(sampleRate);
+    try {
+      MediaThread thread = extractor.start("audio/wav", recording, "audio/wav", fragment);
+      thread.join();
+      if (thread.getLastError() != null) {
+        throw new IOException("Could not extract " + fragment.getName(), thread.getLastError());
+      }
+    } catch(MediaException x) {
+      throw new IOException("Could not extract " + fragment.getName(), x);
+    } catch(InterruptedException x) {
+      Thread.currentThread().interrupt();
+      throw new IOException(x);
+    }
+  } // end of Extract()
+
+  /**
+   * Extracts a single fragment; the default implementation calls
+   * {@link #Extract(File,double,double,Integer,File)}.
+   * @param recording The full recording.
+   * @param start Start time in seconds.
+   * @param end End time in seconds.
+   * @param sampleRate The desired sample rate, or null for the recording's own rate.
+   * @param fragment The file to write the fragment to.
+   * @throws IOException If the fragment could not be extracted.
+   */
+  protected void extract(
+    File recording, double start, double end, Integer sampleRate, File fragment)
+    throws IOException {
+    Extract(recording, start, end, sampleRate, fragment);
+  } // end of extract()
+
+  /**
+   * The format and location of the sample data of a WAV recording.
+   */
+  protected static class WavHeader {
+    /** The audio format. */
+    public final AudioFormat format;
+    /** The length of the recording in frames. */
+    public final long frameLength;
+    /** The byte offset of the start of the sample data. */
+    public final long dataOffset;
+    /**
+     * Constructor.
+     * @param format The audio format.
+     * @param frameLength The length of the recording in frames.
+     * @param dataOffset The byte offset of the start of the sample data.
+     */
+    public WavHeader(AudioFormat format, long frameLength, long dataOffset) {
+      this.format = format;
+      this.frameLength = frameLength;
+      this.dataOffset = dataOffset;
+    }
+  } // end of class WavHeader
+
+  /**
+   * A downloaded range of sample data.
+   */
+  protected static class Segment {
+    /** The offset of the first byte, relative to the start of the sample data. */
+    public final long start;
+    /** The offset after the last byte, relative to the start of the sample data. */
+    public final long end;
+    /** The file containing the bytes. */
+    public final File file;
+    /**
+     * Constructor.
+     * @param start The offset of the first byte, relative to the start of the sample data.
+     * @param file The file containing the bytes.
+     */
+    public Segment(long start, File file) {
+      this.start = start;
+      this.end = start + file.length();
+      this.file = file;
+    }
+  } // end of class Segment
+
+  /**
+   * The sample data of a whole recording, of which only some segments have been
+   * downloaded; reading from anywhere else returns zeros. Skipping is free, so
+   * truncating the stream to a downloaded fragment reads only downloaded data.
+   */
+  protected static class SparseInputStream extends InputStream {
+    private final List<Segment> segments;
+    private final long length;
+    private long position = 0;
+    private Segment current;
+    private RandomAccessFile file;
+
+    /**
+     * Constructor.
+     * @param segments The downloaded segments, in order.
+     * @param length The total length of the sample data.
+     */
+    public SparseInputStream(List<Segment> segments, long length) {
+      this.segments = segments;
+      this.length = length;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0? -1 : b[0] & 0xFF;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= length) return -1;
+      len = (int)Math.min(len, length - position);
+      long next = length;
+      for (Segment segment : segments) {
+        if (segment.start <= position && position < segment.end) { // downloaded
+          if (segment != current) {
+            if (file != null) file.close();
+            file = new RandomAccessFile(segment.file, "r");
+            current = segment;
+          }
+          file.seek(position - segment.start);
+          int count = file.read(b, off, (int)Math.min(len, segment.end - position));
+          if (count > 0) position += count;
+          return count;
+        } else if (segment.start > position) {
+          next = Math.min(next, segment.start);
+        }
+      } // next segment
+      // not downloaded, so return zeros up to the next segment
+      int count = (int)Math.min(len, next - position);
+      Arrays.fill(b, off, off + count, (byte)0);
+      position += count;
+      return count;
+    }
+
+    @Override public long skip(long n) {
+      n = Math.max(0, Math.min(n, length - position));
+      position += n;
+      return n;
+    }
+
+    @Override public int available() {
+      return (int)Math.min(Integer.MAX_VALUE, length - position);
+    }
+
+    @Override public void close() throws IOException {
+      if (file != null) file.close();
+      file = null;
+      current = null;
+    }
+  } // end of class SparseInputStream
+
+} // end of class SoundFragmentExtractor
@@ -0,0 +1,591 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+import nzilbb.ag.Layer;
+import nzilbb.ag.Schema;
+import nzilbb.labbcat.http.HttpDownload;
+
+/**
+ * A local cache of transcripts, as returned by {@link LabbcatView#getTranscript(String,String[])}.
+ * <p> Transcripts are cached in their JSON-serialized form, keyed by transcript ID and
+ * the set of layers requested. Each request deserializes a new {@link nzilbb.ag.Graph},
+ * so callers can safely modify the transcripts they get. A request for a set of layers
+ * can be served by an entry for any superset of those layers, in which case annotations
+ * on the extra layers are removed before deserialization.
+ * <p> Entries are kept on disk, with the most recently used also kept in memory. Least
+ * recently used entries are removed from memory when {@link #getMaxMemoryBytes()} is
+ * exceeded, and from disk when {@link #getMaxBytes()} is exceeded.
+ * <p> Entries for a transcript are discarded when it's changed through a
+ * {@link LabbcatEdit} object that uses the cache. If {@link #getVersionLayerId()} is
+ * set, the value of that transcript attribute (e.g. a version or last-modified date) is
+ * also stored with each entry, and checked against the server before a cached entry is
+ * used, so that changes made by others are also detected.
+ * <p> The cache is safe to share between threads of one JVM.
+ * <p> e.g.
+ * <pre> labbcat.setTranscriptCache(
+ *   new TranscriptCache(new File("transcript-cache"))
+ *     .setVersionLayerId("transcript_version_date"));
+ * Graph words = labbcat.getTranscript(id, new String[] { "orthography", "segment" });
+ * Graph orthography = labbcat.getTranscript(id, new String[] { "orthography" }); // cached</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TranscriptCache {
+
+  // Attributes:
+
+  /** Cached entries, in order of access (least recently used first). */
+  private final LinkedHashMap<String,Entry> entries
+  = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+  /** Total size of cached entries on disk. */
+  private long size = 0;
+
+  /** Total size of cached entries in memory. */
+  private long memorySize = 0;
+
+  /** Number of requests served from memory. */
+  private long memoryHits = 0;
+
+  /** Number of requests served from disk. */
+  private long diskHits = 0;
+
+  /** Number of requests not served from the cache. */
+  private long misses = 0;
+
+  /**
+   * Directory in which cached transcripts are stored.
+   * @see #getDir()
+   */
+  protected File dir;
+  /**
+   * Getter for {@link #dir}: Directory in which cached transcripts are stored.
+   * @return Directory in which cached transcripts are stored.
+   */
+  public File getDir() { return dir; }
+
+  /**
+   * Maximum total size of cached transcripts on disk, in bytes. Default is 1GiB.
+   * @see #getMaxBytes()
+   * @see #setMaxBytes(long)
+   */
+  protected long maxBytes = 1024L * 1024 * 1024;
+  /**
+   * Getter for {@link #maxBytes}: Maximum total size of cached transcripts on disk, in bytes.
+   * @return Maximum total size of cached transcripts on disk, in bytes.
+   */
+  public long getMaxBytes() { return maxBytes; }
+  /**
+   * Setter for {@link #maxBytes}: Maximum total size of cached transcripts on disk, in bytes.
+   * @param newMaxBytes Maximum total size of cached transcripts on disk, in bytes.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public synchronized TranscriptCache setMaxBytes(long newMaxBytes) {
+    maxBytes = newMaxBytes;
+    evict();
+    return this;
+  }
+
+  /**
+   * Maximum total size of cached transcripts kept in memory, in bytes. Default is 64MiB.
+   * @see #getMaxMemoryBytes()
+   * @see #setMaxMemoryBytes(long)
+   */
+  protected long maxMemoryBytes = 64L * 1024 * 1024;
+  /**
+   * Getter for {@link #maxMemoryBytes}: Maximum total size of cached transcripts kept in
+   * memory, in bytes.
+   * @return Maximum total size of cached transcripts kept in memory, in bytes.
+   */
+  public long getMaxMemoryBytes() { return maxMemoryBytes; }
+  /**
+   * Setter for {@link #maxMemoryBytes}: Maximum total size of cached transcripts kept in
+   * memory, in bytes.
+   * @param newMaxMemoryBytes Maximum total size of cached transcripts kept in memory, in bytes.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public synchronized TranscriptCache setMaxMemoryBytes(long newMaxMemoryBytes) {
+    maxMemoryBytes = newMaxMemoryBytes;
+    evict();
+    return this;
+  }
+
+  /**
+   * ID of a transcript attribute layer whose value changes whenever the transcript
+   * changes, or null if versions are not checked. Default is null.
+   * @see #getVersionLayerId()
+   * @see #setVersionLayerId(String)
+   */
+  protected String versionLayerId;
+  /**
+   * Getter for {@link #versionLayerId}: ID of a transcript attribute layer whose value
+   * changes whenever the transcript changes, or null if versions are not checked.
+   * @return ID of a transcript attribute layer whose value changes whenever the
+   * transcript changes, or null if versions are not checked.
+   */
+  public String getVersionLayerId() { return versionLayerId; }
+  /**
+   * Setter for {@link #versionLayerId}: ID of a transcript attribute layer whose value
+   * changes whenever the transcript changes, or null if versions are not checked.
+   * @param newVersionLayerId ID of a transcript attribute layer whose value changes
+   * whenever the transcript changes, or null if versions are not checked.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public TranscriptCache setVersionLayerId(String newVersionLayerId) { versionLayerId = newVersionLayerId; return this; }
+
+  // Methods:
+
+  /**
+   * Constructor. Entries already in the given directory (e.g. from a previous run) are
+   * loaded, with those most recently used ranked highest.
+   * @param dir Directory in which cached transcripts are stored. It will be created if
+   * it doesn't exist.
+   * @throws IOException If the directory can't be created or read.
+   */
+  public TranscriptCache(File dir) throws IOException {
+    this.dir = dir;
+    if (!dir.exists()) Files.createDirectories(dir.toPath());
+    File[] jsonFiles = dir.listFiles((d, name) -> name.endsWith(".json"));
+    if (jsonFiles == null) throw new IOException("Cannot read " + dir.getPath());
+    Arrays.sort(jsonFiles, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+    for (File json : jsonFiles) {
+      String key = json.getName().replaceAll("\\.json$", "");
+      File meta = new File(dir, key + ".meta");
+      if (!meta.exists()) { // incomplete entry
+        json.delete();
+        continue;
+      }
+      List<String> lines = Files.readAllLines(meta.toPath(), StandardCharsets.UTF_8);
+      if (lines.size() == 0) { // corrupt entry
+        json.delete();
+        meta.delete();
+        continue;
+      }
+      // line 1 is "v:" followed by the version, if any
+      String version = lines.size() < 2? "" : lines.get(1).replaceAll("^v:", "");
+      Entry entry = new Entry(
+        lines.get(0), version.length() == 0? null : version,
+        new TreeSet<String>(lines.subList(Math.min(2, lines.size()), lines.size())), json);
+      entries.put(key, entry);
+      size += json.length();
+    } // next entry
+    // metadata of entries whose content was never written, or has been deleted
+    File[] metaFiles = dir.listFiles((d, name) -> name.endsWith(".meta"));
+    if (metaFiles != null) {
+      for (File meta : metaFiles) {
+        if (!new File(dir, meta.getName().replaceAll("\\.meta$", ".json")).exists()) {
+          meta.delete();
+        }
+      }
+    }
+    evict();
+  } // end of constructor
+
+  /**
+   * Gets a cached transcript.
+   * @param id The transcript ID.
+   * @param layerIds The IDs of layers required, or null if only transcript data is required.
+   * @return The cached entry with the smallest set of layers that includes all of
+   * <var>layerIds</var>, or null if there is none.
+   * @throws IOException If the entry can't be read from disk.
+   */
+  public synchronized Hit get(String id, String[] layerIds) throws IOException {
+    Set<String> wanted = LayerSet(layerIds);
+    String bestKey = null;
+    Entry best = null;
+    for (Map.Entry<String,Entry> e : entries.entrySet()) {
+      Entry entry = e.getValue();
+      if (entry.id.equals(id) && entry.layerIds.containsAll(wanted)
+          && (best == null || entry.layerIds.size() < best.layerIds.size())) {
+        bestKey = e.getKey();
+        best = entry;
+      }
+    } // next entry
+    if (best == null) {
+      misses++;
+      return null;
+    }
+    entries.get(bestKey); // mark as recently used
+    if (best.json == null) {
+      if (!best.file.exists()) { // deleted behind our back
+        remove(bestKey);
+        misses++;
+        return null;
+      }
+      best.json = Files.readAllBytes(best.file.toPath());
+      memorySize += best.json.length;
+      best.file.setLastModified(System.currentTimeMillis());
+      diskHits++;
+      evict();
+    } else {
+      memoryHits++;
+    }
+    return new Hit(best.json, best.layerIds, best.version);
+  } // end of get()
+
+  /**
+   * Adds a transcript to the cache.
+   * @param id The transcript ID.
+   * @param layerIds The IDs of the layers that were requested when the transcript was
+   * loaded.
+   * @param version The transcript's version, i.e. the value of its
+   * {@link #getVersionLayerId()} attribute, or null.
+   * @param json The JSON serialization of the transcript.
+   * @throws IOException If the entry can't be written to disk.
+   */
+  public synchronized void put(String id, String[] layerIds, String version, byte[] json)
+    throws IOException {
+    Set<String> layers = LayerSet(layerIds);
+    String key = Key(id, layers);
+    remove(key);
+    File file = new File(dir, key + ".json");
+    File temp = new File(dir, key + ".json.tmp");
+    Files.write(temp.toPath(), json);
+    // the ID and version lines are always present, even with no version or layers
+    StringBuilder meta = new StringBuilder(id).append("\nv:")
+      .append(version == null? "" : version);
+    for (String layerId : layers) meta.append("\n").append(layerId);
+    Files.write(new File(dir, key + ".meta").toPath(),
+                meta.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(temp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    Entry entry = new Entry(id, version, layers, file);
+    entry.json = json;
+    entries.put(key, entry);
+    size += json.length;
+    memorySize += json.length;
+    evict();
+  } // end of put()
+
+  /**
+   * Removes all cached entries for the given transcript.
+   * @param id The transcript ID.
+   * @return The number of entries removed.
+   */
+  public synchronized int invalidate(String id) {
+    Vector<String> keys = new Vector<String>();
+    for (Map.Entry<String,Entry> entry : entries.entrySet()) {
+      if (entry.getValue().id.equals(id)) keys.add(entry.getKey());
+    }
+    for (String key : keys) remove(key);
+    return keys.size();
+  } // end of invalidate()
+
+  /**
+   * Removes all cached entries.
+   */
+  public synchronized void clear() {
+    for (String key : new Vector<String>(entries.keySet())) remove(key);
+  } // end of clear()
+
+  /**
+   * Gets the number of cached entries.
+   * @return The number of cached entries.
+   */
+  public synchronized int getCount() {
+    return entries.size();
+  } // end of getCount()
+
+  /**
+   * Gets the total size of cached entries on disk.
+   * @return The total size of cached entries on disk, in bytes.
+   */
+  public synchronized long getSize() {
+    return size;
+  } // end of getSize()
+
+  /**
+   * Gets the total size of cached entries held in memory.
+   * @return The total size of cached entries held in memory, in bytes.
+   */
+  public synchronized long getMemorySize() {
+    return memorySize;
+  } // end of getMemorySize()
+
+  /**
+   * Gets the number of requests served from memory.
+   * @return The number of requests served from memory.
+   */
+  public synchronized long getMemoryHits() {
+    return memoryHits;
+  } // end of getMemoryHits()
+
+  /**
+   * Gets the number of requests served from disk.
+   * @return The number of requests served from disk.
+   */
+  public synchronized long getDiskHits() {
+    return diskHits;
+  } // end of getDiskHits()
+
+  /**
+   * Gets the number of requests that weren't served from the cache.
+   * @return The number of cache misses.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  } // end of getMisses()
+
+  /**
+   * Removes least recently used entries from memory and disk until the cache is within
+   * its budgets.
+   */
+  private void evict() {
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (size > maxBytes && eldest.hasNext()) {
+      Entry entry = eldest.next();
+      eldest.remove();
+      delete(entry);
+    }
+    eldest = entries.values().iterator();
+    while (memorySize > maxMemoryBytes && eldest.hasNext()) {
+      Entry entry = eldest.next();
+      if (entry.json != null) {
+        memorySize -= entry.json.length;
+        entry.json = null;
+      }
+    }
+  } // end of evict()
+
+  /**
+   * Removes an entry.
+   * @param key The key of the entry.
+   */
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) delete(entry);
+  } // end of remove()
+
+  /**
+   * Deletes the files of an entry that's no longer in {@link #entries}.
+   * @param entry The entry.
+   */
+  private void delete(Entry entry) {
+    size -= entry.file.length();
+    if (entry.json != null) memorySize -= entry.json.length;
+    entry.json = null;
+    entry.file.delete();
+    new File(dir, entry.file.getName().replaceAll("\\.json$", ".meta")).delete();
+  } // end of delete()
+
+  /**
+   * Normalizes a list of layer IDs.
+   * @param layerIds The layer IDs, or null.
+   * @return An ordered set of the layer IDs, which is empty if <var>layerIds</var> is null.
+   */
+  protected static Set<String> LayerSet(String[] layerIds) {
+    TreeSet<String> layers = new TreeSet<String>();
+    if (layerIds != null) for (String layerId : layerIds) if (layerId != null) layers.add(layerId);
+    return layers;
+  } // end of LayerSet()
+
+  /**
+   * Computes the key of an entry.
+   * @param id The transcript ID.
+   * @param layerIds The set of layer IDs.
+   * @return The key.
+   */
+  protected static String Key(String id, Set<String> layerIds) {
+    StringBuilder s = new StringBuilder(id);
+    for (String layerId : layerIds) s.append("\n").append(layerId);
+    try {
+      return HttpDownload.Hex(
+        MessageDigest.getInstance("SHA-256").digest(
+          s.toString().getBytes(StandardCharsets.UTF_8)));
+    } catch(NoSuchAlgorithmException x) { // SHA-256 is always supported
+      throw new RuntimeException(x);
+    }
+  } // end of Key()
+
+  /**
+   * Determines which layers of a cached transcript are not required for a request.
+   * @param schema The layer schema.
+   * @param loaded The layers that were requested when the transcript was loaded.
+   * @param wanted The layers that are required now.
+   * @return The IDs of layers whose annotations should be removed, i.e. those that were
+   * loaded (or are ancestors of those that were loaded), but are neither wanted nor
+   * ancestors of those that are wanted.
+   */
+  public static Set<String> Extraneous(
+    Schema schema, Collection<String> loaded, Collection<String> wanted) {
+    Set<String> extraneous = WithAncestors(schema, loaded);
+    extraneous.removeAll(WithAncestors(schema, wanted));
+    return extraneous;
+  } // end of Extraneous()
+
+  /**
+   * Adds the ancestors of the given layers.
+   * @param schema The layer schema.
+   * @param layerIds The layer IDs.
+   * @return The given layers plus all their ancestors, not including the root layer.
+   */
+  private static Set<String> WithAncestors(Schema schema, Collection<String> layerIds) {
+    Set<String> layers = new TreeSet<String>();
+    for (String layerId : layerIds) {
+      Layer layer = schema.getLayer(layerId);
+      if (layer == null) {
+        layers.add(layerId);
+        continue;
+      }
+      while (layer != null && layer.getParentId() != null) { // not the root
+        layers.add(layer.getId());
+        layer = layer.getParent();
+      }
+    } // next layer
+    return layers;
+  } // end of WithAncestors()
+
+  /**
+   * Removes the annotations of the given layers from a JSON-serialized transcript.
+   * @param json The JSON serialization of the transcript.
+   * @param layerIds The IDs of the layers to remove.
+   * @return The JSON serialization without the given layers.
+   */
+  public static byte[] Without(byte[] json, Set<String> layerIds) {
+    if (layerIds.isEmpty()) return json;
+    JsonObject graph;
+    try (JsonReader reader = Json.createReader(new ByteArrayInputStream(json))) {
+      graph = reader.readObject();
+    }
+    JsonObjectBuilder builder = Json.createObjectBuilder();
+    for (Map.Entry<String,JsonValue> e : graph.entrySet()) {
+      if (e.getKey().equals("schema") || e.getKey().equals("anchors")) { // not annotations
+        builder.add(e.getKey(), e.getValue());
+      } else if (!(layerIds.contains(e.getKey()) && e.getValue() instanceof JsonArray)) {
+        builder.add(e.getKey(), Without(e.getValue(), layerIds));
+      }
+    } // next attribute
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonWriter writer = Json.createWriter(out)) {
+      writer.writeObject(builder.build());
+    }
+    return out.toByteArray();
+  } // end of Without()
+
+  /**
+   * Removes child annotations of the given layers from a JSON value.
+   * @param value A JSON value, which may be an annotation or array of annotations.
+   * @param layerIds The IDs of the layers to remove.
+   * @return The value without the given layers.
+   */
+  private static JsonValue Without(JsonValue value, Set<String> layerIds) {
+    if (value instanceof JsonArray) {
+      JsonArrayBuilder array = Json.createArrayBuilder();
+      for (JsonValue element : (JsonArray)value) array.add(Without(element, layerIds));
+      return array.build();
+    } else if (value instanceof JsonObject) {
+      JsonObjectBuilder object = Json.createObjectBuilder();
+      for (Map.Entry<String,JsonValue> e : ((JsonObject)value).entrySet()) {
+        // child annotations are arrays keyed by layer ID
+        if (!(layerIds.contains(e.getKey()) && e.getValue() instanceof JsonArray)) {
+          object.add(e.getKey(), Without(e.getValue(), layerIds));
+        }
+      }
+      return object.build();
+    }
+    return value;
+  } // end of Without()
+
+  /**
+   * Summary of cache usage, for logging.
+   * @return A string representation of the object.
+   */
+  @Override public synchronized String toString() {
+    return "TranscriptCache: " + entries.size() + " entries, " + size + " bytes on disk, "
+      + memorySize + " bytes in memory, " + memoryHits + " memory hits, " + diskHits
+      + " disk hits, " + misses + " misses";
+  } // end of toString()
+
+  /**
+   * A cached transcript.
+   */
+  public static class Hit {
+    private final byte[] json;
+    private final Set<String> layerIds;
+    private final String version;
+    Hit(byte[] json, Set<String> layerIds, String version) {
+      this.json = json;
+      this.layerIds = layerIds;
+      this.version = version;
+    }
+    /**
+     * The JSON serialization of the transcript.
+     * @return The JSON serialization of the transcript.
+     */
+    public byte[] getJson() { return json; }
+    /**
+     * The layers that were requested when the transcript was loaded.
+     * @return The layers that were requested when the transcript was loaded.
+     */
+    public Set<String> getLayerIds() { return layerIds; }
+    /**
+     * The transcript's version when it was loaded.
+     * @return The transcript's version when it was loaded, or null.
+     */
+    public String getVersion() { return version; }
+  } // end of class Hit
+
+  /**
+   * A cache entry.
+   */
+  private static class Entry {
+    final String id;
+    final String version;
+    final Set<String> layerIds;
+    final File file;
+    /** The content, if it's currently in memory. */
+    byte[] json;
+    Entry(String id, String version, Set<String> layerIds, File file) {
+      this.id = id;
+      this.version = version;
+      this.layerIds = layerIds;
+      this.file = file;
+    }
+  } // end of class Entry
+
+} // end of class TranscriptCache
@@ -0,0 +1,320 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import nzilbb.ag.Graph;
+import nzilbb.ag.GraphNotFoundException;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.Schema;
+import nzilbb.ag.StoreException;
+import nzilbb.ag.serialize.GraphSerializer;
+import nzilbb.ag.serialize.SerializationDescriptor;
+import nzilbb.ag.serialize.SerializationException;
+import nzilbb.ag.serialize.SerializerNotConfiguredException;
+import nzilbb.ag.serialize.json.JSONSerialization;
+import nzilbb.ag.serialize.util.NamedStream;
+import nzilbb.ag.serialize.util.Utility;
+import nzilbb.configure.ParameterSet;
+import nzilbb.labbcat.model.Match;
+import nzilbb.util.IO;
+
+/**
+ * Serializes transcript fragments locally, instead of asking the server to serialize
+ * each fragment.
+ * <p> {@link LabbcatView#getFragments(String[],Double[],Double[],String[],String,File)}
+ * makes one request per fragment, and the server loads the whole transcript each
+ * time. This class gets each distinct transcript once using
+ * {@link LabbcatView#getTranscript(String,String[])} (which will use the
+ * {@link LabbcatView#getTranscriptCache() transcript cache} if there is one), cuts all of
+ * that transcript's fragments from it using {@link Graph#getFragment(double,double,String[])},
+ * and serializes each fragment locally with a {@link GraphSerializer}.
+ * <p> Serializers are {@link #addSerializer(Supplier) registered} by MIME type.
+ * {@link JSONSerialization} is registered by default; serializers for other formats
+ * (e.g. Praat TextGrids) are not part of nzilbb.ag, so they must be registered by the
+ * caller if required.
+ * <p> e.g.
+ * <pre> File[] textGrids = new TranscriptFragmentExtractor(labbcat)
+ *   .addSerializer(() -&gt; new TextGridSerialization())
+ *   .setThreads(4)
+ *   .getFragments(matches, layerIds, "text/praat-textgrid", dir);</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TranscriptFragmentExtractor {
+
+  // Attributes:
+
+  /**
+   * The client to get transcripts from.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to get transcripts from.
+   * @return The client to get transcripts from.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /**
+   * Number of transcripts to process concurrently. Default is 1.
+   * @see #getThreads()
+   * @see #setThreads(int)
+   */
+  protected int threads = 1;
+  /**
+   * Getter for {@link #threads}: Number of transcripts to process concurrently.
+   * @return Number of transcripts to process concurrently.
+   */
+  public int getThreads() { return threads; }
+  /**
+   * Setter for {@link #threads}: Number of transcripts to process concurrently.
+   * @param newThreads Number of transcripts to process concurrently.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public TranscriptFragmentExtractor setThreads(int newThreads) { threads = Math.max(1, newThreads); return this; }
+
+  /**
+   * Factories for serializers, keyed by MIME type.
+   * @see #addSerializer(Supplier)
+   */
+  protected Map<String,Supplier<GraphSerializer>> serializers
+  = new LinkedHashMap<String,Supplier<GraphSerializer>>();
+
+  // Methods:
+
+  /**
+   * Constructor.
+   * @param labbcat The client to get transcripts from.
+   */
+  public TranscriptFragmentExtractor(LabbcatView labbcat) {
+    this.labbcat = labbcat;
+    addSerializer(() -> new JSONSerialization());
+  } // end of constructor
+
+  /**
+   * Registers a serializer for the MIME type given by its descriptor. A new serializer
+   * is created for each transcript, so serializers needn't be thread-safe.
+   * @param factory Creates a new instance of the serializer.
+   * @return A reference to this object, so that calls can be chained.
+   */
+  public TranscriptFragmentExtractor addSerializer(Supplier<GraphSerializer> factory) {
+    SerializationDescriptor descriptor = factory.get().getDescriptor();
+    serializers.put(descriptor.getMimeType(), factory);
+    return this;
+  } // end of addSerializer()
+
+  /**
+   * Determines whether there's a serializer registered for the given MIME type.
+   * @param mimeType The MIME type.
+   * @return true if fragments can be serialized in the given format, false otherwise.
+   */
+  public boolean canSerialize(String mimeType) {
+    return serializers.containsKey(mimeType);
+  } // end of canSerialize()
+
+  /**
+   * Gets transcript fragments in a specified format for the given matches.
+   * @param matches A list of {@link Match}es, perhaps returned by
+   * {@link LabbcatView#getMatches(String,int)}.
+   * @param layerIds A list of IDs of annotation layers to include in the fragment.
+   * @param mimeType The desired format, which must have a registered serializer.
+   * @param dir A directory in which the files should be stored, or null for a temporary
+   * folder.  If specified, and the directory doesn't exist, it will be created.
+   * @return A list of files, as for
+   * {@link LabbcatView#getFragments(Match[],String[],String,File)}.
+   * @throws IOException If a communications or file error occurs.
+   * @throws StoreException If the server returns an error, or there's no serializer for
+   * <var>mimeType</var>.
+   */
+  public File[] getFragments(Match[] matches, String[] layerIds, String mimeType, File dir)
+    throws IOException, StoreException {
+    String[] transcriptIds = new String[matches.length];
+    Double[] startOffsets = new Double[matches.length];
+    Double[] endOffsets = new Double[matches.length];
+    for (int i = 0; i < matches.length; i++) {
+      transcriptIds[i] = matches[i].getTranscript();
+      startOffsets[i] = matches[i].getLine();
+      endOffsets[i] = matches[i].getLineEnd();
+    } // next match
+    return getFragments(transcriptIds, startOffsets, endOffsets, layerIds, mimeType, dir);
+  } // end of getFragments()
+
+  /**
+   * Gets transcript fragments in a specified format.
+   * @param transcriptIds A list of transcript IDs (transcript names).
+   * @param startOffsets A list of start offsets, with one element for each element in
+   * <var>transcriptIds</var>.
+   * @param endOffsets A list of end offsets, with one element for each element in
+   * <var>transcriptIds</var>.
+   * @param layerIds A list of IDs of annotation layers to include in the fragment.
+   * @param mimeType The desired format, which must have a registered serializer.
+   * @param dir A directory in which the files should be stored, or null for a temporary
+   * folder.  If specified, and the directory doesn't exist, it will be created.
+   * @return A list of files, as for
+   * {@link LabbcatView#getFragments(String[],Double[],Double[],String[],String,File)};
+   * elements are null where the fragment could not be serialized.
+   * @throws IOException If a communications or file error occurs.
+   * @throws StoreException If the server returns an error, or there's no serializer for
+   * <var>mimeType</var>.
+   */
+  public File[] getFragments(
+    String[] transcriptIds, Double[] startOffsets, Double[] endOffsets, String[] layerIds,
+    String mimeType, File dir) throws IOException, StoreException {
+
+    if (transcriptIds.length != startOffsets.length || transcriptIds.length != endOffsets.length) {
+      throw new StoreException(
+        "transcriptIds ("+transcriptIds.length +"), startOffsets ("+startOffsets.length
+        +"), and endOffsets ("+endOffsets.length+") must be arrays of equal size.");
+    }
+    final Supplier<GraphSerializer> factory = serializers.get(mimeType);
+    if (factory == null) throw new StoreException("No serializer for " + mimeType);
+    if (dir == null) {
+      dir = labbcat.getTempFiles().createTempDirectory("getFragments_");
+    } else {
+      if (!dir.exists()) Files.createDirectories(dir.toPath());
+    }
+    final File outputDir = dir;
+    File[] fragments = new File[transcriptIds.length];
+    final Schema schema;
+    try {
+      schema = labbcat.getSchema();
+    } catch(PermissionException x) {
+      throw new StoreException(x.getMessage(), x);
+    }
+
+    // group fragment indices by transcript, so each transcript is fetched once
+    Map<String,List<Integer>> byTranscript = new LinkedHashMap<String,List<Integer>>();
+    for (int i = 0; i < transcriptIds.length; i++) {
+      if (transcriptIds[i] == null || startOffsets[i] == null || endOffsets[i] == null) continue;
+      byTranscript.computeIfAbsent(transcriptIds[i], id -> new Vector<Integer>()).add(i);
+    } // next fragment
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> results = new Vector<Future<Void>>();
+      for (Map.Entry<String,List<Integer>> entry : byTranscript.entrySet()) {
+        results.add(pool.submit(() -> {
+              serializeTranscript(
+                entry.getKey(), entry.getValue(), startOffsets, endOffsets, layerIds,
+                schema, factory.get(), outputDir, fragments);
+              return null;
+            }));
+      } // next transcript
+      for (Future<Void> result : results) {
+        try {
+          result.get();
+        } catch(InterruptedException x) {
+          throw new IOException(x);
+        } catch(ExecutionException x) {
+          if (x.getCause() instanceof IOException) throw (IOException)x.getCause();
+          if (x.getCause() instanceof StoreException) throw (StoreException)x.getCause();
+          if (x.getCause() instanceof PermissionException) {
+            throw new StoreException(x.getCause().getMessage(), x.getCause());
+          }
+          throw new StoreException(x.getCause());
+        }
+      } // next result
+    } finally {
+      pool.shutdownNow();
+    }
+    return fragments;
+  } // end of getFragments()
+
+  /**
+   * Gets one transcript and serializes the given fragments of it.
+   * @param transcriptId The transcript ID.
+   * @param indices Indices of the fragments to serialize from this transcript.
+   * @param startOffsets All start offsets.
+   * @param endOffsets All end offsets.
+   * @param layerIds A list of IDs of annotation layers to include in the fragment.
+   * @param schema The layer schema.
+   * @param serializer The serializer to use for this transcript's fragments.
+   * @param dir Directory for the fragment files.
+   * @param fragments Array in which to set the resulting files.
+   * @throws IOException If a file error occurs.
+   * @throws StoreException If the server returns an error.
+   * @throws PermissionException If the transcript can't be accessed.
+   */
+  protected void serializeTranscript(
+    String transcriptId, List<Integer> indices, Double[] startOffsets, Double[] endOffsets,
+    String[] layerIds, Schema schema, GraphSerializer serializer, File dir, File[] fragments)
+    throws IOException, StoreException, PermissionException {
+
+    Graph transcript = null;
+    try {
+      // use the schema we already have, rather than fetching it for each transcript
+      transcript = labbcat.loadTranscript(transcriptId, layerIds, schema);
+    } catch(GraphNotFoundException x) { // fragments are left null
+    }
+    if (transcript == null) {
+      if (labbcat.getVerbose()) {
+        System.out.println("TranscriptFragmentExtractor: no transcript " + transcriptId);
+      }
+      return;
+    }
+    serializer.configure(serializer.configure(new ParameterSet(), schema), schema);
+    List<String> suffixes = serializer.getDescriptor().getFileSuffixes();
+    String suffix = suffixes.size() > 0? suffixes.get(0) : "";
+    for (int i : indices) {
+      if (labbcat.isCancelling()) break;
+      Graph fragment = transcript.getFragment(startOffsets[i], endOffsets[i], layerIds);
+      Vector<NamedStream> streams = new Vector<NamedStream>();
+      Vector<SerializationException> errors = new Vector<SerializationException>();
+      try {
+        serializer.serialize(
+          Utility.OneGraphSpliterator(fragment), layerIds,
+          stream -> streams.add(stream),
+          warning -> {
+            if (labbcat.getVerbose()) {
+              System.out.println("TranscriptFragmentExtractor: " + fragment.getId()
+                                 + ": " + warning);
+            }
+          },
+          exception -> errors.add(exception));
+      } catch(SerializerNotConfiguredException x) {
+        throw new StoreException("Could not configure serializer.", x);
+      }
+      if (errors.size() > 0 || streams.size() == 0) {
+        System.err.println(
+          "TranscriptFragmentExtractor: Could not serialize " + fragment.getId()
+          + (errors.size() > 0? ": " + errors.firstElement().getMessage() : ""));
+        continue;
+      }
+      File file = new File(
+        dir, Graph.FragmentId(transcriptId, startOffsets[i], endOffsets[i]) + suffix);
+      IO.SaveInputStreamToFile(streams.firstElement().getStream(), file);
+      fragments[i] = file;
+    } // next fragment
+  } // end of serializeTranscript()
+
+} // end of class TranscriptFragmentExtractor
@@ -0,0 +1,457 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import nzilbb.ag.Graph;
+import nzilbb.ag.GraphNotFoundException;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.Schema;
+import nzilbb.ag.StoreException;
+import nzilbb.labbcat.http.HttpDownload;
+
+/**
+ * Computes something from every transcript in a list, and combines the results.
+ * <p> The caller supplies a <em>mapper</em>, which computes a result from one transcript,
+ * and a <em>combiner</em>, which combines two results into one. The combiner must be
+ * associative (<code>combine(a, combine(b, c))</code> equals
+ * <code>combine(combine(a, b), c)</code>) but needn't be commutative; results are always
+ * combined in transcript ID order.
+ * <p> Transcript IDs are divided into partitions of {@link #getPartitionSize()}
+ * transcripts, which are processed one after another. Within a partition, transcripts are
+ * fetched by {@link #getFetchThreads()} threads, and mappers are run on a
+ * {@link ForkJoinPool} with a parallelism of {@link #getParallelism()} as soon as each
+ * transcript arrives, so each transcript is held in memory only until it's been mapped.
+ * <p> If a {@link #setCheckpoint(File) checkpoint file} is set, the combined result of
+ * each partition is saved to it as soon as the partition is complete. If the run fails
+ * (e.g. the server goes away), running it again with the same transcript IDs and the same
+ * checkpoint file skips the partitions that were already completed. This requires the
+ * results to be {@link Serializable}. The checkpoint file is deleted once a run
+ * completes successfully.
+ * <p> e.g.
+ * <pre> Integer wordCount = new TranscriptMapReduce&lt;Integer&gt;(
+ *     labbcat, new String[] { "word" },
+ *     transcript -&gt; transcript.all("word").length,
+ *     (a, b) -&gt; a + b)
+ *   .setCheckpoint(new File("word-count.checkpoint"))
+ *   .runMatching("first('corpus').label == 'QB'");</pre>
+ * @param <R> The type of result.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TranscriptMapReduce<R> {
+
+  // Attributes:
+
+  /**
+   * The client to get transcripts from.
+   * @see #getLabbcat()
+   */
+  protected LabbcatView labbcat;
+  /**
+   * Getter for {@link #labbcat}: The client to get transcripts from.
+   * @return The client to get transcripts from.
+   */
+  public LabbcatView getLabbcat() { return labbcat; }
+
+  /**
+   * The IDs of the layers the mapper needs, or null if only transcript data is required.
+   * @see #getLayerIds()
+   */
+  protected String[] layerIds;
+  /**
+   * Getter for {@link #layerIds}: The IDs of the layers the mapper needs, or null if
+   * only transcript data is required.
+   * @return The IDs of the layers the mapper needs.
+   */
+  public String[] getLayerIds() { return layerIds; }
+
+  /**
+   * Computes a result from one transcript. A null result is ignored.
+   * @see #getMapper()
+   */
+  protected Function<Graph,R> mapper;
+  /**
+   * Getter for {@link #mapper}: Computes a result from one transcript.
+   * @return The mapper.
+   */
+  public Function<Graph,R> getMapper() { return mapper; }
+
+  /**
+   * Combines two results into one. This must be associative.
+   * @see #getCombiner()
+   */
+  protected BinaryOperator<R> combiner;
+  /**
+   * Getter for {@link #combiner}: Combines two results into one.
+   * @return The combiner.
+   */
+  public BinaryOperator<R> getCombiner() { return combiner; }
+  
+  /**
+   * The number of transcripts in each partition. Default is 100.
+   * @see #getPartitionSize()
+   * @see #setPartitionSize(int)
+   */
+  protected int partitionSize = 100;
+  /**
+   * Getter for {@link #partitionSize}: The number of transcripts in each partition.
+   * @return The number of transcripts in each partition.
+   */
+  public int getPartitionSize() { return partitionSize; }
+  /**
+   * Setter for {@link #partitionSize}: The number of transcripts in each partition.
+   * Smaller partitions mean less work is repeated when a failed run is resumed.
+   * @param newPartitionSize The number of transcripts in each partition.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public TranscriptMapReduce<R> setPartitionSize(int newPartitionSize) { partitionSize = Math.max(1, newPartitionSize); return this; }
+  
+  /**
+   * The number of transcripts to fetch at once. Default is 4.
+   * @see #getFetchThreads()
+   * @see #setFetchThreads(int)
+   */
+  protected int fetchThreads = 4;
+  /**
+   * Getter for {@link #fetchThreads}: The number of transcripts to fetch at once.
+   * @return The number of transcripts to fetch at once.
+   */
+  public int getFetchThreads() { return fetchThreads; }
+  /**
+   * Setter for {@link #fetchThreads}: The number of transcripts to fetch at once.
+   * @param newFetchThreads The number of transcripts to fetch at once.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public TranscriptMapReduce<R> setFetchThreads(int newFetchThreads) { fetchThreads = Math.max(1, newFetchThreads); return this; }
+  
+  /**
+   * The parallelism of the pool mappers run on. Default is the number of processors.
+   * @see #getParallelism()
+   * @see #setParallelism(int)
+   */
+  protected int parallelism = Runtime.getRuntime().availableProcessors();
+  /**
+   * Getter for {@link #parallelism}: The parallelism of the pool mappers run on.
+   * @return The parallelism of the pool mappers run on.
+   */
+  public int getParallelism() { return parallelism; }
+  /**
+   * Setter for {@link #parallelism}: The parallelism of the pool mappers run on.
+   * @param newParallelism The parallelism of the pool mappers run on.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public TranscriptMapReduce<R> setParallelism(int newParallelism) { parallelism = Math.max(1, newParallelism); return this; }
+  
+  /**
+   * File in which the results of completed partitions are saved, or null for no
+   * checkpointing.
+   * @see #getCheckpoint()
+   * @see #setCheckpoint(File)
+   */
+  protected File checkpoint;
+  /**
+   * Getter for {@link #checkpoint}: File in which the results of completed partitions
+   * are saved, or null for no checkpointing.
+   * @return File in which the results of completed partitions are saved.
+   */
+  public File getCheckpoint() { return checkpoint; }
+  /**
+   * Setter for {@link #checkpoint}: File in which the results of completed partitions
+   * are saved, or null for no checkpointing. If the file exists and was saved by a run
+   * over the same transcript IDs, partitions it records are not processed again.
+   * @param newCheckpoint File in which the results of completed partitions are saved.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public TranscriptMapReduce<R> setCheckpoint(File newCheckpoint) { checkpoint = newCheckpoint; return this; }
+  
+  /**
+   * Print verbose output.
+   * @see #getVerbose()
+   * @see #setVerbose(boolean)
+   */
+  protected boolean verbose = false;
+  /**
+   * Getter for {@link #verbose}: Print verbose output.
+   * @return Print verbose output.
+   */
+  public boolean getVerbose() { return verbose; }
+  /**
+   * Setter for {@link #verbose}: Print verbose output.
+   * @param newVerbose Print verbose output.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public TranscriptMapReduce<R> setVerbose(boolean newVerbose) { verbose = newVerbose; return this; }
+  
+  /**
+   * The number of transcripts mapped by the last run, not counting those in partitions
+   * restored from the checkpoint.
+   * @see #getMapped()
+   */
+  protected int mapped = 0;
+  /**
+   * Getter for {@link #mapped}: The number of transcripts mapped by the last run, not
+   * counting those in partitions restored from the checkpoint.
+   * @return The number of transcripts mapped by the last run.
+   */
+  public int getMapped() { return mapped; }
+
+  // Methods:
+
+  /**
+   * Constructor.
+   * @param labbcat The client to get transcripts from.
+   * @param layerIds The IDs of the layers the mapper needs, or null if only transcript
+   * data is required.
+   * @param mapper Computes a result from one transcript. A null result is ignored.
+   * @param combiner Combines two results into one. This must be associative.
+   */
+  public TranscriptMapReduce(
+    LabbcatView labbcat, String[] layerIds, Function<Graph,R> mapper, BinaryOperator<R> combiner) {
+    this.labbcat = labbcat;
+    this.layerIds = layerIds;
+    this.mapper = mapper;
+    this.combiner = combiner;
+  } // end of constructor
+
+  /**
+   * Runs the mapper over the transcripts that match a particular pattern, and combines
+   * the results.
+   * @param expression An expression that determines which transcripts match, as for
+   * {@link LabbcatView#getMatchingTranscriptIds(String,Integer,Integer,String)}.
+   * @return The combined result, or null if there were no results.
+   * @throws StoreException If an error occurs.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public R runMatching(String expression) throws StoreException, PermissionException {
+    String[] ids = labbcat.getMatchingTranscriptIds(expression, null, null, null);
+    return run(ids == null? new String[0] : ids);
+  } // end of runMatching()
+
+  /**
+   * Runs the mapper over the given transcripts, and combines the results.
+   * <p> Transcripts that don't exist are skipped.
+   * @param ids The IDs of the transcripts.
+   * @return The combined result, or null if there were no results.
+   * @throws StoreException If an error occurs. Partitions completed before the error
+   * are saved in the {@link #getCheckpoint() checkpoint file}, if any, which is otherwise
+   * deleted when the run completes.
+   * @throws PermissionException If the operation is not permitted.
+   */
+  public R run(String[] ids) throws StoreException, PermissionException {
+    mapped = 0;
+    String fingerprint = fingerprint(ids);
+    SortedMap<Integer,R> completed = loadCheckpoint(fingerprint);
+    Schema schema = labbcat.getSchema();
+    ExecutorService fetchers = Executors.newFixedThreadPool(fetchThreads);
+    ForkJoinPool mappers = new ForkJoinPool(parallelism);
+    try {
+      int partitionCount = (ids.length + partitionSize - 1) / partitionSize;
+      for (int p = 0; p < partitionCount; p++) {
+        if (completed.containsKey(p)) {
+          if (verbose) System.out.println("Partition " + p + " restored from checkpoint");
+          continue;
+        }
+        int from = p * partitionSize;
+        int to = Math.min(ids.length, from + partitionSize);
+        if (verbose) System.out.println("Partition " + p + ": " + from + "-" + (to - 1));
+        
+        // fetch each transcript, and map it as soon as it arrives
+        Vector<CompletableFuture<R>> results = new Vector<CompletableFuture<R>>();
+        for (int i = from; i < to; i++) {
+          final String id = ids[i];
+          results.add(
+            CompletableFuture.supplyAsync(() -> fetch(id, schema), fetchers)
+            .thenApplyAsync(transcript -> map(transcript), mappers));
+        } // next transcript
+        
+        // combine in order
+        R partition = null;
+        try {
+          for (CompletableFuture<R> result : results) {
+            partition = combine(partition, result.join());
+          }
+        } catch(CompletionException x) {
+          for (CompletableFuture<R> result : results) result.cancel(true);
+          Throwable cause = x.getCause();
+          if (cause instanceof StoreException) throw (StoreException)cause;
+          if (cause instanceof PermissionException) throw (PermissionException)cause;
+          throw new StoreException(
+            "Mapper failed in partition " + p + ": " + cause, cause);
+        }
+        completed.put(p, partition);
+        saveCheckpoint(fingerprint, completed);
+      } // next partition
+
+      // combine partitions, in order
+      R result = null;
+      for (R partition : completed.values()) result = combine(result, partition);
+      if (checkpoint != null) checkpoint.delete(); // the run is complete
+      return result;
+    } finally {
+      fetchers.shutdownNow();
+      mappers.shutdownNow();
+      try { // don't return while requests from this run are still in progress
+        fetchers.awaitTermination(1, TimeUnit.MINUTES);
+      } catch(InterruptedException x) {
+      }
+    }
+  } // end of run()
+
+  /**
+   * Fetches a transcript, for use in a worker thread.
+   * @param id The transcript ID.
+   * @param schema The layer schema.
+   * @return The transcript, or null if it doesn't exist.
+   * @throws CompletionException Wrapping any error.
+   */
+  protected Graph fetch(String id, Schema schema) {
+    try {
+      return labbcat.loadTranscript(id, layerIds, schema);
+    } catch(GraphNotFoundException x) {
+      return null;
+    } catch(StoreException | PermissionException x) {
+      throw new CompletionException(x);
+    }
+  } // end of fetch()
+
+  /**
+   * Maps a transcript.
+   * @param transcript The transcript, or null if it doesn't exist.
+   * @return The mapper's result, or null if the transcript doesn't exist.
+   */
+  protected R map(Graph transcript) {
+    if (transcript == null) return null;
+    R result = mapper.apply(transcript);
+    synchronized (this) { mapped++; }
+    return result;
+  } // end of map()
+
+  /**
+   * Combines two results, either of which may be null.
+   * @param a The first result, or null.
+   * @param b The second result, or null.
+   * @return The combined result, or null if both are null.
+   */
+  protected R combine(R a, R b) {
+    if (a == null) return b;
+    if (b == null) return a;
+    return combiner.apply(a, b);
+  } // end of combine()
+
+  /**
+   * Identifies a run, so that a checkpoint saved by a run over different transcripts or
+   * with different partitions isn't used.
+   * @param ids The IDs of the transcripts.
+   * @return A SHA-256 digest of the transcript IDs, partition size, and layer IDs.
+   */
+  protected String fingerprint(String[] ids) {
+    StringBuilder s = new StringBuilder().append(partitionSize);
+    for (String id : ids) s.append("\n").append(id);
+    s.append("\n"); // blank line separates transcript IDs from layer IDs
+    if (layerIds != null) for (String layerId : layerIds) s.append("\n").append(layerId);
+    try {
+      return HttpDownload.Hex(
+        MessageDigest.getInstance("SHA-256").digest(
+          s.toString().getBytes(StandardCharsets.UTF_8)));
+    } catch(NoSuchAlgorithmException x) { // SHA-256 is always supported
+      throw new RuntimeException(x);
+    }
+  } // end of fingerprint()
+
+  /**
+   * Loads completed partitions from {@link #checkpoint}.
+   * @param fingerprint Identifies the run.
+   * @return Results of completed partitions, keyed by partition number. This is empty if
+   * there's no checkpoint file, or it's from a different run.
+   */
+  @SuppressWarnings("unchecked")
+  protected SortedMap<Integer,R> loadCheckpoint(String fingerprint) {
+    if (checkpoint != null && checkpoint.exists()) {
+      try (InputStream file = Files.newInputStream(checkpoint.toPath());
+           ObjectInputStream in = new ObjectInputStream(file)) {
+        if (fingerprint.equals(in.readObject())) {
+          SortedMap<Integer,R> completed = (SortedMap<Integer,R>)in.readObject();
+          if (verbose) System.out.println(
+            "Restored " + completed.size() + " partitions from " + checkpoint.getPath());
+          return completed;
+        } else {
+          if (verbose) System.out.println(
+            "Ignoring checkpoint from a different run: " + checkpoint.getPath());
+        }
+      } catch(IOException | ClassNotFoundException | ClassCastException x) {
+        System.err.println(
+          "TranscriptMapReduce: ignoring unreadable checkpoint " + checkpoint.getPath()
+          + ": " + x);
+      }
+    }
+    return new TreeMap<Integer,R>();
+  } // end of loadCheckpoint()
+
+  /**
+   * Saves completed partitions to {@link #checkpoint}, if set. The file is replaced
+   * atomically, so a failure while saving doesn't lose the previous checkpoint.
+   * @param fingerprint Identifies the run.
+   * @param completed Results of completed partitions, keyed by partition number.
+   * @throws StoreException If the checkpoint can't be saved, e.g. because results
+   * aren't {@link Serializable}.
+   */
+  protected void saveCheckpoint(String fingerprint, SortedMap<Integer,R> completed)
+    throws StoreException {
+    if (checkpoint == null) return;
+    File temp = new File(checkpoint.getPath() + ".tmp");
+    try {
+      try (OutputStream file = Files.newOutputStream(temp.toPath());
+           ObjectOutputStream out = new ObjectOutputStream(file)) {
+        out.writeObject(fingerprint);
+        out.writeObject(completed);
+      }
+      Files.move(temp.toPath(), checkpoint.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch(IOException x) {
+      temp.delete();
+      throw new StoreException("Could not save checkpoint " + checkpoint.getPath(), x);
+    }
+  } // end of saveCheckpoint()
+  
+} // end of class TranscriptMapReduce
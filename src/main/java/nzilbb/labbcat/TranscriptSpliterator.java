@@ -0,0 +1,364 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import nzilbb.ag.Graph;
+import nzilbb.ag.GraphNotFoundException;
+import nzilbb.ag.PermissionException;
+import nzilbb.ag.Schema;
+import nzilbb.ag.StoreException;
+
+/**
+ * A {@link Spliterator} over a list of transcripts, which fetches and deserializes
+ * transcripts ahead of the consumer on a pool of worker threads.
+ * <p> Looping over transcript IDs and calling
+ * {@link LabbcatView#getTranscript(String,String[])} for each means network waits and
+ * JSON decoding alternate on a single thread. Instead, this spliterator keeps up to
+ * {@link #getPrefetch()} transcripts in flight, each fetched and decoded by one of
+ * {@link #getThreads()} worker threads, while the consumer processes the transcripts
+ * already delivered. The total number of transcripts that have been fetched (or are being
+ * fetched) but not yet delivered is capped at {@link #getMaxUndelivered()}, across all
+ * splits of a parallel stream, so memory use is bounded.
+ * <p> Transcripts are delivered in ID list order. Transcripts that no longer exist
+ * are skipped. Errors are rethrown as unchecked exceptions by the stream.
+ * <p> The worker threads stop once every split has delivered all its transcripts, but
+ * the stream should still be closed after use, which stops them in any case. This is
+ * particularly important for short-circuiting operations on a parallel stream (e.g.
+ * <tt>findFirst()</tt> or <tt>limit(n)</tt>) which may abandon splits that still hold
+ * undelivered transcripts; closing returns their share of {@link #getMaxUndelivered()}.
+ * <p> e.g.
+ * <pre> try (Stream&lt;Graph&gt; transcripts = labbcat.streamMatchingTranscripts(
+ *        "first('corpus').label == 'QB'", new String[] { "word" })) {
+ *   long words = transcripts.parallel().mapToLong(t -&gt; t.all("word").length).sum();
+ * }</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TranscriptSpliterator implements Spliterator<Graph>, AutoCloseable {
+
+  // Attributes:
+
+  /** State shared between this spliterator and those split from it. */
+  protected static class Shared {
+    LabbcatView labbcat;
+    String[] layerIds;
+    int threads = 4;
+    int prefetch = 8;
+    int maxUndelivered = 16;
+    Schema schema;
+    ExecutorService pool;
+    Semaphore undelivered;
+    /** Set when the stream is closed, so that waiting splits give up. */
+    volatile boolean closed;
+    /** All splits, so that closing releases the permits they hold. */
+    final Set<TranscriptSpliterator> splits = ConcurrentHashMap.newKeySet();
+  }
+
+  /** How long to wait for a permit before checking whether the stream has been closed. */
+  private static final long PERMIT_WAIT_MS = 100;
+  
+  /** State shared with split spliterators. */
+  protected final Shared shared;
+
+  /** The IDs of the transcripts. */
+  protected final String[] ids;
+  
+  /** Index of the next transcript to fetch. */
+  protected int next;
+  
+  /** Index after the last transcript this spliterator covers. */
+  protected int end;
+
+  /** Transcripts being fetched, in order. */
+  protected final ArrayDeque<Future<Graph>> inFlight = new ArrayDeque<Future<Graph>>();
+
+  /** Set once this split has delivered all of its transcripts. */
+  protected volatile boolean exhausted = false;
+  
+  /**
+   * Getter for the number of worker threads fetching and decoding transcripts.
+   * @return The number of worker threads.
+   */
+  public int getThreads() { return shared.threads; }
+  /**
+   * Setter for the number of worker threads fetching and decoding transcripts. Default
+   * is 4. This must be set before the stream is used.
+   * @param newThreads The number of worker threads.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public TranscriptSpliterator setThreads(int newThreads) { shared.threads = Math.max(1, newThreads); return this; }
+
+  /**
+   * Getter for the number of transcripts each spliterator fetches ahead of the consumer.
+   * @return The number of transcripts fetched ahead of the consumer.
+   */
+  public int getPrefetch() { return shared.prefetch; }
+  /**
+   * Setter for the number of transcripts each spliterator fetches ahead of the
+   * consumer. Default is 8. This must be set before the stream is used.
+   * @param newPrefetch The number of transcripts fetched ahead of the consumer.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public TranscriptSpliterator setPrefetch(int newPrefetch) { shared.prefetch = Math.max(1, newPrefetch); return this; }
+
+  /**
+   * Getter for the maximum number of transcripts that have been fetched but not
+   * delivered, across all splits.
+   * @return The maximum number of undelivered transcripts.
+   */
+  public int getMaxUndelivered() { return shared.maxUndelivered; }
+  /**
+   * Setter for the maximum number of transcripts that have been fetched but not
+   * delivered, across all splits. Default is 16. This must be set before the stream is used.
+   * @param newMaxUndelivered The maximum number of undelivered transcripts.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public TranscriptSpliterator setMaxUndelivered(int newMaxUndelivered) { shared.maxUndelivered = Math.max(1, newMaxUndelivered); return this; }
+
+  // Methods:
+
+  /**
+   * Constructor.
+   * @param labbcat The client to get transcripts from.
+   * @param ids The IDs of the transcripts.
+   * @param layerIds The IDs of the layers to load, or null if only transcript data is required.
+   */
+  public TranscriptSpliterator(LabbcatView labbcat, String[] ids, String[] layerIds) {
+    this.shared = new Shared();
+    shared.labbcat = labbcat;
+    shared.layerIds = layerIds;
+    this.ids = ids;
+    this.next = 0;
+    this.end = ids.length;
+    shared.splits.add(this);
+  } // end of constructor
+
+  /**
+   * Constructor for a split.
+   * @param shared State shared with the spliterator this one is split from.
+   * @param ids The IDs of the transcripts.
+   * @param next Index of the first transcript of this split.
+   * @param end Index after the last transcript of this split.
+   */
+  protected TranscriptSpliterator(Shared shared, String[] ids, int next, int end) {
+    this.shared = shared;
+    this.ids = ids;
+    this.next = next;
+    this.end = end;
+    shared.splits.add(this);
+  } // end of constructor
+
+  /**
+   * Creates a sequential stream of the transcripts, which can be made parallel with
+   * {@link Stream#parallel()}. Closing the stream stops the worker threads.
+   * @return A stream of transcripts.
+   */
+  public Stream<Graph> stream() {
+    return StreamSupport.stream(this, false).onClose(() -> close());
+  } // end of stream()
+
+  /**
+   * Starts the worker pool, if it hasn't already been started.
+   */
+  protected void start() {
+    synchronized (shared) {
+      if (shared.pool != null) return;
+      try {
+        shared.schema = shared.labbcat.getSchema();
+      } catch(StoreException | PermissionException x) {
+        throw new RuntimeException("Could not get schema: " + x.getMessage(), x);
+      }
+      shared.undelivered = new Semaphore(shared.maxUndelivered);
+      shared.pool = Executors.newFixedThreadPool(shared.threads, runnable -> {
+          Thread thread = new Thread(runnable, "TranscriptSpliterator");
+          thread.setDaemon(true); // an abandoned stream mustn't keep the JVM alive
+          return thread;
+        });
+    }
+  } // end of start()
+
+  /**
+   * Starts fetching the next transcript. The caller must already hold a permit from
+   * {@link Shared#undelivered}, which is returned if the stream has been closed.
+   * @return true if the transcript is being fetched, false if the stream has been closed.
+   */
+  protected boolean submitNext() {
+    final String id = ids[next++];
+    synchronized (inFlight) {
+      try {
+        if (!shared.closed) {
+          inFlight.add(shared.pool.submit(
+                         () -> shared.labbcat.loadTranscript(id, shared.layerIds, shared.schema)));
+          return true;
+        }
+      } catch(RejectedExecutionException x) { // pool has been shut down
+      }
+    }
+    shared.undelivered.release();
+    return false;
+  } // end of submitNext()
+
+  /**
+   * Starts fetching more transcripts, up to {@link #getPrefetch()} in flight, if that
+   * won't exceed {@link #getMaxUndelivered()}.
+   */
+  protected void fill() {
+    while (inFlight.size() < shared.prefetch && next < end
+           && shared.undelivered.tryAcquire()) {
+      if (!submitNext()) return;
+    }
+  } // end of fill()
+
+  /**
+   * Delivers the next transcript.
+   * @param action The consumer of the transcript.
+   * @return false if there are no more transcripts, true otherwise.
+   */
+  @Override public boolean tryAdvance(Consumer<? super Graph> action) {
+    start();
+    while (true) {
+      if (shared.closed) return false;
+      fill();
+      if (inFlight.isEmpty()) {
+        if (next >= end) return exhausted();
+        // we hold no permits, so wait for another split to deliver, or the stream to close
+        try {
+          while (!shared.undelivered.tryAcquire(PERMIT_WAIT_MS, TimeUnit.MILLISECONDS)) {
+            if (shared.closed) return false;
+          }
+        } catch(InterruptedException x) {
+          throw new RuntimeException(x);
+        }
+        if (!submitNext()) return false;
+      }
+      Future<Graph> future;
+      synchronized (inFlight) {
+        future = inFlight.poll();
+      }
+      if (future == null) return false; // abandoned by close()
+      Graph transcript = null;
+      try {
+        transcript = future.get();
+      } catch(InterruptedException | CancellationException x) {
+        if (shared.closed) return false;
+        throw new RuntimeException(x);
+      } catch(ExecutionException x) {
+        if (x.getCause() instanceof GraphNotFoundException) continue; // deleted
+        throw new RuntimeException(
+          "Could not get transcript: " + x.getCause().getMessage(), x.getCause());
+      } finally {
+        shared.undelivered.release();
+      }
+      if (transcript == null) continue; // transcript has been deleted
+      fill(); // keep fetching while the consumer processes this one
+      action.accept(transcript);
+      return true;
+    } // next transcript
+  } // end of tryAdvance()
+
+  /**
+   * Marks this split as having delivered all its transcripts, and shuts down the worker
+   * pool if all the other splits have too, so that the threads don't outlive a stream
+   * that's consumed but not closed.
+   * @return false, for {@link #tryAdvance(Consumer)} to return.
+   */
+  protected boolean exhausted() {
+    exhausted = true;
+    synchronized (shared) {
+      for (TranscriptSpliterator split : shared.splits) if (!split.exhausted) return false;
+      if (shared.pool != null) shared.pool.shutdown();
+    }
+    return false;
+  } // end of exhausted()
+
+  /**
+   * Splits off the first half of the remaining transcripts, including any already in
+   * flight, so that encounter order is kept.
+   * @return A spliterator for the split-off transcripts, or null if there are too few
+   * left to split.
+   */
+  @Override public Spliterator<Graph> trySplit() {
+    int remaining = end - next;
+    if (remaining < 2) return null;
+    int middle = next + remaining / 2;
+    TranscriptSpliterator prefix = new TranscriptSpliterator(shared, ids, next, middle);
+    synchronized (inFlight) {
+      prefix.inFlight.addAll(inFlight);
+      inFlight.clear();
+    }
+    next = middle;
+    return prefix;
+  } // end of trySplit()
+
+  /**
+   * Estimates the number of transcripts remaining, which may be an overestimate if
+   * some have been deleted.
+   * @return The number of transcripts remaining.
+   */
+  @Override public long estimateSize() {
+    return end - next + inFlight.size();
+  } // end of estimateSize()
+
+  /**
+   * The characteristics of this spliterator.
+   * @return {@link Spliterator#ORDERED} | {@link Spliterator#NONNULL}
+   */
+  @Override public int characteristics() {
+    return ORDERED | NONNULL;
+  } // end of characteristics()
+
+  /**
+   * Stops the worker threads and abandons any transcripts in flight, in this and all
+   * other splits. Permits held by undelivered transcripts are returned, and any split
+   * waiting for a permit stops delivering transcripts.
+   */
+  @Override public void close() {
+    shared.closed = true;
+    synchronized (shared) {
+      if (shared.pool != null) shared.pool.shutdownNow();
+    }
+    for (TranscriptSpliterator split : shared.splits) {
+      int abandoned = 0;
+      synchronized (split.inFlight) {
+        for (Future<Graph> future : split.inFlight) future.cancel(true);
+        abandoned = split.inFlight.size();
+        split.inFlight.clear();
+      }
+      if (abandoned > 0) shared.undelivered.release(abandoned);
+    } // next split
+  } // end of close()
+
+} // end of class TranscriptSpliterator
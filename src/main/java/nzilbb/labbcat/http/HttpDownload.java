@@ -0,0 +1,387 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Saves the content of HTTP responses to files using NIO channels.
+ * <p> By default, bytes are moved from the connection to the file with
+ * {@link FileChannel#transferFrom(ReadableByteChannel,long,long)}. If
+ * {@link #setAsynchronous(boolean) asynchronous} is true, an
+ * {@link AsynchronousFileChannel} is used instead, so that writing one buffer to disk
+ * overlaps with reading the next from the network.
+ * <p> If a {@link #setChecksumAlgorithm(String) checksum algorithm} is set, the checksum
+ * of the content is computed as it's transferred, and returned in the {@link Result}.
+ * <p> e.g.
+ * <pre> HttpDownload.Result result = new HttpDownload()
+ *   .setBufferSize(1024*1024).setChecksumAlgorithm("SHA-256").setFsync(true)
+ *   .save(request.get(), file);
+ * System.out.println(result.getLength() + " bytes, SHA-256: " + result.getChecksum());</pre>
+ * <p> Instances are immutable once configured, so can be shared between threads.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class HttpDownload {
+
+   // Attributes:
+
+   /**
+    * Number of bytes to transfer at a time. Default is 64KiB.
+    * @see #getBufferSize()
+    * @see #setBufferSize(int)
+    */
+   protected int bufferSize = 65536;
+   /**
+    * Getter for {@link #bufferSize}: Number of bytes to transfer at a time.
+    * @return Number of bytes to transfer at a time.
+    */
+   public int getBufferSize() { return bufferSize; }
+   /**
+    * Setter for {@link #bufferSize}: Number of bytes to transfer at a time.
+    * @param newBufferSize Number of bytes to transfer at a time.
+    * @return A reference to this object, so that setters can be chained.
+    */
+   public HttpDownload setBufferSize(int newBufferSize) {
+      if (newBufferSize <= 0) throw new IllegalArgumentException("bufferSize must be positive");
+      bufferSize = newBufferSize;
+      return this;
+   }
+
+   /**
+    * Message digest algorithm for computing a checksum of the content - e.g. "MD5",
+    * "SHA-256" - or null for no checksum. Default is null.
+    * @see #getChecksumAlgorithm()
+    * @see #setChecksumAlgorithm(String)
+    */
+   protected String checksumAlgorithm;
+   /**
+    * Getter for {@link #checksumAlgorithm}: Message digest algorithm for computing a
+    * checksum of the content, or null for no checksum.
+    * @return Message digest algorithm for computing a checksum of the content, or null for
+    * no checksum.
+    */
+   public String getChecksumAlgorithm() { return checksumAlgorithm; }
+   /**
+    * Setter for {@link #checksumAlgorithm}: Message digest algorithm for computing a
+    * checksum of the content, or null for no checksum.
+    * @param newChecksumAlgorithm Message digest algorithm for computing a checksum of the
+    * content - e.g. "MD5", "SHA-256" - or null for no checksum.
+    * @return A reference to this object, so that setters can be chained.
+    * @throws IllegalArgumentException If the algorithm is not available.
+    */
+   public HttpDownload setChecksumAlgorithm(String newChecksumAlgorithm) {
+      if (newChecksumAlgorithm != null) {
+         try { // fail early if the algorithm isn't supported
+            MessageDigest.getInstance(newChecksumAlgorithm);
+         } catch(NoSuchAlgorithmException x) {
+            throw new IllegalArgumentException(x);
+         }
+      }
+      checksumAlgorithm = newChecksumAlgorithm;
+      return this;
+   }
+
+   /**
+    * Whether to force the file content to the storage device before returning. Default
+    * is false.
+    * @see #getFsync()
+    * @see #setFsync(boolean)
+    */
+   protected boolean fsync = false;
+   /**
+    * Getter for {@link #fsync}: Whether to force the file content to the storage device
+    * before returning.
+    * @return Whether to force the file content to the storage device before returning.
+    */
+   public boolean getFsync() { return fsync; }
+   /**
+    * Setter for {@link #fsync}: Whether to force the file content to the storage device
+    * before returning.
+    * @param newFsync Whether to force the file content to the storage device before returning.
+    * @return A reference to this object, so that setters can be chained.
+    */
+   public HttpDownload setFsync(boolean newFsync) { fsync = newFsync; return this; }
+
+   /**
+    * Whether to write to disk asynchronously, overlapping network reads with disk
+    * writes. Default is false.
+    * @see #getAsynchronous()
+    * @see #setAsynchronous(boolean)
+    */
+   protected boolean asynchronous = false;
+   /**
+    * Getter for {@link #asynchronous}: Whether to write to disk asynchronously,
+    * overlapping network reads with disk writes.
+    * @return Whether to write to disk asynchronously.
+    */
+   public boolean getAsynchronous() { return asynchronous; }
+   /**
+    * Setter for {@link #asynchronous}: Whether to write to disk asynchronously,
+    * overlapping network reads with disk writes.
+    * @param newAsynchronous Whether to write to disk asynchronously.
+    * @return A reference to this object, so that setters can be chained.
+    */
+   public HttpDownload setAsynchronous(boolean newAsynchronous) { asynchronous = newAsynchronous; return this; }
+
+   // Methods:
+
+   /**
+    * Default constructor.
+    */
+   public HttpDownload() {
+   } // end of constructor
+
+   /**
+    * Saves the content of the given connection to the given file, replacing any existing
+    * content.
+    * @param connection The connection to read from.
+    * @param file The file to write to.
+    * @return The result of the download.
+    * @throws IOException If an IO error occurs.
+    */
+   public Result save(URLConnection connection, File file) throws IOException {
+      return save(connection.getInputStream(), file, false);
+   } // end of save()
+
+   /**
+    * Saves the given stream to the given file. The stream is closed afterwards.
+    * @param stream The stream to read from.
+    * @param file The file to write to.
+    * @param append true to append to existing content, false to replace it.
+    * @return The result of the download; the length and checksum cover only the bytes
+    * read from <var>stream</var>.
+    * @throws IOException If an IO error occurs.
+    */
+   public Result save(InputStream stream, File file, boolean append) throws IOException {
+      MessageDigest digest = null;
+      if (checksumAlgorithm != null) {
+         try {
+            digest = MessageDigest.getInstance(checksumAlgorithm);
+         } catch(NoSuchAlgorithmException x) { // setter has already checked
+            throw new IOException(x);
+         }
+      }
+      try (ReadableByteChannel in = new DigestingChannel(Channels.newChannel(stream), digest)) {
+         long length = asynchronous? saveAsynchronously(in, file, append)
+            : saveSynchronously(in, file, append);
+         return new Result(file, length, digest == null? null : Hex(digest.digest()));
+      }
+   } // end of save()
+
+   /**
+    * Transfers the content with {@link FileChannel#transferFrom(ReadableByteChannel,long,long)}.
+    * @param in The source channel.
+    * @param file The destination file.
+    * @param append Whether to append to existing content.
+    * @return The number of bytes transferred.
+    * @throws IOException If an IO error occurs.
+    */
+   protected long saveSynchronously(ReadableByteChannel in, File file, boolean append)
+      throws IOException {
+      try (FileChannel out = FileChannel.open(
+              file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+              append? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+         long start = append? out.size() : 0;
+         long position = start;
+         long count;
+         // with a blocking source, transferFrom only returns 0 at end of stream
+         while ((count = out.transferFrom(in, position, bufferSize)) > 0) {
+            position += count;
+         }
+         if (fsync) out.force(true);
+         return position - start;
+      }
+   } // end of saveSynchronously()
+
+   /**
+    * Transfers the content with an {@link AsynchronousFileChannel}, reading the next
+    * buffer from the network while the previous one is written to disk.
+    * @param in The source channel.
+    * @param file The destination file.
+    * @param append Whether to append to existing content.
+    * @return The number of bytes transferred.
+    * @throws IOException If an IO error occurs.
+    */
+   protected long saveAsynchronously(ReadableByteChannel in, File file, boolean append)
+      throws IOException {
+      if (!append) file.delete();
+      try (AsynchronousFileChannel out = AsynchronousFileChannel.open(
+              file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+         long start = append? out.size() : 0;
+         long position = start;
+         ByteBuffer reading = ByteBuffer.allocateDirect(bufferSize);
+         ByteBuffer writing = ByteBuffer.allocateDirect(bufferSize);
+         Future<Integer> pendingWrite = null;
+         while (fill(in, reading)) {
+            reading.flip();
+            // wait for the previous buffer to finish writing before reusing it
+            position = finishWrite(out, pendingWrite, writing, position);
+            ByteBuffer swap = writing; writing = reading; reading = swap;
+            reading.clear();
+            pendingWrite = out.write(writing, position);
+         } // next buffer
+         position = finishWrite(out, pendingWrite, writing, position);
+         if (fsync) out.force(true);
+         return position - start;
+      }
+   } // end of saveAsynchronously()
+
+   /**
+    * Reads from the channel until the buffer is full or the end of the stream is reached.
+    * @param in The source channel.
+    * @param buffer The buffer to fill.
+    * @return true if any bytes were read, false if the end of the stream was reached
+    * with nothing read.
+    * @throws IOException If an IO error occurs.
+    */
+   private static boolean fill(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining() && in.read(buffer) >= 0) ;
+      return buffer.position() > 0;
+   } // end of fill()
+
+   /**
+    * Waits for a pending write to complete, writing any remaining bytes in the buffer.
+    * @param out The destination channel.
+    * @param pendingWrite The write operation, or null if there is none.
+    * @param buffer The buffer being written.
+    * @param position The file position at which the buffer's content started.
+    * @return The file position after the buffer's content.
+    * @throws IOException If an IO error occurs.
+    */
+   private static long finishWrite(
+      AsynchronousFileChannel out, Future<Integer> pendingWrite, ByteBuffer buffer,
+      long position) throws IOException {
+      if (pendingWrite == null) return position;
+      try {
+         position += pendingWrite.get();
+         while (buffer.hasRemaining()) { // partial write
+            position += out.write(buffer, position).get();
+         }
+         return position;
+      } catch(InterruptedException x) {
+         Thread.currentThread().interrupt();
+         throw new IOException(x);
+      } catch(ExecutionException x) {
+         if (x.getCause() instanceof IOException) throw (IOException)x.getCause();
+         throw new IOException(x.getCause());
+      }
+   } // end of finishWrite()
+
+   /**
+    * Converts the given bytes into a lower-case hexadecimal string.
+    * @param bytes The bytes to convert.
+    * @return The hexadecimal representation of <var>bytes</var>.
+    */
+   public static String Hex(byte[] bytes) {
+      StringBuilder hex = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) hex.append(String.format("%02x", b & 0xff));
+      return hex.toString();
+   } // end of Hex()
+
+   /**
+    * Channel that updates a message digest with every byte read.
+    */
+   static class DigestingChannel implements ReadableByteChannel {
+      private final ReadableByteChannel in;
+      private final MessageDigest digest;
+      DigestingChannel(ReadableByteChannel in, MessageDigest digest) {
+         this.in = in;
+         this.digest = digest;
+      }
+      public int read(ByteBuffer dst) throws IOException {
+         int start = dst.position();
+         int count = in.read(dst);
+         if (count > 0 && digest != null) {
+            ByteBuffer read = dst.duplicate();
+            read.position(start);
+            read.limit(start + count);
+            digest.update(read);
+         }
+         return count;
+      }
+      public boolean isOpen() { return in.isOpen(); }
+      public void close() throws IOException { in.close(); }
+   } // end of class DigestingChannel
+
+   /**
+    * The result of a download.
+    */
+   public static class Result {
+      private final File file;
+      private final long length;
+      private final String checksum;
+
+      /**
+       * Constructor.
+       * @param file The file the content was saved to.
+       * @param length The number of bytes transferred.
+       * @param checksum Hexadecimal checksum of the bytes transferred, or null.
+       */
+      public Result(File file, long length, String checksum) {
+         this.file = file;
+         this.length = length;
+         this.checksum = checksum;
+      }
+
+      /**
+       * The file the content was saved to.
+       * @return The file the content was saved to.
+       */
+      public File getFile() { return file; }
+
+      /**
+       * The number of bytes transferred.
+       * @return The number of bytes transferred.
+       */
+      public long getLength() { return length; }
+
+      /**
+       * Hexadecimal checksum of the bytes transferred, or null if no
+       * {@link HttpDownload#setChecksumAlgorithm(String) checksum algorithm} was set.
+       * @return Hexadecimal checksum of the bytes transferred, or null.
+       */
+      public String getChecksum() { return checksum; }
+
+      /**
+       * String representation for logging.
+       * @return A string representation of the object.
+       */
+      public String toString() {
+         return file.getPath() + " (" + length + " bytes"
+            + (checksum == null? "" : ", " + checksum) + ")";
+      }
+   } // end of class Result
+
+} // end of class HttpDownload
@@ -24,6 +24,7 @@ package nzilbb.labbcat.http;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -370,6 +371,57 @@ public class HttpRequestPostMultipart {
       return this;
    }
    
+   /**
+    * Writes the content of a file part directly into the request body.
+    * @see HttpRequestPostMultipart#setParameter(String,String,PartWriter)
+    */
+   public interface PartWriter {
+      /**
+       * Writes the part content.
+       * @param out The request body stream; this should not be closed by the writer.
+       * @throws IOException If an IO error occurs.
+       */
+      void write(OutputStream out) throws IOException;
+   }
+   
+   /**
+    * adds a file parameter to the request, the content of which is generated on the fly
+    * by the given writer, so that no intermediate file is required.
+    * @param name parameter name
+    * @param filename the name of the file
+    * @param writer generator of the file content
+    * @return A reference to this object, so that setters can be chained.
+    * @throws IOException If an IO error occurs.
+    */
+   public HttpRequestPostMultipart setParameter(String name, String filename, PartWriter writer) throws IOException {
+      
+      boundary();
+      writeName(name);
+      write("; filename=\"");
+      write(filename);
+      write('"');
+      newline();
+      write("Content-Type: ");
+      String type = HttpURLConnection.guessContentTypeFromName(filename);
+      if (type == null) type = "application/octet-stream";
+      writeln(type);
+      newline();
+      writer.write(new FilterOutputStream(os) {
+            public void write(byte[] b, int off, int len) throws IOException {
+               if (bCancelling) throw new RequestCancelledException(HttpRequestPostMultipart.this);
+               out.write(b, off, len);
+            }
+            public void close() throws IOException {
+               flush(); // leave the request body open
+            }
+         });
+      os.flush();
+      newline();
+      // for toString:
+      body.append(name).append(" = streamed (").append(filename).append(") ");
+      return this;
+   }
+   
    /**
     * adds a file parameter to the request
     * @param name parameter name
@@ -220,17 +220,39 @@ public class Match {
     */
    public Match(JsonObject json) {
       
-      MatchId = json.getString("MatchId");
-      Transcript = json.getString("Transcript");
-      Participant = json.getString("Participant");
-      Corpus = json.getString("Corpus");
-      Line = json.getJsonNumber("Line").doubleValue();
-      LineEnd = json.getJsonNumber("LineEnd").doubleValue();
-      BeforeMatch = json.getString("BeforeMatch");
-      Text = json.getString("Text");
-      AfterMatch = json.getString("AfterMatch");
+      MatchId = json.getString("MatchId", null);
+      Transcript = json.getString("Transcript", null);
+      Participant = json.getString("Participant", null);
+      Corpus = json.getString("Corpus", null);
+      if (json.containsKey("Line") && !json.isNull("Line")) {
+         Line = json.getJsonNumber("Line").doubleValue();
+      }
+      if (json.containsKey("LineEnd") && !json.isNull("LineEnd")) {
+         LineEnd = json.getJsonNumber("LineEnd").doubleValue();
+      }
+      BeforeMatch = json.getString("BeforeMatch", null);
+      Text = json.getString("Text", null);
+      AfterMatch = json.getString("AfterMatch", null);
    } // end of constructor
    
+   /**
+    * Serializes the object to JSON.
+    * @return A JSON serialization of the object.
+    */
+   public JsonObject toJson() {
+      JsonObjectBuilder json = Json.createObjectBuilder();
+      if (MatchId != null) json = json.add("MatchId", MatchId);
+      if (Transcript != null) json = json.add("Transcript", Transcript);
+      if (Participant != null) json = json.add("Participant", Participant);
+      if (Corpus != null) json = json.add("Corpus", Corpus);
+      if (Line != null) json = json.add("Line", Line);
+      if (LineEnd != null) json = json.add("LineEnd", LineEnd);
+      if (BeforeMatch != null) json = json.add("BeforeMatch", BeforeMatch);
+      if (Text != null) json = json.add("Text", Text);
+      if (AfterMatch != null) json = json.add("AfterMatch", AfterMatch);
+      return json.build();
+   } // end of toJson()
+   
    /**
     * String represtation for logging.
     * @return A string representation of the object.
@@ -0,0 +1,241 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plans fragment requests so that identical and overlapping intervals are only fetched
+ * once.
+ * <p> Matches from the same utterance often share the same (or overlapping) start/end
+ * times, e.g. when several words in one line match a search. {@link #coalesce(String[],
+ * Double[],Double[],boolean)} groups the requested intervals by transcript, de-duplicates
+ * identical intervals, and optionally merges overlapping ones, so that each
+ * {@link Group} can be fetched with a single request, and its {@link Interval}s derived
+ * from it (or simply shared by all the requests that asked for them).
+ * <p> Running totals of how many fragments were requested, how many were distinct, and
+ * how many fetches were required are kept, so the savings can be reported.
+ * <p> e.g.
+ * <pre> LabbcatView labbcat = new LabbcatView(url, username, password)
+ *   .setCoalescer(new IntervalCoalescer());
+ * File[] wavs = labbcat.getSoundFragments(matches, null, dir);
+ * System.out.println(labbcat.getCoalescer());</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class IntervalCoalescer {
+
+  // Attributes:
+
+  /**
+   * The maximum duration (in seconds) of a group of merged overlapping intervals, or 0
+   * for no limit. Default is 60. This prevents a long run of overlapping intervals from
+   * becoming a single very large fetch.
+   * @see #getMaxDuration()
+   * @see #setMaxDuration(double)
+   */
+  protected double maxDuration = 60.0;
+  /**
+   * Getter for {@link #maxDuration}: The maximum duration (in seconds) of a group of
+   * merged overlapping intervals, or 0 for no limit.
+   * @return The maximum duration (in seconds) of a group of merged overlapping
+   * intervals, or 0 for no limit.
+   */
+  public double getMaxDuration() { return maxDuration; }
+  /**
+   * Setter for {@link #maxDuration}: The maximum duration (in seconds) of a group of
+   * merged overlapping intervals, or 0 for no limit.
+   * @param newMaxDuration The maximum duration (in seconds) of a group of merged
+   * overlapping intervals, or 0 for no limit.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public IntervalCoalescer setMaxDuration(double newMaxDuration) { maxDuration = newMaxDuration; return this; }
+
+  /** Total number of fragments requested. */
+  private final AtomicLong requested = new AtomicLong();
+  /**
+   * Getter for the total number of fragments requested.
+   * @return The total number of (non-null) fragments requested.
+   */
+  public long getRequested() { return requested.get(); }
+
+  /** Total number of distinct intervals requested. */
+  private final AtomicLong distinct = new AtomicLong();
+  /**
+   * Getter for the total number of distinct intervals requested.
+   * @return The total number of distinct intervals requested.
+   */
+  public long getDistinct() { return distinct.get(); }
+
+  /** Total number of fetches planned. */
+  private final AtomicLong fetched = new AtomicLong();
+  /**
+   * Getter for the total number of fetches planned.
+   * @return The total number of fetches planned, i.e. groups returned by
+   * {@link #coalesce(String[],Double[],Double[],boolean)}.
+   */
+  public long getFetched() { return fetched.get(); }
+
+  // Methods:
+
+  /**
+   * Default constructor.
+   */
+  public IntervalCoalescer() {
+  } // end of constructor
+
+  /**
+   * Groups the given intervals by transcript, de-duplicating identical intervals and
+   * optionally merging overlapping ones. Elements where any of the transcript ID, start
+   * offset, or end offset is null are ignored.
+   * @param transcriptIds A list of transcript IDs.
+   * @param startOffsets A list of start offsets, with one element for each element in
+   * <var>transcriptIds</var>.
+   * @param endOffsets A list of end offsets, with one element for each element in
+   * <var>transcriptIds</var>.
+   * @param mergeOverlapping Whether overlapping intervals should be merged into one
+   * group. If false, only identical intervals are combined.
+   * @return The groups to fetch, ordered by transcript (in order of first appearance)
+   * then start offset.
+   */
+  public List<Group> coalesce(
+    String[] transcriptIds, Double[] startOffsets, Double[] endOffsets,
+    boolean mergeOverlapping) {
+    
+    // distinct intervals by transcript
+    Map<String,Map<String,Interval>> byTranscript
+      = new LinkedHashMap<String,Map<String,Interval>>();
+    int count = 0;
+    for (int i = 0; i < transcriptIds.length; i++) {
+      if (transcriptIds[i] == null || startOffsets[i] == null || endOffsets[i] == null) continue;
+      count++;
+      final double start = startOffsets[i];
+      final double end = endOffsets[i];
+      byTranscript.computeIfAbsent(
+        transcriptIds[i], id -> new LinkedHashMap<String,Interval>())
+        .computeIfAbsent(start + "-" + end, key -> new Interval(start, end))
+        .indices.add(i);
+    } // next element
+
+    Vector<Group> groups = new Vector<Group>();
+    int distinctCount = 0;
+    for (Map.Entry<String,Map<String,Interval>> transcript : byTranscript.entrySet()) {
+      Vector<Interval> intervals = new Vector<Interval>(transcript.getValue().values());
+      distinctCount += intervals.size();
+      Collections.sort(intervals, (a, b) -> a.start != b.start?
+                       Double.compare(a.start, b.start) : Double.compare(a.end, b.end));
+      Group group = null;
+      for (Interval interval : intervals) {
+        if (group != null && mergeOverlapping
+            && interval.start < group.end // overlaps
+            && (maxDuration <= 0
+                || Math.max(group.end, interval.end) - group.start <= maxDuration)) {
+          group.add(interval);
+        } else {
+          group = new Group(transcript.getKey());
+          group.add(interval);
+          groups.add(group);
+        }
+      } // next interval
+    } // next transcript
+
+    requested.addAndGet(count);
+    distinct.addAndGet(distinctCount);
+    fetched.addAndGet(groups.size());
+    return groups;
+  } // end of coalesce()
+
+  /**
+   * Resets the running totals.
+   */
+  public void reset() {
+    requested.set(0);
+    distinct.set(0);
+    fetched.set(0);
+  } // end of reset()
+
+  /**
+   * Summary of the running totals.
+   * @return A string representation of the object.
+   */
+  @Override public String toString() {
+    return "IntervalCoalescer: " + getRequested() + " requested, " + getDistinct()
+      + " distinct, " + getFetched() + " fetched ("
+      + (getRequested() - getFetched()) + " requests saved)";
+  } // end of toString()
+
+  /**
+   * A distinct interval, and the indices of the requests for it.
+   */
+  public static class Interval {
+    /** Start offset in seconds. */
+    public final double start;
+    /** End offset in seconds. */
+    public final double end;
+    /** Indices of all requests for this interval. */
+    public final List<Integer> indices = new Vector<Integer>();
+    /**
+     * Constructor.
+     * @param start Start offset in seconds.
+     * @param end End offset in seconds.
+     */
+    public Interval(double start, double end) {
+      this.start = start;
+      this.end = end;
+    }
+  } // end of class Interval
+
+  /**
+   * A set of intervals in the same transcript that can be fetched together.
+   */
+  public static class Group {
+    /** The transcript ID. */
+    public final String transcriptId;
+    /** The earliest start offset of the intervals. */
+    public double start = Double.MAX_VALUE;
+    /** The latest end offset of the intervals. */
+    public double end = -Double.MAX_VALUE;
+    /** The distinct intervals in the group, ordered by start offset. */
+    public final List<Interval> intervals = new Vector<Interval>();
+    /**
+     * Constructor.
+     * @param transcriptId The transcript ID.
+     */
+    public Group(String transcriptId) {
+      this.transcriptId = transcriptId;
+    }
+    /**
+     * Adds an interval to the group.
+     * @param interval The interval to add.
+     */
+    public void add(Interval interval) {
+      intervals.add(interval);
+      start = Math.min(start, interval.start);
+      end = Math.max(end, interval.end);
+    }
+  } // end of class Group
+
+} // end of class IntervalCoalescer
@@ -0,0 +1,217 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import nzilbb.ag.Graph;
+import nzilbb.ag.Schema;
+import nzilbb.ag.serialize.SerializationException;
+import nzilbb.ag.serialize.SerializationParametersMissingException;
+import nzilbb.ag.serialize.SerializerNotConfiguredException;
+import nzilbb.ag.serialize.json.JSONSerialization;
+import nzilbb.ag.serialize.util.NamedStream;
+import nzilbb.ag.serialize.util.Utility;
+import nzilbb.configure.ParameterSet;
+import nzilbb.util.IO;
+
+/**
+ * A thread-safe pool of configured {@link JSONSerialization} instances, for
+ * deserializing transcripts received from the server, and serializing transcripts to
+ * send to it.
+ * <p> Rather than creating and configuring a new {@link JSONSerialization} for every
+ * transcript or fragment, instances are taken from the pool, and returned to it after
+ * use. The configuration doesn't depend on the schema, so each instance is configured
+ * once, when it's created, and the schema is passed to each load.
+ * <p> Idle instances don't retain the JSON of the last transcript they deserialized.
+ * <p> Instances are only returned to the pool after successful use; one that throws an
+ * exception is discarded, in case it's left in an inconsistent state.
+ * <p> e.g.
+ * <pre> Graph graph = JSONSerializationPool.Shared().deserialize(stream, id, schema);
+ * String json = JSONSerializationPool.Shared().serialize(graph);</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class JSONSerializationPool {
+
+  /** Pool shared by all clients. */
+  private static final JSONSerializationPool shared = new JSONSerializationPool();
+  
+  /**
+   * Gets a pool shared by all clients.
+   * @return A pool shared by all clients.
+   */
+  public static JSONSerializationPool Shared() {
+    return shared;
+  } // end of Shared()
+
+  // Attributes:
+
+  /** Idle instances. */
+  private final ConcurrentLinkedDeque<Pooled> idle = new ConcurrentLinkedDeque<Pooled>();
+
+  /**
+   * The maximum number of idle instances kept for reuse. Default is 16.
+   * @see #getMaxIdle()
+   * @see #setMaxIdle(int)
+   */
+  protected int maxIdle = 16;
+  /**
+   * Getter for {@link #maxIdle}: The maximum number of idle instances kept for reuse.
+   * @return The maximum number of idle instances kept for reuse.
+   */
+  public int getMaxIdle() { return maxIdle; }
+  /**
+   * Setter for {@link #maxIdle}: The maximum number of idle instances kept for reuse.
+   * @param newMaxIdle The maximum number of idle instances kept for reuse.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public JSONSerializationPool setMaxIdle(int newMaxIdle) { maxIdle = newMaxIdle; return this; }
+
+  /** Number of instances created. */
+  private final AtomicLong created = new AtomicLong();
+  /**
+   * Number of instances that have been created.
+   * @return Number of instances that have been created.
+   */
+  public long getCreated() { return created.get(); }
+
+  /** Number of times an idle instance was reused. */
+  private final AtomicLong reused = new AtomicLong();
+  /**
+   * Number of times an idle instance was reused.
+   * @return Number of times an idle instance was reused.
+   */
+  public long getReused() { return reused.get(); }
+
+  /** Number of times an instance was configured. */
+  private final AtomicLong configured = new AtomicLong();
+  /**
+   * Number of times an instance has been configured, which is once per instance created.
+   * @return Number of times an instance has been configured.
+   */
+  public long getConfigured() { return configured.get(); }
+
+  // Methods:
+
+  /**
+   * Default constructor.
+   */
+  public JSONSerializationPool() {
+  } // end of constructor
+
+  /**
+   * Takes an instance from the pool, or creates and configures one if there are none idle.
+   * @param schema The layer schema, used to configure a new instance.
+   * @return An instance, which should be passed to {@link #release(Pooled)} after use.
+   */
+  protected Pooled borrow(Schema schema) {
+    Pooled pooled = idle.pollFirst();
+    if (pooled == null) {
+      pooled = new Pooled();
+      created.incrementAndGet();
+      pooled.serialization.configure(
+        pooled.serialization.configure(new ParameterSet(), schema), schema);
+      configured.incrementAndGet();
+    } else {
+      reused.incrementAndGet();
+    }
+    return pooled;
+  } // end of borrow()
+
+  /**
+   * Returns an instance to the pool.
+   * @param pooled An instance previously returned by {@link #borrow(Schema)}.
+   */
+  protected void release(Pooled pooled) {
+    if (idle.size() < maxIdle) idle.offerFirst(pooled);
+  } // end of release()
+
+  /**
+   * Deserializes a JSON-encoded transcript.
+   * @param json The JSON stream.
+   * @param name The name of the stream, which is used as the graph ID if the JSON
+   * doesn't include one.
+   * @param schema The layer schema.
+   * @return The transcript, or null if the stream contains none.
+   * @throws IOException If the stream can't be read.
+   * @throws SerializationException If the JSON is invalid.
+   * @throws SerializerNotConfiguredException If the deserializer is not configured.
+   * @throws SerializationParametersMissingException If parameters are missing.
+   */
+  public Graph deserialize(InputStream json, String name, Schema schema)
+    throws IOException, SerializationException, SerializerNotConfiguredException,
+    SerializationParametersMissingException {
+    Pooled pooled = borrow(schema);
+    JSONSerialization deserializer = pooled.serialization;
+    ParameterSet parameters = deserializer.load(
+      Utility.OneNamedStreamArray(new NamedStream(json, name, "application/json")), schema);
+    deserializer.setParameters(parameters); // run with default values
+    Graph[] graphs = deserializer.deserialize();
+    // the deserializer keeps the parsed JSON until the next load, so load nothing, to
+    // ensure idle instances don't hold on to whole transcripts
+    deserializer.load(new NamedStream[0], schema);
+    release(pooled);
+    if (graphs.length == 0) return null;
+    return graphs[0];
+  } // end of deserialize()
+
+  /**
+   * Serializes a transcript as JSON.
+   * @param graph The transcript, which must have a schema.
+   * @return The JSON-encoded transcript.
+   * @throws IOException If the serialization can't be read.
+   * @throws SerializerNotConfiguredException If the serializer is not configured.
+   */
+  public String serialize(Graph graph)
+    throws IOException, SerializerNotConfiguredException {
+    Pooled pooled = borrow(graph.getSchema());
+    final Vector<NamedStream> streams = new Vector<NamedStream>();
+    pooled.serialization.serialize(
+      Utility.OneGraphSpliterator(graph), null,
+      (stream) -> streams.add(stream),
+      (warning) -> System.out.println(warning),
+      (exception) -> {});
+    String json = IO.InputStreamToString(streams.elementAt(0).getStream());
+    release(pooled);
+    return json;
+  } // end of serialize()
+
+  /**
+   * Returns a summary of pool usage.
+   * @return A summary of pool usage.
+   */
+  @Override public String toString() {
+    return "created " + created + " reused " + reused + " configured " + configured
+      + " idle " + idle.size();
+  } // end of toString()
+
+  /**
+   * A pooled instance.
+   */
+  protected static class Pooled {
+    final JSONSerialization serialization = new JSONSerialization();
+  } // end of class Pooled
+
+} // end of class JSONSerializationPool
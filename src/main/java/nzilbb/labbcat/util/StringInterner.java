@@ -0,0 +1,177 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe string pool for de-duplicating strings decoded from server
+ * responses.
+ * <p> Large result sets repeat the same layer IDs, transcript IDs, participant names,
+ * etc. many times over, and the JSON parser creates a new String for each one. Passing
+ * decoded values through {@link #intern(String)} means only one copy of each distinct
+ * value is kept.
+ * <p> Unlike {@link String#intern()}, the pool is private and has a {@link #getMaxSize()
+ * size limit}; once the limit has been reached, new values are returned as-is (and
+ * counted as {@link #getRejected() rejected}) rather than being added to the pool.
+ * <p> e.g.
+ * <pre> LabbcatView labbcat = new LabbcatView(url, username, password)
+ *   .setInterner(new StringInterner(100000));
+ * Match[] matches = labbcat.getMatches(threadId, 1);
+ * System.out.println(labbcat.getInterner());</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class StringInterner {
+
+  // Attributes:
+
+  /** The pooled strings. */
+  private final ConcurrentHashMap<String,String> pool;
+
+  /**
+   * The maximum number of distinct strings the pool will hold.
+   * @see #getMaxSize()
+   */
+  protected final int maxSize;
+  /**
+   * Getter for {@link #maxSize}: The maximum number of distinct strings the pool will hold.
+   * @return The maximum number of distinct strings the pool will hold.
+   */
+  public int getMaxSize() { return maxSize; }
+
+  /**
+   * The maximum length of strings that will be pooled. Longer strings (e.g. match
+   * context) are unlikely to be repeated, so are returned as-is. Default is 256.
+   * @see #getMaxLength()
+   * @see #setMaxLength(int)
+   */
+  protected int maxLength = 256;
+  /**
+   * Getter for {@link #maxLength}: The maximum length of strings that will be pooled.
+   * @return The maximum length of strings that will be pooled.
+   */
+  public int getMaxLength() { return maxLength; }
+  /**
+   * Setter for {@link #maxLength}: The maximum length of strings that will be pooled.
+   * @param newMaxLength The maximum length of strings that will be pooled.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public StringInterner setMaxLength(int newMaxLength) { maxLength = newMaxLength; return this; }
+
+  /** Number of lookups that returned an already-pooled string. */
+  private final AtomicLong hits = new AtomicLong();
+  /** Number of lookups that added a new string to the pool. */
+  private final AtomicLong misses = new AtomicLong();
+  /** Number of lookups that could not be pooled because of size limits. */
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Number of lookups that returned an already-pooled string.
+   * @return The number of hits so far.
+   */
+  public long getHits() { return hits.get(); }
+
+  /**
+   * Number of lookups that added a new string to the pool.
+   * @return The number of misses so far.
+   */
+  public long getMisses() { return misses.get(); }
+
+  /**
+   * Number of lookups that were not pooled because the pool was full or the string was
+   * longer than {@link #getMaxLength()}.
+   * @return The number of rejected lookups so far.
+   */
+  public long getRejected() { return rejected.get(); }
+
+  /**
+   * The number of distinct strings currently pooled.
+   * @return The number of distinct strings currently pooled.
+   */
+  public int size() { return pool.size(); }
+
+  // Methods:
+
+  /**
+   * Default constructor; the pool holds up to 65,536 strings.
+   */
+  public StringInterner() {
+    this(65536);
+  } // end of constructor
+
+  /**
+   * Constructor.
+   * @param maxSize The maximum number of distinct strings the pool will hold.
+   */
+  public StringInterner(int maxSize) {
+    if (maxSize < 0) throw new IllegalArgumentException("maxSize must not be negative");
+    this.maxSize = maxSize;
+    pool = new ConcurrentHashMap<String,String>(Math.min(maxSize, 1024));
+  } // end of constructor
+
+  /**
+   * Returns the canonical copy of the given string.
+   * @param s The string to intern, which may be null.
+   * @return The pooled string equal to <var>s</var>, or <var>s</var> itself if it
+   * wasn't pooled.
+   */
+  public String intern(String s) {
+    if (s == null) return null;
+    String pooled = pool.get(s);
+    if (pooled != null) {
+      hits.incrementAndGet();
+      return pooled;
+    }
+    if (s.length() > maxLength || pool.size() >= maxSize) {
+      rejected.incrementAndGet();
+      return s;
+    }
+    pooled = pool.putIfAbsent(s, s);
+    if (pooled != null) { // another thread got there first
+      hits.incrementAndGet();
+      return pooled;
+    }
+    misses.incrementAndGet();
+    return s;
+  } // end of intern()
+
+  /**
+   * Empties the pool and resets statistics.
+   */
+  public void clear() {
+    pool.clear();
+    hits.set(0);
+    misses.set(0);
+    rejected.set(0);
+  } // end of clear()
+
+  /**
+   * String representation of the pool statistics, for logging.
+   * @return A string representation of the object.
+   */
+  @Override public String toString() {
+    return "StringInterner: " + size() + "/" + maxSize + " pooled, "
+      + getHits() + " hits, " + getMisses() + " misses, " + getRejected() + " rejected";
+  } // end of toString()
+
+} // end of class StringInterner
@@ -0,0 +1,382 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Vector;
+import nzilbb.util.IO;
+
+/**
+ * A managed set of temporary files and directories, which are deleted deterministically
+ * when {@link #release(File) released} or when the set is {@link #close() closed}.
+ * <p> This is an alternative to {@link File#deleteOnExit()}, which is unsuitable for
+ * long-running processes, because the JVM keeps a record of every file so marked until
+ * it exits.
+ * <p> A budget for total disk usage can be set with {@link #setMaxBytes(long)}, in which
+ * case attempts to allocate new temporary files fail while outstanding files exceed the
+ * budget.
+ * <p> Files deleted by other means (e.g. by the caller once it has finished with a
+ * returned fragment) stop being tracked; they're pruned from the tracked set as it grows,
+ * so that it stays proportional to the number of files that still exist.
+ * <p> e.g.
+ * <pre> try (TempFiles tempFiles = new TempFiles()) {
+ *   labbcat.setTempFiles(tempFiles);
+ *   File[] wavs = labbcat.getSoundFragments(matches, null, null);
+ *   ...
+ * } // all fragments are deleted here</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TempFiles implements AutoCloseable {
+
+  // Attributes:
+
+  /** Tracked files and directories, in order of allocation. */
+  private final LinkedHashSet<File> outstanding = new LinkedHashSet<File>();
+
+  /**
+   * Running estimate of bytes used by outstanding files, as last measured plus anything
+   * {@link #charge(File) charged} since, or -1 if it hasn't been measured.
+   */
+  private long usage = -1;
+
+  /** Size the tracked set must reach before files that no longer exist are pruned. */
+  private int pruneAt = MIN_PRUNE_AT;
+
+  /** Minimum value of {@link #pruneAt}. */
+  private static final int MIN_PRUNE_AT = 64;
+
+  /**
+   * Directory in which temporary files are created, or null for the system default.
+   * @see #getRoot()
+   */
+  protected File root;
+  /**
+   * Getter for {@link #root}: Directory in which temporary files are created, or null
+   * for the system default.
+   * @return Directory in which temporary files are created, or null for the system default.
+   */
+  public File getRoot() { return root; }
+
+  /**
+   * Maximum number of bytes outstanding files may occupy, or 0 for no limit. Default is 0.
+   * @see #getMaxBytes()
+   * @see #setMaxBytes(long)
+   */
+  protected long maxBytes = 0;
+  /**
+   * Getter for {@link #maxBytes}: Maximum number of bytes outstanding files may occupy,
+   * or 0 for no limit.
+   * @return Maximum number of bytes outstanding files may occupy, or 0 for no limit.
+   */
+  public long getMaxBytes() { return maxBytes; }
+  /**
+   * Setter for {@link #maxBytes}: Maximum number of bytes outstanding files may occupy,
+   * or 0 for no limit.
+   * @param newMaxBytes Maximum number of bytes outstanding files may occupy, or 0 for
+   * no limit.
+   * @return A reference to this object, so that setters can be chained.
+   */
+  public TempFiles setMaxBytes(long newMaxBytes) { maxBytes = newMaxBytes; return this; }
+
+  /** Instance shared by clients that don't have their own. */
+  private static TempFiles shared;
+
+  // Methods:
+
+  /**
+   * Default constructor; temporary files are created in the system default location.
+   */
+  public TempFiles() {
+  } // end of constructor
+
+  /**
+   * Constructor.
+   * @param root Directory in which temporary files are created, or null for the system
+   * default.
+   */
+  public TempFiles(File root) {
+    this.root = root;
+  } // end of constructor
+
+  /**
+   * Gets the instance shared by all clients that don't have their own; outstanding
+   * files in this instance are deleted when the JVM exits.
+   * @return The shared instance.
+   */
+  public static synchronized TempFiles Shared() {
+    if (shared == null) {
+      shared = new TempFiles();
+      final TempFiles instance = shared;
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> instance.close()));
+    }
+    return shared;
+  } // end of Shared()
+
+  /**
+   * Creates a new temporary file, which is tracked until released.
+   * @param prefix The file name prefix.
+   * @param suffix The file name suffix.
+   * @return The new (empty) file.
+   * @throws IOException If the disk budget has been exceeded, or the file could not be
+   * created.
+   */
+  public File createTempFile(String prefix, String suffix) throws IOException {
+    checkBudget();
+    File file = root == null? File.createTempFile(prefix, suffix)
+      : File.createTempFile(prefix, suffix, root);
+    return track(file);
+  } // end of createTempFile()
+
+  /**
+   * Creates a new temporary directory, which is tracked until released. Anything
+   * created inside the directory is deleted along with it.
+   * @param prefix The directory name prefix.
+   * @return The new (empty) directory.
+   * @throws IOException If the disk budget has been exceeded, or the directory could
+   * not be created.
+   */
+  public File createTempDirectory(String prefix) throws IOException {
+    checkBudget();
+    File dir = root == null? Files.createTempDirectory(prefix).toFile()
+      : Files.createTempDirectory(root.toPath(), prefix).toFile();
+    return track(dir);
+  } // end of createTempDirectory()
+
+  /**
+   * Adds the given file or directory to the tracked set, so that it will be deleted
+   * when released or when this object is closed.
+   * @param file The file or directory.
+   * @return The given file.
+   */
+  public synchronized File track(File file) {
+    if (file != null) {
+      outstanding.add(file.getAbsoluteFile());
+      if (outstanding.size() >= pruneAt) {
+        // prune, and wait until the set has doubled before pruning again, so the cost
+        // per file tracked stays constant
+        prune();
+        pruneAt = Math.max(MIN_PRUNE_AT, outstanding.size() * 2);
+      }
+    }
+    return file;
+  } // end of track()
+
+  /**
+   * Deletes the given file or directory now, and stops tracking it.
+   * <p> If the file is inside a tracked directory (e.g. a fragment returned by
+   * {@link nzilbb.labbcat.LabbcatView#getSoundFragments(String[],Double[],Double[],Integer,File)}
+   * with no directory specified) and the directory is left empty, the directory is
+   * released too.
+   * @param file The file or directory to delete.
+   * @return true if the file, or a directory containing it, was being tracked, false
+   * otherwise.
+   */
+  public boolean release(File file) {
+    if (file == null) return false;
+    file = file.getAbsoluteFile();
+    long size = size(file);
+    boolean tracked;
+    synchronized (this) {
+      tracked = isTracked(file);
+      outstanding.remove(file);
+      if (tracked && usage >= 0) usage = Math.max(0, usage - size);
+    }
+    delete(file);
+    
+    // drop any tracked parent directory that is now empty
+    File parent = file.getParentFile();
+    if (parent != null && isTracked(parent)) {
+      String[] children = parent.list();
+      if (children != null && children.length == 0) release(parent);
+    }
+    return tracked;
+  } // end of release()
+
+  /**
+   * Ensures there's room for more temporary files.
+   * <p> This measures every outstanding file; to check the budget repeatedly while
+   * writing many files, use {@link #charge(File)} instead.
+   * @throws IOException If {@link #maxBytes} is set and outstanding files exceed it.
+   */
+  public void checkBudget() throws IOException {
+    if (maxBytes <= 0) return;
+    long measured = getUsage();
+    synchronized (this) {
+      usage = measured;
+    }
+    if (measured >= maxBytes) {
+      throw new IOException(
+        "Temporary file budget exceeded: " + measured + " bytes used of " + maxBytes);
+    }
+  } // end of checkBudget()
+
+  /**
+   * Ensures there's room to write a file of the given size, before it's written.
+   * <p> Like {@link #charge(File)}, this uses the running usage estimate, and only
+   * re-measures outstanding files if the new file would exceed {@link #maxBytes}. Files
+   * that aren't inside a tracked directory are not checked.
+   * @param file The file that is about to be written.
+   * @param bytes The expected size of the file, or -1 if it's not known.
+   * @throws IOException If {@link #maxBytes} is set and outstanding files plus the new
+   * file would exceed it.
+   */
+  public void reserve(File file, long bytes) throws IOException {
+    if (maxBytes <= 0 || file == null || !isTracked(file.getAbsoluteFile())) return;
+    bytes = Math.max(0, bytes);
+    long estimate;
+    synchronized (this) {
+      estimate = usage;
+    }
+    if (estimate < 0 || estimate + bytes > maxBytes) {
+      checkBudget(); // re-measure
+      synchronized (this) {
+        estimate = usage;
+      }
+      if (estimate + bytes > maxBytes) {
+        throw new IOException(
+          "Temporary file budget exceeded: " + estimate + " bytes used of " + maxBytes
+          + ", " + bytes + " more required");
+      }
+    }
+  } // end of reserve()
+
+  /**
+   * Adds the size of a newly written file to the running usage estimate, and ensures
+   * there's room for more temporary files.
+   * <p> Unlike {@link #checkBudget()}, this doesn't measure every outstanding file each
+   * time it's called, so it's suitable for calling once per file while writing many
+   * files into a tracked directory. Outstanding files are only re-measured when the
+   * estimate exceeds {@link #maxBytes}, in case files have been deleted by other means.
+   * Files that aren't inside a tracked directory are not counted.
+   * @param file The file that has been written.
+   * @throws IOException If {@link #maxBytes} is set and outstanding files exceed it.
+   */
+  public void charge(File file) throws IOException {
+    if (maxBytes <= 0 || file == null) return;
+    long estimate;
+    synchronized (this) {
+      if (usage >= 0 && isTracked(file.getAbsoluteFile())) usage += size(file);
+      estimate = usage;
+    }
+    if (estimate < 0 || estimate >= maxBytes) checkBudget();
+  } // end of charge()
+
+  /**
+   * Determines whether the given file, or a directory containing it, is tracked.
+   * @param file The file or directory.
+   * @return true if the file or one of its ancestors is outstanding.
+   */
+  private synchronized boolean isTracked(File file) {
+    for (File f = file; f != null; f = f.getParentFile()) {
+      if (outstanding.contains(f)) return true;
+    }
+    return false;
+  } // end of isTracked()
+
+  /**
+   * Gets the files and directories that are still outstanding. Anything that has
+   * already been deleted by other means is no longer tracked.
+   * @return Outstanding files and directories, in order of allocation.
+   */
+  public synchronized File[] getOutstanding() {
+    prune();
+    return outstanding.toArray(new File[0]);
+  } // end of getOutstanding()
+
+  /**
+   * Gets the number of bytes used by outstanding files.
+   * @return Total size of outstanding files, including the contents of outstanding
+   * directories.
+   */
+  public long getUsage() {
+    long total = 0;
+    for (File file : getOutstanding()) total += size(file);
+    return total;
+  } // end of getUsage()
+
+  /**
+   * Deletes all outstanding files and directories.
+   */
+  @Override public void close() {
+    File[] files;
+    synchronized (this) {
+      files = outstanding.toArray(new File[0]);
+      outstanding.clear();
+      usage = -1;
+      pruneAt = MIN_PRUNE_AT;
+    }
+    for (File file : files) delete(file);
+  } // end of close()
+
+  /**
+   * Stops tracking files that no longer exist.
+   */
+  private synchronized void prune() {
+    Iterator<File> files = outstanding.iterator();
+    while (files.hasNext()) if (!files.next().exists()) files.remove();
+  } // end of prune()
+
+  /**
+   * Deletes the given file, or directory and its contents.
+   * @param file The file or directory.
+   */
+  private static void delete(File file) {
+    if (file.isDirectory()) {
+      IO.RecursivelyDelete(file);
+    } else {
+      file.delete();
+    }
+  } // end of delete()
+
+  /**
+   * Size of the given file, or directory and its contents.
+   * @param file The file or directory.
+   * @return The size in bytes.
+   */
+  private static long size(File file) {
+    if (file.isDirectory()) {
+      long total = 0;
+      File[] children = file.listFiles();
+      if (children != null) for (File child : children) total += size(child);
+      return total;
+    }
+    return file.length();
+  } // end of size()
+
+  /**
+   * Summary of outstanding files, for logging.
+   * @return A string representation of the object.
+   */
+  @Override public String toString() {
+    File[] files = getOutstanding();
+    StringBuilder s = new StringBuilder("TempFiles: ")
+      .append(files.length).append(" outstanding, ").append(getUsage()).append(" bytes");
+    if (maxBytes > 0) s.append(" of ").append(maxBytes);
+    for (File file : files) s.append("\n\t").append(file.getPath());
+    return s.toString();
+  } // end of toString()
+
+} // end of class TempFiles
@@ -0,0 +1,238 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat.util;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.function.Consumer;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParsingException;
+import nzilbb.ag.Anchor;
+import nzilbb.ag.Annotation;
+import nzilbb.ag.Graph;
+import nzilbb.ag.serialize.SerializationException;
+
+/**
+ * Parses a JSON-serialized transcript incrementally, passing anchors and annotations to
+ * consumers as they're read, instead of building a {@link Graph} in memory.
+ * <p> The input is the format produced by
+ * {@link nzilbb.ag.serialize.json.JSONSerialization}: transcript attributes, the schema
+ * (which is skipped), a map of anchors, and then the annotations, with each annotation's
+ * children nested in arrays keyed by layer ID.
+ * <p> Anchors are passed to the anchor consumer in the order they appear. Annotations
+ * are passed to the annotation consumer in document order, which means each annotation
+ * is delivered before any of its children. Each annotation has its layer ID, parent ID,
+ * and ordinal set, but is not linked to a graph, so {@link Annotation#getStart()},
+ * {@link Annotation#getParent()}, etc. can't be used; use the anchor and parent IDs
+ * instead.
+ * <p> So that annotations can be delivered without holding their children in memory, an
+ * annotation is delivered as soon as the first array of its children starts. This
+ * relies on each annotation's own attributes (ID, label, anchor IDs, etc.) preceding its
+ * child arrays in the JSON, which is the order in which JSONSerialization writes them.
+ * Any attributes that follow a child array are still set on the annotation, but only
+ * after it has been passed to the consumer.
+ * <p> Only the current path from the transcript to the annotation being parsed is held
+ * in memory (on the call stack), so memory use doesn't depend on the size of the transcript.
+ * <p> e.g.
+ * <pre> Graph header = new TranscriptStreamParser().parse(
+ *   stream, anchor -&gt; offsets.put(anchor.getId(), anchor.getOffset()),
+ *   annotation -&gt; { if (annotation.getLayerId().equals("phone")) count++; });</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TranscriptStreamParser {
+
+  // Attributes:
+
+  /** Format of "when" timestamps, as written by JSONSerialization. */
+  private final SimpleDateFormat fmtISODate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+
+  // Methods:
+
+  /**
+   * Default constructor.
+   */
+  public TranscriptStreamParser() {
+  } // end of constructor
+
+  /**
+   * Parses a JSON-serialized transcript.
+   * @param json The JSON stream, which is read to the end but not closed.
+   * @param anchorConsumer Receives each anchor, or null if anchors aren't required.
+   * @param annotationConsumer Receives each annotation, parents before children.
+   * @return A graph containing only the transcript's own attributes (ID, offset units,
+   * etc.), with no schema, anchors, or annotations.
+   * @throws SerializationException If the JSON is not a valid transcript.
+   */
+  public Graph parse(
+    InputStream json, Consumer<Anchor> anchorConsumer, Consumer<Annotation> annotationConsumer)
+    throws SerializationException {
+    Graph graph = new Graph();
+    try {
+      JsonParser parser = Json.createParser(
+        new InputStreamReader(json, StandardCharsets.UTF_8));
+      if (parser.next() != JsonParser.Event.START_OBJECT) {
+        throw new SerializationException("Transcript is not a JSON object");
+      }
+      JsonParser.Event event;
+      while ((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+        String key = parser.getString();
+        event = parser.next();
+        if (key.equals("schema")) {
+          if (event == JsonParser.Event.START_OBJECT) parser.skipObject();
+        } else if (key.equals("anchors")) {
+          if (event == JsonParser.Event.START_OBJECT) parseAnchors(parser, anchorConsumer);
+        } else if (event == JsonParser.Event.START_ARRAY) { // top-level layer
+          parseLayer(parser, key, graph.getId(), annotationConsumer);
+        } else if (event == JsonParser.Event.START_OBJECT) {
+          parser.skipObject();
+        } else if (key.equals("id")) {
+          graph.setId(parser.getString());
+        } else if (key.equals("offsetUnits")) {
+          graph.setOffsetUnits(parser.getString());
+        } else if (key.equals("corpus")) {
+          graph.put("corpus", parser.getString()); // (Graph.setCorpus is deprecated)
+        } else if (event == JsonParser.Event.VALUE_STRING
+                   || event == JsonParser.Event.VALUE_NUMBER) {
+          graph.put(key, parser.getString());
+        }
+      } // next key
+      return graph;
+    } catch(JsonParsingException x) {
+      throw new SerializationException(x);
+    } catch(JsonException x) {
+      throw new SerializationException(x);
+    }
+  } // end of parse()
+
+  /**
+   * Parses the anchors map.
+   * @param parser The parser, positioned at the start of the map.
+   * @param consumer Receives each anchor, or null.
+   */
+  protected void parseAnchors(JsonParser parser, Consumer<Anchor> consumer) {
+    JsonParser.Event event;
+    while ((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+      String anchorId = parser.getString();
+      parser.next(); // START_OBJECT
+      if (consumer == null) {
+        parser.skipObject();
+        continue;
+      }
+      Anchor anchor = new Anchor(anchorId, null);
+      while ((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+        String key = parser.getString();
+        event = parser.next();
+        if (event == JsonParser.Event.VALUE_NULL) continue;
+        if (key.equals("offset")) {
+          anchor.setOffset(parser.getBigDecimal().doubleValue());
+        } else if (key.equals("confidence")) {
+          anchor.setConfidence(parser.getInt());
+        } else if (key.equals("annotator")) {
+          anchor.setAnnotator(parser.getString());
+        } else if (key.equals("when")) {
+          anchor.setWhen(parseDate(parser.getString()));
+        } else if (event == JsonParser.Event.START_OBJECT) {
+          parser.skipObject();
+        } else if (event == JsonParser.Event.START_ARRAY) {
+          parser.skipArray();
+        } else if (event == JsonParser.Event.VALUE_STRING) {
+          anchor.put(key, parser.getString());
+        }
+      } // next attribute
+      consumer.accept(anchor);
+    } // next anchor
+  } // end of parseAnchors()
+
+  /**
+   * Parses an array of annotations on one layer, and their descendants.
+   * <p> Each annotation is passed to the consumer when its first child array starts (or
+   * when its object ends, if it has no children), so its attributes must precede its
+   * children in the JSON - see the class description.
+   * @param parser The parser, positioned at the start of the array.
+   * @param layerId The layer of the annotations in the array.
+   * @param parentId The ID of the annotations' parent.
+   * @param consumer Receives each annotation.
+   */
+  protected void parseLayer(
+    JsonParser parser, String layerId, String parentId, Consumer<Annotation> consumer) {
+    int ordinal = 0;
+    while (parser.next() != JsonParser.Event.END_ARRAY) { // START_OBJECT
+      Annotation annotation = new Annotation();
+      annotation.setLayerId(layerId);
+      annotation.setParentId(parentId);
+      annotation.setOrdinal(++ordinal);
+      boolean delivered = false;
+      JsonParser.Event event;
+      while ((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+        String key = parser.getString();
+        event = parser.next();
+        if (event == JsonParser.Event.START_ARRAY) { // children
+          if (!delivered) { // deliver the parent before its children
+            consumer.accept(annotation);
+            delivered = true;
+          }
+          parseLayer(parser, key, annotation.getId(), consumer);
+        } else if (event == JsonParser.Event.START_OBJECT) {
+          parser.skipObject();
+        } else if (event == JsonParser.Event.VALUE_NULL) {
+          continue;
+        } else if (key.equals("id")) {
+          annotation.setId(parser.getString());
+        } else if (key.equals("label")) {
+          annotation.setLabel(parser.getString());
+        } else if (key.equals("startId")) {
+          annotation.setStartId(parser.getString());
+        } else if (key.equals("endId")) {
+          annotation.setEndId(parser.getString());
+        } else if (key.equals("confidence")) {
+          annotation.setConfidence(parser.getInt());
+        } else if (key.equals("annotator")) {
+          annotation.setAnnotator(parser.getString());
+        } else if (key.equals("when")) {
+          annotation.setWhen(parseDate(parser.getString()));
+        } else if (event == JsonParser.Event.VALUE_STRING) {
+          annotation.put(key, parser.getString());
+        }
+      } // next attribute
+      if (!delivered) consumer.accept(annotation);
+    } // next annotation
+  } // end of parseLayer()
+
+  /**
+   * Parses a timestamp.
+   * @param when The timestamp string.
+   * @return The date, or null if it can't be parsed.
+   */
+  protected java.util.Date parseDate(String when) {
+    try {
+      return fmtISODate.parse(when);
+    } catch(ParseException x) {
+      return null;
+    }
+  } // end of parseDate()
+
+} // end of class TranscriptStreamParser
@@ -1,5 +1,5 @@
 /**
- * Command line utilities.
+ * Command line utilities, and helper classes used by the API client.
  * <p>In particular, the {@link CommandLine} utility is the <q>main class</q> for
  * <i>nzilbb.labbcat.jar</i>, so is easy to invoke from the command line for performing
  * ad-hoc API requests: e.g.
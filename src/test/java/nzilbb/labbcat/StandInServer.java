@@ -0,0 +1,234 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.labbcat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.json.Json;
+import javax.json.JsonValue;
+import nzilbb.util.IO;
+
+/**
+ * A minimal local stand-in for a LaBB-CAT server, for testing client-side behaviour
+ * without a real server.
+ * <p> JSON API endpoints are registered with {@link #json(String,Function)}, other
+ * documents with {@link #raw(String,Function)}, and static files (served with HEAD and
+ * Range and If-Range support) with {@link #file(String,byte[])}.
+ * <p> Handlers are passed the query string; the body of each path's last request is kept
+ * in {@link #bodies}.
+ */
+public class StandInServer implements AutoCloseable {
+   
+   private final HttpServer server;
+   
+   /** Number of requests received, by path. */
+   public final Map<String,AtomicInteger> requestCounts = new ConcurrentHashMap<String,AtomicInteger>();
+   
+   /** Range headers received, in order. */
+   public final List<String> ranges = new CopyOnWriteArrayList<String>();
+   
+   /** Body of the last request received, by path. */
+   public final Map<String,byte[]> bodies = new ConcurrentHashMap<String,byte[]>();
+   
+   /**
+    * Starts a server on a free local port, with an <tt>api/store/getId</tt> endpoint.
+    * @throws IOException If the server can't start.
+    */
+   public StandInServer() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.start();
+      json("api/store/getId", query -> Json.createValue("stand-in"));
+   }
+   
+   /**
+    * The base URL of the stand-in server.
+    * @return The base URL, ending in a slash.
+    */
+   public String getUrl() {
+      return "http://localhost:" + server.getAddress().getPort() + "/labbcat/";
+   }
+   
+   /**
+    * Number of requests received for the given path.
+    * @param path The path relative to {@link #getUrl()}.
+    * @return The number of requests.
+    */
+   public int count(String path) {
+      AtomicInteger count = requestCounts.get(path);
+      return count == null? 0 : count.get();
+   }
+   
+   /**
+    * Registers a JSON API endpoint.
+    * @param path The path relative to {@link #getUrl()}.
+    * @param model Function from the query string (which may be null) to the response model.
+    * @return A reference to this object.
+    */
+   public StandInServer json(String path, Function<String,JsonValue> model) {
+      server.createContext("/labbcat/" + path, exchange -> {
+            count(exchange, path);
+            JsonValue value = model.apply(exchange.getRequestURI().getRawQuery());
+            byte[] body = Json.createObjectBuilder()
+               .add("title", "stand-in").add("version", "99999999.9999").add("code", 0)
+               .add("errors", Json.createArrayBuilder()).add("messages", Json.createArrayBuilder())
+               .add("model", value).build().toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) { out.write(body); }
+         });
+      return this;
+   }
+   
+   /**
+    * Registers an endpoint that returns a JSON document that's not wrapped in the usual
+    * API response envelope, e.g. a serialized transcript.
+    * @param path The path relative to {@link #getUrl()}.
+    * @param body Function from the query string (which may be null) to the response
+    * body, or null for a 404 response.
+    * @return A reference to this object.
+    */
+   public StandInServer raw(String path, Function<String,String> body) {
+      server.createContext("/labbcat/" + path, exchange -> {
+            count(exchange, path);
+            String content = body.apply(exchange.getRequestURI().getRawQuery());
+            if (content == null) {
+               exchange.sendResponseHeaders(404, -1);
+               exchange.close();
+               return;
+            }
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) { out.write(bytes); }
+         });
+      return this;
+   }
+   
+   /**
+    * Registers a static file, served with support for HEAD and single Range requests.
+    * Changes to the content array are reflected in subsequent responses and their ETag.
+    * @param path The path relative to {@link #getUrl()}.
+    * @param content The file content.
+    * @return A reference to this object.
+    */
+   public StandInServer file(String path, byte[] content) {
+      server.createContext("/labbcat/" + path, exchange -> {
+            count(exchange, path);
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().add("ETag", ETag(content));
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (range != null && ifRange != null && !ifRange.equals(ETag(content))) {
+               range = null; // content has changed, so send all of it
+            }
+            int start = 0;
+            int end = content.length - 1;
+            int status = 200;
+            if (range != null) {
+               ranges.add(range);
+               String[] startEnd = range.replace("bytes=", "").split("-", -1);
+               start = Integer.parseInt(startEnd[0]);
+               if (startEnd[1].length() > 0) end = Math.min(end, Integer.parseInt(startEnd[1]));
+               if (start >= content.length) {
+                  exchange.sendResponseHeaders(416, -1);
+                  exchange.close();
+                  return;
+               }
+               status = 206;
+               exchange.getResponseHeaders().add(
+                  "Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+            }
+            int length = end - start + 1;
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+               exchange.getResponseHeaders().add("Content-Length", "" + length);
+               exchange.sendResponseHeaders(status, -1);
+               exchange.close();
+               return;
+            }
+            exchange.sendResponseHeaders(status, length);
+            try (OutputStream out = exchange.getResponseBody()) {
+               out.write(content, start, length);
+            }
+         });
+      return this;
+   }
+   
+   /**
+    * The ETag of a static file, which changes if its content does.
+    * @param content The file content.
+    * @return The ETag.
+    */
+   public static String ETag(byte[] content) {
+      return "\"" + Integer.toHexString(Arrays.hashCode(content)) + "\"";
+   }
+   
+   /**
+    * Gets the values of a parameter from a query string.
+    * @param query The query string, which may be null.
+    * @param name The parameter name.
+    * @return The decoded values of the parameter, which may be an empty list.
+    */
+   public static List<String> parameter(String query, String name) {
+      List<String> values = new Vector<String>();
+      if (query == null) return values;
+      for (String pair : query.split("&")) {
+         String[] nameValue = pair.split("=", 2);
+         if (nameValue.length == 2 && nameValue[0].equals(name)) {
+            try {
+               values.add(URLDecoder.decode(nameValue[1], "UTF-8"));
+            } catch(UnsupportedEncodingException x) { // UTF-8 is always supported
+            }
+         }
+      } // next pair
+      return values;
+   }
+   
+   private void count(HttpExchange exchange, String path) throws IOException {
+      requestCounts.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      IO.Pump(exchange.getRequestBody(), body);
+      bodies.put(path, body.toByteArray());
+   }
+   
+   /** Stops the server. */
+   public void close() {
+      server.stop(0);
+   }
+}
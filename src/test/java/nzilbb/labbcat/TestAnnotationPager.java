@@ -0,0 +1,149 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import nzilbb.ag.*;
+
+/**
+ * Unit tests for AnnotationPager, using a stand-in server.
+ */
+public class TestAnnotationPager {
+   
+   @Test public void ordered() throws Exception {
+      try (StandInServer server = serve(23, -1, 0)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         try (Stream<Annotation> annotations = new AnnotationPager(labbcat)
+                 .setPageLength(5).setConcurrency(3)
+                 .matchingAnnotations("layer.id == 'word'", true)) {
+            assertEquals(expected(23), annotations.map(Annotation::getId)
+                         .collect(Collectors.toList()));
+         }
+         assertEquals(1, server.count("api/store/countMatchingAnnotations"));
+         assertEquals(5, server.count("api/store/getMatchingAnnotations"));
+         
+         try (Stream<Annotation> annotations = labbcat.streamMatchingAnnotations(
+                 "layer.id == 'word'")) {
+            assertEquals(expected(23), annotations.map(Annotation::getId)
+                         .collect(Collectors.toList()));
+         }
+      }
+   }
+   
+   @Test public void unorderedFastestFirst() throws Exception {
+      try (StandInServer server = serve(23, 0, 0)) { // page 0 is slow
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         try (Stream<Annotation> annotations = new AnnotationPager(labbcat)
+                 .setPageLength(5).setConcurrency(3)
+                 .matchingAnnotations("layer.id == 'word'", false)) {
+            List<String> ids = annotations.map(Annotation::getId)
+               .collect(Collectors.toList());
+            assertNotEquals("slow page isn't first", "a0", ids.get(0));
+            assertEquals(new HashSet<String>(expected(23)), new HashSet<String>(ids));
+            assertEquals(23, ids.size());
+         }
+      }
+   }
+   
+   @Test public void retries() throws Exception {
+      try (StandInServer server = serve(23, -1, 3)) { // page 2 fails three times
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         AnnotationPager pager = new AnnotationPager(labbcat)
+            .setPageLength(5).setConcurrency(3).setRetries(3).setRetryDelay(10);
+         try (Stream<Annotation> annotations = pager.matchingAnnotations(
+                 "layer.id == 'word'", true)) {
+            assertEquals(expected(23), annotations.map(Annotation::getId)
+                         .collect(Collectors.toList()));
+         }
+         // (HttpURLConnection may itself silently retry a dropped connection)
+         assertTrue("retried: " + pager.getRetried(), pager.getRetried() >= 1);
+      }
+      try (StandInServer server = serve(23, -1, 100)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         try (Stream<Annotation> annotations = new AnnotationPager(labbcat)
+                 .setPageLength(5).setRetries(1).setRetryDelay(10)
+                 .matchingAnnotations("layer.id == 'word'", true)) {
+            annotations.count();
+            fail("failure is thrown after retries run out");
+         } catch(RuntimeException x) {
+            assertTrue(x.getCause() instanceof StoreException);
+         }
+      }
+   }
+   
+   /** The annotation IDs expected, in order. */
+   static List<String> expected(int count) {
+      Vector<String> ids = new Vector<String>();
+      for (int a = 0; a < count; a++) ids.add("a" + a);
+      return ids;
+   }
+   
+   /**
+    * A stand-in server with the given number of matching annotations.
+    * @param count The number of annotations.
+    * @param slowPage A page that takes longer than the others, or -1 for none.
+    * @param failures The number of times page 2 fails before succeeding.
+    */
+   static StandInServer serve(int count, int slowPage, int failures) throws Exception {
+      AtomicInteger failed = new AtomicInteger();
+      return new StandInServer()
+         .json("api/store/countMatchingAnnotations", query -> Json.createValue(count))
+         .json("api/store/getMatchingAnnotations", query -> {
+               int pageLength = Integer.parseInt(
+                  StandInServer.parameter(query, "pageLength").get(0));
+               int pageNumber = Integer.parseInt(
+                  StandInServer.parameter(query, "pageNumber").get(0));
+               if (pageNumber == slowPage) {
+                  try { Thread.sleep(500); } catch(InterruptedException x) {}
+               }
+               if (pageNumber == 2 && failed.getAndIncrement() < failures) {
+                  throw new RuntimeException("connection dropped");
+               }
+               JsonArrayBuilder annotations = Json.createArrayBuilder();
+               for (int a = pageLength * pageNumber;
+                    a < Math.min(count, pageLength * (pageNumber + 1)); a++) {
+                  annotations.add(
+                     new Annotation("a" + a, "w" + a, "word", "s" + a, "e" + a).toJson());
+               }
+               return annotations.build();
+            });
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestAnnotationPager");
+   }
+}
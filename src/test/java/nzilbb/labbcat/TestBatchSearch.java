@@ -0,0 +1,140 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.Json;
+import javax.json.JsonObject;
+import nzilbb.labbcat.model.Match;
+
+/**
+ * Unit tests for BatchSearch, using a stand-in server.
+ */
+public class TestBatchSearch {
+
+   @Test public void deliversAsTasksFinish() throws Exception {
+      Tasks tasks = new Tasks();
+      try (StandInServer server = serve(tasks)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         BatchSearch batch = new BatchSearch(labbcat).setMaxTasks(2).setPollInterval(10);
+         // the number of letters is the number of polls before the task finishes
+         for (String word : Arrays.asList("slowestofall", "a", "be", "see", "do")) {
+            batch.add(word, new PatternBuilder().addMatchLayer("orthography", word));
+         }
+         List<String> delivered = new Vector<String>();
+         Map<String,Exception> failures = batch.run((word, matches) -> {
+               assertEquals(1, matches.length);
+               assertEquals("matches tagged with the key", word, matches[0].getText());
+               delivered.add(word);
+            });
+         assertEquals(0, failures.size());
+         assertEquals(5, delivered.size());
+         assertEquals("patterns delivered as they finish, not in order",
+                      "slowestofall", delivered.get(delivered.size() - 1));
+         assertTrue("no more than maxTasks at once: " + tasks.maxRunning.get(),
+                    tasks.maxRunning.get() <= 2);
+         assertEquals("every task released", 5, tasks.released.get());
+         assertEquals(100, (int)batch.getPercentComplete());
+      }
+   }
+   
+   @Test public void failuresAreReturned() throws Exception {
+      Tasks tasks = new Tasks();
+      try (StandInServer server = serve(tasks)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         BatchSearch batch = new BatchSearch(labbcat).setMaxTasks(3).setPollInterval(10)
+            .add("ok", new PatternBuilder().addMatchLayer("orthography", "ok"))
+            .add("fail", new PatternBuilder().addMatchLayer("orthography", "fail"))
+            .add("fine", new PatternBuilder().addMatchLayer("orthography", "fine").build());
+         List<String> delivered = new Vector<String>();
+         Map<String,Exception> failures = batch.run((word, matches) -> delivered.add(word));
+         assertEquals(Arrays.asList("fail"), new Vector<String>(failures.keySet()));
+         assertEquals(2, delivered.size());
+         assertEquals("failed task released too", 3, tasks.released.get());
+      }
+   }
+   
+   /** The state of the stand-in server's search tasks. */
+   static class Tasks {
+      Map<String,String> words = new ConcurrentHashMap<String,String>();
+      AtomicInteger started = new AtomicInteger();
+      AtomicInteger running = new AtomicInteger();
+      AtomicInteger maxRunning = new AtomicInteger();
+      AtomicInteger released = new AtomicInteger();
+   }
+   
+   /**
+    * A stand-in server on which a search task for a word takes as many polls as the word
+    * has letters, and has one match.
+    */
+   static StandInServer serve(Tasks tasks) throws Exception {
+      StandInServer server = new StandInServer();
+      return server
+         .json("api/search", query -> {
+               JsonObject pattern = Json.createReader(new StringReader(
+                  StandInServer.parameter(query, "searchJson").get(0))).readObject();
+               String word = pattern.getJsonArray("columns").getJsonObject(0)
+                  .getJsonObject("layers").getJsonObject("orthography").getString("pattern");
+               String threadId = "t" + tasks.started.incrementAndGet();
+               tasks.words.put(threadId, word);
+               tasks.maxRunning.accumulateAndGet(tasks.running.incrementAndGet(), Math::max);
+               AtomicInteger polls = new AtomicInteger();
+               server.json("api/task/" + threadId, taskQuery -> {
+                     if (taskQuery == null) { // DELETE with release=true
+                        tasks.running.decrementAndGet();
+                        tasks.released.incrementAndGet();
+                     }
+                     return Json.createObjectBuilder()
+                        .add("running", polls.incrementAndGet() < word.length())
+                        .add("refreshSeconds", 1).build();
+                  });
+               return Json.createObjectBuilder().add("threadId", threadId).build();
+            })
+         .json("api/results", query -> {
+               String threadId = StandInServer.parameter(query, "threadId").get(0);
+               String word = tasks.words.get(threadId);
+               if (word.equals("fail")) throw new RuntimeException("failing search");
+               return Json.createObjectBuilder().add(
+                  "matches", Json.createArrayBuilder().add(
+                     Json.createObjectBuilder()
+                     .add("MatchId", "g_1;" + word).add("Transcript", "a.trs")
+                     .add("Participant", "p").add("Corpus", "QB")
+                     .add("Line", 1.0).add("LineEnd", 2.0)
+                     .add("BeforeMatch", "").add("Text", word).add("AfterMatch", ""))).build();
+            });
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestBatchSearch");
+   }
+}
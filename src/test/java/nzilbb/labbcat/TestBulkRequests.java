@@ -0,0 +1,143 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonValue;
+import nzilbb.ag.*;
+
+/**
+ * Unit tests for LabbcatView's bulk request methods, using a stand-in server.
+ */
+public class TestBulkRequests {
+
+   AtomicInteger active = new AtomicInteger();
+   AtomicInteger maxActive = new AtomicInteger();
+   
+   @Test public void participants() throws Exception {
+      try (StandInServer server = serve()) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         labbcat.setBulkThreads(3);
+         List<String> ids = new Vector<String>();
+         for (int i = 0; i < 10; i++) ids.add("p" + i);
+         ids.add("missing");
+         ids.add("broken");
+         ids.add("p0"); // duplicate
+         BulkResult<Annotation> result = labbcat.getParticipants(
+            ids, new String[] { "participant_gender" });
+         assertEquals(11, result.getResults().size());
+         assertEquals("requested order", "p0", result.getResults().keySet().iterator().next());
+         assertEquals("p3", result.get("p3").getLabel());
+         assertTrue(result.getResults().containsKey("missing"));
+         assertNull(result.get("missing"));
+         assertTrue(result.hasFailures());
+         assertEquals(Arrays.asList("broken"),
+                      new Vector<String>(result.getFailures().keySet()));
+         assertTrue(result.getFailures().get("broken") instanceof StoreException);
+         // (HttpURLConnection may silently retry the dropped connection of "broken")
+         assertTrue("duplicate requested once",
+                    server.count("api/store/getParticipant") <= 13);
+         assertTrue("concurrent: " + maxActive.get(), maxActive.get() > 1);
+         assertTrue("bounded: " + maxActive.get(), maxActive.get() <= 3);
+      }
+   }
+   
+   @Test public void layers() throws Exception {
+      try (StandInServer server = serve()) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         BulkResult<Layer> result = labbcat.getLayers(Arrays.asList("word", "pos"));
+         assertFalse(result.hasFailures());
+         assertEquals("pos", result.get("pos").getId());
+         assertEquals("word", result.get("word").getId());
+      }
+   }
+   
+   @Test public void anchors() throws Exception {
+      try (StandInServer server = serve()) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         Map<String,List<String>> anchorIds = new LinkedHashMap<String,List<String>>();
+         Vector<String> many = new Vector<String>();
+         for (int i = 0; i < 450; i++) many.add("a" + i);
+         anchorIds.put("t1.trs", many);
+         anchorIds.put("t2.trs", Arrays.asList("b1", "gone"));
+         anchorIds.put("bad.trs", Arrays.asList("c1", "c2"));
+         BulkResult<Anchor> result = labbcat.getAnchors(anchorIds);
+         assertEquals(452, result.getResults().size());
+         assertEquals(Double.valueOf(449), result.get("a449").getOffset());
+         assertEquals("b1", result.get("b1").getId());
+         assertTrue(result.getResults().containsKey("gone"));
+         assertNull(result.get("gone"));
+         assertEquals("failure reported for each anchor",
+                      Arrays.asList("c1", "c2"), new Vector<String>(result.getFailures().keySet()));
+         // 3 + 1 + 1, plus perhaps a silent retry of the failed request
+         assertTrue("long list split", server.count("api/store/getAnchors") >= 5);
+         assertTrue("long list split", server.count("api/store/getAnchors") <= 6);
+      }
+   }
+   
+   /** A stand-in server for getParticipant, getLayer, and getAnchors. */
+   StandInServer serve() throws Exception {
+      return new StandInServer()
+         .json("api/store/getParticipant", query -> {
+               String id = StandInServer.parameter(query, "id").get(0);
+               int now = active.incrementAndGet();
+               maxActive.accumulateAndGet(now, Math::max);
+               try { Thread.sleep(50); } catch(InterruptedException x) {}
+               active.decrementAndGet();
+               if (id.equals("missing")) return JsonValue.NULL;
+               if (id.equals("broken")) throw new RuntimeException("broken");
+               return new Annotation("m_-2_" + id, id, "participant", null, null).toJson();
+            })
+         .json("api/store/getLayer", query -> {
+               String id = StandInServer.parameter(query, "id").get(0);
+               return new Layer(id, id).toJson();
+            })
+         .json("api/store/getAnchors", query -> {
+               String id = StandInServer.parameter(query, "id").get(0);
+               if (id.equals("bad.trs")) throw new RuntimeException("bad");
+               JsonArrayBuilder anchors = Json.createArrayBuilder();
+               for (String anchorId : StandInServer.parameter(query, "anchorIds")) {
+                  if (anchorId.equals("gone")) continue;
+                  anchors.add(new Anchor(
+                                 anchorId, Double.valueOf(anchorId.substring(1))).toJson());
+               }
+               return anchors.build();
+            });
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestBulkRequests");
+   }
+}
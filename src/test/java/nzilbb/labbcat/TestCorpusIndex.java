@@ -0,0 +1,221 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import nzilbb.ag.*;
+
+/**
+ * Unit tests for CorpusIndex, using a stand-in server.
+ */
+public class TestCorpusIndex {
+
+   /** Corpus of each transcript. */
+   Map<String,String> corpusOf = Collections.synchronizedMap(new TreeMap<String,String>());
+   /** Participants of each transcript. */
+   Map<String,List<String>> participantsOf
+   = Collections.synchronizedMap(new TreeMap<String,List<String>>());
+
+   @Before public void corpus() {
+      corpusOf.clear();
+      participantsOf.clear();
+      add("t1.trs", "QB", "A", "B");
+      add("t2.trs", "QB", "B");
+      add("t3.trs", "UC", "C");
+   }
+   
+   @Test public void buildAndRefresh() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      try (StandInServer server = serve(schema)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         CorpusIndex index = new CorpusIndex(labbcat);
+         labbcat.setCorpusIndex(index);
+         assertFalse(index.isBuilt());
+         assertEquals("not built, so server is asked",
+                      Arrays.asList("t1.trs", "t2.trs", "t3.trs"),
+                      Arrays.asList(labbcat.getTranscriptIds()));
+         assertEquals(1, server.count("api/store/getTranscriptIds"));
+         
+         index.refresh();
+         assertTrue(index.isBuilt());
+         assertEquals("first build only asks for participants' transcripts",
+                      0, server.count("api/store/getTranscript"));
+         int transcriptIdRequests = server.count("api/store/getTranscriptIds");
+         assertEquals(Arrays.asList("QB", "UC"), Arrays.asList(labbcat.getCorpusIds()));
+         assertEquals(Arrays.asList("A", "B", "C"), Arrays.asList(labbcat.getParticipantIds()));
+         assertEquals(Arrays.asList("t1.trs", "t2.trs", "t3.trs"),
+                      Arrays.asList(labbcat.getTranscriptIds()));
+         assertEquals(Arrays.asList("t1.trs", "t2.trs"),
+                      Arrays.asList(labbcat.getTranscriptIdsInCorpus("QB")));
+         assertEquals(Arrays.asList("t1.trs", "t2.trs"),
+                      Arrays.asList(labbcat.getTranscriptIdsWithParticipant("B")));
+         assertEquals(Arrays.asList("A", "B"),
+                      Arrays.asList(index.getParticipantIdsInTranscript("t1.trs")));
+         assertEquals("UC", index.getCorpusOfTranscript("t3.trs"));
+         assertEquals(0, labbcat.getTranscriptIdsWithParticipant("nobody").length);
+         assertEquals("answered locally",
+                      transcriptIdRequests, server.count("api/store/getTranscriptIds"));
+         
+         // change the corpus
+         corpusOf.remove("t2.trs");
+         participantsOf.remove("t2.trs");
+         add("t4.trs", "UC", "A", "D");
+         participantsOf.get("t3.trs").add("E");
+         int transcriptRequests = server.count("api/store/getTranscript");
+         int participantRequests = server.count("api/store/getTranscriptIdsWithParticipant");
+         index.refresh();
+         assertEquals("only the new transcript is requested",
+                      transcriptRequests + 1, server.count("api/store/getTranscript"));
+         assertEquals("only new participants are requested",
+                      participantRequests + 2,
+                      server.count("api/store/getTranscriptIdsWithParticipant"));
+         assertEquals(Arrays.asList("A", "B", "C", "D", "E"),
+                      Arrays.asList(labbcat.getParticipantIds()));
+         assertEquals(Arrays.asList("t1.trs", "t3.trs", "t4.trs"),
+                      Arrays.asList(labbcat.getTranscriptIds()));
+         assertEquals(Arrays.asList("t1.trs", "t4.trs"),
+                      Arrays.asList(labbcat.getTranscriptIdsWithParticipant("A")));
+         assertEquals(Arrays.asList("t1.trs"),
+                      Arrays.asList(labbcat.getTranscriptIdsWithParticipant("B")));
+         assertEquals(Arrays.asList("t3.trs", "t4.trs"),
+                      Arrays.asList(labbcat.getTranscriptIdsInCorpus("UC")));
+         assertEquals(Arrays.asList("C", "E"),
+                      Arrays.asList(index.getParticipantIdsInTranscript("t3.trs")));
+
+         // changed transcripts are re-indexed
+         participantsOf.get("t1.trs").remove("B");
+         index.transcriptChanged("t1.trs");
+         index.refresh();
+         assertEquals(Arrays.asList("A"),
+                      Arrays.asList(index.getParticipantIdsInTranscript("t1.trs")));
+         assertEquals(0, labbcat.getTranscriptIdsWithParticipant("B").length);
+         
+         // deleted transcripts aren't remembered as changed
+         index.transcriptChanged("deleted.trs");
+         index.refresh();
+         assertFalse(index.changed.contains("deleted.trs"));
+      }
+   }
+   
+   @Test public void persistence() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      File file = File.createTempFile("TestCorpusIndex-", ".index");
+      file.delete();
+      try (StandInServer server = serve(schema)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         new CorpusIndex(labbcat).setFile(file).refresh().transcriptChanged("t3.trs");
+         assertTrue("saved", file.exists());
+         
+         CorpusIndex index = new CorpusIndex(labbcat).setFile(file);
+         assertTrue("loaded", index.isBuilt());
+         assertEquals(Arrays.asList("t1.trs", "t2.trs"),
+                      Arrays.asList(index.getTranscriptIdsWithParticipant("B")));
+         assertEquals("QB", index.getCorpusOfTranscript("t2.trs"));
+         
+         int transcriptRequests = server.count("api/store/getTranscript");
+         index.refresh();
+         assertEquals("nothing new to request",
+                      transcriptRequests, server.count("api/store/getTranscript"));
+      } finally {
+         file.delete();
+      }
+   }
+   
+   /** Adds a transcript to the corpus. */
+   void add(String transcriptId, String corpusId, String... participantIds) {
+      corpusOf.put(transcriptId, corpusId);
+      participantsOf.put(transcriptId, new Vector<String>(Arrays.asList(participantIds)));
+   }
+
+   /**
+    * A stand-in server that answers ID requests from {@link #corpusOf} and
+    * {@link #participantsOf}.
+    */
+   StandInServer serve(Schema schema) throws Exception {
+      return new StandInServer()
+         .json("api/store/getCorpusIds", query -> array(
+                  new TreeSet<String>(corpusOf.values())))
+         .json("api/store/getTranscriptIds", query -> array(corpusOf.keySet()))
+         .json("api/store/getParticipantIds", query -> {
+               TreeSet<String> ids = new TreeSet<String>();
+               for (List<String> participants : participantsOf.values()) ids.addAll(participants);
+               return array(ids);
+            })
+         .json("api/store/getTranscriptIdsInCorpus", query -> {
+               String corpusId = StandInServer.parameter(query, "id").get(0);
+               Vector<String> ids = new Vector<String>();
+               for (String id : corpusOf.keySet()) {
+                  if (corpusOf.get(id).equals(corpusId)) ids.add(id);
+               }
+               return array(ids);
+            })
+         .json("api/store/getTranscriptIdsWithParticipant", query -> {
+               String participantId = StandInServer.parameter(query, "id").get(0);
+               Vector<String> ids = new Vector<String>();
+               for (String id : participantsOf.keySet()) {
+                  if (participantsOf.get(id).contains(participantId)) ids.add(id);
+               }
+               return array(ids);
+            })
+         .raw("api/store/getTranscript", query -> {
+               String id = StandInServer.parameter(query, "id").get(0);
+               if (!participantsOf.containsKey(id)) return null;
+               Graph graph = new Graph();
+               graph.setId(id);
+               graph.setSchema((Schema)schema.clone());
+               graph.addAnchor(new Anchor("a0", 0.0));
+               graph.addAnchor(new Anchor("a1", 1.0));
+               for (String participantId : participantsOf.get(id)) {
+                  graph.addAnnotation(new Annotation(null, participantId, "who", "a0", "a1"));
+               }
+               return TestTranscriptCache.json(graph);
+            });
+   }
+   
+   /** A JSON array of strings. */
+   static JsonArray array(Iterable<String> values) {
+      JsonArrayBuilder array = Json.createArrayBuilder();
+      for (String value : values) array.add(value);
+      return array.build();
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestCorpusIndex");
+   }
+}
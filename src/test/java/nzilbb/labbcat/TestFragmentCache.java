@@ -0,0 +1,153 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Vector;
+import javax.json.JsonValue;
+import nzilbb.labbcat.util.TempFiles;
+
+/**
+ * Unit tests for FragmentCache.
+ */
+public class TestFragmentCache {
+   
+   @Test public void lruEvictionPersistenceAndInvalidation() throws Exception {
+      try (TempFiles tempFiles = new TempFiles()) {
+         File cacheDir = tempFiles.createTempDirectory("TestFragmentCache_");
+         File out = tempFiles.createTempDirectory("TestFragmentCache_out_");
+         File a = fragment(tempFiles, "a__1.000-2.000.wav", 100);
+         File b = fragment(tempFiles, "b__1.000-2.000.wav", 100);
+         File c = fragment(tempFiles, "c__1.000-2.000.wav", 100);
+         String keyA = FragmentCache.Key("a.trs", 1.0, 2.0, "audio/wav", null);
+         String keyB = FragmentCache.Key("b.trs", 1.0, 2.0, "audio/wav", null);
+         String keyC = FragmentCache.Key("c.trs", 1.0, 2.0, "audio/wav", null);
+         assertNotEquals("format is part of the key", keyA,
+                         FragmentCache.Key("a.trs", 1.0, 2.0, "audio/wav;sampleRate=16000", null));
+         assertNotEquals("layers are part of the key",
+                         FragmentCache.Key("a.trs", 1.0, 2.0, "text/plain", new String[]{"word"}),
+                         FragmentCache.Key("a.trs", 1.0, 2.0, "text/plain", new String[]{"phone"}));
+         
+         FragmentCache cache = new FragmentCache(cacheDir).setMaxBytes(250);
+         assertNull(cache.get(keyA, out));
+         cache.put(keyA, "a.trs", a);
+         cache.put(keyB, "b.trs", b);
+         File copy = cache.get(keyA, out); // a is now more recent than b
+         assertEquals(new File(out, a.getName()), copy);
+         assertEquals(100, copy.length());
+         cache.put(keyC, "c.trs", c); // over budget, so b is evicted
+         assertEquals(2, cache.getCount());
+         assertEquals(1, cache.getEvictions());
+         assertNull("least recently used evicted", cache.get(keyB, out));
+         
+         // entries survive a restart
+         cache = new FragmentCache(cacheDir).setMaxBytes(250);
+         assertEquals(2, cache.getCount());
+         assertEquals(200, cache.getSize());
+         assertNotNull(cache.get(keyC, out));
+         
+         assertEquals(1, cache.invalidate("c.trs"));
+         assertNull("invalidated", cache.get(keyC, out));
+         assertNotNull("other transcripts unaffected", cache.get(keyA, out));
+      }
+   }
+
+   @Test public void concurrentAccess() throws Exception {
+      try (TempFiles tempFiles = new TempFiles()) {
+         FragmentCache cache = new FragmentCache(
+            tempFiles.createTempDirectory("TestFragmentCache_")).setMaxBytes(1000);
+         File out = tempFiles.createTempDirectory("TestFragmentCache_out_");
+         Vector<Throwable> errors = new Vector<Throwable>();
+         Vector<Thread> threads = new Vector<Thread>();
+         for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                     try {
+                        File threadOut = new File(out, "" + thread);
+                        threadOut.mkdir();
+                        for (int i = 0; i < 50; i++) {
+                           String id = "t" + (i % 20) + ".trs";
+                           String key = FragmentCache.Key(id, 0.0, 1.0, "audio/wav", null);
+                           if (cache.get(key, threadOut) == null) {
+                              cache.put(key, id, fragment(tempFiles, "t"+i+"_"+thread+".wav", 100));
+                           }
+                        }
+                     } catch(Throwable x) {
+                        errors.add(x);
+                     }
+            }));
+         }
+         for (Thread thread : threads) thread.start();
+         for (Thread thread : threads) thread.join();
+         assertEquals("no errors: " + errors, 0, errors.size());
+         assertTrue("within budget", cache.getSize() <= 1000);
+         assertEquals(cache.getCount() * 100, cache.getSize());
+      }
+   }
+   
+   @Test public void labbcatUsesCache() throws Exception {
+      try (StandInServer server = new StandInServer();
+           TempFiles tempFiles = new TempFiles()) {
+         server.file("api/media/fragments", new byte[1000])
+            .json("api/edit/store/deleteTranscript", query -> JsonValue.NULL);
+         LabbcatEdit labbcat = new LabbcatEdit(server.getUrl());
+         labbcat.setBatchMode(true);
+         labbcat.setTempFiles(tempFiles);
+         labbcat.setFragmentCache(
+            new FragmentCache(tempFiles.createTempDirectory("TestFragmentCache_")));
+         String[] ids = { "a.trs" };
+         Double[] starts = { 1.0 };
+         Double[] ends = { 2.0 };
+         
+         File[] wavs = labbcat.getSoundFragments(ids, starts, ends, null, null);
+         assertEquals(1000, wavs[0].length());
+         wavs = labbcat.getSoundFragments(ids, starts, ends, null, null);
+         assertEquals(1000, wavs[0].length());
+         assertEquals("second request served from cache",
+                      1, server.count("api/media/fragments"));
+         labbcat.getSoundFragments(ids, starts, ends, 16000, null);
+         assertEquals("different sample rate is a different fragment",
+                      2, server.count("api/media/fragments"));
+         
+         labbcat.deleteTranscript("a.trs");
+         assertEquals("invalidated", 0, labbcat.getFragmentCache().getCount());
+         labbcat.getSoundFragments(ids, starts, ends, null, null);
+         assertEquals(3, server.count("api/media/fragments"));
+      }
+   }
+   
+   static File fragment(TempFiles tempFiles, String name, int size) throws Exception {
+      File dir = tempFiles.createTempDirectory("fragment_");
+      File file = new File(dir, name);
+      Files.write(file.toPath(), new byte[size]);
+      return file;
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestFragmentCache");
+   }
+}
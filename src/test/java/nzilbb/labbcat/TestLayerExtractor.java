@@ -0,0 +1,122 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Vector;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import nzilbb.ag.*;
+
+/**
+ * Unit tests for LayerExtractor, using a stand-in server.
+ */
+public class TestLayerExtractor {
+   
+   @Test public void pagedAndOrdered() throws Exception {
+      try (StandInServer server = serve()) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         LayerExtractor extractor = new LayerExtractor(labbcat, "orthography")
+            .setPageLength(5).setThreads(3).setMaxBufferedPages(2);
+         assertEquals(Integer.valueOf(100), extractor.getPercentComplete());
+         Vector<String> ids = new Vector<String>();
+         long count = extractor.extract(ids(), (transcriptId, annotation) -> {
+               assertTrue(annotation.getId().startsWith(transcriptId));
+               assertEquals("orthography", annotation.getLayerId());
+               ids.add(annotation.getId());
+            });
+         assertEquals(expected(), ids);
+         assertEquals(expected().size(), count);
+         assertEquals(expected().size(), extractor.getTotal());
+         assertEquals(Integer.valueOf(100), extractor.getPercentComplete());
+         assertFalse(extractor.getRunning());
+         assertEquals("one count per transcript", 5, server.count("api/store/countAnnotations"));
+         // 0 + 7 + 14 + 21 + 28 annotations in pages of 5
+         assertEquals("pages", 0 + 2 + 3 + 5 + 6, server.count("api/store/getAnnotations"));
+      }
+   }
+   
+   @Test public void tsv() throws Exception {
+      try (StandInServer server = serve()) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         StringWriter tsv = new StringWriter();
+         assertEquals(7, new LayerExtractor(labbcat, "orthography")
+                      .extract(new String[] { "t1.trs" }, tsv));
+         String[] lines = tsv.toString().split("\n");
+         assertEquals(8, lines.length);
+         assertEquals("transcript\tid\tlabel\tstartId\tendId\tparent\tordinal", lines[0]);
+         assertEquals("t1.trs\tt1.trs-0\tword\\t0\ta0\ta1\tw0\t1", lines[1]);
+      }
+   }
+   
+   /** The transcript IDs the server has. */
+   static String[] ids() {
+      return new String[] { "t0.trs", "t1.trs", "t2.trs", "t3.trs", "t4.trs" };
+   }
+   
+   /** The annotation IDs expected, in order. */
+   static List<String> expected() {
+      Vector<String> ids = new Vector<String>();
+      for (int t = 0; t < 5; t++) {
+         for (int a = 0; a < t * 7; a++) ids.add("t" + t + ".trs-" + a);
+      }
+      return ids;
+   }
+   
+   /**
+    * A stand-in server where transcript t<i>n</i>.trs has 7<i>n</i> annotations.
+    */
+   static StandInServer serve() throws Exception {
+      return new StandInServer()
+         .json("api/store/countAnnotations", query -> {
+               String id = StandInServer.parameter(query, "id").get(0);
+               return Json.createValue(7 * Integer.parseInt(id.substring(1, 2)));
+            })
+         .json("api/store/getAnnotations", query -> {
+               String id = StandInServer.parameter(query, "id").get(0);
+               int count = 7 * Integer.parseInt(id.substring(1, 2));
+               int pageLength = Integer.parseInt(
+                  StandInServer.parameter(query, "pageLength").get(0));
+               int pageNumber = Integer.parseInt(
+                  StandInServer.parameter(query, "pageNumber").get(0));
+               JsonArrayBuilder annotations = Json.createArrayBuilder();
+               for (int a = pageLength * pageNumber;
+                    a < Math.min(count, pageLength * (pageNumber + 1)); a++) {
+                  Annotation annotation = new Annotation(
+                     id + "-" + a, "word\t" + a, "orthography", "a" + a, "a" + (a + 1),
+                     "w" + a, 1);
+                  annotations.add(annotation.toJson());
+               }
+               return annotations.build();
+            });
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestLayerExtractor");
+   }
+}
@@ -0,0 +1,251 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import nzilbb.ag.*;
+
+/**
+ * Unit tests for LazyGraph, using a stand-in server.
+ */
+public class TestLazyGraph {
+   
+   @Test public void layersLoadedOnDemand() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      Graph full = transcript(schema);
+      try (StandInServer server = serve(full)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         
+         Graph graph = labbcat.getTranscript("test.trs", new String[] { "word" });
+         assertFalse("not lazy by default", graph instanceof LazyGraph);
+         assertEquals("pos not loaded", 0, graph.all("pos").length);
+         
+         labbcat.setLazyTranscripts(true);
+         graph = labbcat.getTranscript("test.trs", new String[] { "word" });
+         assertTrue(graph instanceof LazyGraph);
+         LazyGraph lazy = (LazyGraph)graph;
+         assertTrue(lazy.isLoaded("word"));
+         assertFalse(lazy.isLoaded("pos"));
+         assertEquals(1, graph.all("word").length);
+         assertEquals(0, server.count("api/store/getAnnotations"));
+         
+         Annotation[] pos = graph.all("pos");
+         assertEquals("pos loaded", 1, pos.length);
+         assertEquals("N", pos[0].getLabel());
+         assertEquals("linked to parent", "w", pos[0].getParent().getId());
+         assertEquals(1, server.count("api/store/getAnnotations"));
+         assertEquals("no anchors needed", 0, server.count("api/store/getAnchors"));
+         
+         assertEquals("p", graph.first("utterance").getLabel());
+         assertEquals(2, server.count("api/store/getAnnotations"));
+         assertEquals("missing anchor fetched", 1, server.count("api/store/getAnchors"));
+         assertEquals(Double.valueOf(3.0), graph.first("utterance").getEnd().getOffset());
+         
+         graph.all("pos");
+         graph.all("utterance");
+         assertEquals("loaded layers aren't fetched again",
+                      2, server.count("api/store/getAnnotations"));
+         assertEquals(2, lazy.getFetches());
+         
+         // several layers at once are fetched with one request
+         lazy = (LazyGraph)labbcat.getTranscript("test.trs", new String[] { "word" });
+         int transcriptRequests = server.count("api/store/getTranscript");
+         lazy.load("pos", "utterance");
+         assertEquals(transcriptRequests + 1, server.count("api/store/getTranscript"));
+         assertEquals(2, server.count("api/store/getAnnotations"));
+         assertEquals(1, lazy.all("pos").length);
+         assertEquals(1, lazy.all("utterance").length);
+         assertEquals(1, lazy.getFetches());
+      }
+   }
+   
+   @Test public void concurrentAccess() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      Graph full = transcript(schema);
+      AtomicInteger schemaRequests = new AtomicInteger();
+      try (StandInServer server = serve(full)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() {
+                  schemaRequests.incrementAndGet();
+                  return schema;
+               } };
+         labbcat.setBatchMode(true);
+         labbcat.setLazyTranscripts(true);
+         LazyGraph graph = (LazyGraph)labbcat.getTranscript(
+            "test.trs", new String[] { "word" });
+         schemaRequests.set(0);
+         Vector<Throwable> errors = new Vector<Throwable>();
+         Vector<Thread> threads = new Vector<Thread>();
+         for (String layerId : new String[] { "pos", "utterance", "version", "pos" }) {
+            Thread thread = new Thread(() -> {
+                  try {
+                     assertEquals(layerId, 1, graph.all(layerId).length);
+                  } catch(Throwable x) {
+                     errors.add(x);
+                  }
+            });
+            threads.add(thread);
+         }
+         for (Thread thread : threads) thread.start();
+         for (Thread thread : threads) thread.join();
+         assertEquals(errors.toString(), 0, errors.size());
+         assertTrue("at most one fetch per layer", graph.getFetches() <= 3);
+         assertEquals("fetches use the graph's schema",
+                      0, schemaRequests.get());
+         assertEquals("p", graph.first("utterance").getLabel());
+      }
+   }
+   
+   @Test public void failedFetchDoesNotLoseWaitingLayers() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      Graph full = transcript(schema);
+      try (StandInServer server = serve(full)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         Graph skeleton = labbcat.loadTranscript("test.trs", new String[] { "word" });
+         Vector<Thread> waiters = new Vector<Thread>();
+         Vector<Set<String>> batches = new Vector<Set<String>>();
+         LazyGraph graph = new LazyGraph(labbcat, skeleton, new String[] { "word" }) {
+               @Override protected void fetch(Set<String> layerIds)
+                  throws StoreException, PermissionException, GraphNotFoundException {
+                  batches.add(new HashSet<String>(layerIds));
+                  if (batches.size() == 1) { // wait until both other threads are waiting
+                     while (waiters.size() < 2
+                            || waiters.stream().anyMatch(
+                               t -> t.getState() != Thread.State.BLOCKED)) {
+                        Thread.yield();
+                     }
+                  } else if (batches.size() == 2) { // the first waiter's fetch fails
+                     throw new StoreException("Simulated failure");
+                  }
+                  super.fetch(layerIds);
+               }
+            };
+         Thread first = new Thread(() -> graph.all("pos"));
+         first.start();
+         while (batches.size() == 0) Thread.yield();
+         Vector<Throwable> errors = new Vector<Throwable>();
+         for (String layerId : new String[] { "utterance", "version" }) {
+            Thread waiter = new Thread(() -> {
+                  try {
+                     graph.all(layerId);
+                  } catch(Throwable x) {
+                     errors.add(x);
+                  }
+            }, layerId);
+            waiter.start();
+            waiters.add(waiter);
+         }
+         first.join();
+         for (Thread waiter : waiters) waiter.join();
+         
+         assertEquals("one waiter failed: " + errors, 1, errors.size());
+         for (Set<String> batch : batches) assertFalse("no empty fetch", batch.isEmpty());
+         assertEquals("failed layers are fetched again: " + batches, 3, batches.size());
+         int loaded = (graph.isLoaded("utterance")? 1 : 0) + (graph.isLoaded("version")? 1 : 0);
+         assertEquals("other waiter's layer loaded", 1, loaded);
+      }
+   }
+   
+   /**
+    * A stand-in server whose getTranscript returns only the requested layers (and their
+    * ancestors), and whose getAnnotations and getAnchors endpoints return parts of the
+    * given transcript.
+    */
+   static StandInServer serve(Graph full) throws Exception {
+      StandInServer server = new StandInServer();
+      server.raw("api/store/getTranscript", query -> {
+            Set<String> layerIds = new HashSet<String>(
+               StandInServer.parameter(query, "layerIds"));
+            for (String layerId : new Vector<String>(layerIds)) {
+               Layer layer = full.getSchema().getLayer(layerId);
+               while (layer != null) {
+                  layerIds.add(layer.getId());
+                  layer = layer.getParent();
+               }
+            }
+            return TestTranscriptCache.json(subset(full, layerIds));
+         })
+         .json("api/store/getAnnotations", query -> {
+               JsonArrayBuilder annotations = Json.createArrayBuilder();
+               for (String layerId : StandInServer.parameter(query, "layerId")) {
+                  for (Annotation a : full.all(layerId)) annotations.add(a.toJson());
+               }
+               return annotations.build();
+            })
+         .json("api/store/getAnchors", query -> {
+               JsonArrayBuilder anchors = Json.createArrayBuilder();
+               for (String anchorId : StandInServer.parameter(query, "anchorIds")) {
+                  anchors.add(full.getAnchor(anchorId).toJson());
+               }
+               return anchors.build();
+            });
+      return server;
+   }
+   
+   /** A copy of the graph containing only the given layers. */
+   static Graph subset(Graph full, Set<String> layerIds) {
+      Graph graph = new Graph();
+      graph.setId(full.getId());
+      graph.setSchema((Schema)full.getSchema().clone());
+      for (Layer layer : full.getLayersTopDown()) {
+         if (!layerIds.contains(layer.getId())) continue;
+         if (layer == full.getSchema().getRoot()) continue;
+         for (Annotation a : full.all(layer.getId())) {
+            for (String anchorId : new String[] { a.getStartId(), a.getEndId() }) {
+               Anchor anchor = full.getAnchor(anchorId);
+               if (graph.getAnchor(anchorId) == null) {
+                  graph.addAnchor(new Anchor(anchor.getId(), anchor.getOffset()));
+               }
+            }
+            graph.addAnnotation(
+               new Annotation(a.getId(), a.getLabel(), a.getLayerId(), a.getStartId(),
+                              a.getEndId(), a.getParentId(), a.getOrdinal()));
+         }
+      }
+      return graph;
+   }
+   
+   /** The test transcript, with an utterance that ends at an anchor nothing else uses. */
+   static Graph transcript(Schema schema) {
+      Graph graph = TestTranscriptCache.transcript(schema, "1");
+      graph.addAnchor(new Anchor("a3", 3.0));
+      graph.getAnnotation("u").setEndId("a3");
+      graph.getAnnotation("p").setEndId("a1"); // so that only the utterance uses a3
+      return graph;
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestLazyGraph");
+   }
+}
@@ -0,0 +1,266 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import nzilbb.ag.*;
+
+/**
+ * Unit tests for MaterializedSearch, using a stand-in server.
+ */
+public class TestMaterializedSearch {
+
+   /** Participants of each transcript on the stand-in server. */
+   Map<String,List<String>> participantsOf = new ConcurrentHashMap<String,List<String>>();
+   /** Version of each transcript on the stand-in server. */
+   Map<String,String> versionOf = new ConcurrentHashMap<String,String>();
+   
+   @Before public void corpus() {
+      participantsOf.put("t1.trs", Arrays.asList("p1"));
+      participantsOf.put("t2.trs", Arrays.asList("p1", "p3"));
+      participantsOf.put("t3.trs", Arrays.asList("p3"));
+      versionOf.put("t1.trs", "2026-01-01");
+      versionOf.put("t2.trs", "2026-01-01");
+      versionOf.put("t3.trs", "2026-01-02");
+   }
+   
+   @Test public void refreshScalesWithChanges() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      List<List<String>> searches = new Vector<List<String>>();
+      try (StandInServer server = serve(schema, searches)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         MaterializedSearch search = search(labbcat).setVersionLayerId("version");
+         
+         assertEquals("first refresh searches everything", 3, search.refresh());
+         assertEquals(Arrays.asList(Arrays.asList()), searches);
+         assertEquals(4, search.getMatches().length);
+         assertEquals(2, search.getMatches("t2.trs").length);
+         
+         assertEquals("nothing changed", 0, search.refresh());
+         assertEquals("no search", 1, searches.size());
+         assertEquals(0, server.count("api/store/getTranscript"));
+         
+         // t1 removed, t3 changed, t4 added
+         participantsOf.remove("t1.trs");
+         versionOf.remove("t1.trs");
+         versionOf.put("t3.trs", "2026-02-01");
+         participantsOf.put("t4.trs", Arrays.asList("p4"));
+         versionOf.put("t4.trs", "2026-02-01");
+         assertEquals(2, search.refresh());
+         assertEquals("only participants of changed transcripts are searched",
+                      Arrays.asList("p3", "p4"), searches.get(1));
+         assertEquals(2, server.count("api/store/getTranscript"));
+         assertEquals(Arrays.asList("t2.trs", "t3.trs", "t4.trs"),
+                      Arrays.asList(search.getTranscriptIds()));
+         assertEquals("unchanged transcript's matches not duplicated",
+                      2, search.getMatches("t2.trs").length);
+         assertEquals("2026-02-01", search.getMatches("t3.trs")[0].getText());
+         assertEquals(4, search.getMatches().length);
+         
+         // flagged explicitly
+         search.transcriptChanged("t2.trs");
+         assertEquals(1, search.refresh());
+         assertEquals(Arrays.asList("p1", "p3"), searches.get(2));
+         assertEquals(4, search.getMatches().length);
+      }
+   }
+   
+   @Test public void refreshWithCorpusIndex() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      List<List<String>> searches = new Vector<List<String>>();
+      try (StandInServer server = serve(schema, searches)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         labbcat.setCorpusIndex(new CorpusIndex(labbcat).refresh());
+         MaterializedSearch search = search(labbcat).setVersionLayerId("version");
+         assertEquals(3, search.refresh());
+         assertEquals(4, search.getMatches().length);
+         
+         // t3 changed to include a new participant, t4 added
+         participantsOf.put("t3.trs", Arrays.asList("p3", "p5"));
+         versionOf.put("t3.trs", "2026-02-01");
+         participantsOf.put("t4.trs", Arrays.asList("p4"));
+         versionOf.put("t4.trs", "2026-02-01");
+         assertEquals("added transcript not missed", 2, search.refresh());
+         assertEquals("participants of changed and added transcripts are current",
+                      Arrays.asList("p3", "p4", "p5"), searches.get(1));
+         assertEquals(Arrays.asList("t1.trs", "t2.trs", "t3.trs", "t4.trs"),
+                      Arrays.asList(search.getTranscriptIds()));
+         assertEquals(2, search.getMatches("t3.trs").length);
+         assertEquals(1, search.getMatches("t4.trs").length);
+      }
+   }
+   
+   @Test public void saveAndLoad() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      File file = File.createTempFile("TestMaterializedSearch", ".json");
+      file.delete();
+      List<List<String>> searches = new Vector<List<String>>();
+      try (StandInServer server = serve(schema, searches)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         MaterializedSearch search = search(labbcat).setVersionLayerId("version").setFile(file);
+         assertFalse(search.isBuilt());
+         search.refresh();
+         search.transcriptChanged("t3.trs");
+         search.save(file);
+         
+         MaterializedSearch loaded = search(labbcat).setVersionLayerId("version").setFile(file);
+         assertTrue(loaded.isBuilt());
+         assertEquals(search.getMatches().length, loaded.getMatches().length);
+         assertEquals(search.getMatches()[0].getMatchId(), loaded.getMatches()[0].getMatchId());
+         assertEquals("flagged transcript is re-searched", 1, loaded.refresh());
+         assertEquals(Arrays.asList("p3"), searches.get(1));
+         
+         try {
+            new MaterializedSearch(
+               labbcat, new PatternBuilder().addMatchLayer("orthography", "a").build(),
+               null, null, false, null, null, null, 0).setFile(file);
+            fail("file for a different search is rejected");
+         } catch(IOException x) {
+         }
+      } finally {
+         file.delete();
+      }
+   }
+
+   static MaterializedSearch search(LabbcatView labbcat) {
+      return new MaterializedSearch(
+         labbcat, new PatternBuilder().addMatchLayer("orthography", "the").build(),
+         null, null, false, null, null, null, 0);
+   }
+   
+   static final Pattern SINCE = Pattern.compile("^first\\('version'\\)\\.label > '(.+)'$");
+   
+   /**
+    * A stand-in server on which each participant has one match in each of their
+    * transcripts, whose text is the transcript's version.
+    */
+   StandInServer serve(Schema schema, List<List<String>> searches) throws Exception {
+      Map<String,List<String>> tasks = new ConcurrentHashMap<String,List<String>>();
+      AtomicInteger taskCount = new AtomicInteger();
+      return new StandInServer()
+         .json("api/store/getTranscriptIds", query -> array(versionOf.keySet()))
+         .json("api/store/getTranscriptIdsInCorpus", query -> array(versionOf.keySet()))
+         .json("api/store/getTranscriptIdsWithParticipant", query -> {
+               String participantId = StandInServer.parameter(query, "id").get(0);
+               Vector<String> ids = new Vector<String>();
+               for (String id : participantsOf.keySet()) {
+                  if (participantsOf.get(id).contains(participantId)) ids.add(id);
+               }
+               return array(ids);
+            })
+         .json("api/store/getParticipantIds", query -> {
+               TreeSet<String> ids = new TreeSet<String>();
+               for (List<String> participants : participantsOf.values()) ids.addAll(participants);
+               return array(ids);
+            })
+         .json("api/store/getCorpusIds", query -> array(Arrays.asList("QB")))
+         .json("api/store/aggregateMatchingAnnotations", query -> {
+               assertEquals("MAX", StandInServer.parameter(query, "operation").get(0));
+               return array(Arrays.asList(new TreeSet<String>(versionOf.values()).last()));
+            })
+         .json("api/store/getMatchingTranscriptIds", query -> {
+               Matcher since = SINCE.matcher(
+                  StandInServer.parameter(query, "expression").get(0));
+               assertTrue(since.matches());
+               Vector<String> ids = new Vector<String>();
+               for (String id : versionOf.keySet()) {
+                  if (versionOf.get(id).compareTo(since.group(1)) > 0) ids.add(id);
+               }
+               return array(ids);
+            })
+         .raw("api/store/getTranscript", query -> {
+               String id = StandInServer.parameter(query, "id").get(0);
+               if (!participantsOf.containsKey(id)) return null;
+               Graph graph = new Graph();
+               graph.setId(id);
+               graph.setSchema((Schema)schema.clone());
+               graph.addAnchor(new Anchor("a0", 0.0));
+               graph.addAnchor(new Anchor("a1", 1.0));
+               for (String participantId : participantsOf.get(id)) {
+                  graph.addAnnotation(new Annotation(null, participantId, "who", "a0", "a1"));
+               }
+               return TestTranscriptCache.json(graph);
+            })
+         .json("api/search", query -> {
+               List<String> participants = StandInServer.parameter(query, "participant_id");
+               searches.add(participants);
+               String threadId = "t" + taskCount.incrementAndGet();
+               tasks.put(threadId, participants);
+               return Json.createObjectBuilder().add("threadId", threadId).build();
+            })
+         .json("api/task/", query -> Json.createObjectBuilder()
+               .add("running", false).add("refreshSeconds", 0).build())
+         .json("api/results", query -> {
+               List<String> participants = tasks.get(
+                  StandInServer.parameter(query, "threadId").get(0));
+               JsonArrayBuilder matches = Json.createArrayBuilder();
+               for (String id : new TreeMap<String,List<String>>(participantsOf).keySet()) {
+                  for (String participantId : participantsOf.get(id)) {
+                     if (participants.size() > 0 && !participants.contains(participantId)) {
+                        continue;
+                     }
+                     matches.add(Json.createObjectBuilder()
+                                 .add("MatchId", "g_" + id + ";" + participantId)
+                                 .add("Transcript", id).add("Participant", participantId)
+                                 .add("Corpus", "QB").add("Line", 0.0).add("LineEnd", 1.0)
+                                 .add("BeforeMatch", "").add("Text", versionOf.get(id))
+                                 .add("AfterMatch", ""));
+                  }
+               }
+               return Json.createObjectBuilder().add("matches", matches).build();
+            });
+   }
+   
+   /** A JSON array of strings. */
+   static JsonArray array(Iterable<String> values) {
+      JsonArrayBuilder array = Json.createArrayBuilder();
+      for (String value : values) array.add(value);
+      return array.build();
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestMaterializedSearch");
+   }
+}
@@ -0,0 +1,168 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.json.Json;
+import javax.json.JsonValue;
+import nzilbb.labbcat.util.TempFiles;
+
+/**
+ * Unit tests for MediaDownloader, using a stand-in server.
+ */
+public class TestMediaDownloader {
+   
+   @Test public void cacheResumeAndSegments() throws Exception {
+      byte[] content = new byte[100000];
+      new Random(1).nextBytes(content);
+      try (StandInServer server = new StandInServer();
+           TempFiles tempFiles = new TempFiles()) {
+         server.file("files/test.wav", content)
+            .json("api/store/getMedia", query -> Json.createValue(
+                     server.getUrl() + "files/test.wav"));
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         File cacheDir = tempFiles.createTempDirectory("TestMediaDownloader_");
+         MediaDownloader media = new MediaDownloader(labbcat, cacheDir)
+            .setSegments(4).setMinSegmentSize(10000);
+         
+         File wav = media.getMediaFile("test.trs", "", "audio/wav");
+         assertTrue("content", Arrays.equals(content, Files.readAllBytes(wav.toPath())));
+         assertEquals("URL resolved once", 1, server.count("api/store/getMedia"));
+         assertEquals("downloaded in segments (plus HEAD)", 5, server.count("files/test.wav"));
+         
+         // second request comes from the cache
+         assertEquals(wav, media.getMediaFile("test.trs", "", "audio/wav"));
+         assertEquals("cache hit doesn't resolve URL", 1, server.count("api/store/getMedia"));
+         assertEquals("cache hit doesn't download", 5, server.count("files/test.wav"));
+         
+         // interrupted download is resumed
+         media.forget("test.trs", "", "audio/wav");
+         media.setSegments(1);
+         File partial = new File(
+            new File(cacheDir, "partial"), MediaDownloader.Key("test.trs", "", "audio/wav") + ".part");
+         File validator = new File(partial.getPath() + ".validator");
+         Files.write(partial.toPath(), Arrays.copyOf(content, 1234));
+         Files.write(validator.toPath(), StandInServer.ETag(content).getBytes("UTF-8"));
+         server.ranges.clear();
+         wav = media.getMediaFile("test.trs", "", "audio/wav");
+         assertEquals("resumed from end of partial file",
+                      Arrays.asList("bytes=1234-"), server.ranges);
+         assertTrue("resumed content", Arrays.equals(content, Files.readAllBytes(wav.toPath())));
+         assertFalse("validator removed once complete", validator.exists());
+      }
+   }
+
+   @Test public void keyLocksReleased() throws Exception {
+      byte[] content = new byte[100000];
+      new Random(2).nextBytes(content);
+      try (StandInServer server = new StandInServer();
+           TempFiles tempFiles = new TempFiles()) {
+         server.file("files/test.wav", content)
+            .json("api/store/getMedia", query ->
+                  StandInServer.parameter(query, "id").contains("test.trs")?
+                  Json.createValue(server.getUrl() + "files/test.wav") : JsonValue.NULL);
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         MediaDownloader media = new MediaDownloader(
+            labbcat, tempFiles.createTempDirectory("TestMediaDownloader_"));
+         
+         ExecutorService pool = Executors.newFixedThreadPool(4);
+         try {
+            Vector<Future<File>> files = new Vector<Future<File>>();
+            for (int i = 0; i < 8; i++) {
+               files.add(pool.submit(() -> media.getMediaFile("test.trs", "", "audio/wav")));
+            }
+            for (Future<File> file : files) {
+               assertTrue("content",
+                          Arrays.equals(content, Files.readAllBytes(file.get().toPath())));
+            }
+         } finally {
+            pool.shutdown();
+         }
+         assertEquals("downloaded once", 1, server.count("api/store/getMedia"));
+         
+         Field keyLocks = MediaDownloader.class.getDeclaredField("keyLocks");
+         keyLocks.setAccessible(true);
+         assertEquals("no locks left", 0, ((Map<?,?>)keyLocks.get(media)).size());
+         
+         // not found
+         assertNull(media.getMediaFile("missing.trs", "", "audio/wav"));
+         assertEquals("no locks left after a miss", 0, ((Map<?,?>)keyLocks.get(media)).size());
+      }
+   }
+   
+   @Test public void noResumeOfChangedContent() throws Exception {
+      byte[] content = new byte[100000];
+      new Random(1).nextBytes(content);
+      byte[] original = content.clone();
+      try (StandInServer server = new StandInServer();
+           TempFiles tempFiles = new TempFiles()) {
+         server.file("files/test.wav", content)
+            .json("api/store/getMedia", query -> Json.createValue(
+                     server.getUrl() + "files/test.wav"));
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         File cacheDir = tempFiles.createTempDirectory("TestMediaDownloader_");
+         MediaDownloader media = new MediaDownloader(labbcat, cacheDir);
+         File partial = new File(
+            new File(cacheDir, "partial"), MediaDownloader.Key("test.trs", "", "audio/wav") + ".part");
+         File validator = new File(partial.getPath() + ".validator");
+         partial.getParentFile().mkdirs();
+         
+         // partial download of the original content, which has since changed
+         Files.write(partial.toPath(), Arrays.copyOf(original, 1234));
+         Files.write(validator.toPath(), StandInServer.ETag(original).getBytes("UTF-8"));
+         new Random(2).nextBytes(content);
+         File wav = media.getMediaFile("test.trs", "", "audio/wav");
+         assertEquals("one request", 1, server.count("files/test.wav"));
+         assertTrue("whole new content downloaded, not spliced",
+                    Arrays.equals(content, Files.readAllBytes(wav.toPath())));
+         
+         // partial download with no validator is started again
+         media.forget("test.trs", "", "audio/wav");
+         Files.write(partial.toPath(), Arrays.copyOf(original, 1234));
+         server.ranges.clear();
+         wav = media.getMediaFile("test.trs", "", "audio/wav");
+         assertEquals("not resumed", 0, server.ranges.size());
+         assertTrue("whole content downloaded",
+                    Arrays.equals(content, Files.readAllBytes(wav.toPath())));
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestMediaDownloader");
+   }
+}
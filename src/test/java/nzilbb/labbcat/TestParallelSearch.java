@@ -0,0 +1,197 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import nzilbb.labbcat.model.Match;
+
+/**
+ * Unit tests for ParallelSearch, using a stand-in server.
+ */
+public class TestParallelSearch {
+
+   static final String[] PARTICIPANTS = { "p0", "p1", "p2", "p3", "p4" };
+   
+   @Test public void mergesShardsInOrder() throws Exception {
+      Tasks tasks = new Tasks();
+      try (StandInServer server = serve(tasks)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         ParallelSearch search = new ParallelSearch(labbcat).setShardSize(2).setMaxTasks(2);
+         Match[] matches = search.searchByParticipant(
+            new PatternBuilder().addMatchLayer("orthography", "the").build(),
+            null, null, true, null, null, null, 0);
+         assertEquals("one search per shard", 3, server.count("api/search"));
+         assertEquals("every task released", 3, tasks.released.get());
+         assertTrue("no more than maxTasks at once: " + tasks.maxRunning.get(),
+                    tasks.maxRunning.get() <= 2);
+         
+         // all matches, ordered by transcript then position
+         assertEquals(15, matches.length);
+         String last = "";
+         for (Match match : matches) {
+            String key = match.getTranscript() + String.format("%05.1f", match.getLine());
+            assertTrue(key + " after " + last, key.compareTo(last) >= 0);
+            last = key;
+         }
+         assertEquals("a.trs", matches[0].getTranscript());
+         assertEquals("p0", matches[0].getParticipant());
+         assertEquals("c.trs", matches[14].getTranscript());
+      }
+   }
+   
+   @Test public void pagesAndMatchesPerTranscript() throws Exception {
+      Tasks tasks = new Tasks();
+      try (StandInServer server = serve(tasks)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         ParallelSearch search = new ParallelSearch(labbcat).setShardSize(2).setPageLength(2);
+         Match[] matches = search.searchByParticipant(
+            new PatternBuilder().addMatchLayer("orthography", "the").build(),
+            PARTICIPANTS, null, true, null, 2, null, 0);
+         assertTrue("results are paged", server.count("api/results") > 3);
+         assertEquals("limit applied to merged transcripts", 6, matches.length);
+         assertEquals(3, tasks.released.get());
+      }
+   }
+   
+   @Test public void transcriptTypeShards() throws Exception {
+      Tasks tasks = new Tasks();
+      try (StandInServer server = serve(tasks)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         ParallelSearch search = new ParallelSearch(labbcat).setShardSize(1);
+         search.searchByTranscriptType(
+            new PatternBuilder().addMatchLayer("orthography", "the").build(),
+            null, new String[] { "interview", "reading" }, true, null, null, null, 0);
+         assertEquals(2, server.count("api/search"));
+         assertEquals("one type per shard",
+                      new TreeSet<String>(Arrays.asList("interview", "reading")),
+                      new TreeSet<String>(tasks.types));
+         assertEquals(2, tasks.types.size());
+         assertEquals(2, tasks.released.get());
+      }
+   }
+   
+   @Test public void failedShardReleasesAllTasks() throws Exception {
+      Tasks tasks = new Tasks();
+      tasks.failing = "p2";
+      try (StandInServer server = serve(tasks)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         ParallelSearch search = new ParallelSearch(labbcat).setShardSize(2);
+         try {
+            search.searchByParticipant(
+               new PatternBuilder().addMatchLayer("orthography", "the").build(),
+               PARTICIPANTS, null, true, null, null, null, 0);
+            fail("shard failure should be thrown");
+         } catch(Exception x) {
+         }
+         assertEquals("every task released", 3, tasks.released.get());
+      }
+   }
+   
+   /** The state of the stand-in server's search tasks. */
+   static class Tasks {
+      Map<String,List<String>> participants = new ConcurrentHashMap<String,List<String>>();
+      List<String> types = new Vector<String>();
+      AtomicInteger started = new AtomicInteger();
+      AtomicInteger running = new AtomicInteger();
+      AtomicInteger maxRunning = new AtomicInteger();
+      AtomicInteger released = new AtomicInteger();
+      String failing;
+   }
+   
+   /**
+    * A stand-in server on which each participant pN has one match at line N in each of
+    * a.trs, b.trs, and c.trs.
+    */
+   static StandInServer serve(Tasks tasks) throws Exception {
+      return new StandInServer()
+         .json("api/store/getParticipantIds", query -> {
+               JsonArrayBuilder ids = Json.createArrayBuilder();
+               for (String id : PARTICIPANTS) ids.add(id);
+               return ids.build();
+            })
+         .json("api/search", query -> {
+               List<String> ids = StandInServer.parameter(query, "participant_id");
+               tasks.types.addAll(StandInServer.parameter(query, "transcript_type"));
+               String threadId = "t" + tasks.started.incrementAndGet();
+               tasks.participants.put(threadId, ids);
+               tasks.maxRunning.accumulateAndGet(tasks.running.incrementAndGet(), Math::max);
+               return Json.createObjectBuilder().add("threadId", threadId).build();
+            })
+         .json("api/task/", query -> {
+               if (query == null) { // DELETE with release=true
+                  tasks.running.decrementAndGet();
+                  tasks.released.incrementAndGet();
+               }
+               try { Thread.sleep(50); } catch(Exception exception) {}
+               return Json.createObjectBuilder()
+                  .add("running", false).add("refreshSeconds", 0).build();
+            })
+         .json("api/results", query -> {
+               String threadId = StandInServer.parameter(query, "threadId").get(0);
+               List<String> ids = tasks.participants.get(threadId);
+               if (ids.contains(tasks.failing)) throw new RuntimeException("failing shard");
+               Vector<String> all = new Vector<String>();
+               for (String transcript : Arrays.asList("c.trs", "a.trs", "b.trs")) {
+                  for (String id : ids) all.add(transcript + ":" + id);
+               }
+               List<String> page = all;
+               List<String> pageLength = StandInServer.parameter(query, "pageLength");
+               if (pageLength.size() > 0) {
+                  int length = Integer.parseInt(pageLength.get(0));
+                  int from = length * Integer.parseInt(
+                     StandInServer.parameter(query, "pageNumber").get(0));
+                  page = all.subList(Math.min(from, all.size()),
+                                     Math.min(from + length, all.size()));
+               }
+               JsonArrayBuilder matches = Json.createArrayBuilder();
+               for (String match : page) {
+                  String[] parts = match.split(":");
+                  double line = Double.parseDouble(parts[1].substring(1));
+                  matches.add(Json.createObjectBuilder()
+                              .add("MatchId", "g_" + parts[0] + ";" + parts[1])
+                              .add("Transcript", parts[0]).add("Participant", parts[1])
+                              .add("Corpus", "QB").add("Line", line).add("LineEnd", line + 1)
+                              .add("BeforeMatch", "").add("Text", "the").add("AfterMatch", ""));
+               }
+               return Json.createObjectBuilder().add("matches", matches).build();
+            });
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestParallelSearch");
+   }
+}
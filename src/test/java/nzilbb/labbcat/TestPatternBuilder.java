@@ -25,6 +25,8 @@ package nzilbb.labbcat;
 import org.junit.*;
 import static org.junit.Assert.*;
 
+import java.io.StringReader;
+import javax.json.Json;
 import javax.json.JsonObject;
 
 /**
@@ -59,6 +61,44 @@ public class TestPatternBuilder {
                    pattern.toString());
    }
 
+   @Test public void canonicalPattern()
+      throws Exception {
+      JsonObject built = new PatternBuilder()
+         .addColumn()
+         .addMatchLayer("orthography", "the")
+         .addColumn()
+         .addMaxLayer("frequency", 2.0)
+         .addMatchLayer("phonemes", "1.0")
+         .build();
+      JsonObject handWritten = Json.createReader(new StringReader(
+         "{\"columns\":["
+         +"{\"adj\":1.0,\"layers\":{\"orthography\":{\"not\":false,\"pattern\":\"the\"}}},"
+         +"{\"layers\":{\"phonemes\":{\"pattern\":\"1.0\"},\"frequency\":{\"max\":\"2\"}}}"
+         +"]}")).readObject();
+      assertEquals("{\"columns\":["
+                   +"{\"adj\":1,\"layers\":{\"orthography\":{\"pattern\":\"the\"}}},"
+                   +"{\"layers\":{\"frequency\":{\"max\":\"2\"},"
+                   +"\"phonemes\":{\"pattern\":\"1.0\"}}}"
+                   +"]}",
+                   PatternBuilder.Canonical(handWritten).toString());
+      assertEquals("regular expressions are not normalized",
+                   PatternBuilder.Canonical(handWritten), PatternBuilder.Canonical(built));
+      assertEquals(PatternBuilder.Hash(handWritten), new PatternBuilder()
+                   .addColumn()
+                   .addMatchLayer("orthography", "the")
+                   .addColumn()
+                   .addMaxLayer("frequency", 2)
+                   .addMatchLayer("phonemes", "1.0")
+                   .hash());
+      assertNotEquals(PatternBuilder.Hash(handWritten), new PatternBuilder()
+                      .addColumn()
+                      .addMatchLayer("orthography", "the")
+                      .addColumn()
+                      .addMaxLayer("frequency", 2)
+                      .addMatchLayer("phonemes", "1")
+                      .hash());
+   }
+
    public static void main(String args[]) {
       org.junit.runner.JUnitCore.main("nzilbb.labbcat.test.TestPatternBuilder");
    }
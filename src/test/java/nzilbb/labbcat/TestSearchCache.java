@@ -0,0 +1,192 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import nzilbb.ag.Annotation;
+import nzilbb.labbcat.model.Match;
+
+/**
+ * Unit tests for SearchCache, using a stand-in server.
+ */
+public class TestSearchCache {
+
+   @Test public void equivalentSearchesAreCached() throws Exception {
+      File dir = Files.createTempDirectory("TestSearchCache").toFile();
+      try (StandInServer server = serve()) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         SearchCache cache = new SearchCache(dir);
+         labbcat.setSearchCache(cache);
+         Match[] matches = labbcat.getMatches(
+            new PatternBuilder().addMaxLayer("frequency", 2).build(),
+            new String[] { "p1", "p2" }, null, true, null, null, null, 1);
+         assertEquals(1, server.count("api/search"));
+         assertEquals(2, matches.length);
+         
+         // equivalent pattern, participants in a different order
+         Match[] again = labbcat.getMatches(
+            new PatternBuilder().addMaxLayer("frequency", 2.0).build(),
+            new String[] { "p2", "p1" }, null, true, null, null, null, 1);
+         assertEquals("served from cache", 1, server.count("api/search"));
+         assertEquals(1, cache.getMemoryHits());
+         assertEquals(matches[1].getMatchId(), again[1].getMatchId());
+         
+         // different parameters
+         labbcat.getMatches(
+            new PatternBuilder().addMaxLayer("frequency", 2).build(),
+            new String[] { "p2", "p1" }, null, false, null, null, null, 1);
+         assertEquals("different search", 2, server.count("api/search"));
+         
+         // a new cache in the same directory
+         cache = new SearchCache(dir);
+         labbcat.setSearchCache(cache);
+         again = labbcat.getMatches(
+            new PatternBuilder().addMaxLayer("frequency", 2).build(),
+            new String[] { "p1", "p2" }, null, true, null, null, null, 1);
+         assertEquals("served from disk", 2, server.count("api/search"));
+         assertEquals(1, cache.getDiskHits());
+         assertEquals(matches.length, again.length);
+         assertEquals(matches[0].getMatchId(), again[0].getMatchId());
+         assertEquals(matches[0].getLine(), again[0].getLine());
+         assertEquals(matches[0].getText(), again[0].getText());
+         
+         cache.clear();
+         labbcat.getMatches(
+            new PatternBuilder().addMaxLayer("frequency", 2).build(),
+            new String[] { "p1", "p2" }, null, true, null, null, null, 1);
+         assertEquals("cleared", 3, server.count("api/search"));
+      } finally {
+         for (File file : dir.listFiles()) file.delete();
+         dir.delete();
+      }
+   }
+   
+   @Test public void keyIncludesServerAndUser() throws Exception {
+      JsonObject pattern = new PatternBuilder().addMatchLayer("orthography", "the").build();
+      URL server = new URL("https://labbcat.example.org/labbcat/");
+      String key = SearchCache.Key(
+         server, "alice", pattern, null, null, true, null, null, null, 1, null);
+      assertEquals("same search, same key", key, SearchCache.Key(
+                      server, "alice", pattern, null, null, true, null, null, null, 1, null));
+      assertNotEquals("different server", key, SearchCache.Key(
+                         new URL("https://other.example.org/labbcat/"), "alice", pattern,
+                         null, null, true, null, null, null, 1, null));
+      assertNotEquals("different user", key, SearchCache.Key(
+                         server, "bob", pattern, null, null, true, null, null, null, 1, null));
+      assertNotEquals("anonymous", key, SearchCache.Key(
+                         server, null, pattern, null, null, true, null, null, null, 1, null));
+   }
+   
+   @Test public void concurrentIdenticalSearchesShareOneTask() throws Exception {
+      try (StandInServer server = serve()) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         SearchCache cache = new SearchCache();
+         labbcat.setSearchCache(cache);
+         JsonObject pattern = new PatternBuilder().addMatchLayer("orthography", "the").build();
+         ExecutorService pool = Executors.newFixedThreadPool(4);
+         try {
+            Vector<Future<Match[]>> results = new Vector<Future<Match[]>>();
+            for (int i = 0; i < 4; i++) {
+               results.add(pool.submit(() -> labbcat.getMatches(
+                                          pattern, null, null, false, null, null, null, 0)));
+            }
+            for (Future<Match[]> result : results) assertEquals(2, result.get().length);
+         } finally {
+            pool.shutdownNow();
+         }
+         assertEquals("one server task", 1, server.count("api/search"));
+         assertEquals(1, cache.getMisses());
+         assertEquals(3, cache.getShared() + cache.getMemoryHits());
+      }
+   }
+   
+   @Test public void editsClearCache() throws Exception {
+      try (StandInServer server = serve()) {
+         server.json("api/edit/store/tagMatchingAnnotations", query -> Json.createValue(2))
+            .json("api/edit/store/saveParticipant", query -> JsonValue.TRUE)
+            .json("api/edit/dictionary/add", query -> JsonValue.NULL);
+         LabbcatEdit labbcat = new LabbcatEdit(server.getUrl());
+         labbcat.setBatchMode(true);
+         labbcat.setSearchCache(new SearchCache());
+         JsonObject pattern = new PatternBuilder().addMatchLayer("pos", "N").build();
+         labbcat.getMatches(pattern, null, null, false, null, null, null, 0);
+         labbcat.getMatches(pattern, null, null, false, null, null, null, 0);
+         assertEquals("cached", 1, server.count("api/search"));
+         
+         labbcat.tagMatchingAnnotations("layer.id == 'orthography'", "pos", "N", 100);
+         labbcat.getMatches(pattern, null, null, false, null, null, null, 0);
+         assertEquals("cleared by tagging", 2, server.count("api/search"));
+         
+         labbcat.saveParticipant(new Annotation("p1", "p1", "participant"));
+         labbcat.getMatches(pattern, null, null, false, null, null, null, 0);
+         assertEquals("cleared by saving a participant", 3, server.count("api/search"));
+         
+         labbcat.addLayerDictionaryEntry("pos", "the", "DT");
+         labbcat.getMatches(pattern, null, null, false, null, null, null, 0);
+         assertEquals("cleared by dictionary edit", 4, server.count("api/search"));
+      }
+   }
+   
+   /** A stand-in server on which every search has two matches, and takes a while. */
+   static StandInServer serve() throws Exception {
+      AtomicInteger tasks = new AtomicInteger();
+      return new StandInServer()
+         .json("api/search", query -> Json.createObjectBuilder()
+               .add("threadId", "t" + tasks.incrementAndGet()).build())
+         .json("api/task/", query -> Json.createObjectBuilder()
+               .add("running", false).add("refreshSeconds", 0).build())
+         .json("api/results", query -> {
+               try { Thread.sleep(300); } catch(Exception exception) {}
+               String threadId = StandInServer.parameter(query, "threadId").get(0);
+               return Json.createObjectBuilder().add(
+                  "matches", Json.createArrayBuilder()
+                  .add(match(threadId, 1)).add(match(threadId, 2))).build();
+            });
+   }
+   
+   static JsonObject match(String threadId, int line) {
+      return Json.createObjectBuilder()
+         .add("MatchId", "g_1;" + threadId + ";" + line).add("Transcript", "a.trs")
+         .add("Participant", "p1").add("Corpus", "QB")
+         .add("Line", line).add("LineEnd", line + 1.5)
+         .add("BeforeMatch", "").add("Text", "the").add("AfterMatch", "").build();
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestSearchCache");
+   }
+}
@@ -0,0 +1,161 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import nzilbb.ag.*;
+
+/**
+ * Unit tests for ShardedQuery, using a stand-in server.
+ */
+public class TestShardedQuery {
+
+   /** Word labels in each corpus. */
+   static Map<String,List<String>> labels = new TreeMap<String,List<String>>();
+   /** Transcripts in each corpus. */
+   static Map<String,List<String>> transcripts = new TreeMap<String,List<String>>();
+   static {
+      labels.put("QB", Arrays.asList("b", "a", "b", "c"));
+      labels.put("UC", Arrays.asList("d", "b"));
+      labels.put("XX", Arrays.asList());
+      transcripts.put("QB", Arrays.asList("q3.trs", "q1.trs"));
+      transcripts.put("UC", Arrays.asList("u2.trs"));
+      transcripts.put("XX", Arrays.asList());
+   }
+   
+   @Test public void countsAndIds() throws Exception {
+      try (StandInServer server = serve()) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         ShardedQuery query = new ShardedQuery(labbcat).setThreads(2);
+         assertEquals(6, query.countMatchingAnnotations("layer.id == 'word'"));
+         assertEquals(3, server.count("api/store/countMatchingAnnotations"));
+         assertEquals(3, query.countMatchingTranscriptIds("/.+/.test(id)"));
+         assertEquals(Arrays.asList("q1.trs", "q3.trs", "u2.trs"),
+                      Arrays.asList(query.getMatchingTranscriptIds("/.+/.test(id)")));
+         
+         // explicit shards
+         assertEquals(4, query.setShards("QB").countMatchingAnnotations("layer.id == 'word'"));
+      }
+   }
+   
+   @Test public void aggregates() throws Exception {
+      try (StandInServer server = serve()) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         ShardedQuery query = new ShardedQuery(labbcat);
+         String expression = "layer.id == 'word'";
+         assertEquals(Arrays.asList("6"),
+                      Arrays.asList(query.aggregateMatchingAnnotations("COUNT", expression)));
+         assertEquals(Arrays.asList("a", "b", "c", "d"),
+                      Arrays.asList(query.aggregateMatchingAnnotations("DISTINCT", expression)));
+         assertEquals("not the sum of shard counts (3 + 2)", Arrays.asList("4"),
+                      Arrays.asList(query.aggregateMatchingAnnotations(
+                                       "COUNT DISTINCT", expression)));
+         int requests = server.count("api/store/aggregateMatchingAnnotations");
+         assertEquals(Arrays.asList("a"),
+                      Arrays.asList(query.aggregateMatchingAnnotations("MIN", expression)));
+         assertEquals(Arrays.asList("d"),
+                      Arrays.asList(query.aggregateMatchingAnnotations("max", expression)));
+         assertEquals("MIN and MAX unsharded", requests + 2,
+                      server.count("api/store/aggregateMatchingAnnotations"));
+         assertEquals(Arrays.asList("a", "1", "b", "3", "c", "1", "d", "1"),
+                      Arrays.asList(query.aggregateMatchingAnnotations(
+                                       "DISTINCT, COUNT", expression)));
+      }
+   }
+   
+   @Test public void shardExpression() {
+      assertEquals("(graph.corpus == 'O\\'Brien') && (layer.id == 'word')",
+                   ShardedQuery.shardExpression(
+                      "graph.corpus == {0}", "O'Brien", "layer.id == 'word'"));
+   }
+   
+   static final Pattern CORPUS = Pattern.compile(
+      "^\\((?:graph\\.corpus|first\\('corpus'\\)\\.label) == '(\\w+)'\\) && \\(.+\\)$");
+   
+   /** The corpus an expression is restricted to. */
+   static String corpus(String query) {
+      String expression = StandInServer.parameter(query, "expression").get(0);
+      Matcher matcher = CORPUS.matcher(expression);
+      if (!matcher.matches()) throw new RuntimeException("Not sharded: " + expression);
+      return matcher.group(1);
+   }
+   
+   /** A stand-in server that only answers sharded queries. */
+   static StandInServer serve() throws Exception {
+      return new StandInServer()
+         .json("api/store/getCorpusIds", query -> {
+               JsonArrayBuilder ids = Json.createArrayBuilder();
+               for (String id : labels.keySet()) ids.add(id);
+               return ids.build();
+            })
+         .json("api/store/countMatchingAnnotations", query -> Json.createValue(
+                  labels.get(corpus(query)).size()))
+         .json("api/store/countMatchingTranscriptIds", query -> Json.createValue(
+                  transcripts.get(corpus(query)).size()))
+         .json("api/store/getMatchingTranscriptIds", query -> {
+               JsonArrayBuilder ids = Json.createArrayBuilder();
+               for (String id : transcripts.get(corpus(query))) ids.add(id);
+               return ids.build();
+            })
+         .json("api/store/aggregateMatchingAnnotations", query -> {
+               String operation = StandInServer.parameter(query, "operation").get(0);
+               JsonArrayBuilder result = Json.createArrayBuilder();
+               if (operation.equals("MIN") || operation.equals("max")) { // unsharded
+                  TreeSet<String> all = new TreeSet<String>();
+                  for (List<String> corpusLabels : labels.values()) all.addAll(corpusLabels);
+                  return result.add(operation.equals("MIN")? all.first() : all.last()).build();
+               }
+               List<String> corpusLabels = labels.get(corpus(query));
+               TreeSet<String> distinct = new TreeSet<String>(corpusLabels);
+               switch (operation) {
+                  case "COUNT": result.add("" + corpusLabels.size()); break;
+                  case "DISTINCT": for (String label : distinct) result.add(label); break;
+                  case "DISTINCT,COUNT":
+                     for (String label : distinct) {
+                        result.add(label);
+                        result.add("" + corpusLabels.stream().filter(
+                                      l -> l.equals(label)).count());
+                     }
+                     break;
+                  default: throw new RuntimeException("Unexpected operation " + operation);
+               }
+               return result.build();
+            });
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestShardedQuery");
+   }
+}
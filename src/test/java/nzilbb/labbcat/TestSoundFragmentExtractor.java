@@ -0,0 +1,221 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.json.Json;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import nzilbb.labbcat.util.IntervalCoalescer;
+import nzilbb.labbcat.util.TempFiles;
+
+/**
+ * Unit tests for SoundFragmentExtractor, using a stand-in server.
+ */
+public class TestSoundFragmentExtractor {
+   
+   @Test public void extractLocally() throws Exception {
+      File source = new File(getClass().getResource("nzilbb.labbcat.test.wav").toURI());
+      try (StandInServer server = new StandInServer();
+           TempFiles tempFiles = new TempFiles()) {
+         // each transcript has a distinct recording
+         File other = tempFiles.createTempFile("other_", ".wav");
+         SoundFragmentExtractor.Extract(source, 0.0, Duration(source), 8000, other);
+         server.file("files/a.wav", Files.readAllBytes(source.toPath()))
+            .file("files/b.wav", Files.readAllBytes(other.toPath()))
+            .json("api/store/getMedia", query -> Json.createValue(
+                     server.getUrl() + "files/"
+                     + StandInServer.parameter(query, "id").get(0).replace(".trs", ".wav")));
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         labbcat.setTempFiles(tempFiles);
+         File dir = tempFiles.createTempDirectory("TestSoundFragmentExtractor_");
+         
+         File[] wavs = new SoundFragmentExtractor(labbcat).setThreads(2)
+            .getSoundFragments(
+               new String[] { "a.trs", "b.trs", null, "a.trs", "b.trs" },
+               new Double[] { 0.5, 1.0, 0.0, 1.5, 0.0 },
+               new Double[] { 1.0, 2.0, 1.0, 2.5, 0.5 },
+               null, dir);
+         assertEquals(5, wavs.length);
+         assertNull("null transcript skipped", wavs[2]);
+         assertEquals("one download per transcript", 2, server.count("api/store/getMedia"));
+         assertEquals("a__0.500-1.000.wav", wavs[0].getName());
+         assertEquals(dir, wavs[0].getParentFile());
+         
+         // same bytes as extracting directly from each transcript's own recording
+         File expected = tempFiles.createTempFile("expected_", ".wav");
+         File[] sources = { source, other, null, source, other };
+         Double[] starts = { 0.5, 1.0, null, 1.5, 0.0 };
+         Double[] ends = { 1.0, 2.0, null, 2.5, 0.5 };
+         for (int i = 0; i < wavs.length; i++) {
+            if (sources[i] == null) continue;
+            SoundFragmentExtractor.Extract(sources[i], starts[i], ends[i], null, expected);
+            assertTrue("fragment " + i + " from its own recording", Arrays.equals(
+                          Files.readAllBytes(expected.toPath()),
+                          Files.readAllBytes(wavs[i].toPath())));
+         }
+         assertEquals(8000f, AudioSystem.getAudioFileFormat(wavs[1]).getFormat().getSampleRate(),
+                      0.1f);
+         assertEquals(1.0, Duration(wavs[1]), 0.001);
+         
+         // resampling
+         wavs = new SoundFragmentExtractor(labbcat).getSoundFragments(
+            new String[] { "a.trs" }, new Double[] { 0.0 }, new Double[] { 1.0 }, 8000, dir);
+         assertEquals(8000f, AudioSystem.getAudioFileFormat(wavs[0]).getFormat().getSampleRate(),
+                      0.1f);
+         
+         // downloaded recordings are not left behind
+         assertEquals("only output dir outstanding",
+                      Arrays.asList(other, dir, expected),
+                      Arrays.asList(tempFiles.getOutstanding()));
+      }
+   }
+
+   @Test public void coalescedFragmentsAreServerFragments() throws Exception {
+      try (StandInServer server = new StandInServer();
+           TempFiles tempFiles = new TempFiles()) {
+         // each fragment's content identifies the request
+         server.raw("api/media/fragments", query -> query);
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         labbcat.setTempFiles(tempFiles);
+         String[] ids = { "a.trs", "a.trs", "a.trs" };
+         Double[] starts = { 1.0, 1.0, 1.5 };
+         Double[] ends = { 2.0, 2.0, 2.5 };
+         File[] expected = labbcat.getSoundFragments(ids, starts, ends, 16000, null);
+         assertEquals(3, server.count("api/media/fragments"));
+         
+         labbcat.setCoalescer(new IntervalCoalescer());
+         File[] wavs = labbcat.getSoundFragments(ids, starts, ends, 16000, null);
+         assertEquals("identical intervals fetched once, overlapping ones separately",
+                      5, server.count("api/media/fragments"));
+         for (int i = 0; i < ids.length; i++) {
+            assertEquals("fragment " + i + " is what the server returns",
+                         new String(Files.readAllBytes(expected[i].toPath())),
+                         new String(Files.readAllBytes(wavs[i].toPath())));
+         }
+      }
+   }
+   
+   @Test public void byteRanges() throws Exception {
+      File source = new File(getClass().getResource("nzilbb.labbcat.test.wav").toURI());
+      try (StandInServer server = new StandInServer();
+           TempFiles tempFiles = new TempFiles()) {
+         server.file("files/test.wav", Files.readAllBytes(source.toPath()))
+            .json("api/store/getMedia", query -> Json.createValue(
+                     server.getUrl() + "files/test.wav"));
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         labbcat.setTempFiles(tempFiles);
+         File dir = tempFiles.createTempDirectory("TestSoundFragmentExtractor_");
+         SoundFragmentExtractor extractor = new SoundFragmentExtractor(labbcat)
+            .setByteRanges(true).setMaxRangeGap(0);
+         String[] ids = { "a.trs", "a.trs", "a.trs" };
+         Double[] starts = { 0.5, 0.75, 3.5 };
+         Double[] ends = { 1.0, 1.25, 4.0 };
+         
+         for (Integer sampleRate : new Integer[] { null, 8000 }) {
+            server.ranges.clear();
+            File[] wavs = extractor.getSoundFragments(ids, starts, ends, sampleRate, dir);
+            assertEquals("header plus two coalesced ranges: " + server.ranges,
+                         3, server.ranges.size());
+            assertEquals("bytes=0-4095", server.ranges.get(0));
+            for (int i = 0; i < wavs.length; i++) {
+               File expected = tempFiles.createTempFile("expected_", ".wav");
+               SoundFragmentExtractor.Extract(source, starts[i], ends[i], sampleRate, expected);
+               if (sampleRate != null) {
+                  // the resampler's rounding errors depend on where it starts, so compare
+                  // with extracting from a stream of the whole recording
+                  assertEquals("same length " + i + " at " + sampleRate,
+                               expected.length(), wavs[i].length());
+                  try (AudioInputStream whole = AudioSystem.getAudioInputStream(source)) {
+                     SoundFragmentExtractor.Extract(
+                        whole, starts[i], ends[i], sampleRate, expected);
+                  }
+               }
+               assertTrue("byte-identical " + i + " at " + sampleRate, Arrays.equals(
+                             Files.readAllBytes(expected.toPath()),
+                             Files.readAllBytes(wavs[i].toPath())));
+            }
+         }
+         assertEquals("every request was a range request", 6, server.count("files/test.wav"));
+      }
+   }
+
+   @Test public void byteRangesFromSeveralTranscripts() throws Exception {
+      File source = new File(getClass().getResource("nzilbb.labbcat.test.wav").toURI());
+      try (StandInServer server = new StandInServer();
+           TempFiles tempFiles = new TempFiles()) {
+         // each transcript has a distinct recording
+         File other = tempFiles.createTempFile("other_", ".wav");
+         SoundFragmentExtractor.Extract(source, 0.0, Duration(source), 8000, other);
+         server.file("files/a.wav", Files.readAllBytes(source.toPath()))
+            .file("files/b.wav", Files.readAllBytes(other.toPath()))
+            .json("api/store/getMedia", query -> Json.createValue(
+                     server.getUrl() + "files/"
+                     + StandInServer.parameter(query, "id").get(0).replace(".trs", ".wav")));
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         labbcat.setTempFiles(tempFiles);
+         File dir = tempFiles.createTempDirectory("TestSoundFragmentExtractor_");
+         SoundFragmentExtractor extractor = new SoundFragmentExtractor(labbcat)
+            .setByteRanges(true).setMaxRangeGap(0).setThreads(2);
+         String[] ids = { "a.trs", "b.trs", "a.trs", "b.trs" };
+         File[] sources = { source, other, source, other };
+         Double[] starts = { 0.5, 0.5, 3.5, 2.0 };
+         Double[] ends = { 1.0, 1.0, 4.0, 2.5 };
+         
+         File[] wavs = extractor.getSoundFragments(ids, starts, ends, null, dir);
+         assertEquals("every request was a range request",
+                      server.ranges.size(),
+                      server.count("files/a.wav") + server.count("files/b.wav"));
+         File expected = tempFiles.createTempFile("expected_", ".wav");
+         for (int i = 0; i < wavs.length; i++) {
+            SoundFragmentExtractor.Extract(sources[i], starts[i], ends[i], null, expected);
+            assertTrue("fragment " + i + " from its own recording", Arrays.equals(
+                          Files.readAllBytes(expected.toPath()),
+                          Files.readAllBytes(wavs[i].toPath())));
+         }
+      }
+   }
+
+   /**
+    * The duration of a WAV file.
+    * @param wav The file.
+    * @return The duration in seconds.
+    */
+   static double Duration(File wav) throws Exception {
+      return AudioSystem.getAudioFileFormat(wav).getFrameLength()
+         / AudioSystem.getAudioFileFormat(wav).getFormat().getFrameRate();
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestSoundFragmentExtractor");
+   }
+}
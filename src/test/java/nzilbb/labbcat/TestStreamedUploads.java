@@ -0,0 +1,138 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonValue;
+import nzilbb.labbcat.http.HttpRequestPostMultipart;
+
+/**
+ * Unit tests for file parts that are written straight into multipart requests, using a
+ * stand-in server.
+ */
+public class TestStreamedUploads {
+
+   @Test public void partWriter() throws Exception {
+      try (StandInServer server = new StandInServer()) {
+         server.json("api/upload", query -> JsonValue.NULL);
+         StringBuilder content = new StringBuilder();
+         for (int l = 0; l < 500; l++) content.append("line ").append(l).append("\n");
+         HttpURLConnection connection = new HttpRequestPostMultipart(
+            new URL(server.getUrl() + "api/upload"), null)
+            .setParameter("before", "1")
+            .setParameter("file", "test.txt", out -> {
+                  // more than one chunk, written in pieces
+                  byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+                  out.write(bytes, 0, 1000);
+                  out.write(bytes, 1000, bytes.length - 1000);
+                  out.close(); // mustn't end the request
+               })
+            .setParameter("after", "2")
+            .post();
+         assertEquals(200, connection.getResponseCode());
+
+         String body = new String(server.bodies.get("api/upload"), StandardCharsets.UTF_8);
+         String boundary = body.substring(0, body.indexOf("\r\n"));
+         assertTrue("boundary " + boundary, boundary.startsWith("--"));
+         List<String> parts = Arrays.asList(body.split("\r\n" + boundary));
+         assertEquals("three parts and the terminator: " + parts, 4, parts.size());
+         assertEquals("terminator", "--\r\n", parts.get(3));
+         assertEquals(
+            "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"test.txt\"\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "\r\n"
+            + content,
+            parts.get(1));
+         assertTrue("parameter before: " + parts.get(0),
+                    parts.get(0).endsWith("name=\"before\"\r\n\r\n1"));
+         assertTrue("parameter after: " + parts.get(2),
+                    parts.get(2).endsWith("name=\"after\"\r\n\r\n2"));
+      }
+   }
+
+   @Test public void matchAnnotationsFromIterator() throws Exception {
+      try (StandInServer server = new StandInServer()) {
+         // each match's annotation is labelled with the match ID, which is read back from
+         // the uploaded CSV
+         List<String> uploaded = new Vector<String>();
+         List<String> queries = new Vector<String>();
+         server.json("api/results/upload", query -> {
+               String body = new String(
+                  server.bodies.get("api/results/upload"), StandardCharsets.UTF_8);
+               int start = body.indexOf(
+                  "\r\n\r\n", body.indexOf("filename=\"getMatchAnnotations.csv\"")) + 4;
+               String csv = body.substring(start, body.indexOf("\r\n--", start));
+               uploaded.addAll(Arrays.asList(csv.trim().split("\n")));
+               return Json.createObjectBuilder().add("threadId", "1").build();
+            })
+            .json("api/task/", query -> Json.createObjectBuilder()
+                  .add("running", false).add("refreshSeconds", 0).build())
+            .json("api/results", query -> {
+                  queries.add(new String(
+                                 server.bodies.get("api/results"), StandardCharsets.ISO_8859_1));
+                  JsonArrayBuilder matches = Json.createArrayBuilder();
+                  for (String matchId : uploaded.subList(1, uploaded.size())) {
+                     matches.add(Json.createObjectBuilder().add(
+                                    "orthography", Json.createArrayBuilder().add(
+                                       Json.createObjectBuilder()
+                                       .add("id", "ew_0_" + matchId.length())
+                                       .add("layerId", "orthography")
+                                       .add("label", matchId))));
+                  }
+                  return Json.createObjectBuilder().add("matches", matches).build();
+               });
+
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         List<String> matchIds = Arrays.asList(
+            "g_1;em_12_1;n_1-n_2;p_1;#=ew_0_1;prefix=1-", "g_2;em_12_2;n_3-n_4;p_2;#=ew_0_2");
+         List<String> labels = new Vector<String>();
+         labbcat.getMatchAnnotations(
+            matchIds.iterator(), new String[] { "orthography" }, 0, 1, annotations -> {
+               assertEquals("one annotation per match", 1, annotations.length);
+               labels.add(annotations[0].getLabel());
+            });
+         assertEquals("CSV header and rows", "MatchId", uploaded.get(0));
+         assertEquals("IDs uploaded in order", matchIds, uploaded.subList(1, uploaded.size()));
+         assertEquals("annotations delivered in order", matchIds, labels);
+         assertEquals("one results request", 1, queries.size());
+         assertEquals("threadId", Arrays.asList("1"),
+                      StandInServer.parameter(queries.get(0), "threadId"));
+         assertEquals("layers", Arrays.asList("orthography"),
+                      StandInServer.parameter(queries.get(0), "csv_layer"));
+         assertEquals("one upload", 1, server.count("api/results/upload"));
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestStreamedUploads");
+   }
+}
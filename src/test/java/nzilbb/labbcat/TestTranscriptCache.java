@@ -0,0 +1,185 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.json.Json;
+import javax.json.JsonValue;
+import nzilbb.ag.*;
+import nzilbb.ag.serialize.json.JSONSerialization;
+import nzilbb.ag.serialize.util.NamedStream;
+import nzilbb.ag.serialize.util.Utility;
+import nzilbb.configure.ParameterSet;
+import nzilbb.labbcat.util.TempFiles;
+import nzilbb.util.IO;
+
+/**
+ * Unit tests for TranscriptCache, using a stand-in server.
+ */
+public class TestTranscriptCache {
+   
+   @Test public void supersetsVersionsAndInvalidation() throws Exception {
+      Schema schema = schema();
+      AtomicReference<String> version = new AtomicReference<String>("1");
+      try (StandInServer server = new StandInServer();
+           TempFiles tempFiles = new TempFiles()) {
+         server.json("api/edit/store/deleteTranscript", query -> JsonValue.NULL)
+            .json("api/edit/store/tagMatchingAnnotations", query -> Json.createValue(1))
+            // the stand-in always returns all layers, whatever's requested
+            .raw("api/store/getTranscript", query -> json(transcript(schema, version.get())));
+         File dir = tempFiles.createTempDirectory("TestTranscriptCache_");
+         LabbcatEdit labbcat = new LabbcatEdit(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         labbcat.setTranscriptCache(new TranscriptCache(dir));
+         
+         Graph graph = labbcat.getTranscript("test.trs", new String[] { "word", "pos" });
+         assertEquals(1, graph.all("pos").length);
+         assertEquals(1, server.count("api/store/getTranscript"));
+         
+         graph = labbcat.getTranscript("test.trs", new String[] { "word" });
+         assertEquals("subset served from superset",
+                      1, server.count("api/store/getTranscript"));
+         assertEquals(1, graph.all("word").length);
+         assertEquals("ancestors kept", 1, graph.all("turn").length);
+         assertEquals("extra layers removed", 0, graph.all("pos").length);
+         
+         graph = labbcat.getTranscript("test.trs", new String[] { "utterance" });
+         assertEquals("not a subset", 2, server.count("api/store/getTranscript"));
+         
+         // a new cache on the same directory has the same entries
+         LabbcatView view = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         view.setBatchMode(true);
+         view.setTranscriptCache(new TranscriptCache(dir));
+         view.getTranscript("test.trs", new String[] { "pos" });
+         assertEquals("served from disk", 2, server.count("api/store/getTranscript"));
+         assertEquals(1, view.getTranscriptCache().getDiskHits());
+         
+         labbcat.deleteTranscript("test.trs");
+         assertEquals("invalidated", 0, labbcat.getTranscriptCache().getCount());
+         labbcat.getTranscript("test.trs", new String[] { "word" });
+         assertEquals(3, server.count("api/store/getTranscript"));
+         
+         labbcat.tagMatchingAnnotations("layer.id == 'word'", "pos", "N", 100);
+         assertEquals("cleared by bulk tagging", 0, labbcat.getTranscriptCache().getCount());
+         labbcat.getTranscript("test.trs", new String[] { "word" });
+         assertEquals(4, server.count("api/store/getTranscript"));
+         
+         // version checking
+         labbcat.setTranscriptCache(new TranscriptCache(
+                                       tempFiles.createTempDirectory("TestTranscriptCache_"))
+                                    .setVersionLayerId("version"));
+         graph = labbcat.getTranscript("test.trs", new String[] { "word" });
+         assertEquals(5, server.count("api/store/getTranscript"));
+         assertEquals("version not included unless asked for", 0, graph.all("version").length);
+         labbcat.getTranscript("test.trs", new String[] { "word" });
+         assertEquals("version check only", 6, server.count("api/store/getTranscript"));
+         assertEquals(1, labbcat.getTranscriptCache().getMemoryHits());
+         version.set("2");
+         labbcat.getTranscript("test.trs", new String[] { "word" });
+         assertEquals("version check, then reload", 8, server.count("api/store/getTranscript"));
+         assertEquals("stale entry replaced", 1, labbcat.getTranscriptCache().getCount());
+      }
+   }
+   
+   @Test public void reopenEntryWithNoLayersOrVersion() throws Exception {
+      try (TempFiles tempFiles = new TempFiles()) {
+         File dir = tempFiles.createTempDirectory("TestTranscriptCache_");
+         TranscriptCache cache = new TranscriptCache(dir);
+         cache.put("test.trs", null, null, "{}".getBytes("UTF-8"));
+         cache.put("other.trs", new String[] { "word" }, "2", "{}".getBytes("UTF-8"));
+         // an orphaned metadata file, e.g. from an interrupted put
+         File orphan = new File(dir, "orphan.meta");
+         java.nio.file.Files.write(orphan.toPath(), "orphan.trs\nv:".getBytes("UTF-8"));
+         
+         TranscriptCache reopened = new TranscriptCache(dir);
+         assertEquals(2, reopened.getCount());
+         TranscriptCache.Hit hit = reopened.get("test.trs", null);
+         assertNotNull("entry with no layers or version reopened", hit);
+         assertNull(hit.getVersion());
+         hit = reopened.get("other.trs", new String[] { "word" });
+         assertNotNull(hit);
+         assertEquals("2", hit.getVersion());
+         assertFalse("orphaned metadata deleted", orphan.exists());
+      }
+   }
+   
+   static Schema schema() {
+      return new Schema(
+         "who", "turn", "utterance", "word",
+         new Layer("version", "Version").setAlignment(Constants.ALIGNMENT_NONE)
+         .setPeers(false).setPeersOverlap(false).setSaturated(true),
+         new Layer("who", "Participants").setAlignment(Constants.ALIGNMENT_NONE)
+         .setPeers(true).setPeersOverlap(true).setSaturated(true),
+         new Layer("turn", "Turns").setAlignment(Constants.ALIGNMENT_INTERVAL)
+         .setPeers(true).setPeersOverlap(false).setSaturated(false)
+         .setParentId("who").setParentIncludes(true),
+         new Layer("utterance", "Utterances").setAlignment(Constants.ALIGNMENT_INTERVAL)
+         .setPeers(true).setPeersOverlap(false).setSaturated(true)
+         .setParentId("turn").setParentIncludes(true),
+         new Layer("word", "Words").setAlignment(Constants.ALIGNMENT_INTERVAL)
+         .setPeers(true).setPeersOverlap(false).setSaturated(false)
+         .setParentId("turn").setParentIncludes(true),
+         new Layer("pos", "Part of speech").setAlignment(Constants.ALIGNMENT_NONE)
+         .setPeers(false).setPeersOverlap(false).setSaturated(true)
+         .setParentId("word").setParentIncludes(true));
+   }
+   
+   static Graph transcript(Schema schema, String version) {
+      Graph graph = new Graph();
+      graph.setId("test.trs");
+      graph.setSchema((Schema)schema.clone());
+      graph.addAnchor(new Anchor("a0", 0.0));
+      graph.addAnchor(new Anchor("a1", 1.0));
+      graph.addAnnotation(new Annotation("v", version, "version", "a0", "a1"));
+      graph.addAnnotation(new Annotation("p", "p", "who", "a0", "a1"));
+      graph.addAnnotation(new Annotation("t", "p", "turn", "a0", "a1", "p"));
+      graph.addAnnotation(new Annotation("u", "p", "utterance", "a0", "a1", "t"));
+      graph.addAnnotation(new Annotation("w", "hi", "word", "a0", "a1", "t"));
+      graph.addAnnotation(new Annotation("pos", "N", "pos", "a0", "a1", "w"));
+      return graph;
+   }
+   
+   static String json(Graph graph) {
+      try {
+         JSONSerialization s = new JSONSerialization();
+         s.configure(s.configure(new ParameterSet(), graph.getSchema()), graph.getSchema());
+         Vector<NamedStream> streams = new Vector<NamedStream>();
+         s.serialize(Utility.OneGraphSpliterator(graph), null,
+                     stream -> streams.add(stream), warning -> {}, exception -> {});
+         return IO.InputStreamToString(streams.elementAt(0).getStream());
+      } catch(Exception x) {
+         throw new RuntimeException(x);
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestTranscriptCache");
+   }
+}
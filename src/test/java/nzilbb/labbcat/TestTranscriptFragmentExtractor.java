@@ -0,0 +1,107 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import nzilbb.ag.*;
+import nzilbb.ag.serialize.json.JSONSerialization;
+import nzilbb.ag.serialize.util.NamedStream;
+import nzilbb.ag.serialize.util.Utility;
+import nzilbb.configure.ParameterSet;
+import nzilbb.labbcat.util.TempFiles;
+
+/**
+ * Unit tests for TranscriptFragmentExtractor, using a stand-in server.
+ */
+public class TestTranscriptFragmentExtractor {
+   
+   @Test public void serializeLocally() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      Graph transcript = TestTranscriptCache.transcript(schema, "1");
+      transcript.addAnchor(new Anchor("a2", 2.0));
+      transcript.addAnnotation(new Annotation("w2", "there", "word", "a1", "a2", "t"));
+      transcript.getAnnotation("t").setEndId("a2");
+      transcript.getAnnotation("p").setEndId("a2");
+      transcript.getAnnotation("u").setEndId("a2");
+      String json = TestTranscriptCache.json(transcript);
+      try (StandInServer server = new StandInServer();
+           TempFiles tempFiles = new TempFiles()) {
+         server.raw("api/store/getTranscript", query -> json);
+         AtomicInteger schemaRequests = new AtomicInteger();
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() {
+                  schemaRequests.incrementAndGet();
+                  return schema;
+               } };
+         labbcat.setBatchMode(true);
+         File dir = tempFiles.createTempDirectory("TestTranscriptFragmentExtractor_");
+         TranscriptFragmentExtractor extractor = new TranscriptFragmentExtractor(labbcat)
+            .setThreads(2);
+         assertTrue(extractor.canSerialize("application/json"));
+         assertFalse(extractor.canSerialize("text/praat-textgrid"));
+         try {
+            extractor.getFragments(
+               new String[] { "test.trs" }, new Double[] { 0.0 }, new Double[] { 1.0 },
+               new String[] { "word" }, "text/praat-textgrid", dir);
+            fail("No TextGrid serializer");
+         } catch(StoreException x) {}
+         
+         String[] layerIds = { "word" };
+         File[] fragments = extractor.getFragments(
+            new String[] { "test.trs", "test.trs", null },
+            new Double[] { 0.0, 1.0, 0.0 }, new Double[] { 1.0, 2.0, 1.0 },
+            layerIds, "application/json", dir);
+         assertEquals("transcript fetched once", 1, server.count("api/store/getTranscript"));
+         assertEquals("schema fetched once", 1, schemaRequests.get());
+         assertEquals(3, fragments.length);
+         assertNull(fragments[2]);
+         assertEquals("test__0.000-1.000.json", fragments[0].getName());
+         assertEquals("test__1.000-2.000.json", fragments[1].getName());
+         
+         Graph first = deserialize(fragments[0], schema);
+         assertEquals(1, first.all("word").length);
+         assertEquals("hi", first.all("word")[0].getLabel());
+         Graph second = deserialize(fragments[1], schema);
+         assertEquals(1, second.all("word").length);
+         assertEquals("there", second.all("word")[0].getLabel());
+      }
+   }
+   
+   static Graph deserialize(File file, Schema schema) throws Exception {
+      JSONSerialization s = new JSONSerialization();
+      s.configure(s.configure(new ParameterSet(), schema), schema);
+      try (FileInputStream in = new FileInputStream(file)) {
+         s.setParameters(s.load(Utility.OneNamedStreamArray(
+                                   new NamedStream(in, file.getName())), schema));
+         return s.deserialize()[0];
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestTranscriptFragmentExtractor");
+   }
+}
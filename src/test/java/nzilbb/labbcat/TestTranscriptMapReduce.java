@@ -0,0 +1,116 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import nzilbb.ag.*;
+
+/**
+ * Unit tests for TranscriptMapReduce, using a stand-in server.
+ */
+public class TestTranscriptMapReduce {
+   
+   @Test public void combinedInOrder() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      try (StandInServer server = TestTranscriptSpliterator.serve(schema)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         // concatenation is associative but not commutative
+         TranscriptMapReduce<String> job = new TranscriptMapReduce<String>(
+            labbcat, new String[] { "word" },
+            transcript -> transcript.getId(), (a, b) -> a + "," + b)
+            .setPartitionSize(3).setFetchThreads(3).setParallelism(2);
+         assertEquals("missing transcript skipped, order kept",
+                      String.join(",", TestTranscriptSpliterator.expected()),
+                      job.runMatching("/t.+/.test(id)"));
+         assertEquals(19, job.getMapped());
+         
+         Integer words = new TranscriptMapReduce<Integer>(
+            labbcat, new String[] { "word" },
+            transcript -> transcript.all("word").length, (a, b) -> a + b)
+            .run(TestTranscriptSpliterator.ids());
+         assertEquals(Integer.valueOf(19), words);
+         
+         assertNull("no transcripts, no result",
+                    job.run(new String[] { "t07.trs" }));
+      }
+   }
+   
+   @Test public void resumeFromCheckpoint() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      File checkpoint = File.createTempFile("TestTranscriptMapReduce-", ".checkpoint");
+      checkpoint.delete();
+      try (StandInServer server = TestTranscriptSpliterator.serve(schema)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         AtomicBoolean fail = new AtomicBoolean(true);
+         TranscriptMapReduce<Integer> job = new TranscriptMapReduce<Integer>(
+            labbcat, new String[] { "word" },
+            transcript -> {
+               if (fail.get() && transcript.getId().equals("t12.trs")) {
+                  throw new RuntimeException("crash");
+               }
+               return transcript.all("word").length;
+            }, (a, b) -> a + b)
+            .setPartitionSize(5).setCheckpoint(checkpoint);
+         try {
+            job.run(TestTranscriptSpliterator.ids());
+            fail("mapper error is thrown");
+         } catch(StoreException x) {
+            assertTrue(x.getMessage(), x.getMessage().contains("partition 2"));
+         }
+         assertTrue("checkpoint saved", checkpoint.exists());
+         
+         fail.set(false);
+         int fetched = server.count("api/store/getTranscript");
+         assertEquals(Integer.valueOf(19), job.run(TestTranscriptSpliterator.ids()));
+         assertEquals("first two partitions not repeated",
+                      10, server.count("api/store/getTranscript") - fetched);
+         assertEquals(10, job.getMapped());
+         assertFalse("checkpoint deleted after success", checkpoint.exists());
+
+         // a different run doesn't use the checkpoint
+         fail.set(true);
+         try {
+            job.run(TestTranscriptSpliterator.ids());
+            fail("mapper error is thrown");
+         } catch(StoreException x) {
+         }
+         assertTrue("checkpoint saved", checkpoint.exists());
+         String[] fewer = new String[] { "t00.trs", "t01.trs" };
+         assertEquals(Integer.valueOf(2), job.run(fewer));
+         assertEquals(2, job.getMapped());
+      } finally {
+         checkpoint.delete();
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestTranscriptMapReduce");
+   }
+}
@@ -0,0 +1,177 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import nzilbb.ag.*;
+
+/**
+ * Unit tests for TranscriptSpliterator, using a stand-in server.
+ */
+public class TestTranscriptSpliterator {
+   
+   @Test public void orderedAndCapped() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      try (StandInServer server = serve(schema)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         AtomicInteger delivered = new AtomicInteger();
+         AtomicInteger maxUndelivered = new AtomicInteger();
+         Vector<String> ids = new Vector<String>();
+         try (Stream<Graph> transcripts = new TranscriptSpliterator(
+                 labbcat, ids(), new String[] { "word" })
+              .setThreads(3).setPrefetch(4).setMaxUndelivered(4).stream()) {
+            transcripts.forEach(transcript -> {
+                  int fetched = server.count("api/store/getTranscript");
+                  maxUndelivered.set(
+                     Math.max(maxUndelivered.get(), fetched - delivered.incrementAndGet()));
+                  ids.add(transcript.getId());
+                  assertEquals(1, transcript.all("word").length);
+                  try { Thread.sleep(10); } catch(InterruptedException x) {}
+               });
+         }
+         assertEquals("in order, missing transcript skipped", expected(), ids);
+         assertEquals(20, server.count("api/store/getTranscript"));
+         assertTrue("undelivered capped: " + maxUndelivered.get(), maxUndelivered.get() < 4);
+      }
+   }
+   
+   @Test public void parallel() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      try (StandInServer server = serve(schema)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         try (Stream<Graph> transcripts = labbcat.streamMatchingTranscripts(
+                 "/t.+/.test(id)", new String[] { "word" })) {
+            List<String> ids = transcripts.parallel()
+               .map(transcript -> transcript.getId())
+               .collect(Collectors.toList());
+            assertEquals("encounter order is kept", expected(), ids);
+         }
+         assertEquals(1, server.count("api/store/getMatchingTranscriptIds"));
+         assertEquals(20, server.count("api/store/getTranscript"));
+      }
+   }
+   
+   @Test public void poolShutDownWhenExhausted() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      try (StandInServer server = serve(schema)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         TranscriptSpliterator rest = new TranscriptSpliterator(
+            labbcat, ids(), new String[] { "word" }).setThreads(2);
+         TranscriptSpliterator first = (TranscriptSpliterator)rest.trySplit();
+         
+         // not closed, just consumed
+         while (first.tryAdvance(transcript -> {})) {}
+         assertFalse("other split still needs the pool", rest.shared.pool.isShutdown());
+         while (rest.tryAdvance(transcript -> {})) {}
+         assertTrue("all splits exhausted", rest.shared.pool.isShutdown());
+      }
+   }
+   
+   @Test public void closeReleasesAbandonedSplits() throws Exception {
+      Schema schema = TestTranscriptCache.schema();
+      try (StandInServer server = serve(schema)) {
+         LabbcatView labbcat = new LabbcatView(server.getUrl()) {
+               @Override public Schema getSchema() { return schema; } };
+         labbcat.setBatchMode(true);
+         TranscriptSpliterator rest = new TranscriptSpliterator(
+            labbcat, ids(), new String[] { "word" })
+            .setThreads(2).setPrefetch(4).setMaxUndelivered(4);
+         TranscriptSpliterator first = (TranscriptSpliterator)rest.trySplit();
+         
+         // the first split takes all the permits, and is then abandoned
+         assertTrue(first.tryAdvance(transcript -> {}));
+         assertEquals("all permits held", 0, rest.shared.undelivered.availablePermits());
+         
+         // so the other split waits for a permit...
+         AtomicInteger delivered = new AtomicInteger();
+         Vector<Boolean> result = new Vector<Boolean>();
+         Thread waiter = new Thread(() -> result.add(
+                                       rest.tryAdvance(t -> delivered.incrementAndGet())));
+         waiter.start();
+         waiter.join(500);
+         assertTrue("waiting for a permit", waiter.isAlive());
+         
+         // ...until the stream is closed
+         rest.close();
+         waiter.join(5000);
+         assertFalse("waiter gave up", waiter.isAlive());
+         assertEquals("nothing delivered after close", Arrays.asList(false), result);
+         assertEquals("abandoned permits returned",
+                      4, rest.shared.undelivered.availablePermits());
+         assertFalse("closed stream delivers nothing", first.tryAdvance(transcript -> {}));
+      }
+   }
+   
+   /** The transcript IDs the server lists. */
+   static String[] ids() {
+      String[] ids = new String[20];
+      for (int i = 0; i < ids.length; i++) ids[i] = String.format("t%02d.trs", i);
+      return ids;
+   }
+   
+   /** The transcript IDs that are actually delivered. */
+   static List<String> expected() {
+      Vector<String> ids = new Vector<String>();
+      for (String id : ids()) if (!id.equals("t07.trs")) ids.add(id);
+      return ids;
+   }
+   
+   /**
+    * A stand-in server with 20 transcripts, of which t07.trs is missing.
+    */
+   static StandInServer serve(Schema schema) throws Exception {
+      StandInServer server = new StandInServer();
+      server.raw("api/store/getTranscript", query -> {
+            String id = StandInServer.parameter(query, "id").get(0);
+            if (id.equals("t07.trs")) return null;
+            Graph transcript = TestTranscriptCache.transcript(schema, "1");
+            transcript.setId(id);
+            return TestTranscriptCache.json(transcript);
+         })
+         .json("api/store/getMatchingTranscriptIds", query -> {
+               JsonArrayBuilder ids = Json.createArrayBuilder();
+               for (String id : ids()) ids.add(id);
+               return ids.build();
+            });
+      return server;
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.TestTranscriptSpliterator");
+   }
+}
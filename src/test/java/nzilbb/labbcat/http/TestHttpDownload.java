@@ -0,0 +1,74 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.labbcat.http;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Unit tests for HttpDownload.
+ */
+public class TestHttpDownload {
+   
+   @Test public void synchronousAndAsynchronous() throws Exception {
+      byte[] content = new byte[100000];
+      new Random(1).nextBytes(content);
+      String sha256 = HttpDownload.Hex(MessageDigest.getInstance("SHA-256").digest(content));
+      File file = File.createTempFile("TestHttpDownload_", ".bin");
+      try {
+         for (boolean asynchronous : new boolean[] { false, true }) {
+            HttpDownload download = new HttpDownload()
+               .setBufferSize(4096).setChecksumAlgorithm("SHA-256")
+               .setAsynchronous(asynchronous).setFsync(true);
+            HttpDownload.Result result = download.save(
+               new ByteArrayInputStream(content), file, false);
+            assertEquals("length (async="+asynchronous+")", content.length, result.getLength());
+            assertEquals("checksum (async="+asynchronous+")", sha256, result.getChecksum());
+            assertTrue("content (async="+asynchronous+")",
+                       Arrays.equals(content, Files.readAllBytes(file.toPath())));
+            
+            // append the rest after a partial download
+            download.save(new ByteArrayInputStream(content, 0, 1000), file, false);
+            result = download.save(
+               new ByteArrayInputStream(content, 1000, content.length - 1000), file, true);
+            assertEquals("appended length (async="+asynchronous+")",
+                         content.length - 1000, result.getLength());
+            assertTrue("appended content (async="+asynchronous+")",
+                       Arrays.equals(content, Files.readAllBytes(file.toPath())));
+         }
+      } finally {
+         file.delete();
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.http.TestHttpDownload");
+   }
+}
@@ -0,0 +1,82 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.labbcat.util;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for IntervalCoalescer.
+ */
+public class TestIntervalCoalescer {
+   
+   String[] ids = { "a.trs", "b.trs", "a.trs", "a.trs", null, "a.trs", "b.trs" };
+   Double[] starts = { 1.0, 1.0, 1.0, 1.5, 0.0, 5.0, 1.0 };
+   Double[] ends = { 2.0, 2.0, 2.0, 2.5, 1.0, 6.0, 2.0 };
+
+   @Test public void identical() {
+      IntervalCoalescer coalescer = new IntervalCoalescer();
+      List<IntervalCoalescer.Group> groups = coalescer.coalesce(ids, starts, ends, false);
+      assertEquals("groups: a 1-2, a 1.5-2.5, a 5-6, b 1-2", 4, groups.size());
+      assertEquals("a.trs", groups.get(0).transcriptId);
+      assertEquals(Arrays.asList(0, 2), groups.get(0).intervals.get(0).indices);
+      assertEquals(1.5, groups.get(1).start, 0.0);
+      assertEquals("b.trs", groups.get(3).transcriptId);
+      assertEquals(Arrays.asList(1, 6), groups.get(3).intervals.get(0).indices);
+      for (IntervalCoalescer.Group group : groups) assertEquals(1, group.intervals.size());
+      assertEquals(6, coalescer.getRequested());
+      assertEquals(4, coalescer.getDistinct());
+      assertEquals(4, coalescer.getFetched());
+   }
+
+   @Test public void overlapping() {
+      IntervalCoalescer coalescer = new IntervalCoalescer();
+      List<IntervalCoalescer.Group> groups = coalescer.coalesce(ids, starts, ends, true);
+      assertEquals("groups: a 1-2.5, a 5-6, b 1-2", 3, groups.size());
+      assertEquals(1.0, groups.get(0).start, 0.0);
+      assertEquals(2.5, groups.get(0).end, 0.0);
+      assertEquals(2, groups.get(0).intervals.size());
+      assertEquals(Arrays.asList(3), groups.get(0).intervals.get(1).indices);
+      assertEquals(3, coalescer.getFetched());
+      
+      // running totals accumulate until reset
+      coalescer.coalesce(ids, starts, ends, true);
+      assertEquals(12, coalescer.getRequested());
+      assertEquals(6, coalescer.getFetched());
+      coalescer.reset();
+      assertEquals(0, coalescer.getRequested());
+   }
+
+   @Test public void maxDuration() {
+      IntervalCoalescer coalescer = new IntervalCoalescer().setMaxDuration(1.2);
+      List<IntervalCoalescer.Group> groups = coalescer.coalesce(ids, starts, ends, true);
+      assertEquals("a 1-2.5 would be too long", 4, groups.size());
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.util.TestIntervalCoalescer");
+   }
+}
@@ -0,0 +1,204 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat.util;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Vector;
+import nzilbb.ag.*;
+import nzilbb.ag.serialize.json.JSONSerialization;
+import nzilbb.ag.serialize.util.NamedStream;
+import nzilbb.ag.serialize.util.Utility;
+import nzilbb.configure.ParameterSet;
+
+/**
+ * Unit tests for JSONSerializationPool.
+ */
+public class TestJSONSerializationPool {
+   
+   @Test public void roundTripAndReuse() throws Exception {
+      JSONSerializationPool pool = new JSONSerializationPool();
+      Schema schema = schema();
+      String json = pool.serialize(graph(schema));
+      assertEquals(1, pool.getCreated());
+      
+      for (int i = 0; i < 3; i++) {
+         Graph graph = pool.deserialize(
+            new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "test", schema);
+         assertEquals("test.trs", graph.getId());
+         assertEquals(2, graph.all("word").length);
+      }
+      assertEquals("instance reused", 1, pool.getCreated());
+      assertEquals(3, pool.getReused());
+      assertEquals("configured once per instance", 1, pool.getConfigured());
+      
+      pool.deserialize(
+         new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "test", schema());
+      assertEquals("new schema instance doesn't reconfigure", 1, pool.getConfigured());
+      
+      Schema different = schema();
+      different.addLayer(
+         new Layer("phone", "Phones").setAlignment(Constants.ALIGNMENT_INTERVAL)
+         .setPeers(true).setPeersOverlap(false).setSaturated(true)
+         .setParentId("word").setParentIncludes(true));
+      Graph graph = pool.deserialize(
+         new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "test", different);
+      assertEquals("different schema doesn't reconfigure", 1, pool.getConfigured());
+      assertEquals("same layers as a new instance",
+                   fresh(json.getBytes(StandardCharsets.UTF_8), different)
+                   .getSchema().getLayers().keySet(),
+                   graph.getSchema().getLayers().keySet());
+      assertEquals(2, graph.all("word").length);
+      
+      try {
+         pool.deserialize(
+            new ByteArrayInputStream("{ not json".getBytes(StandardCharsets.UTF_8)), "bad",
+            schema);
+         fail("Invalid JSON throws an exception");
+      } catch(Exception x) {}
+      pool.deserialize(
+         new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "test", schema);
+      assertEquals("failed instance discarded", 2, pool.getCreated());
+   }
+   
+   @Test public void idleInstancesReleaseInput() throws Exception {
+      JSONSerializationPool pool = new JSONSerializationPool();
+      Schema schema = schema();
+      String json = pool.serialize(graph(schema));
+      pool.deserialize(
+         new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "test", schema);
+      JSONSerializationPool.Pooled pooled = pool.borrow(schema);
+      assertEquals("idle instance reused", 1, pool.getCreated());
+      Field jsons = JSONSerialization.class.getDeclaredField("jsons");
+      jsons.setAccessible(true);
+      assertEquals("parsed input not retained",
+                   0, ((Map<?,?>)jsons.get(pooled.serialization)).size());
+   }
+   
+   @Test public void concurrent() throws Exception {
+      JSONSerializationPool pool = new JSONSerializationPool().setMaxIdle(4);
+      Schema schema = schema();
+      String json = pool.serialize(graph(schema));
+      Vector<Throwable> errors = new Vector<Throwable>();
+      Vector<Thread> threads = new Vector<Thread>();
+      for (int t = 0; t < 8; t++) {
+         Thread thread = new Thread(() -> {
+               try {
+                  for (int i = 0; i < 50; i++) {
+                     Graph graph = pool.deserialize(
+                        new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)),
+                        "test", schema);
+                     assertEquals(2, graph.all("word").length);
+                  }
+               } catch(Throwable x) {
+                  errors.add(x);
+               }
+         });
+         threads.add(thread);
+         thread.start();
+      }
+      for (Thread thread : threads) thread.join();
+      assertEquals(errors.toString(), 0, errors.size());
+      assertTrue("instances reused", pool.getCreated() <= 9);
+   }
+   
+   /**
+    * Compares the per-call time of creating and configuring a new JSONSerialization for
+    * each transcript against taking a configured one from the pool. As when transcripts
+    * are loaded from the server, each call gets a freshly fetched schema. Timings are
+    * printed rather than asserted, as they depend on the machine.
+    * <p> This is not part of the unit test suite; remove the annotation to run it.
+    */
+   @Ignore("benchmark") @Test public void benchmark() throws Exception {
+      JSONSerializationPool pool = new JSONSerializationPool();
+      byte[] json = pool.serialize(graph(schema())).getBytes(StandardCharsets.UTF_8);
+      int warmup = 2000;
+      int iterations = 20000;
+      for (int i = 0; i < warmup; i++) {
+         fresh(json, schema());
+         pool.deserialize(new ByteArrayInputStream(json), "test", schema());
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) fresh(json, schema());
+      long freshNs = (System.nanoTime() - start) / iterations;
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+         pool.deserialize(new ByteArrayInputStream(json), "test", schema());
+      }
+      long pooledNs = (System.nanoTime() - start) / iterations;
+      System.out.println(
+         "JSONSerializationPool benchmark: new instance " + freshNs + "ns/call, pooled "
+         + pooledNs + "ns/call (" + pool + ")");
+   }
+   
+   /** Deserializes without the pool, the way transcripts used to be deserialized. */
+   static Graph fresh(byte[] json, Schema schema) throws Exception {
+      JSONSerialization deserializer = new JSONSerialization();
+      deserializer.configure(deserializer.configure(new ParameterSet(), schema), schema);
+      deserializer.setParameters(
+         deserializer.load(
+            Utility.OneNamedStreamArray(
+               new NamedStream(new ByteArrayInputStream(json), "test", "application/json")),
+            schema));
+      return deserializer.deserialize()[0];
+   }
+   
+   static Schema schema() {
+      return new Schema(
+         "who", "turn", "utterance", "word",
+         new Layer("who", "Participants").setAlignment(Constants.ALIGNMENT_NONE)
+         .setPeers(true).setPeersOverlap(true).setSaturated(true),
+         new Layer("turn", "Turns").setAlignment(Constants.ALIGNMENT_INTERVAL)
+         .setPeers(true).setPeersOverlap(false).setSaturated(false)
+         .setParentId("who").setParentIncludes(true),
+         new Layer("utterance", "Utterances").setAlignment(Constants.ALIGNMENT_INTERVAL)
+         .setPeers(true).setPeersOverlap(false).setSaturated(true)
+         .setParentId("turn").setParentIncludes(true),
+         new Layer("word", "Words").setAlignment(Constants.ALIGNMENT_INTERVAL)
+         .setPeers(true).setPeersOverlap(false).setSaturated(false)
+         .setParentId("turn").setParentIncludes(true));
+   }
+   
+   static Graph graph(Schema schema) {
+      Graph graph = new Graph();
+      graph.setId("test.trs");
+      graph.setSchema(schema);
+      graph.addAnchor(new Anchor("a0", 0.0));
+      graph.addAnchor(new Anchor("a1", 1.0));
+      graph.addAnchor(new Anchor("a2", 2.0));
+      graph.addAnnotation(new Annotation("p", "p", "who", "a0", "a2"));
+      graph.addAnnotation(new Annotation("t", "p", "turn", "a0", "a2", "p"));
+      graph.addAnnotation(new Annotation("u", "p", "utterance", "a0", "a2", "t"));
+      graph.addAnnotation(new Annotation("w1", "hello", "word", "a0", "a1", "t"));
+      graph.addAnnotation(new Annotation("w2", "there", "word", "a1", "a2", "t"));
+      return graph;
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.util.TestJSONSerializationPool");
+   }
+}
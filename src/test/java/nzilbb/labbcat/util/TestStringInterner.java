@@ -0,0 +1,64 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.labbcat.util;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for StringInterner.
+ */
+public class TestStringInterner {
+   
+   @Test public void deduplicates() {
+      StringInterner interner = new StringInterner(10);
+      String a = interner.intern(new String("orthography"));
+      String b = interner.intern(new String("orthography"));
+      assertSame("Same instance returned", a, b);
+      assertNull("Null passes through", interner.intern(null));
+      assertEquals("size", 1, interner.size());
+      assertEquals("hits", 1, interner.getHits());
+      assertEquals("misses", 1, interner.getMisses());
+   }
+
+   @Test public void bounded() {
+      StringInterner interner = new StringInterner(2);
+      interner.intern("a");
+      interner.intern("b");
+      String c = new String("c");
+      assertSame("Full pool returns value as-is", c, interner.intern(c));
+      assertNotSame("Full pool doesn't pool new values", c, interner.intern(new String("c")));
+      assertEquals("size capped", 2, interner.size());
+      assertEquals("rejected", 2, interner.getRejected());
+
+      interner.setMaxLength(3);
+      interner.clear();
+      String longString = new String("long string");
+      assertSame("Long strings aren't pooled", longString, interner.intern(longString));
+      assertEquals("nothing pooled", 0, interner.size());
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.util.TestStringInterner");
+   }
+}
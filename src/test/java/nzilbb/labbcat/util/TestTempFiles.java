@@ -0,0 +1,165 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.labbcat.util;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.Set;
+
+/**
+ * Unit tests for TempFiles.
+ */
+public class TestTempFiles {
+   
+   @Test public void lifecycle() throws Exception {
+      File file = null;
+      File dir = null;
+      File child = null;
+      try (TempFiles tempFiles = new TempFiles()) {
+         file = tempFiles.createTempFile("TestTempFiles_", ".txt");
+         dir = tempFiles.createTempDirectory("TestTempFiles_");
+         child = new File(dir, "child.txt");
+         Files.write(child.toPath(), new byte[10]);
+         assertEquals("outstanding", 2, tempFiles.getOutstanding().length);
+         assertEquals("usage", 10, tempFiles.getUsage());
+         
+         assertTrue("release tracked file", tempFiles.release(file));
+         assertFalse("released file deleted", file.exists());
+         assertEquals("released file no longer outstanding",
+                      1, tempFiles.getOutstanding().length);
+      }
+      assertFalse("directory deleted on close", dir.exists());
+      assertFalse("directory content deleted on close", child.exists());
+   }
+
+   @Test public void budget() throws Exception {
+      try (TempFiles tempFiles = new TempFiles().setMaxBytes(5)) {
+         File file = tempFiles.createTempFile("TestTempFiles_", ".txt");
+         Files.write(file.toPath(), new byte[10]);
+         try {
+            tempFiles.createTempFile("TestTempFiles_", ".txt");
+            fail("Budget should be exceeded");
+         } catch (IOException x) {
+         }
+         tempFiles.release(file);
+         tempFiles.createTempFile("TestTempFiles_", ".txt");
+      }
+   }
+
+   @Test public void releaseEmptiesTrackedDirectory() throws Exception {
+      try (TempFiles tempFiles = new TempFiles()) {
+         File dir = tempFiles.createTempDirectory("TestTempFiles_");
+         File first = new File(dir, "first.wav");
+         File second = new File(dir, "second.wav");
+         Files.write(first.toPath(), new byte[10]);
+         Files.write(second.toPath(), new byte[10]);
+         
+         assertTrue("file in tracked directory counts as tracked", tempFiles.release(first));
+         assertFalse("released file deleted", first.exists());
+         assertTrue("non-empty directory kept", dir.exists());
+         assertEquals("directory still outstanding", 1, tempFiles.getOutstanding().length);
+         
+         assertTrue(tempFiles.release(second));
+         assertFalse("emptied directory deleted", dir.exists());
+         assertEquals("emptied directory no longer outstanding",
+                      0, tempFiles.getOutstanding().length);
+      }
+   }
+
+   @Test public void charge() throws Exception {
+      try (TempFiles tempFiles = new TempFiles().setMaxBytes(25)) {
+         File dir = tempFiles.createTempDirectory("TestTempFiles_");
+         File first = new File(dir, "first.wav");
+         Files.write(first.toPath(), new byte[10]);
+         tempFiles.charge(first);
+         File second = new File(dir, "second.wav");
+         Files.write(second.toPath(), new byte[10]);
+         tempFiles.charge(second);
+         File third = new File(dir, "third.wav");
+         Files.write(third.toPath(), new byte[10]);
+         try {
+            tempFiles.charge(third);
+            fail("Budget should be exceeded");
+         } catch (IOException x) {
+         }
+         // deleting files by other means is noticed when the estimate is exceeded
+         third.delete();
+         second.delete();
+         File fourth = new File(dir, "fourth.wav");
+         Files.write(fourth.toPath(), new byte[10]);
+         tempFiles.charge(fourth);
+         // released files are no longer counted
+         tempFiles.release(first);
+         File fifth = new File(dir, "fifth.wav");
+         Files.write(fifth.toPath(), new byte[10]);
+         tempFiles.charge(fifth);
+      }
+   }
+
+   @Test public void reserve() throws Exception {
+      try (TempFiles tempFiles = new TempFiles().setMaxBytes(25)) {
+         File dir = tempFiles.createTempDirectory("TestTempFiles_");
+         File first = new File(dir, "first.wav");
+         tempFiles.reserve(first, 10);
+         Files.write(first.toPath(), new byte[10]);
+         tempFiles.charge(first);
+         try {
+            tempFiles.reserve(new File(dir, "second.wav"), 20);
+            fail("Budget would be exceeded by one file");
+         } catch (IOException x) {
+         }
+         tempFiles.reserve(new File(dir, "second.wav"), 15);
+         tempFiles.reserve(new File(dir, "second.wav"), -1); // unknown size
+         tempFiles.reserve(new File("untracked.wav"), 100); // not tracked, so not checked
+      }
+   }
+
+   @Test public void trackedSetStaysBounded() throws Exception {
+      try (TempFiles tempFiles = new TempFiles()) {
+         Field outstanding = TempFiles.class.getDeclaredField("outstanding");
+         outstanding.setAccessible(true);
+         int maxSize = 0;
+         for (int i = 0; i < 1000; i++) {
+            // never released, but deleted by the caller
+            tempFiles.createTempFile("TestTempFiles_", ".txt").delete();
+            maxSize = Math.max(maxSize, ((Set<?>)outstanding.get(tempFiles)).size());
+         }
+         assertTrue("tracked set bounded: " + maxSize, maxSize <= 128);
+         
+         File kept = tempFiles.createTempFile("TestTempFiles_", ".txt");
+         for (int i = 0; i < 1000; i++) {
+            tempFiles.createTempFile("TestTempFiles_", ".txt").delete();
+         }
+         assertTrue("existing file still tracked", tempFiles.release(kept));
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.util.TestTempFiles");
+   }
+}
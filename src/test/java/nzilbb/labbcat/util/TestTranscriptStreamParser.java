@@ -0,0 +1,125 @@
+//
+// Copyright 2025 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of LaBB-CAT.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.labbcat.util;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import nzilbb.ag.*;
+import nzilbb.labbcat.LabbcatView;
+import nzilbb.labbcat.StandInServer;
+
+/**
+ * Unit tests for TranscriptStreamParser.
+ */
+public class TestTranscriptStreamParser {
+   
+   @Test public void matchesDeserialization() throws Exception {
+      Schema schema = TestJSONSerializationPool.schema();
+      Graph graph = bigGraph(schema, 2000);
+      byte[] json = new JSONSerializationPool().serialize(graph)
+         .getBytes(StandardCharsets.UTF_8);
+      
+      Map<String,Double> offsets = new HashMap<String,Double>();
+      Set<String> delivered = new HashSet<String>();
+      Graph header = new TranscriptStreamParser().parse(
+         new ByteArrayInputStream(json),
+         anchor -> offsets.put(anchor.getId(), anchor.getOffset()),
+         annotation -> {
+            Annotation original = graph.getAnnotation(annotation.getId());
+            assertNotNull(annotation.getId(), original);
+            assertEquals(original.getLayerId(), annotation.getLayerId());
+            assertEquals(original.getLabel(), annotation.getLabel());
+            assertEquals(original.getStartId(), annotation.getStartId());
+            assertEquals(original.getEndId(), annotation.getEndId());
+            assertEquals(original.getParentId(), annotation.getParentId());
+            assertEquals(original.getOrdinal(), annotation.getOrdinal());
+            assertTrue("parent delivered first: " + annotation.getId(),
+                       annotation.getParentId().equals(graph.getId())
+                       || delivered.contains(annotation.getParentId()));
+            delivered.add(annotation.getId());
+         });
+      assertEquals("test.trs", header.getId());
+      assertEquals("s", header.getOffsetUnits());
+      assertEquals(graph.getAnnotationsById().size(), delivered.size());
+      assertEquals(graph.getAnchors().size(), offsets.size());
+      for (Anchor anchor : graph.getAnchors().values()) {
+         assertEquals(anchor.getOffset(), offsets.get(anchor.getId()));
+      }
+   }
+   
+   @Test public void streamingGetTranscript() throws Exception {
+      Schema schema = TestJSONSerializationPool.schema();
+      String json = new JSONSerializationPool().serialize(
+         TestJSONSerializationPool.graph(schema));
+      try (StandInServer server = new StandInServer()) {
+         server.raw("api/store/getTranscript", query -> 
+                    StandInServer.parameter(query, "id").contains("test.trs")? json : null);
+         LabbcatView labbcat = new LabbcatView(server.getUrl());
+         labbcat.setBatchMode(true);
+         Set<String> words = new HashSet<String>();
+         Graph header = labbcat.getTranscript(
+            "test.trs", new String[] { "word" }, null,
+            annotation -> {
+               if (annotation.getLayerId().equals("word")) words.add(annotation.getLabel());
+            });
+         assertEquals("test.trs", header.getId());
+         assertEquals(2, words.size());
+         assertTrue(words.contains("hello"));
+         try {
+            labbcat.getTranscript("missing.trs", null, null, annotation -> {});
+            fail("Missing transcript throws GraphNotFoundException");
+         } catch(GraphNotFoundException x) {}
+      }
+   }
+
+   /** A transcript with the given number of words, and one utterance per ten words. */
+   static Graph bigGraph(Schema schema, int wordCount) {
+      Graph graph = new Graph();
+      graph.setId("test.trs");
+      graph.setSchema(schema);
+      graph.setOffsetUnits("s");
+      for (int a = 0; a <= wordCount; a++) graph.addAnchor(new Anchor("a" + a, (double)a));
+      graph.addAnnotation(new Annotation("p", "p", "who", "a0", "a" + wordCount));
+      graph.addAnnotation(new Annotation("t", "p", "turn", "a0", "a" + wordCount, "p"));
+      for (int w = 0; w < wordCount; w++) {
+         if (w % 10 == 0) {
+            graph.addAnnotation(
+               new Annotation("u" + w, "p", "utterance", "a" + w,
+                              "a" + Math.min(wordCount, w + 10), "t"));
+         }
+         graph.addAnnotation(
+            new Annotation("w" + w, "word" + w, "word", "a" + w, "a" + (w + 1), "t"));
+      }
+      return graph;
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.labbcat.util.TestTranscriptStreamParser");
+   }
+}